@@ -13,6 +13,7 @@
  */
 package com.goodow.wind.channel.op;
 
+import com.goodow.wind.model.id.RandomBase64Generator;
 import com.goodow.wind.model.op.Op;
 
 import com.google.gwt.core.client.Scheduler;
@@ -106,22 +107,18 @@ public class GenericOperationChannel<O extends Op<?>> {
      */
     void callbackNotNeeded(Callback callback);
 
-    /**
-     * Lightweight request to get the current revision of the object without submitting operations
-     * (somewhat equivalent to applying no operations).
-     * 
-     * <p>
-     * Useful for synchronizing with the channel for retrying/reconnection.
-     */
-    void requestRevision(Callback callback);
-
     /**
      * Submit operations at the given revision.
      * 
      * <p>
-     * Will be called back with the revision at which the ops were applied.
+     * Will be called back with the revision at which the ops were applied. {@code submission}
+     * numbers the submissions of a connection from 1, under the {@code nonce} the channel picked
+     * when it connected; a resend after a connection error repeats both, and if the ops did make
+     * it the first time, the server answers with the original revision instead of applying them
+     * again.
      */
-    void submitOperations(int revision, ArrayOf<O> operations, Callback callback);
+    void submitOperations(int revision, String nonce, int submission, ArrayOf<O> operations,
+        Callback callback);
   }
 
   /**
@@ -144,7 +141,7 @@ public class GenericOperationChannel<O extends Op<?>> {
       }
       discarded = true;
 
-      logger.log(Level.WARNING, "Retryable failure, will resync.", e);
+      logger.log(Level.WARNING, "Retryable failure, will resend.", e);
       delayResync();
     }
 
@@ -197,26 +194,19 @@ public class GenericOperationChannel<O extends Op<?>> {
     WAITING_ACK,
 
     /**
-     * Waiting to attempt a resync/reconnect (delay can be large due to exponential backoff). Will
-     * transition to WAITING_SYNC when the delay is up and we send off the version request, or to
-     * ALL_ACKED if all ops get acked while waiting.
+     * Waiting to resend the unacked ops under their original submission number. Will transition
+     * to WAITING_ACK when the delay is up and we resend, or to ALL_ACKED if all ops get acked
+     * down the channel while waiting. Whether the ops made it the first time does not matter, the
+     * server recognizes a resend.
      */
-    DELAY_RESYNC,
-
-    /**
-     * Waiting for our version sync. If it turns out that all ops get acked down the channel in the
-     * meantime, we can return to ALL_ACKED. Otherwise, we can resend and go to WAITING_ACK. If
-     * there is a retryable failure, we will go to DELAY_RESYNC
-     */
-    WAITING_SYNC;
+    DELAY_RESYNC;
 
     private ArrayOfInt to;
     static {
       UNINITIALISED.transitionsTo(ALL_ACKED);
       ALL_ACKED.transitionsTo(WAITING_ACK);
       WAITING_ACK.transitionsTo(ALL_ACKED, DELAY_RESYNC);
-      DELAY_RESYNC.transitionsTo(ALL_ACKED, WAITING_SYNC);
-      WAITING_SYNC.transitionsTo(ALL_ACKED, WAITING_ACK, DELAY_RESYNC);
+      DELAY_RESYNC.transitionsTo(ALL_ACKED, WAITING_ACK);
     }
 
     private void transitionsTo(State... validTransitionStates) {
@@ -230,6 +220,7 @@ public class GenericOperationChannel<O extends Op<?>> {
   }
 
   private static final Logger logger = Logger.getLogger(GenericOperationChannel.class.getName());
+  private static final RandomBase64Generator random64 = new RandomBase64Generator();
 
   private boolean isMaybeSendTaskScheduled;
   private final ScheduledCommand maybeSendTask = new ScheduledCommand() {
@@ -247,7 +238,7 @@ public class GenericOperationChannel<O extends Op<?>> {
         return false;
       }
       isResyncTaskScheduled = false;
-      doResync();
+      sendUnackedOps();
       return false;
     }
   };
@@ -273,11 +264,10 @@ public class GenericOperationChannel<O extends Op<?>> {
       } else {
         onIncomingOperation(resultingRevision, operation);
       }
-
-      maybeSynced();
     }
   };
 
+  private final Scheduler scheduler;
   private final ReceiveOpChannel<O> channel;
   private final SendOpService<O> submitService;
   private final Listener<O> listener;
@@ -286,12 +276,27 @@ public class GenericOperationChannel<O extends Op<?>> {
   private State state = State.UNINITIALISED;
   private final TransformQueue<O> queue;
   private String sessionId;
-  private int retryVersion = -1;
+  /**
+   * Picked on connect, so that the server does not take a submission of this connection for one of
+   * an earlier connection with the same session id, e.g. of the same document opened before.
+   */
+  private String nonce;
+  /** Number of the submission of the unacked ops, counted from 1 under {@link #nonce}. */
+  private int submission;
   private DiscardableCallback submitCallback; // mutable to discard out of date ones
-  private DiscardableCallback versionCallback;
 
   public GenericOperationChannel(TransformQueue<O> queue, ReceiveOpChannel<O> channel,
       SendOpService<O> submitService, Listener<O> listener) {
+    this(Scheduler.get(), queue, channel, submitService, listener);
+  }
+
+  /**
+   * Runs deferred sends and resync delays on {@code scheduler}, so that the channel can also be
+   * driven outside the browser, e.g. by a simulation with a virtual clock.
+   */
+  public GenericOperationChannel(Scheduler scheduler, TransformQueue<O> queue,
+      ReceiveOpChannel<O> channel, SendOpService<O> submitService, Listener<O> listener) {
+    this.scheduler = scheduler;
     this.queue = queue;
     this.channel = channel;
     this.submitService = submitService;
@@ -303,6 +308,8 @@ public class GenericOperationChannel<O extends Op<?>> {
     assert sessionId != null : "Null sessionId";
     assert version >= 0 : "Invalid revision, " + version;
     this.sessionId = sessionId;
+    nonce = random64.next(8);
+    submission = 0;
     channel.connect(version, receiveListener);
     queue.init(version);
     setState(State.ALL_ACKED);
@@ -355,7 +362,7 @@ public class GenericOperationChannel<O extends Op<?>> {
     if (!queue.hasUnacknowledgedClientOps()) {
       assert state == State.ALL_ACKED;
       isMaybeSendTaskScheduled = true;
-      Scheduler.get().scheduleDeferred(maybeSendTask);
+      scheduler.scheduleDeferred(maybeSendTask);
     }
   }
 
@@ -370,15 +377,15 @@ public class GenericOperationChannel<O extends Op<?>> {
 
   private void allAcked() {
 
-    // This also counts as an early sync
-    synced();
+    // No need to resend any more.
+    isResyncTaskScheduled = false;
 
     // No point waiting for the XHR to come back, we're already acked.
     submitCallback.discard();
 
     setState(State.ALL_ACKED);
     if (queue.hasQueuedClientOps()) {
-      Scheduler.get().scheduleDeferred(maybeSendTask);
+      scheduler.scheduleDeferred(maybeSendTask);
     }
   }
 
@@ -396,31 +403,20 @@ public class GenericOperationChannel<O extends Op<?>> {
         assert sessionId != null;
         assert queue.version() >= 0;
         assert isDiscarded(submitCallback);
-        assert isDiscarded(versionCallback);
-        assert retryVersion == -1;
         assert !queue.hasUnacknowledgedClientOps();
         assert !isResyncTaskScheduled;
         break;
       case WAITING_ACK:
         assert !isDiscarded(submitCallback);
-        assert isDiscarded(versionCallback);
-        assert retryVersion == -1;
+        assert submission > 0;
         assert !isMaybeSendTaskScheduled;
         assert !isResyncTaskScheduled;
         break;
       case DELAY_RESYNC:
         assert isDiscarded(submitCallback);
-        assert isDiscarded(versionCallback);
-        assert retryVersion == -1;
         assert !isMaybeSendTaskScheduled;
         assert isResyncTaskScheduled;
         break;
-      case WAITING_SYNC:
-        assert isDiscarded(submitCallback);
-        assert !isDiscarded(versionCallback);
-        assert !isMaybeSendTaskScheduled;
-        assert !isResyncTaskScheduled;
-        break;
       default:
         throw new AssertionError("State " + state + " not implemented");
     }
@@ -428,23 +424,10 @@ public class GenericOperationChannel<O extends Op<?>> {
 
   private void delayResync() {
     isResyncTaskScheduled = true;
-    Scheduler.get().scheduleFixedDelay(delayedResyncTask, 5 * 1000);
+    scheduler.scheduleFixedDelay(delayedResyncTask, 5 * 1000);
     setState(State.DELAY_RESYNC);
   }
 
-  private void doResync() {
-    versionCallback = new DiscardableCallback() {
-      @Override
-      public void success(int appliedRevision) {
-        logger.log(Level.INFO, "version callback returned @" + appliedRevision);
-        retryVersion = appliedRevision;
-        maybeSynced();
-      }
-    };
-    submitService.requestRevision(versionCallback);
-    setState(State.WAITING_SYNC);
-  }
-
   private void fail(Throwable e) {
     logger.log(Level.WARNING, "channel.fail()");
     if (!isConnected()) {
@@ -495,24 +478,7 @@ public class GenericOperationChannel<O extends Op<?>> {
     if (queue.hasQueuedClientOps()) {
       queue.pushQueuedOpsToUnacked();
       if (queue.hasUnacknowledgedClientOps()) {
-        sendUnackedOps();
-      }
-    }
-  }
-
-  private void maybeSynced() {
-    if (state == State.WAITING_SYNC && retryVersion != -1 && queue.version() >= retryVersion) {
-
-      // Our ping has returned.
-      synced();
-
-      if (queue.hasUnacknowledgedClientOps()) {
-        // We've synced and didn't see our unacked ops, so they never made it (we
-        // are not handling the case of ops that hang around on the network and
-        // make it after a very long time, i.e. after a sync round trip. This
-        // scenario most likely extremely rare).
-
-        // Send the unacked ops again.
+        submission++;
         sendUnackedOps();
       }
     }
@@ -546,12 +512,15 @@ public class GenericOperationChannel<O extends Op<?>> {
   }
 
   /**
-   * Sends unacknowledged ops and transitions to the WAITING_ACK state
+   * Sends unacknowledged ops, or resends them under the same submission number, and transitions
+   * to the WAITING_ACK state. The ops have been transformed against the server ops received
+   * since, so they are sent at the current version either way.
    */
   private void sendUnackedOps() {
     ArrayOf<O> ops = queue.unackedClientOps();
     assert ops.length() > 0;
-    logger.log(Level.INFO, "Sending " + ops.length() + " ops @" + queue.version());
+    logger.log(Level.INFO, "Sending " + ops.length() + " ops @" + queue.version() + " #"
+        + submission);
     submitCallback = new DiscardableCallback() {
       @Override
       void success(int appliedRevision) {
@@ -559,7 +528,7 @@ public class GenericOperationChannel<O extends Op<?>> {
       }
     };
 
-    submitService.submitOperations(queue.version(), ops, submitCallback);
+    submitService.submitOperations(queue.version(), nonce, submission, ops, submitCallback);
     setState(State.WAITING_ACK);
   }
 
@@ -579,19 +548,4 @@ public class GenericOperationChannel<O extends Op<?>> {
 
     state = newState;
   }
-
-  /**
-   * We have reached a state where we are confident we know whether any unacked ops made it to the
-   * server.
-   */
-  private void synced() {
-    logger.log(Level.INFO, "synced @" + queue.version());
-
-    retryVersion = -1;
-    isResyncTaskScheduled = false;
-
-    if (versionCallback != null) {
-      versionCallback.discard();
-    }
-  }
 }
\ No newline at end of file
@@ -34,8 +34,23 @@ public class Constants {
     public static final String VERSION = "v";
     /** End version in a range (exclusive). */
     public static final String END_VERSION = "end";
+    /**
+     * Asks for a history with consecutive deltas composed where possible, so the version of a
+     * returned delta may be more than one ahead of the previous one.
+     */
+    public static final String COMPOSE = "compose";
     /** ObjectSession protobuf. */
     public static final String SESSION = "session";
+    /**
+     * Chosen by the client each time it connects a channel, so that submission numbers from
+     * different connections of one session are told apart.
+     */
+    public static final String NONCE = "nonce";
+    /**
+     * Sequence number of a submission under its {@link #NONCE}, starting at 1; a resend repeats it
+     * so that the server can recognize it.
+     */
+    public static final String SUBMISSION = "seq";
 
     private Params() {
     }
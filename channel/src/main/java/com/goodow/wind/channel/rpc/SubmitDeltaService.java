@@ -17,9 +17,6 @@ import com.goodow.wind.channel.op.GenericOperationChannel.SendOpService;
 import com.goodow.wind.channel.rpc.Constants.Params;
 import com.goodow.wind.model.op.Op;
 
-import java.util.logging.Level;
-import java.util.logging.Logger;
-
 import elemental.json.JsonObject;
 import elemental.util.ArrayOf;
 import elemental.util.Collections;
@@ -30,7 +27,6 @@ import elemental.util.MapFromStringToString;
  * delta is still in flight, that is a job for the channel layer above.
  */
 public class SubmitDeltaService<O extends Op<?>> implements SendOpService<O> {
-  private static final Logger log = Logger.getLogger(SubmitDeltaService.class.getName());
   private final Rpc rpc;
   private final String sessionId;
   private final String key;
@@ -47,37 +43,14 @@ public class SubmitDeltaService<O extends Op<?>> implements SendOpService<O> {
   }
 
   @Override
-  public void requestRevision(final SendOpService.Callback callback) {
-    MapFromStringToString params = Collections.mapFromStringToString();
-    params.put(Params.SESSION_ID, sessionId);
-    params.put(Params.ID, key);
-    rpc.makeRequest(Rpc.Method.GET, Constants.Services.VERSION, params, new Rpc.RpcCallback() {
-      @Override
-      public void onConnectionError(Throwable e) {
-        callback.onConnectionError(e);
-      }
-
-      @Override
-      public void onFatalError(Throwable e) {
-        callback.onFatalError(e);
-      }
-
-      @Override
-      public void onSuccess(String data) {
-        log.log(Level.FINE, data);
-        JsonObject connectResponse = RpcUtil.evalPrefixed(data);
-        callback.onSuccess((int) connectResponse.getNumber(Constants.Params.VERSION));
-      }
-    });
-  }
-
-  @Override
-  public void submitOperations(int revision, ArrayOf<O> operations,
-      final SendOpService.Callback callback) {
+  public void submitOperations(int revision, String nonce, int submission,
+      ArrayOf<O> operations, final SendOpService.Callback callback) {
     MapFromStringToString params = Collections.mapFromStringToString();
     params.put(Params.SESSION_ID, sessionId);
     params.put(Params.ID, key);
     params.put(Params.VERSION, revision + "");
+    params.put(Params.NONCE, nonce);
+    params.put(Params.SUBMISSION, submission + "");
     params.put(Params.DELTAS, serialize(operations));
     rpc.makeRequest(Rpc.Method.POST, Constants.Services.SUBMIT_DELTA, params,
         new Rpc.RpcCallback() {
@@ -18,6 +18,7 @@ import com.goodow.wind.model.op.list.algorithm.ListNormalizer;
 import com.goodow.wind.model.op.list.algorithm.ListNormalizer.Appender;
 import com.goodow.wind.model.op.list.algorithm.ListOp;
 import com.goodow.wind.model.op.list.algorithm.ListTarget;
+import com.goodow.wind.model.util.JsonValues;
 import com.goodow.wind.model.util.Pair;
 
 import elemental.json.Json;
@@ -30,7 +31,12 @@ class ArrayOp extends ListOp<JsonArray> {
 
     @Override
     public void append(JsonArray list) {
-      for (int i = 0, len = list.length(); i < len; i++) {
+      append(list, 0, list.length());
+    }
+
+    @Override
+    public void append(JsonArray list, int beginIdx, int endIdx) {
+      for (int i = beginIdx; i < endIdx; i++) {
         array.set(array.length(), list.get(i));
       }
     }
@@ -45,11 +51,21 @@ class ArrayOp extends ListOp<JsonArray> {
     }
   }
   private static class ArrayHelper implements ListHelper<JsonArray> {
+    @Override
+    public boolean areEqual(JsonArray a, JsonArray b) {
+      return JsonValues.areEqual(a, b);
+    }
+
     @Override
     public ListNormalizer<JsonArray> createNormalizer() {
       return new ArrayNormalizer();
     }
 
+    @Override
+    public int hash(JsonArray list) {
+      return JsonValues.hash(list);
+    }
+
     @Override
     public int length(JsonArray list) {
       return list.length();
@@ -64,9 +80,7 @@ class ArrayOp extends ListOp<JsonArray> {
     public boolean startsWith(JsonArray list, JsonArray prefix) {
       assert list.length() >= prefix.length();
       for (int i = 0, len = prefix.length(); i < len; i++) {
-        if ((prefix.get(i) == null && list.get(i) != null)
-            || (prefix.get(i) != null && list.get(i) == null)
-            || !prefix.get(i).toJson().equals(list.get(i).toJson())) {
+        if (!JsonValues.areEqual(prefix.get(i), list.get(i))) {
           return false;
         }
       }
@@ -127,7 +141,7 @@ class ArrayOp extends ListOp<JsonArray> {
   @SuppressWarnings({"rawtypes", "unchecked"})
   <T> Pair<JsonOp<T>, ? extends JsonOp<?>> transformWithChild(boolean serverIsParent,
       JsonOp<?> parentOp, final JsonOp<?> childOp) {
-    final Pair<Integer, String> pair = childOp.getPath().nextIndex(parentOp.getPath().toString());
+    final Pair<Integer, Path> pair = childOp.getPath().nextIndex(parentOp.getPath());
     final int[] cursor = new int[2];
     final boolean[] isDelete = new boolean[1];
     apply(new ListTarget<JsonArray>() {
@@ -169,7 +183,8 @@ class ArrayOp extends ListOp<JsonArray> {
             (JsonOp<T>) childOp, parentOp);
       } else {
         JsonOp<?> transformedChildOp =
-            new JsonOp(childOp.getPath().getParent().at(pair.first + cursor[1]), childOp.getOp());
+            new JsonOp(parentOp.getPath().at(pair.first + cursor[1]).at(pair.second), childOp
+                .getOp());
         return serverIsParent ? Pair.of((JsonOp<T>) parentOp, transformedChildOp) : Pair.of(
             (JsonOp<T>) transformedChildOp, parentOp);
       }
@@ -185,7 +200,7 @@ class ArrayOp extends ListOp<JsonArray> {
           for (int i = 0, len = list.length(); i < len; i++) {
             if (cursor[0] - list.length() + i == pair.first) {
               JValue val = new JsonModel().create(Json.instance().parse(list.get(i).toJson()));
-              val.consume(new JsonOp(Path.of(pair.second), childOp.getOp()));
+              val.consume(new JsonOp(pair.second, childOp.getOp()));
               array.set(i, val.getValue());
             } else {
               array.set(i, list.get(i));
@@ -16,9 +16,12 @@ package com.goodow.wind.model.json;
 import com.goodow.wind.model.event.HandlerRegistration;
 import com.goodow.wind.model.op.OpSink;
 
+import java.util.IdentityHashMap;
+
 import elemental.json.JsonArray;
 import elemental.json.JsonObject;
 import elemental.json.JsonType;
+import elemental.json.Json;
 import elemental.json.JsonValue;
 import elemental.util.ArrayOf;
 
@@ -50,6 +53,12 @@ class Context {
   private String key;
   private OpSink<JsonOp<?>> outputSink;
   private JsonHandlerRegistry registry;
+  /**
+   * The containers copied since the tree was last frozen, which may be modified in place, or
+   * {@code null} if the tree has never been frozen and every node is modified in place. Keyed by
+   * identity, as equal containers may still be shared.
+   */
+  private IdentityHashMap<JsonValue, Boolean> owned;
 
   private Context(JsonValue snapshot) {
     // assert snapshot != null;
@@ -78,7 +87,7 @@ class Context {
           }
         }
       } else {
-        ArrayOf<ObjectHandler> handlers = getHandlers(path.getParent());
+        ArrayOf<ObjectHandler> handlers = getHandlers(parent);
         if (handlers != null && !handlers.isEmpty()) {
           for (int i = 0, len = handlers.length(); i < len; i++) {
             ObjectHandler handler = handlers.get(i);
@@ -92,41 +101,70 @@ class Context {
     }
   }
 
-  JsonValue get(Path path) {
-    if (path.toString().isEmpty()) {
-      return snapshot;
+  /**
+   * Returns the current root and switches to copy-on-write, so that the returned tree is never
+   * modified again.
+   */
+  JsonValue freeze() {
+    if (owned == null) {
+      owned = new IdentityHashMap<JsonValue, Boolean>();
+    } else {
+      owned.clear();
     }
+    return snapshot;
+  }
+
+  JsonValue get(Path path) {
     JsonValue toRtn = snapshot;
-    String[] keys = path.toString().split("\\.");
-    for (String subPath : keys) {
-      int idx = subPath.indexOf('[');
-      if (idx == -1) {
+    for (int i = 0, len = path.depth(); i < len; i++) {
+      String key = path.getKey(i);
+      if (key == null) {
+        assert toRtn instanceof JsonArray;
+        toRtn = ((JsonArray) toRtn).get(path.getIndex(i));
+      } else {
         assert toRtn instanceof JsonObject;
-        toRtn = ((JsonObject) toRtn).get(subPath);
-        if (toRtn == null) {
-          return null;
-        }
-        continue;
+        toRtn = ((JsonObject) toRtn).get(key);
       }
-      if (idx != 0) {
-        assert toRtn instanceof JsonObject;
-        toRtn = ((JsonObject) toRtn).get(subPath.substring(0, idx));
-        if (toRtn == null) {
-          return null;
-        }
+      if (toRtn == null) {
+        return null;
       }
-      String[] split = subPath.substring(idx).split("[\\[\\]]");
-      assert split.length > 1 && split.length % 2 == 0;
-      for (int i = 1, len = split.length; i < len; i += 2) {
-        assert split[i - 1].isEmpty();
-        assert toRtn instanceof JsonArray;
-        toRtn = ((JsonArray) toRtn).get(Integer.parseInt(split[i]));
-        if (toRtn == null) {
-          return null;
+    }
+    return toRtn;
+  }
+
+  /**
+   * Returns the container at {@code path}, ready to be modified in place. If the tree has been
+   * frozen, the container and its ancestors are copied first unless they already were since.
+   */
+  JsonValue getMutable(Path path) {
+    if (owned == null) {
+      return get(path);
+    }
+    boolean copying = !isOwned(snapshot);
+    if (copying) {
+      snapshot = copy(snapshot);
+    }
+    JsonValue parent = snapshot;
+    for (int i = 0, len = path.depth(); i < len; i++) {
+      String key = path.getKey(i);
+      JsonValue child =
+          key == null ? ((JsonArray) parent).get(path.getIndex(i)) : ((JsonObject) parent).get(key);
+      if (child == null) {
+        return null;
+      }
+      // Children of a node that is still shared are shared as well.
+      if (copying || !isOwned(child)) {
+        copying = true;
+        child = copy(child);
+        if (key == null) {
+          ((JsonArray) parent).set(path.getIndex(i), child);
+        } else {
+          ((JsonObject) parent).put(key, child);
         }
       }
+      parent = child;
     }
-    return toRtn;
+    return parent;
   }
 
   @SuppressWarnings("unchecked")
@@ -135,6 +173,10 @@ class Context {
     return (ArrayOf<T>) registry.getHandlers(key, path);
   }
 
+  boolean isCopyOnWrite() {
+    return owned != null;
+  }
+
   HandlerRegistration registerHandler(Path path, final JValue.JsonHandler handler) {
     if (registry == null) {
       registry = JsonHandlerRegistry.ROOT.createExtension();
@@ -163,7 +205,7 @@ class Context {
       snapshot = val;
       return;
     }
-    JsonValue parentVal = get(parent);
+    JsonValue parentVal = getMutable(parent);
     assert parentVal != null;
     if (path.isIndexed()) {
       ((JsonArray) parentVal).set(path.getIndex(), val);
@@ -181,4 +223,35 @@ class Context {
       outputSink.consume(op);
     }
   }
+
+  private JsonValue copy(JsonValue value) {
+    JsonValue toRtn;
+    switch (value.getType()) {
+      case ARRAY:
+        JsonArray array = (JsonArray) value;
+        JsonArray arrayCopy = Json.createArray();
+        for (int i = 0, len = array.length(); i < len; i++) {
+          arrayCopy.set(i, array.get(i));
+        }
+        toRtn = arrayCopy;
+        break;
+      case OBJECT:
+        JsonObject object = (JsonObject) value;
+        JsonObject objectCopy = Json.createObject();
+        for (String key : object.keys()) {
+          objectCopy.put(key, object.get(key));
+        }
+        toRtn = objectCopy;
+        break;
+      default:
+        // Other values are never modified in place.
+        return value;
+    }
+    owned.put(toRtn, Boolean.TRUE);
+    return toRtn;
+  }
+
+  private boolean isOwned(JsonValue value) {
+    return owned.containsKey(value);
+  }
 }
\ No newline at end of file
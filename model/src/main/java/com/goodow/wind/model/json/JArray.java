@@ -133,7 +133,7 @@ public class JArray extends JValue {
   }
 
   JsonArray array() {
-    if (array == null) {
+    if (array == null || ctx.isCopyOnWrite()) {
       array = (JsonArray) getValue();
     }
     return array;
@@ -221,7 +221,7 @@ public class JArray extends JValue {
 
   private void insertAndFireEvent(int idx, JsonValue value) {
     assert value != null;
-    array().insert(idx, value);
+    mutableArray().insert(idx, value);
     if (ctx.shouldFireEvent()) {
       JValue val = get(idx);
       fireEvent(idx, null, val, false);
@@ -230,13 +230,18 @@ public class JArray extends JValue {
     }
   }
 
+  private JsonArray mutableArray() {
+    array = (JsonArray) ctx.getMutable(path);
+    return array;
+  }
+
   private void removeAndFireEvent(int idx) {
     JsonValue toRemove = null;
     if (ctx.shouldFireEvent()) {
       new DestroyVisitor().accept(get(idx));
       toRemove = array().get(idx);
     }
-    array().remove(idx);
+    mutableArray().remove(idx);
     if (ctx.shouldFireEvent()) {
       fireEvent(idx, toRemove, null, false);
       fireEventToParent();
@@ -168,7 +168,7 @@ public class JObject extends JValue {
   }
 
   JsonObject object() {
-    if (obj == null) {
+    if (obj == null || ctx.isCopyOnWrite()) {
       obj = (JsonObject) getValue();
     }
     return obj;
@@ -187,6 +187,11 @@ public class JObject extends JValue {
     visitor.endVisit(this);
   }
 
+  private JsonObject mutableObject() {
+    obj = (JsonObject) ctx.getMutable(path);
+    return obj;
+  }
+
   private MapOp<JsonValue> op(String key, JsonValue newVal) {
     return new ObjectOp().update(key, object().get(key), newVal);
   }
@@ -208,7 +213,7 @@ public class JObject extends JValue {
       oldVal = object().get(key);
       new DestroyVisitor().accept(get(key));
     }
-    object().put(key, val);
+    mutableObject().put(key, val);
     if (ctx.shouldFireEvent()) {
       JValue newVal = get(key);
       fireEvent(key, oldVal, newVal, false);
@@ -224,7 +229,7 @@ public class JObject extends JValue {
       new DestroyVisitor().accept(get(key));
       toRemove = object().get(key);
     }
-    object().remove(key);
+    mutableObject().remove(key);
     if (ctx.shouldFireEvent()) {
       fireEvent(key, toRemove, null, false);
       fireEventToParent();
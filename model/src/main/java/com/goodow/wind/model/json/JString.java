@@ -34,10 +34,9 @@ public class JString extends JValue {
   }
 
   public JString delete(int idx, int length) {
-    String snapshot = getString();
-    assert idx + length <= snapshot.length();
-    ListOp<String> op =
-        new StringOp(false, idx, snapshot.substring(idx, idx + length), snapshot.length());
+    int initLength = length();
+    assert idx + length <= initLength;
+    ListOp<String> op = new StringOp(false, idx, substring(idx, idx + length), initLength);
     consumeAndSubmit(op);
     return this;
   }
@@ -52,13 +51,17 @@ public class JString extends JValue {
   }
 
   public JString insert(int idx, String str) {
-    String snapshot = getString();
-    assert idx <= snapshot.length();
-    ListOp<String> op = new StringOp(true, idx, str, snapshot.length());
+    int initLength = length();
+    assert idx <= initLength;
+    ListOp<String> op = new StringOp(true, idx, str, initLength);
     consumeAndSubmit(op);
     return this;
   }
 
+  public int length() {
+    return ((JsonString) getValue()).length();
+  }
+
   public HandlerRegistration on(StringHandler handler) {
     return super.on(handler);
   }
@@ -72,8 +75,8 @@ public class JString extends JValue {
 
       @Override
       public ListTarget<String> delete(String str) {
-        assert getString().substring(cursor, cursor + str.length()).equals(str);
-        deleteAndFireEvent(cursor, str.length());
+        assert substring(cursor, cursor + str.length()).equals(str);
+        deleteAndFireEvent(cursor, str);
         return null;
       }
 
@@ -115,23 +118,27 @@ public class JString extends JValue {
     visitor.visit(this);
   }
 
-  private void deleteAndFireEvent(int idx, int length) {
-    String snapshot = getString();
-    assert idx + length <= snapshot.length();
-    replace(Json.create(snapshot.substring(0, idx) + snapshot.substring(idx + length)));
+  private void deleteAndFireEvent(int idx, String str) {
+    JsonString value = (JsonString) getValue();
+    assert idx + str.length() <= value.length();
+    replace(value.delete(idx, str.length()));
     if (ctx.shouldFireEvent()) {
-      fireEvent(false, idx, snapshot.substring(idx, idx + length), false);
+      fireEvent(false, idx, str, false);
       fireEventToParent();
     }
   }
 
   private void insertAndFireEvent(int idx, String str) {
-    String snapshot = getString();
-    assert idx <= snapshot.length();
-    replace(Json.create(snapshot.substring(0, idx) + str + snapshot.substring(idx)));
+    JsonString value = (JsonString) getValue();
+    assert idx <= value.length();
+    replace(value.insert(idx, str));
     if (ctx.shouldFireEvent()) {
       fireEvent(true, idx, str, false);
       fireEventToParent();
     }
   }
-}
\ No newline at end of file
+
+  private String substring(int beginIdx, int endIdx) {
+    return ((JsonString) getValue()).substring(beginIdx, endIdx);
+  }
+}
@@ -23,9 +23,20 @@ import com.goodow.wind.model.util.Pair;
 import elemental.json.JsonObject;
 import elemental.json.JsonValue;
 import elemental.util.ArrayOf;
+import elemental.util.ArrayOfInt;
+import elemental.util.CanCompareInt;
 import elemental.util.Collections;
 
 public class JsonModel implements Model<JsonOp<?>, JsonValue> {
+  /** Below this many op pairs, indexing the client ops by path costs more than it saves. */
+  private static final int PATH_INDEX_MIN_PAIRS = 16;
+  private static final CanCompareInt ASCENDING = new CanCompareInt() {
+    @Override
+    public int compare(int a, int b) {
+      return a < b ? -1 : a == b ? 0 : 1;
+    }
+  };
+
   @Override
   @SuppressWarnings({"unchecked", "rawtypes"})
   public ArrayOf<JsonOp<?>> compose(ArrayOf<JsonOp<?>> ops) {
@@ -33,12 +44,12 @@ public class JsonModel implements Model<JsonOp<?>, JsonValue> {
       return ops;
     }
     ArrayOf<JsonOp<?>> toRtn = Collections.arrayOf();
-    String currentPath = null;
+    Path currentPath = null;
     ListOpCollector<?> collector = null;
     for (int i = 0, len = ops.length(); i < len; i++) {
       JsonOp op = ops.get(i);
       assert !op.isNoOp();
-      if (!op.getPath().toString().equals(currentPath)) {
+      if (!op.getPath().equals(currentPath)) {
         if (collector != null) {
           composeListOps(toRtn, collector);
           collector = null;
@@ -59,7 +70,7 @@ public class JsonModel implements Model<JsonOp<?>, JsonValue> {
           }
         }
       }
-      currentPath = op.getPath().toString();
+      currentPath = op.getPath();
     }
     if (collector != null) {
       composeListOps(toRtn, collector);
@@ -78,6 +89,25 @@ public class JsonModel implements Model<JsonOp<?>, JsonValue> {
     return JsonOp.parse((JsonObject) delta);
   }
 
+  /**
+   * Creates an editable tree on top of a version returned by {@link #freeze}. The version itself is
+   * left untouched, so it can be forked any number of times.
+   */
+  public JValue fork(JsonValue frozen) {
+    JValue toRtn = Context.create(frozen);
+    toRtn.ctx.freeze();
+    return toRtn;
+  }
+
+  /**
+   * Returns the current version of the tree behind {@code value}. The tree switches to path
+   * copying: later edits copy the containers they touch instead of modifying them, so the returned
+   * version never changes and shares every untouched subtree with the live tree.
+   */
+  public JsonValue freeze(JValue value) {
+    return value.ctx.freeze();
+  }
+
   public void init(JValue snapshot, String key, OpSink<JsonOp<?>> outputSink,
       JsonHandlerRegistry registry) {
     snapshot.ctx.setKey(key).setOutputSink(outputSink).setRegistry(registry);
@@ -89,6 +119,74 @@ public class JsonModel implements Model<JsonOp<?>, JsonValue> {
   @Override
   public Pair<ArrayOf<JsonOp<?>>, ArrayOf<JsonOp<?>>> transform(ArrayOf<JsonOp<?>> serverOps,
       ArrayOf<JsonOp<?>> clientOps) {
+    return serverOps.length() * clientOps.length() < PATH_INDEX_MIN_PAIRS ? transformPairwise(
+        serverOps, clientOps) : transformByPath(serverOps, clientOps);
+  }
+
+  /**
+   * Transforms like {@link #transformPairwise}, but skips the pairs of ops on unrelated paths,
+   * whose transforms are the identity: each server op still meets the remaining client ops in
+   * order, though only those at its own path, an ancestor or a descendant.
+   */
+  Pair<ArrayOf<JsonOp<?>>, ArrayOf<JsonOp<?>>> transformByPath(ArrayOf<JsonOp<?>> serverOps,
+      ArrayOf<JsonOp<?>> clientOps) {
+    ArrayOf<JsonOp<?>> sOps = Collections.arrayOf();
+    ArrayOf<JsonOp<?>> cOps = Collections.<JsonOp<?>> arrayOf().concat(clientOps);
+    PathTrie index = new PathTrie();
+    for (int j = 0, len = cOps.length(); j < len; j++) {
+      index.add(cOps.get(j).getPath(), j);
+    }
+    ArrayOfInt candidates = Collections.arrayOfInt();
+    boolean removed = false;
+    sLoop : for (int i = 0, len = serverOps.length(); i < len; i++) {
+      JsonOp<?> serverOp = serverOps.get(i);
+      assert !serverOp.isNoOp();
+      // Transforming shifts array indexes only, so the candidates hold for the whole loop.
+      candidates.setLength(0);
+      index.collect(serverOp.getPath(), candidates);
+      candidates.sort(ASCENDING);
+      for (int k = 0, n = candidates.length(); k < n; k++) {
+        int j = candidates.get(k);
+        JsonOp<?> clientOp = cOps.get(j);
+        if (clientOp == null) {
+          continue;
+        }
+        assert !clientOp.isNoOp();
+        Pair<? extends JsonOp<?>, ? extends JsonOp<?>> pair = serverOp.transformWith(clientOp);
+        serverOp = pair.first;
+        clientOp = pair.second;
+        if (serverOp.isNoOp()) {
+          if (clientOp.isNoOp()) {
+            cOps.set(j, null);
+            removed = true;
+          }
+          continue sLoop;
+        } else if (clientOp.isNoOp()) {
+          cOps.set(j, null);
+          removed = true;
+          continue;
+        }
+        cOps.set(j, clientOp);
+      }
+      sOps.push(serverOp);
+    }
+    if (removed) {
+      ArrayOf<JsonOp<?>> remaining = Collections.arrayOf();
+      for (int j = 0, len = cOps.length(); j < len; j++) {
+        if (cOps.get(j) != null) {
+          remaining.push(cOps.get(j));
+        }
+      }
+      cOps = remaining;
+    }
+    return Pair.of(sOps, cOps);
+  }
+
+  /**
+   * Transforms every server op against every remaining client op, in order.
+   */
+  Pair<ArrayOf<JsonOp<?>>, ArrayOf<JsonOp<?>>> transformPairwise(ArrayOf<JsonOp<?>> serverOps,
+      ArrayOf<JsonOp<?>> clientOps) {
     ArrayOf<JsonOp<?>> sOps = Collections.<JsonOp<?>> arrayOf().concat(serverOps);
     ArrayOf<JsonOp<?>> cOps = Collections.<JsonOp<?>> arrayOf().concat(clientOps);
     sLoop : for (int i = 0; i < sOps.length(); i++) {
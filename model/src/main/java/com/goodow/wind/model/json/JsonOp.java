@@ -19,12 +19,15 @@ import com.goodow.wind.model.op.basic.ReplaceOp;
 import com.goodow.wind.model.op.basic.ReplaceTarget;
 import com.goodow.wind.model.op.list.StringOp;
 import com.goodow.wind.model.op.list.algorithm.ListOp;
+import com.goodow.wind.model.op.list.algorithm.ListTarget;
 import com.goodow.wind.model.op.map.MapOp;
+import com.goodow.wind.model.op.map.MapTarget;
 import com.goodow.wind.model.op.number.NumberOp;
 import com.goodow.wind.model.util.Pair;
 import com.goodow.wind.model.util.Serializer;
 
 import elemental.json.Json;
+import elemental.json.JsonArray;
 import elemental.json.JsonObject;
 import elemental.json.JsonType;
 import elemental.json.JsonValue;
@@ -52,7 +55,8 @@ public class JsonOp<T> implements Op<T> {
     ((ReplaceOp<JsonValue>) op).apply(new ReplaceTarget<JsonValue>() {
       @Override
       public ReplaceTarget<JsonValue> replace(JsonValue oldValue, JsonValue newValue) {
-        assert oldValue == null;
+        // A parsed op carries a JSON null rather than no value.
+        assert oldValue == null || oldValue.getType() == JsonType.NULL;
         toRtn[0] = newValue;
         return null;
       }
@@ -91,6 +95,25 @@ public class JsonOp<T> implements Op<T> {
     }
   }
 
+  private static long estimateElementsSize(JsonArray values) {
+    long toRtn = 0;
+    for (int i = 0, len = values.length(); i < len; i++) {
+      JsonValue value = values.get(i);
+      // The value plus its separating comma.
+      toRtn += estimateSize(value) + 1;
+    }
+    return toRtn;
+  }
+
+  private static long estimateSize(JsonValue value) {
+    return value == null ? 0 : value.toJson().length();
+  }
+
+  private static long estimateSize(String key, JsonValue value) {
+    // "key":value,
+    return value == null ? 0 : key.length() + 4 + estimateSize(value);
+  }
+
   private final Op<T> op;
   private final Path path;
 
@@ -114,10 +137,84 @@ public class JsonOp<T> implements Op<T> {
 
   @Override
   public boolean equals(Object obj) {
+    if (this == obj) {
+      return true;
+    }
     if (!(obj instanceof JsonOp)) {
       return false;
     }
-    return toString().equals(obj.toString());
+    JsonOp<?> other = (JsonOp<?>) obj;
+    return (path == null ? other.path == null : path.equals(other.path)) && op.equals(other.op);
+  }
+
+  /**
+   * Returns how much applying this op changes the length of the serialized target, roughly: string
+   * escaping and number formatting are not accounted for. This only looks at the values carried by
+   * the op, so it is proportional to the size of the op rather than that of the document.
+   */
+  @SuppressWarnings("unchecked")
+  public long estimateSizeDelta() {
+    final long[] toRtn = new long[1];
+    if (op instanceof StringOp) {
+      ((StringOp) op).apply(new ListTarget<String>() {
+        @Override
+        public ListTarget<String> delete(String list) {
+          toRtn[0] -= list.length();
+          return this;
+        }
+
+        @Override
+        public ListTarget<String> insert(String list) {
+          toRtn[0] += list.length();
+          return this;
+        }
+
+        @Override
+        public ListTarget<String> retain(int length) {
+          return this;
+        }
+      });
+    } else if (op instanceof ArrayOp) {
+      ((ArrayOp) op).apply(new ListTarget<JsonArray>() {
+        @Override
+        public ListTarget<JsonArray> delete(JsonArray list) {
+          toRtn[0] -= estimateElementsSize(list);
+          return this;
+        }
+
+        @Override
+        public ListTarget<JsonArray> insert(JsonArray list) {
+          toRtn[0] += estimateElementsSize(list);
+          return this;
+        }
+
+        @Override
+        public ListTarget<JsonArray> retain(int length) {
+          return this;
+        }
+      });
+    } else if (op instanceof ObjectOp) {
+      ((ObjectOp) op).apply(new MapTarget<JsonValue>() {
+        @Override
+        public MapTarget<JsonValue> update(String key, JsonValue oldValue, JsonValue newValue) {
+          toRtn[0] += estimateSize(key, newValue) - estimateSize(key, oldValue);
+          return this;
+        }
+      });
+    } else if (op instanceof ReplaceOp) {
+      ((ReplaceOp<JsonValue>) op).apply(new ReplaceTarget<JsonValue>() {
+        @Override
+        public ReplaceTarget<JsonValue> replace(JsonValue oldValue, JsonValue newValue) {
+          toRtn[0] += estimateSize(newValue) - estimateSize(oldValue);
+          return this;
+        }
+      });
+    }
+    return toRtn[0];
+  }
+
+  public Path getPath() {
+    return path;
   }
 
   @Override
@@ -125,6 +222,11 @@ public class JsonOp<T> implements Op<T> {
     return "json";
   }
 
+  @Override
+  public int hashCode() {
+    return 31 * (path == null ? 0 : path.hashCode()) + op.hashCode();
+  }
+
   @Override
   public JsonOp<T> invert() {
     return new JsonOp<T>(path, op.invert());
@@ -148,7 +250,7 @@ public class JsonOp<T> implements Op<T> {
     assert clientOp instanceof JsonOp;
     JsonOp<?> op = (JsonOp) clientOp;
     if (!path.equals(op.getPath())) {
-      boolean serverIsParent = path.toString().length() < op.getPath().toString().length();
+      boolean serverIsParent = path.depth() < op.getPath().depth();
       if (serverIsParent ? path.isAncestorOf(op.getPath()) : op.getPath().isAncestorOf(path)) {
         JsonOp<?> parentOp = serverIsParent ? this : op;
         JsonOp<?> childOp = serverIsParent ? op : this;
@@ -172,8 +274,4 @@ public class JsonOp<T> implements Op<T> {
   Op<T> getOp() {
     return op;
   }
-
-  Path getPath() {
-    return path;
-  }
 }
\ No newline at end of file
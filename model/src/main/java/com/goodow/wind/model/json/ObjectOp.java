@@ -37,7 +37,7 @@ class ObjectOp extends MapOp<JsonValue> {
   @SuppressWarnings({"unchecked", "rawtypes"})
   <T> Pair<JsonOp<T>, ? extends JsonOp<?>> transformWithChild(boolean serverIsParent,
       JsonOp<?> parentOp, JsonOp<?> childOp) {
-    Pair<String, String> pair = childOp.getPath().nextKey(parentOp.getPath().toString());
+    Pair<String, Path> pair = childOp.getPath().nextKey(parentOp.getPath());
     if (!components.hasKey(pair.first)) {
       return serverIsParent ? Pair.of((JsonOp<T>) parentOp, childOp) : Pair.of((JsonOp<T>) childOp,
           parentOp);
@@ -45,7 +45,7 @@ class ObjectOp extends MapOp<JsonValue> {
     assert components.get(pair.first).first != null;
     JValue val =
         new JsonModel().create(Json.instance().parse(components.get(pair.first).first.toJson()));
-    val.consume(new JsonOp(Path.of(pair.second), childOp.getOp()));
+    val.consume(new JsonOp(pair.second, childOp.getOp()));
 
     ObjectOp op = (ObjectOp) copy();
     op.components.put(pair.first, Pair.of(val.getValue(), components.get(pair.first).second));
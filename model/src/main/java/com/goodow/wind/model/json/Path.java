@@ -15,15 +15,60 @@ package com.goodow.wind.model.json;
 
 import com.goodow.wind.model.util.Pair;
 
+/**
+ * An immutable location in a JSON tree. A path is kept as an array of pre-parsed segments, each of
+ * which is either an object key or an array index, so that navigation never has to re-parse the
+ * string form. The string form (e.g. {@code a[0].b}) is only built on demand, for serialization.
+ */
 public class Path {
-  private static final Path ROOT = new Path("");
+  private static final Path ROOT = new Path(new String[0], new int[0], 0);
 
   public static final Path of() {
     return ROOT;
   }
 
   public static final Path of(String path) {
-    return new Path(path);
+    assert path != null;
+    if (path.isEmpty()) {
+      return ROOT;
+    }
+    int capacity = 1;
+    for (int i = 0, len = path.length(); i < len; i++) {
+      char c = path.charAt(i);
+      if (c == '.' || c == '[') {
+        capacity++;
+      }
+    }
+    String[] keys = new String[capacity];
+    int[] indexes = new int[capacity];
+    int depth = 0;
+    int cursor = 0;
+    final int len = path.length();
+    while (cursor < len) {
+      char c = path.charAt(cursor);
+      if (c == '[') {
+        int end = path.indexOf(']', cursor);
+        assert end != -1;
+        indexes[depth++] = Integer.parseInt(path.substring(cursor + 1, end));
+        cursor = end + 1;
+        continue;
+      }
+      if (c == '.') {
+        assert depth > 0;
+        cursor++;
+      }
+      int end = cursor;
+      while (end < len && path.charAt(end) != '.' && path.charAt(end) != '[') {
+        end++;
+      }
+      String key = path.substring(cursor, end);
+      checkKey(key);
+      keys[depth++] = key;
+      cursor = end;
+    }
+    Path toRtn = new Path(keys, indexes, depth);
+    toRtn.path = path;
+    return toRtn;
   }
 
   static final void checkKey(String key) {
@@ -31,31 +76,48 @@ public class Path {
         && !key.contains("]");
   }
 
-  private final String path;
+  /**
+   * Segment {@code i} is the object key {@code keys[i]}, or the array index {@code indexes[i]} if
+   * the key is {@code null}. The arrays may be longer than {@link #depth} and are shared with
+   * ancestors, but are never modified after construction.
+   */
+  private final String[] keys;
+  private final int[] indexes;
+  private final int depth;
+  private String path;
+  private int hash;
 
-  private Path(String path) {
-    assert path != null;
-    this.path = path;
+  private Path(String[] keys, int[] indexes, int depth) {
+    this.keys = keys;
+    this.indexes = indexes;
+    this.depth = depth;
   }
 
   public Path at(int index) {
-    return new Path(path + "[" + index + "]");
+    Path toRtn = grow(1);
+    toRtn.indexes[depth] = index;
+    return toRtn;
   }
 
   public Path at(Path subPath) {
     assert subPath != null;
-    if (subPath.path.isEmpty()) {
+    if (subPath.depth == 0) {
       return this;
     }
-    if (subPath.path.charAt(0) == '[') {
-      return new Path(path + subPath.path);
+    if (depth == 0) {
+      return subPath;
     }
-    return new Path((path.isEmpty() ? "" : path + ".") + subPath.path);
+    Path toRtn = grow(subPath.depth);
+    System.arraycopy(subPath.keys, 0, toRtn.keys, depth, subPath.depth);
+    System.arraycopy(subPath.indexes, 0, toRtn.indexes, depth, subPath.depth);
+    return toRtn;
   }
 
   public Path at(String key) {
     checkKey(key);
-    return new Path((path.isEmpty() ? "" : path + ".") + key);
+    Path toRtn = grow(1);
+    toRtn.keys[depth] = key;
+    return toRtn;
   }
 
   @Override
@@ -70,109 +132,139 @@ public class Path {
       return false;
     }
     Path other = (Path) obj;
-    if (path == null) {
-      if (other.path != null) {
-        return false;
-      }
-    } else if (!path.equals(other.path)) {
+    if (depth != other.depth || hashCode() != other.hashCode()) {
       return false;
     }
-    return true;
+    return startsWith(other, depth);
   }
 
   public Path getParent() {
-    if (path.isEmpty()) {
+    if (depth == 0) {
       return null;
     }
-    if (isIndexed()) {
-      return new Path(path.substring(0, path.lastIndexOf('[')));
-    }
-    int lastIndexOf = path.lastIndexOf('.');
-    if (lastIndexOf == -1) {
+    if (depth == 1) {
       return Path.ROOT;
     }
-    return new Path(path.substring(0, lastIndexOf));
+    return new Path(keys, indexes, depth - 1);
   }
 
   @Override
   public int hashCode() {
-    final int prime = 31;
-    int result = 1;
-    result = prime * result + ((path == null) ? 0 : path.hashCode());
+    int result = hash;
+    if (result == 0) {
+      final int prime = 31;
+      result = 1;
+      for (int i = 0; i < depth; i++) {
+        result = prime * result + (keys[i] == null ? indexes[i] : keys[i].hashCode());
+      }
+      hash = result;
+    }
     return result;
   }
 
   @Override
   public String toString() {
+    if (path == null) {
+      path = buildString();
+    }
     return path;
   }
 
+  int depth() {
+    return depth;
+  }
+
   int getIndex() {
     assert isIndexed();
-    int idx = path.lastIndexOf('[');
-    return Integer.parseInt(path.substring(idx + 1, path.length() - 1));
+    return indexes[depth - 1];
+  }
+
+  int getIndex(int segment) {
+    assert segment < depth && keys[segment] == null;
+    return indexes[segment];
   }
 
   String getKey() {
     assert !isIndexed();
-    int idx = path.lastIndexOf('.');
-    if (idx == -1) {
-      return path;
-    }
-    return path.substring(idx + 1, path.length());
+    return keys[depth - 1];
+  }
+
+  String getKey(int segment) {
+    assert segment < depth;
+    return keys[segment];
   }
 
   boolean isAncestorOf(Path childPath) {
-    String child = childPath.toString();
-    if (child.isEmpty()) {
-      return false;
-    }
-    if (path.isEmpty()) {
-      return true;
-    }
-    if (child.startsWith(path + ".") || child.startsWith(path + "[")) {
-      return true;
-    }
-    return false;
+    return depth < childPath.depth && childPath.startsWith(this, depth);
   }
 
   boolean isIndexed() {
-    return path.endsWith("]");
+    return depth > 0 && keys[depth - 1] == null;
   }
 
-  Pair<Integer, String> nextIndex(String parentPath) {
-    if (path.isEmpty() || (parentPath.isEmpty() && path.charAt(0) != '[')
-        || (!parentPath.isEmpty() && !path.startsWith(parentPath + "["))) {
+  Pair<Integer, Path> nextIndex(Path parentPath) {
+    if (!isNextSegment(parentPath, false)) {
       return null;
     }
-    final int cursor = parentPath.length();
-    assert path.charAt(cursor) == '[';
-    int indexOf = path.indexOf(']', cursor);
-    String rest = "";
-    if (path.length() > indexOf + 1) {
-      rest = path.substring(indexOf + (path.charAt(indexOf + 1) == '[' ? 1 : 2));
-    }
-    return Pair.of(Integer.parseInt(path.substring(cursor + 1, indexOf)), rest);
+    return Pair.of(indexes[parentPath.depth], subPath(parentPath.depth + 1));
   }
 
-  Pair<String, String> nextKey(String parentPath) {
-    if (path.isEmpty() || (parentPath.isEmpty() && path.charAt(0) == '[')
-        || (!parentPath.isEmpty() && !path.startsWith(parentPath + "."))) {
+  Pair<String, Path> nextKey(Path parentPath) {
+    if (!isNextSegment(parentPath, true)) {
       return null;
     }
-    int cursor = path.length();
-    int indexOf = path.indexOf('[', parentPath.length() + 1);
-    if (indexOf != -1) {
-      cursor = indexOf;
+    return Pair.of(keys[parentPath.depth], subPath(parentPath.depth + 1));
+  }
+
+  private String buildString() {
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < depth; i++) {
+      if (keys[i] == null) {
+        sb.append('[').append(indexes[i]).append(']');
+      } else {
+        if (i > 0) {
+          sb.append('.');
+        }
+        sb.append(keys[i]);
+      }
     }
-    indexOf = path.indexOf('.', parentPath.length() + 1);
-    if (indexOf != -1 && indexOf < cursor) {
-      cursor = indexOf;
+    return sb.toString();
+  }
+
+  private Path grow(int extra) {
+    String[] newKeys = new String[depth + extra];
+    int[] newIndexes = new int[depth + extra];
+    System.arraycopy(keys, 0, newKeys, 0, depth);
+    System.arraycopy(indexes, 0, newIndexes, 0, depth);
+    return new Path(newKeys, newIndexes, depth + extra);
+  }
+
+  /**
+   * Returns whether {@code parentPath} is a proper ancestor of this path and the segment right below
+   * it is a key (if {@code isKey}) or an index (otherwise).
+   */
+  private boolean isNextSegment(Path parentPath, boolean isKey) {
+    return parentPath.isAncestorOf(this) && (keys[parentPath.depth] != null) == isKey;
+  }
+
+  private boolean startsWith(Path prefix, int len) {
+    for (int i = 0; i < len; i++) {
+      if (keys[i] == null ? (prefix.keys[i] != null || indexes[i] != prefix.indexes[i])
+          : !keys[i].equals(prefix.keys[i])) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private Path subPath(int from) {
+    if (from == depth) {
+      return ROOT;
     }
-    String nextKey = path.substring(parentPath.isEmpty() ? 0 : parentPath.length() + 1, cursor);
-    String rest =
-        cursor == path.length() ? "" : path.substring(path.charAt(cursor) == '[' ? cursor
-            : cursor + 1);
-    return Pair.of(nextKey, rest);
+    String[] newKeys = new String[depth - from];
+    int[] newIndexes = new int[depth - from];
+    System.arraycopy(keys, from, newKeys, 0, depth - from);
+    System.arraycopy(indexes, from, newIndexes, 0, depth - from);
+    return new Path(newKeys, newIndexes, depth - from);
   }
 }
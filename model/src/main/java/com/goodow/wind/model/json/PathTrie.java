@@ -0,0 +1,95 @@
+/*
+ * Copyright 2012 Goodow.com
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.wind.model.json;
+
+import elemental.util.ArrayOfInt;
+import elemental.util.ArrayOfString;
+import elemental.util.Collections;
+import elemental.util.MapFromStringTo;
+
+/**
+ * Indexes ops by path, so that an op only meets the ones it may interact with: those at its own
+ * path, at an ancestor or at a descendant. Transforming an op may shift the array indexes in its
+ * path but never changes its keys, so ops are filed under their keys alone and every array index
+ * falls into the same slot; an op's slot thus stays valid however it is transformed.
+ */
+class PathTrie {
+  /** The slot of every array index; no key can clash with it, as keys may not contain '['. */
+  private static final String ANY_INDEX = "[]";
+
+  private static String segment(Path path, int i) {
+    String key = path.getKey(i);
+    return key == null ? ANY_INDEX : key;
+  }
+
+  private MapFromStringTo<PathTrie> children;
+  private ArrayOfInt ops;
+
+  /**
+   * Files op number {@code op} under {@code path}.
+   */
+  void add(Path path, int op) {
+    PathTrie node = this;
+    for (int i = 0, depth = path.depth(); i < depth; i++) {
+      if (node.children == null) {
+        node.children = Collections.mapFromStringTo();
+      }
+      String segment = segment(path, i);
+      PathTrie child = node.children.get(segment);
+      if (child == null) {
+        child = new PathTrie();
+        node.children.put(segment, child);
+      }
+      node = child;
+    }
+    if (node.ops == null) {
+      node.ops = Collections.arrayOfInt();
+    }
+    node.ops.push(op);
+  }
+
+  /**
+   * Appends to {@code out} the numbers of the ops that may interact with an op at {@code path},
+   * each exactly once and in no particular order.
+   */
+  void collect(Path path, ArrayOfInt out) {
+    PathTrie node = this;
+    for (int i = 0, depth = path.depth(); i < depth; i++) {
+      node.collectOwn(out);
+      node = node.children == null ? null : node.children.get(segment(path, i));
+      if (node == null) {
+        return;
+      }
+    }
+    node.collectSubtree(out);
+  }
+
+  private void collectOwn(ArrayOfInt out) {
+    if (ops != null) {
+      for (int i = 0, len = ops.length(); i < len; i++) {
+        out.push(ops.get(i));
+      }
+    }
+  }
+
+  private void collectSubtree(ArrayOfInt out) {
+    collectOwn(out);
+    if (children != null) {
+      ArrayOfString keys = children.keys();
+      for (int i = 0, len = keys.length(); i < len; i++) {
+        children.get(keys.get(i)).collectSubtree(out);
+      }
+    }
+  }
+}
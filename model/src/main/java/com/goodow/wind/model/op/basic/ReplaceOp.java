@@ -69,23 +69,10 @@ public class ReplaceOp<T> implements Op<ReplaceTarget<T>>, ReplaceTarget<T> {
     if (!(obj instanceof ReplaceOp)) {
       return false;
     }
-    @SuppressWarnings("rawtypes")
-    ReplaceOp other = (ReplaceOp) obj;
-    if (newValue == null) {
-      if (other.newValue != null) {
-        return false;
-      }
-    } else if (!newValue.equals(other.newValue)) {
-      return false;
-    }
-    if (oldValue == null) {
-      if (other.oldValue != null) {
-        return false;
-      }
-    } else if (!oldValue.equals(other.oldValue)) {
-      return false;
-    }
-    return true;
+    @SuppressWarnings("unchecked")
+    ReplaceOp<T> other = (ReplaceOp<T>) obj;
+    return serializer.areEqual(newValue, other.newValue)
+        && serializer.areEqual(oldValue, other.oldValue);
   }
 
   @Override
@@ -97,8 +84,8 @@ public class ReplaceOp<T> implements Op<ReplaceTarget<T>>, ReplaceTarget<T> {
   public int hashCode() {
     final int prime = 31;
     int result = 1;
-    result = prime * result + ((newValue == null) ? 0 : newValue.hashCode());
-    result = prime * result + ((oldValue == null) ? 0 : oldValue.hashCode());
+    result = prime * result + serializer.hash(newValue);
+    result = prime * result + serializer.hash(oldValue);
     return result;
   }
 
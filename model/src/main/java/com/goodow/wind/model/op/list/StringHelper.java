@@ -18,11 +18,21 @@ import com.goodow.wind.model.op.list.algorithm.ListOp;
 
 class StringHelper implements ListHelper<String> {
 
+  @Override
+  public boolean areEqual(String a, String b) {
+    return a.equals(b);
+  }
+
   @Override
   public StringNormalizer createNormalizer() {
     return new StringNormalizer();
   }
 
+  @Override
+  public int hash(String str) {
+    return str.hashCode();
+  }
+
   @Override
   public int length(String str) {
     return str.length();
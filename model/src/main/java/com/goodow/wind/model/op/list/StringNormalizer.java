@@ -25,12 +25,17 @@ class StringNormalizer extends ListNormalizer<String> {
       sb.append(str);
     }
 
+    @Override
+    public void append(String str, int beginIdx, int endIdx) {
+      sb.append(str, beginIdx, endIdx);
+    }
+
     @Override
     public String flush() {
       try {
         return sb.toString();
       } finally {
-        sb = new StringBuilder();
+        sb.setLength(0);
       }
     }
 
@@ -14,8 +14,15 @@
 package com.goodow.wind.model.op.list.algorithm;
 
 public interface ListHelper<T> {
+  boolean areEqual(T a, T b);
+
   ListNormalizer<T> createNormalizer();
 
+  /**
+   * Returns a hash code consistent with {@link #areEqual}.
+   */
+  int hash(T list);
+
   int length(T list);
 
   ListOp<T> newOp();
@@ -13,19 +13,24 @@
  */
 package com.goodow.wind.model.op.list.algorithm;
 
-import com.goodow.wind.model.op.list.algorithm.ListOp.ComponentType;
-
 public abstract class ListNormalizer<T> implements ListTarget<T> {
 
   public interface Appender<T> {
     void append(T list);
 
+    /**
+     * Appends the items of {@code list} from {@code beginIdx} (inclusive) to {@code endIdx}
+     * (exclusive), without copying them out first.
+     */
+    void append(T list, int beginIdx, int endIdx);
+
     T flush();
   }
 
   private final ListOp<T> output;
   private final Appender<T> appender;
-  private ComponentType component;
+  /** The kind of the component being accumulated, as in {@link ListOp}; -1 if none. */
+  private int component = -1;
   private int retain;
 
   protected ListNormalizer(ListOp<T> output, Appender<T> appender) {
@@ -36,15 +41,29 @@ public abstract class ListNormalizer<T> implements ListTarget<T> {
   @Override
   public ListNormalizer<T> delete(T list) {
     if (!isEmpty(list)) {
-      if (component != ComponentType.DELETE) {
+      if (component != ListOp.DELETE) {
         flush();
       }
-      component = ComponentType.DELETE;
+      component = ListOp.DELETE;
       appender.append(list);
     }
     return this;
   }
 
+  /**
+   * Like {@link #delete(Object)} for part of {@code list}, without first copying it out.
+   */
+  public ListNormalizer<T> delete(T list, int beginIdx, int endIdx) {
+    if (endIdx > beginIdx) {
+      if (component != ListOp.DELETE) {
+        flush();
+      }
+      component = ListOp.DELETE;
+      appender.append(list, beginIdx, endIdx);
+    }
+    return this;
+  }
+
   public ListOp<T> finish() {
     flush();
     return output;
@@ -53,22 +72,36 @@ public abstract class ListNormalizer<T> implements ListTarget<T> {
   @Override
   public ListNormalizer<T> insert(T list) {
     if (!isEmpty(list)) {
-      if (component != ComponentType.INSERT) {
+      if (component != ListOp.INSERT) {
         flush();
       }
-      component = ComponentType.INSERT;
+      component = ListOp.INSERT;
       appender.append(list);
     }
     return this;
   }
 
+  /**
+   * Like {@link #insert(Object)} for part of {@code list}, without first copying it out.
+   */
+  public ListNormalizer<T> insert(T list, int beginIdx, int endIdx) {
+    if (endIdx > beginIdx) {
+      if (component != ListOp.INSERT) {
+        flush();
+      }
+      component = ListOp.INSERT;
+      appender.append(list, beginIdx, endIdx);
+    }
+    return this;
+  }
+
   @Override
   public ListNormalizer<T> retain(int length) {
     if (length > 0) {
-      if (component != ComponentType.RETAIN) {
+      if (component != ListOp.RETAIN) {
         flush();
       }
-      component = ComponentType.RETAIN;
+      component = ListOp.RETAIN;
       retain += length;
     }
     return this;
@@ -77,28 +110,28 @@ public abstract class ListNormalizer<T> implements ListTarget<T> {
   @Override
   public String toString() {
     return output.toString() + "\n" + component + ": "
-        + (component == ComponentType.RETAIN ? retain : appender);
+        + (component == ListOp.RETAIN ? retain : appender);
   }
 
   protected abstract boolean isEmpty(T list);
 
   private void flush() {
-    if (component == null) {
+    if (component == -1) {
       return;
     }
     switch (component) {
-      case INSERT:
+      case ListOp.INSERT:
         output.insert(appender.flush());
         break;
-      case DELETE:
+      case ListOp.DELETE:
         output.delete(appender.flush());
         break;
-      case RETAIN:
+      case ListOp.RETAIN:
         output.retain(retain);
         retain = 0;
         break;
       default:
-        throw new UnsupportedOperationException(component.name());
+        throw new UnsupportedOperationException("Component kind: " + component);
     }
   }
 }
\ No newline at end of file
@@ -22,93 +22,30 @@ import elemental.json.JsonObject;
 import elemental.json.JsonType;
 import elemental.json.JsonValue;
 import elemental.util.ArrayOf;
+import elemental.util.ArrayOfInt;
 import elemental.util.Collections;
 
 public abstract class ListOp<T> implements Op<ListTarget<T>>, ListTarget<T> {
-  enum ComponentType {
-    INSERT, DELETE, RETAIN;
-  }
-  private interface Component<T> {
-    void apply(ListTarget<T> target);
-
-    ComponentType getComponentType();
-  }
-  private class Delete implements Component<T> {
-    private static final String KEY = "d";
-    private final T list;
-
-    public Delete(T list) {
-      this.list = list;
-    }
-
-    @Override
-    public void apply(ListTarget<T> target) {
-      target.delete(list);
-    }
-
-    @Override
-    public ComponentType getComponentType() {
-      return ComponentType.DELETE;
-    }
-
-    @Override
-    public String toString() {
-      return "{\"" + KEY + "\":" + toJson(list) + "}";
-    }
-  }
-  private class Insert implements Component<T> {
-    private static final String KEY = "i";
-    private final T list;
-
-    public Insert(T list) {
-      this.list = list;
-    }
-
-    @Override
-    public void apply(ListTarget<T> target) {
-      target.insert(list);
-    }
-
-    @Override
-    public ComponentType getComponentType() {
-      return ComponentType.INSERT;
-    }
-
-    @Override
-    public String toString() {
-      return "{\"" + KEY + "\":" + toJson(list) + "}";
-    }
-  }
-  private class Retain implements Component<T> {
-    private final int length;
-
-    public Retain(int length) {
-      this.length = length;
-    }
-
-    @Override
-    public void apply(ListTarget<T> target) {
-      target.retain(length);
-    }
-
-    @Override
-    public ComponentType getComponentType() {
-      return ComponentType.RETAIN;
-    }
-
-    @Override
-    public String toString() {
-      return "" + length;
-    }
-  }
+  // Component kinds, as returned by componentKind().
+  static final int INSERT = 0;
+  static final int DELETE = 1;
+  static final int RETAIN = 2;
 
   public static final String TYPE = "l";
+  private static final String INSERT_KEY = "i";
+  private static final String DELETE_KEY = "d";
   private boolean frozen;
-  protected final ArrayOf<Component<T>> components;
+  // Components are kept in parallel arrays rather than as an object each: the kind, the length,
+  // and for inserts and deletes the list itself (null for retains).
+  private final ArrayOfInt kinds;
+  private final ArrayOfInt lengths;
+  private final ArrayOf<T> lists;
   private ListHelper<T> helper;
 
   protected ListOp() {
-    components = Collections.arrayOf();
+    kinds = Collections.arrayOfInt();
+    lengths = Collections.arrayOfInt();
+    lists = Collections.arrayOf();
   }
 
   protected ListOp(boolean isInsert, int idx, T list, int initLength) {
@@ -141,16 +78,18 @@ public abstract class ListOp<T> implements Op<ListTarget<T>>, ListTarget<T> {
     for (int i = 0, len = components.length(); i < len; i++) {
       JsonValue component = components.get(i);
       if (JsonType.NUMBER == component.getType()) {
-        this.components.push(new Retain((int) component.asNumber()));
+        push(RETAIN, (int) component.asNumber(), null);
       } else {
         assert JsonType.OBJECT == component.getType();
         JsonObject c = (JsonObject) component;
         assert c.keys().length == 1;
         String key = c.keys()[0];
-        if (Insert.KEY.equals(key)) {
-          this.components.push(new Insert(fromJson(c.get(key))));
-        } else if (Delete.KEY.equals(key)) {
-          this.components.push(new Delete(fromJson(c.get(key))));
+        if (INSERT_KEY.equals(key)) {
+          T list = fromJson(c.get(key));
+          push(INSERT, getListHelper().length(list), list);
+        } else if (DELETE_KEY.equals(key)) {
+          T list = fromJson(c.get(key));
+          push(DELETE, getListHelper().length(list), list);
         } else {
           throw new IllegalStateException("Cannot parse ListOp component from json: " + c.toJson());
         }
@@ -180,16 +119,35 @@ public abstract class ListOp<T> implements Op<ListTarget<T>>, ListTarget<T> {
   public ListOp<T> delete(T list) {
     assert !frozen;
     assert list != null && getListHelper().length(list) > 0;
-    components.push(new Delete(list));
+    push(DELETE, getListHelper().length(list), list);
     return this;
   }
 
+  @SuppressWarnings("unchecked")
   @Override
   public boolean equals(Object obj) {
-    if (!(obj instanceof ListOp)) {
+    if (this == obj) {
+      return true;
+    }
+    if (obj == null || obj.getClass() != getClass()) {
       return false;
     }
-    return toString().equals(obj.toString());
+    ListOp<T> other = (ListOp<T>) obj;
+    int len = size();
+    if (len != other.size()) {
+      return false;
+    }
+    for (int i = 0; i < len; i++) {
+      int kind = kinds.get(i);
+      if (kind != other.kinds.get(i)) {
+        return false;
+      }
+      if (kind == RETAIN ? lengths.get(i) != other.lengths.get(i) : !getListHelper().areEqual(
+          lists.get(i), other.lists.get(i))) {
+        return false;
+      }
+    }
+    return true;
   }
 
   @Override
@@ -197,11 +155,29 @@ public abstract class ListOp<T> implements Op<ListTarget<T>>, ListTarget<T> {
     return TYPE;
   }
 
+  @Override
+  public int hashCode() {
+    int result = 1;
+    for (int i = 0, len = size(); i < len; i++) {
+      switch (kinds.get(i)) {
+        case RETAIN:
+          result = 31 * result + lengths.get(i);
+          break;
+        case INSERT:
+          result = 31 * result + getListHelper().hash(lists.get(i));
+          break;
+        default:
+          result = 31 * result - getListHelper().hash(lists.get(i));
+      }
+    }
+    return result;
+  }
+
   @Override
   public ListOp<T> insert(T list) {
     assert !frozen;
     assert list != null && getListHelper().length(list) > 0;
-    components.push(new Insert(list));
+    push(INSERT, getListHelper().length(list), list);
     return this;
   }
 
@@ -212,20 +188,36 @@ public abstract class ListOp<T> implements Op<ListTarget<T>>, ListTarget<T> {
 
   @Override
   public boolean isNoOp() {
-    return components.isEmpty();
+    return size() == 0;
   }
 
   @Override
   public ListOp<T> retain(int length) {
     assert !frozen;
     assert length > 0;
-    components.push(new Retain(length));
+    push(RETAIN, length, null);
     return this;
   }
 
   @Override
   public String toString() {
-    return "[" + components.join() + "]";
+    StringBuilder sb = new StringBuilder("[");
+    for (int i = 0, len = size(); i < len; i++) {
+      if (i > 0) {
+        sb.append(",");
+      }
+      switch (kinds.get(i)) {
+        case RETAIN:
+          sb.append(lengths.get(i));
+          break;
+        case INSERT:
+          sb.append("{\"" + INSERT_KEY + "\":").append(toJson(lists.get(i))).append("}");
+          break;
+        default:
+          sb.append("{\"" + DELETE_KEY + "\":").append(toJson(lists.get(i))).append("}");
+      }
+    }
+    return sb.append("]").toString();
   }
 
   @SuppressWarnings("unchecked")
@@ -243,11 +235,41 @@ public abstract class ListOp<T> implements Op<ListTarget<T>>, ListTarget<T> {
 
   void applyComponent(int i, ListTarget<T> target) {
     assert i < size();
-    components.get(i).apply(target);
+    switch (kinds.get(i)) {
+      case RETAIN:
+        target.retain(lengths.get(i));
+        break;
+      case INSERT:
+        target.insert(lists.get(i));
+        break;
+      default:
+        target.delete(lists.get(i));
+    }
+  }
+
+  /**
+   * @return {@link #INSERT}, {@link #DELETE} or {@link #RETAIN}
+   */
+  int componentKind(int i) {
+    return kinds.get(i);
+  }
+
+  /**
+   * @return the number of items the i-th component inserts, deletes or retains
+   */
+  int componentLength(int i) {
+    return lengths.get(i);
+  }
+
+  /**
+   * @return the items the i-th component inserts or deletes, or null if it is a retain
+   */
+  T componentList(int i) {
+    return lists.get(i);
   }
 
   int size() {
-    return components.length();
+    return kinds.length();
   }
 
   private ListHelper<T> getListHelper() {
@@ -256,4 +278,10 @@ public abstract class ListOp<T> implements Op<ListTarget<T>>, ListTarget<T> {
     }
     return helper;
   }
+
+  private void push(int kind, int length, T list) {
+    kinds.push(kind);
+    lengths.push(length);
+    lists.push(list);
+  }
 }
\ No newline at end of file
@@ -15,283 +15,41 @@ package com.goodow.wind.model.op.list.algorithm;
 
 import com.goodow.wind.model.op.ComposeException;
 
+/**
+ * Composes two list ops by walking both component arrays with a cursor each, so that no state
+ * objects are allocated per step and a partially consumed insert or delete is passed on as a range
+ * rather than copied out.
+ */
 class ListOpComposer<T> {
-  static abstract class Target<T> implements ListTarget<T> {
-    abstract boolean isPostTarget();
-  }
-
-  private final class DefaultPreTarget extends PreTarget {
-
-    @Override
-    public ListTarget<T> insert(T list) {
-      target = new InsertPostTarget(list);
-      return null;
-    }
-
-    @Override
-    public ListTarget<T> retain(int length) {
-      target = new RetainPostTarget(length);
-      return null;
-    }
-  }
-
-  private final class DeletePreTarget extends PreTarget {
-    private T list;
-
-    DeletePreTarget(T list) {
-      this.list = list;
-    }
-
-    @Override
-    public ListTarget<T> insert(T list) {
-      if (helper.length(list) <= helper.length(this.list)) {
-        assert helper.startsWith(this.list, list);
-        cancelDelete(helper.length(list));
-      } else {
-        assert helper.startsWith(list, this.list);
-        target = new InsertPostTarget(helper.subset(list, helper.length(this.list)));
-      }
-      return null;
-    }
-
-    @Override
-    public ListTarget<T> retain(int length) {
-      if (length <= helper.length(list)) {
-        normalizer.delete(helper.subset(list, 0, length));
-        cancelDelete(length);
-      } else {
-        normalizer.delete(list);
-        target = new RetainPostTarget(length - helper.length(list));
-      }
-      return null;
-    }
-
-    private void cancelDelete(int size) {
-      if (size < helper.length(list)) {
-        list = helper.subset(list, size);
-      } else {
-        target = defaultTarget;
-      }
-    }
-  }
-
-  private final class FinisherPostTarget extends PostTarget {
-    @Override
-    public ListTarget<T> delete(T list) {
-      throw new ComposeException("Illegal composition");
-    }
-
-    @Override
-    public ListTarget<T> retain(int length) {
-      throw new ComposeException("Illegal composition");
-    }
-  }
-
-  private final class InsertPostTarget extends PostTarget {
-    private T list;
-
-    InsertPostTarget(T list) {
-      this.list = list;
-    }
-
-    @Override
-    public ListTarget<T> delete(T list) {
-      if (helper.length(list) <= helper.length(this.list)) {
-        assert helper.startsWith(this.list, list);
-        cancelInsert(helper.length(list));
-      } else {
-        assert helper.startsWith(list, this.list);
-        target = new DeletePreTarget(helper.subset(list, helper.length(this.list)));
-      }
-      return null;
-    }
-
-    @Override
-    public ListTarget<T> retain(int length) {
-      if (length <= helper.length(list)) {
-        normalizer.insert(helper.subset(list, 0, length));
-        cancelInsert(length);
-      } else {
-        normalizer.insert(list);
-        target = new RetainPreTarget(length - helper.length(list));
-      }
-      return null;
-    }
-
-    private void cancelInsert(int size) {
-      if (size < helper.length(list)) {
-        list = helper.subset(list, size);
-      } else {
-        target = defaultTarget;
-      }
-    }
-  }
-
-  private abstract class PostTarget extends Target<T> {
-    @Override
-    public final ListTarget<T> insert(T list) {
-      normalizer.insert(list);
-      return null;
-    }
-
-    @Override
-    final boolean isPostTarget() {
-      return true;
-    }
-  }
-
-  private abstract class PreTarget extends Target<T> {
-    @Override
-    public final ListTarget<T> delete(T list) {
-      normalizer.delete(list);
-      return null;
-    }
-
-    @Override
-    final boolean isPostTarget() {
-      return false;
-    }
-  }
-
-  private final class RetainPostTarget extends PostTarget {
-    private int length;
-
-    RetainPostTarget(int length) {
-      this.length = length;
-    }
-
-    @Override
-    public ListTarget<T> delete(T list) {
-      if (helper.length(list) <= length) {
-        normalizer.delete(list);
-        cancelRetain(helper.length(list));
-      } else {
-        normalizer.delete(helper.subset(list, 0, length));
-        target = new DeletePreTarget(helper.subset(list, length));
-      }
-      return null;
-    }
-
-    @Override
-    public ListTarget<T> retain(int length) {
-      if (length <= this.length) {
-        normalizer.retain(length);
-        cancelRetain(length);
-      } else {
-        normalizer.retain(this.length);
-        target = new RetainPreTarget(length - this.length);
-      }
-      return null;
-    }
-
-    private void cancelRetain(int size) {
-      if (size < length) {
-        length -= size;
-      } else {
-        target = defaultTarget;
-      }
-    }
-  }
-
-  private final class RetainPreTarget extends PreTarget {
-    private int length;
-
-    RetainPreTarget(int length) {
-      this.length = length;
-    }
-
-    @Override
-    public ListTarget<T> insert(T list) {
-      if (helper.length(list) <= length) {
-        normalizer.insert(list);
-        cancelRetain(helper.length(list));
-      } else {
-        normalizer.insert(helper.subset(list, 0, length));
-        target = new InsertPostTarget(helper.subset(list, length));
-      }
-      return null;
-    }
-
-    @Override
-    public ListTarget<T> retain(int length) {
-      if (length <= this.length) {
-        normalizer.retain(length);
-        cancelRetain(length);
-      } else {
-        normalizer.retain(this.length);
-        target = new RetainPostTarget(length - this.length);
-      }
-      return null;
-    }
-
-    private void cancelRetain(int size) {
-      if (size < length) {
-        length -= size;
-      } else {
-        target = defaultTarget;
-      }
-    }
-  }
-
   /**
    * Computes the number of items of the document that an op applies to, prior to its application.
    */
-  static <T> int initialDocumentLength(ListOp<T> op, final ListHelper<T> helper) {
-    final int[] size = {0};
-    op.apply(new ListTarget<T>() {
-      @Override
-      public ListTarget<T> delete(T list) {
-        size[0] += helper.length(list);
-        return null;
-      }
-
-      @Override
-      public ListTarget<T> insert(T list) {
-        return null;
-      }
-
-      @Override
-      public ListTarget<T> retain(int length) {
-        size[0] += length;
-        return null;
+  static <T> int initialDocumentLength(ListOp<T> op) {
+    int size = 0;
+    for (int i = 0, len = op.size(); i < len; i++) {
+      if (op.componentKind(i) != ListOp.INSERT) {
+        size += op.componentLength(i);
       }
-    });
-    return size[0];
+    }
+    return size;
   }
 
   /**
    * Computes the number of items of the document that an op produces when applied.
    */
-  static <T> int resultingDocumentLength(ListOp<T> op, final ListHelper<T> helper) {
-    final int[] size = {0};
-    op.apply(new ListTarget<T>() {
-      @Override
-      public ListTarget<T> delete(T list) {
-        return null;
-      }
-
-      @Override
-      public ListTarget<T> insert(T list) {
-        size[0] += helper.length(list);
-        return null;
+  static <T> int resultingDocumentLength(ListOp<T> op) {
+    int size = 0;
+    for (int i = 0, len = op.size(); i < len; i++) {
+      if (op.componentKind(i) != ListOp.DELETE) {
+        size += op.componentLength(i);
       }
-
-      @Override
-      public ListTarget<T> retain(int length) {
-        size[0] += length;
-        return null;
-      }
-    });
-    return size[0];
+    }
+    return size;
   }
 
   private final ListHelper<T> helper;
   private final ListNormalizer<T> normalizer;
 
-  private final Target<T> defaultTarget = new DefaultPreTarget();
-
-  private Target<T> target;
-
   ListOpComposer(ListHelper<T> helper) {
     this.helper = helper;
     normalizer = helper.createNormalizer();
@@ -301,25 +59,60 @@ class ListOpComposer<T> {
    * Incrementally apply the two operations in a linearly-ordered interleaving fashion.
    */
   ListOp<T> compose(ListOp<T> op1, ListOp<T> op2) {
-    target = defaultTarget;
-    int op1Index = 0, op2Index = 0;
-    while (op1Index < op1.size()) {
-      op1.applyComponent(op1Index++, target);
-      while (target.isPostTarget()) {
-        if (op2Index >= op2.size()) {
-          throw new ComposeException("Document size mismatch: " + "op1 resulting length="
-              + resultingDocumentLength(op1, helper) + ", op2 initial length="
-              + initialDocumentLength(op2, helper));
+    int size1 = op1.size();
+    int size2 = op2.size();
+    int index1 = 0;
+    int index2 = 0;
+    // The number of items of the current component of each op that have been consumed.
+    int offset1 = 0;
+    int offset2 = 0;
+    while (true) {
+      // op1's deletes and op2's inserts do not meet anything in the other op. op1's deletes go
+      // first, and are never partially consumed, nor are op2's inserts.
+      if (index1 < size1 && op1.componentKind(index1) == ListOp.DELETE) {
+        normalizer.delete(op1.componentList(index1++));
+        continue;
+      }
+      if (index2 < size2 && op2.componentKind(index2) == ListOp.INSERT) {
+        normalizer.insert(op2.componentList(index2++));
+        continue;
+      }
+      if (index1 == size1 || index2 == size2) {
+        break;
+      }
+      int kind1 = op1.componentKind(index1);
+      int kind2 = op2.componentKind(index2);
+      int length1 = op1.componentLength(index1);
+      int length2 = op2.componentLength(index2);
+      int length = Math.min(length1 - offset1, length2 - offset2);
+      if (kind1 == ListOp.RETAIN) {
+        if (kind2 == ListOp.RETAIN) {
+          normalizer.retain(length);
+        } else {
+          normalizer.delete(op2.componentList(index2), offset2, offset2 + length);
         }
-        op2.applyComponent(op2Index++, target);
+      } else if (kind2 == ListOp.RETAIN) {
+        normalizer.insert(op1.componentList(index1), offset1, offset1 + length);
+      } else {
+        // op2 deletes what op1 inserted.
+        assert helper.areEqual(helper.subset(op1.componentList(index1), offset1, offset1 + length),
+            helper.subset(op2.componentList(index2), offset2, offset2 + length));
       }
-    }
-    if (op2Index < op2.size()) {
-      target = new FinisherPostTarget();
-      while (op2Index < op2.size()) {
-        op2.applyComponent(op2Index++, target);
+      offset1 += length;
+      if (offset1 == length1) {
+        index1++;
+        offset1 = 0;
+      }
+      offset2 += length;
+      if (offset2 == length2) {
+        index2++;
+        offset2 = 0;
       }
     }
+    if (index1 < size1 || index2 < size2) {
+      throw new ComposeException("Document size mismatch: " + "op1 resulting length="
+          + resultingDocumentLength(op1) + ", op2 initial length=" + initialDocumentLength(op2));
+    }
     return normalizer.finish();
   }
 }
\ No newline at end of file
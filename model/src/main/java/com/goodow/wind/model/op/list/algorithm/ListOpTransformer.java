@@ -16,221 +16,16 @@ package com.goodow.wind.model.op.list.algorithm;
 import static com.goodow.wind.model.op.list.algorithm.ListOpComposer.initialDocumentLength;
 
 import com.goodow.wind.model.op.TransformException;
-import com.goodow.wind.model.op.list.algorithm.ListOpComposer.Target;
 import com.goodow.wind.model.util.Pair;
 
+/**
+ * Transforms two concurrent list ops by walking both component arrays with a cursor each, like
+ * {@link ListOpComposer}.
+ */
 class ListOpTransformer<T> {
-  private final class DefaultPreTarget extends PreTarget {
-    @Override
-    public ListTarget<T> delete(T list) {
-      target = new DeletePostTarget(list);
-      return null;
-    }
-
-    @Override
-    public ListTarget<T> retain(int length) {
-      target = new RetainPostTarget(length);
-      return null;
-    }
-  }
-
-  private final class DeletePostTarget extends PostTarget {
-    private T list;
-
-    DeletePostTarget(T list) {
-      this.list = list;
-    }
-
-    @Override
-    public ListTarget<T> delete(T list) {
-      if (helper.length(list) <= helper.length(this.list)) {
-        assert helper.startsWith(this.list, list);
-        cancelDelete(helper.length(list));
-      } else {
-        assert helper.startsWith(list, this.list);
-        target = new DeletePreTarget(helper.subset(list, helper.length(this.list)));
-      }
-      return null;
-    }
-
-    @Override
-    public ListTarget<T> retain(int length) {
-      if (length <= helper.length(list)) {
-        serverNormalizer.delete(helper.subset(list, 0, length));
-        cancelDelete(length);
-      } else {
-        serverNormalizer.delete(list);
-        target = new RetainPreTarget(length - helper.length(list));
-      }
-      return null;
-    }
-
-    private void cancelDelete(int size) {
-      if (size < helper.length(list)) {
-        list = helper.subset(list, size);
-      } else {
-        target = defaultTarget;
-      }
-    }
-  }
-
-  private final class DeletePreTarget extends PreTarget {
-    private T list;
-
-    DeletePreTarget(T list) {
-      this.list = list;
-    }
-
-    @Override
-    public ListTarget<T> delete(T list) {
-      if (helper.length(list) <= helper.length(this.list)) {
-        assert helper.startsWith(this.list, list);
-        cancelDelete(helper.length(list));
-      } else {
-        assert helper.startsWith(list, this.list);
-        target = new DeletePostTarget(helper.subset(list, helper.length(this.list)));
-      }
-      return null;
-    }
-
-    @Override
-    public ListTarget<T> retain(int length) {
-      if (length <= helper.length(list)) {
-        clientNormalizer.delete(helper.subset(list, 0, length));
-        cancelDelete(length);
-      } else {
-        clientNormalizer.delete(list);
-        target = new RetainPostTarget(length - helper.length(list));
-      }
-      return null;
-    }
-
-    private void cancelDelete(int size) {
-      if (size < helper.length(list)) {
-        list = helper.subset(list, size);
-      } else {
-        target = defaultTarget;
-      }
-    }
-  }
-
-  private abstract class PostTarget extends Target<T> {
-    @Override
-    public ListTarget<T> insert(T list) {
-      serverNormalizer.retain(helper.length(list));
-      clientNormalizer.insert(list);
-      return null;
-    }
-
-    @Override
-    boolean isPostTarget() {
-      return true;
-    }
-  }
-
-  private abstract class PreTarget extends Target<T> {
-    @Override
-    public ListTarget<T> insert(T list) {
-      serverNormalizer.insert(list);
-      clientNormalizer.retain(helper.length(list));
-      return null;
-    }
-
-    @Override
-    boolean isPostTarget() {
-      return false;
-    }
-  }
-
-  private final class RetainPostTarget extends PostTarget {
-    private int length;
-
-    RetainPostTarget(int length) {
-      this.length = length;
-    }
-
-    @Override
-    public ListTarget<T> delete(T list) {
-      if (helper.length(list) <= length) {
-        clientNormalizer.delete(list);
-        cancelRetain(helper.length(list));
-      } else {
-        clientNormalizer.delete(helper.subset(list, 0, length));
-        target = new DeletePreTarget(helper.subset(list, length));
-      }
-      return null;
-    }
-
-    @Override
-    public ListTarget<T> retain(int length) {
-      if (length <= this.length) {
-        serverNormalizer.retain(length);
-        clientNormalizer.retain(length);
-        cancelRetain(length);
-      } else {
-        serverNormalizer.retain(this.length);
-        clientNormalizer.retain(this.length);
-        target = new RetainPreTarget(length - this.length);
-      }
-      return null;
-    }
-
-    private void cancelRetain(int size) {
-      if (size < length) {
-        length -= size;
-      } else {
-        target = defaultTarget;
-      }
-    }
-  }
-
-  private final class RetainPreTarget extends PreTarget {
-    private int length;
-
-    RetainPreTarget(int length) {
-      this.length = length;
-    }
-
-    @Override
-    public ListTarget<T> delete(T list) {
-      if (helper.length(list) <= length) {
-        serverNormalizer.delete(list);
-        cancelRetain(helper.length(list));
-      } else {
-        serverNormalizer.delete(helper.subset(list, 0, length));
-        target = new DeletePostTarget(helper.subset(list, length));
-      }
-      return null;
-    }
-
-    @Override
-    public ListTarget<T> retain(int length) {
-      if (length <= this.length) {
-        serverNormalizer.retain(length);
-        clientNormalizer.retain(length);
-        cancelRetain(length);
-      } else {
-        serverNormalizer.retain(this.length);
-        clientNormalizer.retain(this.length);
-        target = new RetainPostTarget(length - this.length);
-      }
-      return null;
-    }
-
-    private void cancelRetain(int size) {
-      if (size < length) {
-        length -= size;
-      } else {
-        target = defaultTarget;
-      }
-    }
-  }
-
   private final ListHelper<T> helper;
   private final ListNormalizer<T> serverNormalizer;
   private final ListNormalizer<T> clientNormalizer;
-  private final Target<T> defaultTarget = new DefaultPreTarget();
-  private Target<T> target;
 
   ListOpTransformer(ListHelper<T> helper) {
     this.helper = helper;
@@ -239,26 +34,67 @@ class ListOpTransformer<T> {
   }
 
   Pair<ListOp<T>, ListOp<T>> transform(ListOp<T> serverOp, ListOp<T> clientOp) {
-    target = defaultTarget;
+    int serverSize = serverOp.size();
+    int clientSize = clientOp.size();
     int serverIndex = 0;
     int clientIndex = 0;
-    while (serverIndex < serverOp.size()) {
-      serverOp.applyComponent(serverIndex++, target);
-      while (target.isPostTarget()) {
-        if (clientIndex >= clientOp.size()) {
-          throw new TransformException("Document size mismatch: " + "serverOp initial length="
-              + initialDocumentLength(serverOp, helper) + ", clientOp initial length="
-              + initialDocumentLength(clientOp, helper));
+    // The number of items of the current component of each op that have been consumed.
+    int serverOffset = 0;
+    int clientOffset = 0;
+    while (true) {
+      // Inserts are kept, and the other side retains over them. Where both sides insert at the
+      // same place, the server's insert goes first.
+      if (serverIndex < serverSize && serverOp.componentKind(serverIndex) == ListOp.INSERT) {
+        serverNormalizer.insert(serverOp.componentList(serverIndex));
+        clientNormalizer.retain(serverOp.componentLength(serverIndex++));
+        continue;
+      }
+      if (clientIndex < clientSize && clientOp.componentKind(clientIndex) == ListOp.INSERT) {
+        serverNormalizer.retain(clientOp.componentLength(clientIndex));
+        clientNormalizer.insert(clientOp.componentList(clientIndex++));
+        continue;
+      }
+      if (serverIndex == serverSize || clientIndex == clientSize) {
+        break;
+      }
+      int serverKind = serverOp.componentKind(serverIndex);
+      int clientKind = clientOp.componentKind(clientIndex);
+      int serverLength = serverOp.componentLength(serverIndex);
+      int clientLength = clientOp.componentLength(clientIndex);
+      int length = Math.min(serverLength - serverOffset, clientLength - clientOffset);
+      if (serverKind == ListOp.RETAIN) {
+        if (clientKind == ListOp.RETAIN) {
+          serverNormalizer.retain(length);
+          clientNormalizer.retain(length);
+        } else {
+          clientNormalizer.delete(clientOp.componentList(clientIndex), clientOffset, clientOffset
+              + length);
         }
-        clientOp.applyComponent(clientIndex++, target);
+      } else if (clientKind == ListOp.RETAIN) {
+        serverNormalizer.delete(serverOp.componentList(serverIndex), serverOffset, serverOffset
+            + length);
+      } else {
+        // Both sides delete the same items.
+        assert helper.areEqual(helper.subset(serverOp.componentList(serverIndex), serverOffset,
+            serverOffset + length), helper.subset(clientOp.componentList(clientIndex),
+            clientOffset, clientOffset + length));
+      }
+      serverOffset += length;
+      if (serverOffset == serverLength) {
+        serverIndex++;
+        serverOffset = 0;
+      }
+      clientOffset += length;
+      if (clientOffset == clientLength) {
+        clientIndex++;
+        clientOffset = 0;
       }
     }
-    if (clientIndex < clientOp.size()) {
-      clientOp.applyComponent(clientIndex++, target);
-    }
-    if (target != defaultTarget) {
-      throw new TransformException("Illegal transformation: Document size mismatch");
+    if (serverIndex < serverSize || clientIndex < clientSize) {
+      throw new TransformException("Document size mismatch: " + "serverOp initial length="
+          + initialDocumentLength(serverOp) + ", clientOp initial length="
+          + initialDocumentLength(clientOp));
     }
     return Pair.of(serverNormalizer.finish(), clientNormalizer.finish());
   }
-}
+}
\ No newline at end of file
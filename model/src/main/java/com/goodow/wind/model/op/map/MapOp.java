@@ -89,10 +89,31 @@ public class MapOp<T> implements Op<MapTarget<T>>, MapTarget<T> {
 
   @Override
   public boolean equals(Object obj) {
+    if (this == obj) {
+      return true;
+    }
     if (!(obj instanceof MapOp)) {
       return false;
     }
-    return toString().equals(obj.toString());
+    @SuppressWarnings("unchecked")
+    MapOp<T> other = (MapOp<T>) obj;
+    ArrayOfString keys = components.keys();
+    if (keys.length() != other.components.keys().length()) {
+      return false;
+    }
+    for (int i = 0, len = keys.length(); i < len; i++) {
+      String key = keys.get(i);
+      if (!other.components.hasKey(key)) {
+        return false;
+      }
+      Pair<T, T> component = components.get(key);
+      Pair<T, T> otherComponent = other.components.get(key);
+      if (!serializer.areEqual(component.first, otherComponent.first)
+          || !serializer.areEqual(component.second, otherComponent.second)) {
+        return false;
+      }
+    }
+    return true;
   }
 
   @Override
@@ -100,6 +121,19 @@ public class MapOp<T> implements Op<MapTarget<T>>, MapTarget<T> {
     return TYPE;
   }
 
+  @Override
+  public int hashCode() {
+    int result = 0;
+    ArrayOfString keys = components.keys();
+    for (int i = 0, len = keys.length(); i < len; i++) {
+      String key = keys.get(i);
+      Pair<T, T> component = components.get(key);
+      int valueHash = 31 * serializer.hash(component.first) + serializer.hash(component.second);
+      result += key.hashCode() ^ valueHash;
+    }
+    return result;
+  }
+
   @Override
   public MapOp<T> invert() {
     MapOp<T> op = newInstance();
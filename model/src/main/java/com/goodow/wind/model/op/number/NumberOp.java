@@ -52,6 +52,12 @@ public class NumberOp implements Op<NumberTarget>, NumberTarget {
     return TYPE;
   }
 
+  @Override
+  public int hashCode() {
+    // Equal numbers must hash alike, and -0.0 == 0.0.
+    return num == 0 ? 0 : Double.valueOf(num).hashCode();
+  }
+
   @Override
   public NumberOp invert() {
     return new NumberOp().add(-num);
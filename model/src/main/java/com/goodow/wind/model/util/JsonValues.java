@@ -0,0 +1,117 @@
+/*
+ * Copyright 2012 Goodow.com
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.wind.model.util;
+
+import elemental.json.JsonArray;
+import elemental.json.JsonObject;
+import elemental.json.JsonType;
+import elemental.json.JsonValue;
+
+/**
+ * Structural equality and hashing of JSON values. Values are compared member by member instead of
+ * by their serializations, so no string is built; object members compare regardless of order.
+ */
+public class JsonValues {
+  public static boolean areEqual(JsonValue a, JsonValue b) {
+    if (a == b) {
+      return true;
+    }
+    if (a == null || b == null || a.getType() != b.getType()) {
+      return false;
+    }
+    switch (a.getType()) {
+      case ARRAY: {
+        JsonArray x = (JsonArray) a;
+        JsonArray y = (JsonArray) b;
+        int len = x.length();
+        if (len != y.length()) {
+          return false;
+        }
+        for (int i = 0; i < len; i++) {
+          if (!areEqual(x.get(i), y.get(i))) {
+            return false;
+          }
+        }
+        return true;
+      }
+      case OBJECT: {
+        JsonObject x = (JsonObject) a;
+        JsonObject y = (JsonObject) b;
+        String[] keys = x.keys();
+        if (keys.length != y.keys().length) {
+          return false;
+        }
+        for (String key : keys) {
+          if (!y.hasKey(key) || !areEqual(x.get(key), y.get(key))) {
+            return false;
+          }
+        }
+        return true;
+      }
+      case BOOLEAN:
+        return a.asBoolean() == b.asBoolean();
+      case NUMBER:
+        return a.asNumber() == b.asNumber();
+      case STRING:
+        return a.asString().equals(b.asString());
+      case NULL:
+        return true;
+      default:
+        throw new UnsupportedOperationException("Cannot compare Json Type " + a.getType());
+    }
+  }
+
+  /**
+   * Returns a hash code consistent with {@link #areEqual}.
+   */
+  public static int hash(JsonValue value) {
+    if (value == null) {
+      return 0;
+    }
+    switch (value.getType()) {
+      case ARRAY: {
+        JsonArray array = (JsonArray) value;
+        int result = 1;
+        for (int i = 0, len = array.length(); i < len; i++) {
+          result = 31 * result + hash(array.get(i));
+        }
+        return result;
+      }
+      case OBJECT: {
+        JsonObject object = (JsonObject) value;
+        int result = 0;
+        for (String key : object.keys()) {
+          result += key.hashCode() ^ hash(object.get(key));
+        }
+        return result;
+      }
+      case BOOLEAN:
+        return value.asBoolean() ? 1231 : 1237;
+      case NUMBER: {
+        double number = value.asNumber();
+        // Equal numbers must hash alike, and -0.0 == 0.0.
+        return number == 0 ? 0 : Double.valueOf(number).hashCode();
+      }
+      case STRING:
+        return value.asString().hashCode();
+      case NULL:
+        return 0;
+      default:
+        throw new UnsupportedOperationException("Cannot hash Json Type " + value.getType());
+    }
+  }
+
+  private JsonValues() {
+  }
+}
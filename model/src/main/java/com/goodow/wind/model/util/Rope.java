@@ -0,0 +1,183 @@
+/*
+ * Copyright 2012 Goodow.com
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.wind.model.util;
+
+/**
+ * An immutable rope: a string stored as a height-balanced tree of small chunks.
+ * 
+ * {@link #insert} and {@link #delete} return a new rope which shares every untouched chunk with the
+ * original, so an edit costs O(log n) instead of copying the whole string. The flat string is only
+ * built by {@link #toString}.
+ */
+public final class Rope {
+  static final int MAX_LEAF_LENGTH = 512;
+  private static final Rope EMPTY = new Rope("");
+
+  public static Rope of(String str) {
+    assert str != null;
+    return str.isEmpty() ? EMPTY : build(str, 0, str.length());
+  }
+
+  private static Rope balance(Rope left, Rope right) {
+    if (left.height > right.height + 1) {
+      if (left.left.height >= left.right.height) {
+        return new Rope(left.left, new Rope(left.right, right));
+      }
+      return new Rope(new Rope(left.left, left.right.left), new Rope(left.right.right, right));
+    }
+    if (right.height > left.height + 1) {
+      if (right.right.height >= right.left.height) {
+        return new Rope(new Rope(left, right.left), right.right);
+      }
+      return new Rope(new Rope(left, right.left.left), new Rope(right.left.right, right.right));
+    }
+    return new Rope(left, right);
+  }
+
+  private static Rope build(String str, int beginIdx, int endIdx) {
+    int length = endIdx - beginIdx;
+    if (length <= MAX_LEAF_LENGTH) {
+      return new Rope(str.substring(beginIdx, endIdx));
+    }
+    int chunks = (length + MAX_LEAF_LENGTH - 1) / MAX_LEAF_LENGTH;
+    int mid = beginIdx + chunks / 2 * MAX_LEAF_LENGTH;
+    return new Rope(build(str, beginIdx, mid), build(str, mid, endIdx));
+  }
+
+  private static Rope join(Rope left, Rope right) {
+    if (left.length == 0) {
+      return right;
+    }
+    if (right.length == 0) {
+      return left;
+    }
+    if (left.height > right.height + 1) {
+      return balance(left.left, join(left.right, right));
+    }
+    if (right.height > left.height + 1) {
+      return balance(join(left, right.left), right.right);
+    }
+    if (left.leaf != null && right.leaf != null
+        && left.length + right.length <= MAX_LEAF_LENGTH) {
+      return new Rope(left.leaf + right.leaf);
+    }
+    return new Rope(left, right);
+  }
+
+  private static Pair<Rope, Rope> split(Rope rope, int idx) {
+    if (idx == 0) {
+      return Pair.of(EMPTY, rope);
+    }
+    if (idx == rope.length) {
+      return Pair.of(rope, EMPTY);
+    }
+    if (rope.leaf != null) {
+      return Pair.of(new Rope(rope.leaf.substring(0, idx)), new Rope(rope.leaf.substring(idx)));
+    }
+    int leftLength = rope.left.length;
+    if (idx == leftLength) {
+      return Pair.of(rope.left, rope.right);
+    }
+    if (idx < leftLength) {
+      Pair<Rope, Rope> pair = split(rope.left, idx);
+      return Pair.of(pair.first, join(pair.second, rope.right));
+    }
+    Pair<Rope, Rope> pair = split(rope.right, idx - leftLength);
+    return Pair.of(join(rope.left, pair.first), pair.second);
+  }
+
+  /**
+   * The chunk held by a leaf, or {@code null} for an inner node.
+   */
+  private final String leaf;
+  private final Rope left;
+  private final Rope right;
+  private final int length;
+  private final int height;
+
+  private Rope(Rope left, Rope right) {
+    this.leaf = null;
+    this.left = left;
+    this.right = right;
+    this.length = left.length + right.length;
+    this.height = Math.max(left.height, right.height) + 1;
+  }
+
+  private Rope(String leaf) {
+    this.leaf = leaf;
+    this.left = null;
+    this.right = null;
+    this.length = leaf.length();
+    this.height = 0;
+  }
+
+  public Rope delete(int idx, int length) {
+    assert idx >= 0 && length >= 0 && idx + length <= this.length;
+    if (length == 0) {
+      return this;
+    }
+    Pair<Rope, Rope> head = split(this, idx);
+    Pair<Rope, Rope> tail = split(head.second, length);
+    return join(head.first, tail.second);
+  }
+
+  public Rope insert(int idx, String str) {
+    assert idx >= 0 && idx <= length;
+    if (str.isEmpty()) {
+      return this;
+    }
+    Pair<Rope, Rope> pair = split(this, idx);
+    return join(join(pair.first, of(str)), pair.second);
+  }
+
+  public int length() {
+    return length;
+  }
+
+  public String substring(int beginIdx, int endIdx) {
+    assert beginIdx >= 0 && beginIdx <= endIdx && endIdx <= length;
+    if (leaf != null) {
+      return leaf.substring(beginIdx, endIdx);
+    }
+    StringBuilder sb = new StringBuilder(endIdx - beginIdx);
+    appendTo(sb, beginIdx, endIdx);
+    return sb.toString();
+  }
+
+  @Override
+  public String toString() {
+    return substring(0, length);
+  }
+
+  int height() {
+    return height;
+  }
+
+  private void appendTo(StringBuilder sb, int beginIdx, int endIdx) {
+    if (beginIdx >= endIdx) {
+      return;
+    }
+    if (leaf != null) {
+      sb.append(beginIdx == 0 && endIdx == leaf.length() ? leaf : leaf.substring(beginIdx, endIdx));
+      return;
+    }
+    int leftLength = left.length;
+    if (beginIdx < leftLength) {
+      left.appendTo(sb, beginIdx, Math.min(endIdx, leftLength));
+    }
+    if (endIdx > leftLength) {
+      right.appendTo(sb, Math.max(beginIdx - leftLength, 0), endIdx - leftLength);
+    }
+  }
+}
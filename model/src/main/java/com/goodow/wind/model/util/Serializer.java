@@ -42,6 +42,11 @@ public interface Serializer<T> {
       }
     }
 
+    @Override
+    public int hash(Object obj) {
+      return obj == null ? 0 : obj.hashCode();
+    }
+
     @Override
     public String toString(Object obj) {
       if (obj instanceof String) {
@@ -55,13 +60,7 @@ public interface Serializer<T> {
 
     @Override
     public boolean areEqual(JsonValue a, JsonValue b) {
-      if (a == null && b == null) {
-        return true;
-      }
-      if (a == null && b != null || a != null && b == null) {
-        return false;
-      }
-      return toString(a).equals(toString(b));
+      return JsonValues.areEqual(a, b);
     }
 
     @Override
@@ -69,6 +68,11 @@ public interface Serializer<T> {
       return json;
     }
 
+    @Override
+    public int hash(JsonValue json) {
+      return JsonValues.hash(json);
+    }
+
     @Override
     public String toString(JsonValue json) {
       return json == null ? null : "" + json.toJson();
@@ -79,5 +83,10 @@ public interface Serializer<T> {
 
   T fromJson(JsonValue s);
 
+  /**
+   * Returns a hash code consistent with {@link #areEqual}.
+   */
+  int hash(T x);
+
   String toString(T x);
 }
\ No newline at end of file
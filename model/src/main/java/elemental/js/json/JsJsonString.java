@@ -44,11 +44,36 @@ final public class JsJsonString extends JsJsonValue
   protected JsJsonString() {
   }
 
+  /**
+   * JS strings cannot share their contents, so edits copy the string.
+   */
+  @Override
+  public JsonString delete(int index, int length) {
+    String string = getString();
+    return create(string.substring(0, index) + string.substring(index + length));
+  }
+
   @Override
   public String getString() {
     return valueProd();
   }
 
+  @Override
+  public JsonString insert(int index, String str) {
+    String string = getString();
+    return create(string.substring(0, index) + str + string.substring(index));
+  }
+
+  @Override
+  public int length() {
+    return getString().length();
+  }
+
+  @Override
+  public String substring(int beginIndex, int endIndex) {
+    return getString().substring(beginIndex, endIndex);
+  }
+
   private native String valueProd() /*-{
     return @elemental.js.json.JsJsonValue::debox(Lelemental/json/JsonValue;)(this);
   }-*/;
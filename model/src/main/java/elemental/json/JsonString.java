@@ -0,0 +1,44 @@
+/*
+ * Copyright 2010 Google Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package elemental.json;
+
+/**
+ * Represents a Json String. Strings are immutable: editing one returns a new string, which may
+ * share its contents with this one.
+ */
+public interface JsonString extends JsonValue {
+
+  /**
+   * Returns a new string with {@code length} characters removed at {@code index}.
+   */
+  JsonString delete(int index, int length);
+
+  String getString();
+
+  /**
+   * Returns a new string with {@code str} inserted at {@code index}.
+   */
+  JsonString insert(int index, String str);
+
+  /**
+   * Returns the length of the string, without flattening it.
+   */
+  int length();
+
+  /**
+   * Returns the characters from {@code beginIndex} (inclusive) to {@code endIndex} (exclusive),
+   * without flattening the string.
+   */
+  String substring(int beginIndex, int endIndex);
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright 2010 Google Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package elemental.json.impl;
+
+import com.goodow.wind.model.util.Rope;
+
+import elemental.json.JsonString;
+import elemental.json.JsonType;
+import elemental.json.JsonValue;
+
+/**
+ * Server-side implementation of JsonString. Edited strings are kept as a {@link Rope}, so
+ * {@link #insert} and {@link #delete} don't copy the whole value; the flat string is built lazily
+ * and cached.
+ */
+public class JreJsonString extends JreJsonValue implements JsonString {
+
+  private String string;
+
+  private Rope rope;
+
+  public JreJsonString(String string) {
+    this.string = string;
+  }
+
+  private JreJsonString(Rope rope) {
+    this.rope = rope;
+  }
+
+  @Override
+  public boolean asBoolean() {
+    return length() != 0;
+  }
+
+  @Override
+  public double asNumber() {
+    try {
+      if (length() == 0) {
+        return 0.0;
+      } else {
+        return Double.parseDouble(getString());
+      }
+    } catch (NumberFormatException nfe) {
+      return Double.NaN;
+    }
+  }
+
+  @Override
+  public String asString() {
+    return getString();
+  }
+
+  @Override
+  public JreJsonString delete(int index, int length) {
+    return new JreJsonString(getRope().delete(index, length));
+  }
+
+  @Override
+  public Object getObject() {
+    return getString();
+  }
+
+  @Override
+  public String getString() {
+    if (string == null) {
+      string = rope.toString();
+    }
+    return string;
+  }
+
+  @Override
+  public JsonType getType() {
+    return JsonType.STRING;
+  }
+
+  @Override
+  public JreJsonString insert(int index, String str) {
+    return new JreJsonString(getRope().insert(index, str));
+  }
+
+  @Override
+  public boolean jsEquals(JsonValue value) {
+    return getObject().equals(((JreJsonValue) value).getObject());
+  }
+
+  @Override
+  public int length() {
+    return string != null ? string.length() : rope.length();
+  }
+
+  @Override
+  public String substring(int beginIndex, int endIndex) {
+    return string != null ? string.substring(beginIndex, endIndex) : rope.substring(beginIndex,
+        endIndex);
+  }
+
+  @Override
+  public String toJson() {
+    return JsonUtil.stringify(this);
+  }
+
+  @Override
+  public void traverse(elemental.json.impl.JsonVisitor visitor, elemental.json.impl.JsonContext ctx) {
+    visitor.visit(getString(), ctx);
+  }
+
+  private Rope getRope() {
+    if (rope == null) {
+      rope = Rope.of(string);
+    }
+    return rope;
+  }
+}
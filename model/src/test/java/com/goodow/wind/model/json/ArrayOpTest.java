@@ -73,6 +73,15 @@ public class ArrayOpTest extends TestCase {
     assertEquals(transformedParentOp, pair.second);
   }
 
+  @SuppressWarnings({"unchecked", "rawtypes"})
+  public void testTransformWithNestedChild() {
+    JsonOp<?> childOp = new JsonOp(Path.of().at(1).at("n"), new NumberOp().add(-3));
+    JsonOp transformedChildOp = new JsonOp(Path.of().at(2).at("n"), new NumberOp().add(-3));
+    Pair<JsonOp<Object>, ? extends JsonOp<?>> pair = op.transformWithChild(true, parentOp, childOp);
+    assertEquals(parentOp, pair.first);
+    assertEquals(transformedChildOp, pair.second);
+  }
+
   @SuppressWarnings({"rawtypes", "unchecked"})
   @Override
   protected void setUp() throws Exception {
@@ -15,6 +15,9 @@ package com.goodow.wind.model.json;
 
 import junit.framework.TestCase;
 
+import elemental.json.Json;
+import elemental.json.JsonObject;
+
 public class ContextTest extends TestCase {
   public void testAtPath() {
     JObject obj = new JObject();
@@ -29,4 +32,29 @@ public class ContextTest extends TestCase {
     assertEquals(array.getObject(1), array.at(Path.of("[1]")));
     assertEquals("abc", ((JString) array.at(Path.of("[1].a"))).getString());
   }
+
+  public void testFreezeAndFork() {
+    JsonModel model = new JsonModel();
+    JObject obj = (JObject) model.create(Json.parse("{\"a\":{\"b\":[\"x\"]},\"c\":{}}"));
+    JsonObject v1 = (JsonObject) model.freeze(obj);
+    obj.getObject("a").getArray("b").insert(1, "y");
+    obj.getObject("a").getArray("b").insert(2, "z");
+    obj.put("d", true);
+
+    assertEquals(1, v1.getObject("a").getArray("b").length());
+    assertFalse(v1.hasKey("d"));
+    JsonObject v2 = (JsonObject) model.freeze(obj);
+    assertEquals(3, v2.getObject("a").getArray("b").length());
+    assertNotSame(v1.get("a"), v2.get("a"));
+    assertSame(v1.get("c"), v2.get("c"));
+
+    JObject forked = (JObject) model.fork(v1);
+    forked.getObject("a").getArray("b").remove(0);
+    forked.getObject("a").put("e", "f");
+    assertEquals(0, forked.getObject("a").getArray("b").length());
+    assertEquals("f", forked.getObject("a").getString("e"));
+    assertEquals(1, v1.getObject("a").getArray("b").length());
+    assertFalse(v1.getObject("a").hasKey("e"));
+    assertEquals(3, obj.getObject("a").getArray("b").length());
+  }
 }
\ No newline at end of file
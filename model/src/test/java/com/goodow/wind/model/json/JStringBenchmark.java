@@ -0,0 +1,66 @@
+/*
+ * Copyright 2012 Goodow.com
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.wind.model.json;
+
+import java.util.Random;
+
+/**
+ * Measures the cost of a single-character edit to a {@link JString} as the document grows. Run
+ * with {@code main}; with the rope-backed string the per-edit time should stay flat from 1 KB up to
+ * 10 MB.
+ */
+public class JStringBenchmark {
+  private static final int[] SIZES = {1 << 10, 10 << 10, 100 << 10, 1 << 20, 10 << 20};
+  private static final int WARMUP_EDITS = 20000;
+  private static final int MEASURED_EDITS = 20000;
+
+  public static void main(String[] args) {
+    System.out.println("size(bytes)\tns/edit");
+    for (int size : SIZES) {
+      System.out.println(size + "\t" + measure(size));
+    }
+  }
+
+  private static JString createDocument(int size) {
+    StringBuilder sb = new StringBuilder(size);
+    for (int i = 0; i < size; i++) {
+      sb.append((char) ('a' + i % 26));
+    }
+    return new JString(sb.toString());
+  }
+
+  private static void edit(JString str, Random random, int edits) {
+    for (int i = 0; i < edits; i++) {
+      int length = str.length();
+      if (i % 2 == 0) {
+        str.insert(random.nextInt(length + 1), "x");
+      } else {
+        str.delete(random.nextInt(length), 1);
+      }
+    }
+  }
+
+  private static long measure(int size) {
+    JString str = createDocument(size);
+    Random random = new Random(size);
+    edit(str, random, WARMUP_EDITS);
+    long start = System.nanoTime();
+    edit(str, random, MEASURED_EDITS);
+    long elapsed = System.nanoTime() - start;
+    if (str.length() != size) {
+      throw new AssertionError("Unexpected length " + str.length());
+    }
+    return elapsed / MEASURED_EDITS;
+  }
+}
@@ -0,0 +1,334 @@
+/*
+ * Copyright 2012 Goodow.com
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.wind.model.json;
+
+import com.goodow.wind.model.op.list.StringOp;
+import com.goodow.wind.model.op.number.NumberOp;
+import com.goodow.wind.model.util.Pair;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import elemental.json.Json;
+import elemental.json.JsonArray;
+import elemental.json.JsonObject;
+import elemental.json.JsonValue;
+import elemental.util.ArrayOf;
+import elemental.util.Collections;
+
+/**
+ * Times what every edit goes through: applying ops to a document, {@link JsonModel#compose} and
+ * {@link JsonModel#transform} over lists of ops, serializing and parsing ops, and path lookups, at
+ * several document sizes and mixes of ops. The single-kind mixes isolate {@link StringOp},
+ * {@link ArrayOp} and {@link ObjectOp}. Run with {@code main}; an optional argument keeps only the
+ * cases whose name contains it. Prints the best and the median time per call over the measured
+ * rounds, so runs before and after a change can be compared.
+ */
+public class JsonModelBenchmark {
+  /**
+   * A unit of work; returns something derived from its result so that it cannot be optimized away.
+   */
+  private interface Body {
+    int run();
+  }
+
+  /**
+   * Generates random ops against a live document, applying each so that the next one is valid.
+   */
+  private static class Generator {
+    private final Mix mix;
+    private final int size;
+    private final Random random;
+    private final JValue doc;
+
+    Generator(Mix mix, int size, long seed) {
+      this.mix = mix;
+      this.size = size;
+      random = new Random(seed);
+      doc = new JsonModel().create(Json.parse(snapshot(size)));
+    }
+
+    ArrayOf<JsonOp<?>> next(int count) {
+      ArrayOf<JsonOp<?>> ops = Collections.arrayOf();
+      for (int i = 0; i < count; i++) {
+        JsonOp<?> op = next();
+        doc.consume(op);
+        ops.push(op);
+      }
+      return ops;
+    }
+
+    @SuppressWarnings({"rawtypes", "unchecked"})
+    private JsonOp<?> arrayOp() {
+      Path path = Path.of("a");
+      JsonArray array = (JsonArray) doc.ctx.get(path);
+      int length = array.length();
+      if (length > 0 && random.nextInt(3) == 0) {
+        return new JsonOp(path.at(random.nextInt(length)), new NumberOp().add(1));
+      }
+      JsonArray list = Json.createArray();
+      if (length > 0 && (length > size || random.nextBoolean())) {
+        int idx = random.nextInt(length);
+        list.set(0, array.getNumber(idx));
+        return new JsonOp(path, new ArrayOp(false, idx, list, length));
+      }
+      list.set(0, random.nextInt(size));
+      return new JsonOp(path, new ArrayOp(true, random.nextInt(length + 1), list, length));
+    }
+
+    @SuppressWarnings({"rawtypes", "unchecked"})
+    private JsonOp<?> next() {
+      switch (mix) {
+        case TYPING:
+          return stringOp("s", 1);
+        case LISTS:
+          return arrayOp();
+        case MAPS:
+          return objectOp();
+        default:
+          switch (random.nextInt(5)) {
+            case 0:
+            case 1:
+              return stringOp(random.nextBoolean() ? "s" : "t", 8);
+            case 2:
+              return arrayOp();
+            case 3:
+              return objectOp();
+            default:
+              return new JsonOp(Path.of("n"), new NumberOp().add(1));
+          }
+      }
+    }
+
+    @SuppressWarnings({"rawtypes", "unchecked"})
+    private JsonOp<?> objectOp() {
+      Path path = Path.of("o");
+      JsonObject object = (JsonObject) doc.ctx.get(path);
+      String key = "k" + random.nextInt(2 * size);
+      JsonValue oldValue = object.get(key);
+      JsonValue newValue =
+          oldValue != null && random.nextBoolean() ? null : Json.create(random.nextInt(size));
+      return new JsonOp(path, new ObjectOp().update(key, oldValue, newValue));
+    }
+
+    @SuppressWarnings({"rawtypes", "unchecked"})
+    private JsonOp<?> stringOp(String key, int maxLength) {
+      Path path = Path.of(key);
+      String str = doc.ctx.get(path).asString();
+      int length = str.length();
+      if (length > 0 && (length > size || random.nextBoolean())) {
+        int idx = random.nextInt(length);
+        int end = Math.min(length, idx + 1 + random.nextInt(maxLength));
+        return new JsonOp(path, new StringOp(false, idx, str.substring(idx, end), length));
+      }
+      StringBuilder sb = new StringBuilder();
+      for (int i = 1 + random.nextInt(maxLength); i > 0; i--) {
+        sb.append((char) ('a' + random.nextInt(26)));
+      }
+      return new JsonOp(path, new StringOp(true, random.nextInt(length + 1), sb.toString(),
+          length));
+    }
+  }
+
+  /**
+   * The kinds of edits a list of ops is made of.
+   */
+  private enum Mix {
+    /** Single-character edits to one string. */
+    TYPING,
+    /** Inserts, deletes and element updates in one array. */
+    LISTS,
+    /** Puts and removes in one object. */
+    MAPS,
+    /** All of the above, plus number updates, across several paths. */
+    MIXED
+  }
+
+  private static final int[] SIZES = {16, 256, 4096};
+  private static final int OPS = 64;
+  private static final int DEPTH = 8;
+  private static final long ROUND_NANOS = 20 * 1000 * 1000;
+  private static final int WARMUP_ROUNDS = 10;
+  private static final int ROUNDS = 20;
+  private static int sink;
+
+  public static void main(String[] args) {
+    String filter = args.length > 0 ? args[0] : "";
+    System.out.println("case\tsize\tmix\tbest(ns)\tmedian(ns)");
+    for (int size : SIZES) {
+      for (Mix mix : Mix.values()) {
+        benchmarkOps(filter, size, mix);
+      }
+      benchmarkGet(filter, size);
+    }
+    System.out.println("(" + sink + ")");
+  }
+
+  private static void benchmarkGet(String filter, int size) {
+    final Context ctx = new JsonModel().create(Json.parse(snapshot(size))).ctx;
+    final List<Path> paths = new ArrayList<Path>();
+    Path deep = Path.of();
+    for (int i = 0; i < DEPTH; i++) {
+      deep = deep.at("d");
+    }
+    paths.add(deep.at("v"));
+    Random random = new Random(size);
+    while (paths.size() < OPS) {
+      paths.add(Path.of("a").at(random.nextInt(size)));
+      paths.add(Path.of("o").at("k" + random.nextInt(size)));
+    }
+    measure(filter, "Context.get", size, null, new Body() {
+      @Override
+      public int run() {
+        int found = 0;
+        for (Path path : paths) {
+          found += ctx.get(path) == null ? 0 : 1;
+        }
+        return found;
+      }
+    });
+  }
+
+  private static void benchmarkOps(String filter, int size, Mix mix) {
+    final JsonModel model = new JsonModel();
+    final ArrayOf<JsonOp<?>> ops = new Generator(mix, size, 1).next(OPS);
+    final ArrayOf<JsonOp<?>> clientOps = new Generator(mix, size, 2).next(OPS);
+
+    final JValue doc = model.create(Json.parse(snapshot(size)));
+    final ArrayOf<JsonOp<?>> inverses = Collections.arrayOf();
+    for (int i = ops.length() - 1; i >= 0; i--) {
+      inverses.push(ops.get(i).invert());
+    }
+    measure(filter, "JValue.consume", size, mix, new Body() {
+      @Override
+      public int run() {
+        // Applies the ops and then undoes them, so the document is the same for every call.
+        for (int i = 0, len = ops.length(); i < len; i++) {
+          doc.consume(ops.get(i));
+        }
+        for (int i = 0, len = inverses.length(); i < len; i++) {
+          doc.consume(inverses.get(i));
+        }
+        return ops.length();
+      }
+    });
+
+    measure(filter, "JsonModel.compose", size, mix, new Body() {
+      @Override
+      public int run() {
+        return model.compose(ops).length();
+      }
+    });
+
+    measure(filter, "JsonModel.transform", size, mix, new Body() {
+      @Override
+      public int run() {
+        Pair<ArrayOf<JsonOp<?>>, ArrayOf<JsonOp<?>>> pair = model.transform(ops, clientOps);
+        return pair.first.length() + pair.second.length();
+      }
+    });
+
+    measure(filter, "JsonOp.toString", size, mix, new Body() {
+      @Override
+      public int run() {
+        int length = 0;
+        for (int i = 0, len = ops.length(); i < len; i++) {
+          length += ops.get(i).toString().length();
+        }
+        return length;
+      }
+    });
+
+    final String[] serialized = new String[ops.length()];
+    for (int i = 0; i < serialized.length; i++) {
+      serialized[i] = ops.get(i).toString();
+    }
+    measure(filter, "JsonOp.parse", size, mix, new Body() {
+      @Override
+      public int run() {
+        int noOps = 0;
+        for (String op : serialized) {
+          noOps += JsonOp.parse(Json.instance().<JsonObject> parse(op)).isNoOp() ? 1 : 0;
+        }
+        return noOps;
+      }
+    });
+  }
+
+  private static void measure(String filter, String name, int size, Mix mix, Body body) {
+    if (!name.contains(filter)) {
+      return;
+    }
+    int calls = 1;
+    // Also warms up.
+    while (time(body, calls) < ROUND_NANOS) {
+      calls *= 2;
+    }
+    for (int i = 0; i < WARMUP_ROUNDS; i++) {
+      time(body, calls);
+    }
+    long[] rounds = new long[ROUNDS];
+    for (int i = 0; i < ROUNDS; i++) {
+      rounds[i] = time(body, calls);
+    }
+    Arrays.sort(rounds);
+    System.out.println(name + "\t" + size + "\t" + (mix == null ? "-" : mix) + "\t"
+        + rounds[0] / calls + "\t" + rounds[ROUNDS / 2] / calls);
+  }
+
+  /**
+   * Returns a document with two strings and an array and an object of {@code size} elements each,
+   * a number, and a value nested {@link #DEPTH} objects deep.
+   */
+  private static String snapshot(int size) {
+    StringBuilder sb = new StringBuilder("{\"s\":\"");
+    for (int i = 0; i < size; i++) {
+      sb.append((char) ('a' + i % 26));
+    }
+    sb.append("\",\"t\":\"");
+    for (int i = 0; i < size; i++) {
+      sb.append((char) ('z' - i % 26));
+    }
+    sb.append("\",\"a\":[");
+    for (int i = 0; i < size; i++) {
+      sb.append(i == 0 ? "" : ",").append(i);
+    }
+    sb.append("],\"o\":{");
+    for (int i = 0; i < size; i++) {
+      sb.append(i == 0 ? "" : ",").append("\"k").append(i).append("\":").append(i);
+    }
+    sb.append("},\"n\":0,");
+    for (int i = 0; i < DEPTH; i++) {
+      sb.append("\"d\":{");
+    }
+    sb.append("\"v\":0");
+    for (int i = 0; i < DEPTH; i++) {
+      sb.append("}");
+    }
+    return sb.append("}").toString();
+  }
+
+  private static long time(Body body, int calls) {
+    int result = 0;
+    long start = System.nanoTime();
+    for (int i = 0; i < calls; i++) {
+      result += body.run();
+    }
+    long elapsed = System.nanoTime() - start;
+    sink += result;
+    return elapsed;
+  }
+}
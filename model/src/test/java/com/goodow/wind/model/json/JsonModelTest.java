@@ -17,12 +17,88 @@ import com.goodow.wind.model.op.list.StringOp;
 import com.goodow.wind.model.op.number.NumberOp;
 import com.goodow.wind.model.util.Pair;
 
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
 import junit.framework.TestCase;
 
+import elemental.json.Json;
+import elemental.json.JsonArray;
 import elemental.util.ArrayOf;
 import elemental.util.Collections;
 
 public class JsonModelTest extends TestCase {
+  /**
+   * The targets of random ops on one side of a transform: a few strings, some of them nested, and
+   * an array of numbers.
+   */
+  private static class Doc {
+    private static final Path ARRAY = Path.of("o.a");
+    private static final String[] NUMBERS = {"n", "o.n"};
+
+    final Map<Path, String> strings = new HashMap<Path, String>();
+    int arrayLength = 3;
+
+    Doc() {
+      strings.put(Path.of("s"), "abcdefgh");
+      strings.put(Path.of("t"), "ijklmnop");
+      strings.put(Path.of("o.s"), "qrstuvwx");
+      strings.put(Path.of("o.p.s"), "yzabcdef");
+    }
+
+    @SuppressWarnings({"rawtypes", "unchecked"})
+    JsonOp<?> randomOp(Random random) {
+      switch (random.nextInt(4)) {
+        case 0:
+          return new JsonOp(Path.of(NUMBERS[random.nextInt(NUMBERS.length)]), new NumberOp()
+              .add(1 + random.nextInt(9)));
+        case 1: {
+          int idx = random.nextInt(arrayLength + 1);
+          JsonArray values = Json.createArray();
+          values.set(0, random.nextInt(100));
+          ArrayOp op = new ArrayOp();
+          if (idx > 0) {
+            op.retain(idx);
+          }
+          op.insert(values);
+          if (arrayLength > idx) {
+            op.retain(arrayLength - idx);
+          }
+          arrayLength++;
+          return new JsonOp(ARRAY, op);
+        }
+        case 2:
+          return new JsonOp(ARRAY.at(random.nextInt(arrayLength)), new NumberOp().add(1 + random
+              .nextInt(9)));
+        default: {
+          Path path = strings.keySet().toArray(new Path[0])[random.nextInt(strings.size())];
+          String str = strings.get(path);
+          int idx = random.nextInt(str.length() + 1);
+          StringOp op = new StringOp();
+          if (idx > 0) {
+            op.retain(idx);
+          }
+          int end = idx;
+          if (idx < str.length() && random.nextBoolean()) {
+            end = idx + 1 + random.nextInt(str.length() - idx);
+            op.delete(str.substring(idx, end));
+            str = str.substring(0, idx) + str.substring(end);
+          } else {
+            String inserted = "" + (char) ('A' + random.nextInt(26));
+            op.insert(inserted);
+            str = str.substring(0, idx) + inserted + str.substring(idx);
+          }
+          if (end < strings.get(path).length()) {
+            op.retain(strings.get(path).length() - end);
+          }
+          strings.put(path, str);
+          return new JsonOp(path, op);
+        }
+      }
+    }
+  }
+
   @SuppressWarnings({"rawtypes", "unchecked"})
   public void testCompose() {
     ArrayOf<JsonOp<?>> ops = Collections.arrayOf();
@@ -55,4 +131,28 @@ public class JsonModelTest extends TestCase {
     assertEquals(1, pair.second.length());
     assertEquals(new JsonOp(Path.of("n"), new NumberOp().add(-3)), pair.second.get(0));
   }
-}
\ No newline at end of file
+
+  public void testTransformByPathMatchesPairwise() {
+    JsonModel model = new JsonModel();
+    Random random = new Random(42);
+    for (int i = 0; i < 500; i++) {
+      ArrayOf<JsonOp<?>> serverOps = randomOps(random, 1 + random.nextInt(12));
+      ArrayOf<JsonOp<?>> clientOps = randomOps(random, 1 + random.nextInt(12));
+      Pair<ArrayOf<JsonOp<?>>, ArrayOf<JsonOp<?>>> expected =
+          model.transformPairwise(serverOps, clientOps);
+      Pair<ArrayOf<JsonOp<?>>, ArrayOf<JsonOp<?>>> actual =
+          model.transformByPath(serverOps, clientOps);
+      assertEquals(expected.first.join(), actual.first.join());
+      assertEquals(expected.second.join(), actual.second.join());
+    }
+  }
+
+  private ArrayOf<JsonOp<?>> randomOps(Random random, int count) {
+    Doc doc = new Doc();
+    ArrayOf<JsonOp<?>> ops = Collections.arrayOf();
+    for (int i = 0; i < count; i++) {
+      ops.push(doc.randomOp(random));
+    }
+    return ops;
+  }
+}
@@ -20,6 +20,8 @@ import com.goodow.wind.model.util.Pair;
 import junit.framework.TestCase;
 
 import elemental.json.Json;
+import elemental.json.JsonArray;
+import elemental.json.JsonObject;
 
 public class JsonOpTest extends TestCase {
   @SuppressWarnings("rawtypes")
@@ -28,6 +30,38 @@ public class JsonOpTest extends TestCase {
   Op<?> op2;
   Op<?> op3;
 
+  @SuppressWarnings({"unchecked", "rawtypes"})
+  public void testEstimateSizeDelta() {
+    // "string" -> "value1"
+    assertEquals(0, serverOp.estimateSizeDelta());
+    assertEquals(-3, new JsonOp(Path.of("a"), op3).estimateSizeDelta());
+    assertEquals(2, new JsonOp(Path.of("a"), new StringOp().retain(1).insert("xy"))
+        .estimateSizeDelta());
+
+    // "b":"bb",
+    JsonOp put = new JsonOp(Path.of(), new ObjectOp().update("b", null, Json.create("bb")));
+    assertEquals(9, put.estimateSizeDelta());
+    assertEquals(-9, put.invert().estimateSizeDelta());
+  }
+
+  @SuppressWarnings({"unchecked", "rawtypes"})
+  public void testEqualsIsStructural() {
+    JsonObject value = Json.parse("{\"a\":1,\"b\":[2]}");
+    JsonObject reorderedValue = Json.parse("{\"b\":[2],\"a\":1}");
+    JsonOp put = new JsonOp(Path.of("o"), new ObjectOp().update("k", null, value));
+    JsonOp reordered = new JsonOp(Path.of("o"), new ObjectOp().update("k", null, reorderedValue));
+    assertEquals(put, reordered);
+    assertEquals(put.hashCode(), reordered.hashCode());
+    assertFalse(put.equals(new JsonOp(Path.of("p"), reordered.getOp())));
+
+    JsonArray values = Json.parse("[{}]");
+    JsonOp insert = new JsonOp(Path.of("a"), new ArrayOp().retain(1).insert(values));
+    JsonOp parsed = JsonOp.parse(Json.parse(insert.toString()));
+    assertEquals(insert, parsed);
+    assertEquals(insert.hashCode(), parsed.hashCode());
+    assertFalse(insert.equals(new JsonOp(Path.of("a"), new StringOp().retain(1).insert("x"))));
+  }
+
   public void testParseFromJson() {
     assertEquals(serverOp, JsonOp.parse(Json.parse(serverOp.toString())));
   }
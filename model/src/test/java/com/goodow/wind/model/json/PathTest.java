@@ -29,6 +29,13 @@ public class PathTest extends TestCase {
     assertEquals(Path.of("").at(Path.of("[5]")), Path.of("[5]"));
   }
 
+  public void testEquals() {
+    assertEquals(Path.of("a.b[3][4].c"), Path.of().at("a").at("b").at(3).at(4).at("c"));
+    assertEquals(Path.of("a.b[3]").hashCode(), Path.of().at("a").at("b").at(3).hashCode());
+    assertFalse(Path.of("a[1]").equals(Path.of("a.b")));
+    assertFalse(Path.of("[1]").equals(Path.of("[2]")));
+  }
+
   public void testGetParent() {
     assertNull(Path.of("").getParent());
     assertSame(Path.of(), Path.of("a").getParent());
@@ -51,46 +58,60 @@ public class PathTest extends TestCase {
     assertFalse(Path.of("a").isAncestorOf(Path.of("a")));
     assertFalse(Path.of("a[1]").isAncestorOf(Path.of("a")));
     assertFalse(Path.of("a.b").isAncestorOf(Path.of("a")));
+    assertFalse(Path.of("a").isAncestorOf(Path.of("ab.c")));
   }
 
   public void testNextIndex() {
-    assertNull(Path.of("").nextIndex(""));
-    assertNull(Path.of("").nextIndex("a"));
-    assertNull(Path.of("a").nextIndex(""));
+    assertNull(Path.of().nextIndex(Path.of()));
+    assertNull(Path.of().nextIndex(Path.of("a")));
+    assertNull(Path.of("a").nextIndex(Path.of()));
+    assertNull(Path.of("a[1]").nextIndex(Path.of("a[1]")));
+    assertNull(Path.of("a.b").nextIndex(Path.of("a")));
 
-    Pair<Integer, String> pair = Path.of("[1]").nextIndex("");
+    Pair<Integer, Path> pair = Path.of("[1]").nextIndex(Path.of());
     assertEquals(1, pair.first.intValue());
-    assertEquals("", pair.second);
-    pair = Path.of("[1][2]").nextIndex("");
+    assertSame(Path.of(), pair.second);
+    pair = Path.of("[1][2]").nextIndex(Path.of());
     assertEquals(1, pair.first.intValue());
-    assertEquals("[2]", pair.second);
+    assertEquals(Path.of("[2]"), pair.second);
 
-    pair = Path.of("[1][2].a[3]").nextIndex("[1]");
+    pair = Path.of("[1][2].a[3]").nextIndex(Path.of("[1]"));
     assertEquals(2, pair.first.intValue());
-    assertEquals("a[3]", pair.second);
-    pair = Path.of("[1][2][3].a").nextIndex("[1]");
+    assertEquals(Path.of("a[3]"), pair.second);
+    pair = Path.of("[1][2][3].a").nextIndex(Path.of("[1]"));
     assertEquals(2, pair.first.intValue());
-    assertEquals("[3].a", pair.second);
+    assertEquals(Path.of("[3].a"), pair.second);
+    pair = Path.of("a[1].b").nextIndex(Path.of("a"));
+    assertEquals(1, pair.first.intValue());
+    assertEquals(Path.of("b"), pair.second);
+    pair = Path.of("a[1]").nextIndex(Path.of("a"));
+    assertSame(Path.of(), pair.second);
   }
 
   public void testNextKey() {
-    assertNull(Path.of("").nextKey(""));
-    assertNull(Path.of("").nextKey("a"));
-    assertNull(Path.of("[1]").nextKey(""));
+    assertNull(Path.of().nextKey(Path.of()));
+    assertNull(Path.of().nextKey(Path.of("a")));
+    assertNull(Path.of("[1]").nextKey(Path.of()));
 
-    Pair<String, String> pair = Path.of("a").nextKey("");
+    Pair<String, Path> pair = Path.of("a").nextKey(Path.of());
     assertEquals("a", pair.first);
-    assertEquals("", pair.second);
-    pair = Path.of("a[1]").nextKey("");
+    assertSame(Path.of(), pair.second);
+    pair = Path.of("a[1]").nextKey(Path.of());
     assertEquals("a", pair.first);
-    assertEquals("[1]", pair.second);
+    assertEquals(Path.of("[1]"), pair.second);
 
-    pair = Path.of("[1].a.b").nextKey("[1]");
+    pair = Path.of("[1].a.b").nextKey(Path.of("[1]"));
     assertEquals("a", pair.first);
-    assertEquals("b", pair.second);
-    pair = Path.of("[1].a[2].b").nextKey("[1]");
+    assertEquals(Path.of("b"), pair.second);
+    pair = Path.of("[1].a[2].b").nextKey(Path.of("[1]"));
     assertEquals("a", pair.first);
-    assertEquals("[2].b", pair.second);
+    assertEquals(Path.of("[2].b"), pair.second);
+  }
+
+  public void testToString() {
+    assertEquals("", Path.of().toString());
+    assertEquals("a.b[3][4].c", Path.of().at("a").at("b").at(3).at(4).at("c").toString());
+    assertEquals("[1].a", Path.of().at(Path.of("[1]")).at(Path.of("a")).toString());
   }
 
   @Override
@@ -0,0 +1,185 @@
+/*
+ * Copyright 2012 Goodow.com
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.wind.model.op.list.algorithm;
+
+import com.goodow.wind.model.op.list.StringOp;
+import com.goodow.wind.model.util.Pair;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Times composing and transforming long text ops, which have many components and whose inserts
+ * and deletes are mostly split by the other op. Run with {@code main}. Prints the best and the
+ * median time per call and, where the JVM can tell, the bytes allocated per call, so runs before
+ * and after a change can be compared.
+ */
+public class ListOpBenchmark {
+  /**
+   * A unit of work; returns something derived from its result so that it cannot be optimized away.
+   */
+  private interface Body {
+    int run();
+  }
+
+  private static final int[] LENGTHS = {1000, 10000, 100000};
+  private static final int[] EDITS = {8, 64, 512};
+  private static final long ROUND_NANOS = 20 * 1000 * 1000;
+  private static final int WARMUP_ROUNDS = 10;
+  private static final int ROUNDS = 20;
+  private static int sink;
+
+  public static void main(String[] args) {
+    System.out.println("case\tlength\tedits\tbest(ns)\tmedian(ns)\tbytes");
+    for (int length : LENGTHS) {
+      for (int edits : EDITS) {
+        benchmark(length, edits);
+      }
+    }
+    System.out.println("(" + sink + ")");
+  }
+
+  private static void benchmark(int length, int edits) {
+    Random random = new Random(length + edits);
+    String doc = text(random, length);
+    final ListOp<String> op1 = edit(random, doc, edits);
+    final ListOp<String> op2 = edit(random, apply(doc, op1), edits);
+    final ListOp<String> clientOp = edit(random, doc, edits);
+    final ListOpCollector<String> collector = op1.createOpCollector();
+
+    measure("compose", length, edits, new Body() {
+      @Override
+      public int run() {
+        return collector.compose(op1, op2).size();
+      }
+    });
+    measure("transform", length, edits, new Body() {
+      @Override
+      public int run() {
+        Pair<? extends ListOp<String>, ? extends ListOp<String>> pair = op1.transformWith(clientOp);
+        return pair.first.size() + pair.second.size();
+      }
+    });
+  }
+
+  private static String apply(final String doc, ListOp<String> op) {
+    final StringBuilder sb = new StringBuilder();
+    op.apply(new ListTarget<String>() {
+      int idx;
+
+      @Override
+      public ListTarget<String> delete(String list) {
+        idx += list.length();
+        return this;
+      }
+
+      @Override
+      public ListTarget<String> insert(String list) {
+        sb.append(list);
+        return this;
+      }
+
+      @Override
+      public ListTarget<String> retain(int length) {
+        sb.append(doc, idx, idx + length);
+        idx += length;
+        return this;
+      }
+    });
+    return sb.toString();
+  }
+
+  /**
+   * Returns an op that replaces {@code edits} random stretches of {@code doc} with new text.
+   */
+  private static ListOp<String> edit(Random random, String doc, int edits) {
+    int[] starts = new int[edits];
+    for (int i = 0; i < edits; i++) {
+      starts[i] = random.nextInt(doc.length());
+    }
+    Arrays.sort(starts);
+    ListOp<String> op = new StringOp();
+    int idx = 0;
+    for (int start : starts) {
+      if (start < idx) {
+        continue;
+      }
+      if (start > idx) {
+        op.retain(start - idx);
+      }
+      int end = Math.min(doc.length(), start + 1 + random.nextInt(16));
+      op.delete(doc.substring(start, end));
+      op.insert(text(random, 1 + random.nextInt(16)));
+      idx = end;
+    }
+    if (idx < doc.length()) {
+      op.retain(doc.length() - idx);
+    }
+    return op;
+  }
+
+  private static void measure(String name, int length, int edits, Body body) {
+    int calls = 1;
+    // Also warms up.
+    while (time(body, calls) < ROUND_NANOS) {
+      calls *= 2;
+    }
+    for (int i = 0; i < WARMUP_ROUNDS; i++) {
+      time(body, calls);
+    }
+    long[] rounds = new long[ROUNDS];
+    ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    long bytes = allocatedBytes(threads);
+    for (int i = 0; i < ROUNDS; i++) {
+      rounds[i] = time(body, calls);
+    }
+    bytes = allocatedBytes(threads) - bytes;
+    Arrays.sort(rounds);
+    System.out.println(name + "\t" + length + "\t" + edits + "\t" + rounds[0] / calls + "\t"
+        + rounds[ROUNDS / 2] / calls + "\t" + (bytes < 0 ? "-" : "" + bytes / ROUNDS / calls));
+  }
+
+  /**
+   * Returns the bytes allocated so far by the current thread, or a large negative number if the
+   * JVM does not report it.
+   */
+  private static long allocatedBytes(ThreadMXBean threads) {
+    if (threads instanceof com.sun.management.ThreadMXBean) {
+      return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread
+          .currentThread().getId());
+    }
+    return Long.MIN_VALUE / 2;
+  }
+
+  private static String text(Random random, int length) {
+    StringBuilder sb = new StringBuilder(length);
+    for (int i = 0; i < length; i++) {
+      sb.append((char) ('a' + random.nextInt(26)));
+    }
+    return sb.toString();
+  }
+
+  private static long time(Body body, int calls) {
+    int result = 0;
+    long start = System.nanoTime();
+    for (int i = 0; i < calls; i++) {
+      result += body.run();
+    }
+    long elapsed = System.nanoTime() - start;
+    sink += result;
+    return elapsed;
+  }
+}
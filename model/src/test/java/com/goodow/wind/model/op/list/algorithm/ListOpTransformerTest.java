@@ -171,6 +171,10 @@ public class ListOpTransformerTest extends TestCase {
     new ReversibleTestParameters().serverOp(new StringOp(true, 1, "a", 20)).clientOp(
         new StringOp(true, 2, "1", 20)).transformedServerOp(new StringOp(true, 1, "a", 21))
         .transformedClientOp(new StringOp(true, 3, "1", 21)).run();
+    // A's insertion spatially before B's insertion at the end of the document
+    new ReversibleTestParameters().serverOp(new StringOp(true, 1, "a", 2)).clientOp(
+        new StringOp(true, 2, "1", 2)).transformedServerOp(new StringOp(true, 1, "a", 3))
+        .transformedClientOp(new StringOp(true, 3, "1", 3)).run();
     // A's insertion spatially at the same location as B's insertion
     new TestParameters().serverOp(new StringOp(true, 2, "abc", 20)).clientOp(
         new StringOp(true, 2, "123", 20)).transformedServerOp(new StringOp(true, 2, "abc", 23))
@@ -0,0 +1,54 @@
+/*
+ * Copyright 2012 Goodow.com
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.wind.model.util;
+
+import junit.framework.TestCase;
+
+import elemental.json.Json;
+import elemental.json.JsonValue;
+
+public class JsonValuesTest extends TestCase {
+
+  private static void assertEqual(String a, String b) {
+    JsonValue x = Json.instance().parse(a);
+    JsonValue y = Json.instance().parse(b);
+    assertTrue(JsonValues.areEqual(x, y));
+    assertTrue(JsonValues.areEqual(y, x));
+    assertEquals(JsonValues.hash(x), JsonValues.hash(y));
+  }
+
+  private static void assertNotEqual(String a, String b) {
+    JsonValue x = Json.instance().parse(a);
+    JsonValue y = Json.instance().parse(b);
+    assertFalse(JsonValues.areEqual(x, y));
+    assertFalse(JsonValues.areEqual(y, x));
+  }
+
+  public void testEqual() {
+    assertEqual("[1,\"a\",true,null]", "[1.0,\"a\",true,null]");
+    assertEqual("{\"a\":[1,{\"b\":2}],\"c\":\"d\"}", "{\"c\":\"d\",\"a\":[1,{\"b\":2}]}");
+    assertEqual("[0]", "[-0]");
+    assertTrue(JsonValues.areEqual(null, null));
+  }
+
+  public void testNotEqual() {
+    assertNotEqual("[1,2]", "[2,1]");
+    assertNotEqual("[1]", "[1,1]");
+    assertNotEqual("{\"a\":1}", "{\"a\":1,\"b\":1}");
+    assertNotEqual("{\"a\":1}", "{\"b\":1}");
+    assertNotEqual("[\"1\"]", "[1]");
+    assertNotEqual("[null]", "[false]");
+    assertFalse(JsonValues.areEqual(Json.createNull(), null));
+  }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright 2012 Goodow.com
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.wind.model.util;
+
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+public class RopeTest extends TestCase {
+
+  private static String repeat(char c, int count) {
+    StringBuilder sb = new StringBuilder(count);
+    for (int i = 0; i < count; i++) {
+      sb.append(c);
+    }
+    return sb.toString();
+  }
+
+  public void testInsertDelete() {
+    Rope rope = Rope.of("");
+    rope = rope.insert(0, "abcd");
+    rope = rope.insert(2, "xy");
+    assertEquals("abxycd", rope.toString());
+    rope = rope.delete(1, 3);
+    assertEquals("acd", rope.toString());
+    assertEquals("cd", rope.substring(1, 3));
+    assertEquals(3, rope.length());
+  }
+
+  public void testLargeString() {
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < 10 * Rope.MAX_LEAF_LENGTH + 7; i++) {
+      sb.append((char) ('a' + i % 26));
+    }
+    Rope rope = Rope.of(sb.toString());
+    assertEquals(sb.toString(), rope.toString());
+    int beginIdx = Rope.MAX_LEAF_LENGTH - 3;
+    int endIdx = 3 * Rope.MAX_LEAF_LENGTH + 1;
+    assertEquals(sb.substring(beginIdx, endIdx), rope.substring(beginIdx, endIdx));
+  }
+
+  public void testPersistence() {
+    Rope rope = Rope.of(repeat('a', 4 * Rope.MAX_LEAF_LENGTH));
+    Rope inserted = rope.insert(Rope.MAX_LEAF_LENGTH, "b");
+    Rope deleted = rope.delete(0, Rope.MAX_LEAF_LENGTH);
+    assertEquals(4 * Rope.MAX_LEAF_LENGTH, rope.length());
+    assertEquals(repeat('a', 4 * Rope.MAX_LEAF_LENGTH), rope.toString());
+    assertEquals('b', inserted.toString().charAt(Rope.MAX_LEAF_LENGTH));
+    assertEquals(3 * Rope.MAX_LEAF_LENGTH, deleted.length());
+  }
+
+  public void testRandomEditsStayBalanced() {
+    Random random = new Random(42);
+    StringBuilder expected = new StringBuilder();
+    Rope rope = Rope.of("");
+    for (int i = 0; i < 20000; i++) {
+      if (expected.length() > 0 && random.nextInt(3) == 0) {
+        int idx = random.nextInt(expected.length());
+        int length = random.nextInt(Math.min(expected.length() - idx, 700) + 1);
+        expected.delete(idx, idx + length);
+        rope = rope.delete(idx, length);
+      } else {
+        int idx = random.nextInt(expected.length() + 1);
+        String str = random.nextInt(50) == 0 ? repeat('x', random.nextInt(2000)) : "" + i;
+        expected.insert(idx, str);
+        rope = rope.insert(idx, str);
+      }
+      assertEquals(expected.length(), rope.length());
+    }
+    assertEquals(expected.toString(), rope.toString());
+    // An AVL tree with n leaves is less than 1.45 * log2(n) high.
+    int leaves = expected.length() + 1;
+    assertTrue(rope.height() <= 1.45 * Math.log(leaves) / Math.log(2) + 1);
+  }
+}
@@ -20,6 +20,7 @@ import com.google.appengine.api.blobstore.BlobstoreService;
 import com.google.appengine.api.blobstore.BlobstoreServiceFactory;
 import com.google.appengine.api.channel.ChannelService;
 import com.google.appengine.api.channel.ChannelServiceFactory;
+import com.google.appengine.api.datastore.AsyncDatastoreService;
 import com.google.appengine.api.datastore.DatastoreService;
 import com.google.appengine.api.datastore.DatastoreServiceConfig;
 import com.google.appengine.api.datastore.DatastoreServiceFactory;
@@ -41,10 +42,24 @@ import com.google.walkaround.wave.server.DatastoreTimeoutMillis;
 
 public class AppEngineModule extends AbstractModule {
 
+  private static DatastoreServiceConfig datastoreConfig(long datastoreTimeoutMillis) {
+    return DatastoreServiceConfig.Builder.withDeadline(datastoreTimeoutMillis * 1000.0)
+        .implicitTransactionManagementPolicy(ImplicitTransactionManagementPolicy.NONE).readPolicy(
+            new ReadPolicy(ReadPolicy.Consistency.STRONG));
+  }
+
   @Override
   protected void configure() {
   }
 
+  @Provides
+  AsyncDatastoreService provideAsyncDatastore(@DatastoreTimeoutMillis long datastoreTimeoutMillis) {
+    // Same configuration as provideDatastore(), so that transactions can be
+    // used with either.
+    return DatastoreServiceFactory
+        .getAsyncDatastoreService(datastoreConfig(datastoreTimeoutMillis));
+  }
+
   @Provides
   BackendService provideBackendService() {
     return BackendServiceFactory.getBackendService();
@@ -67,10 +82,7 @@ public class AppEngineModule extends AbstractModule {
 
   @Provides
   DatastoreService provideDatastore(@DatastoreTimeoutMillis long datastoreTimeoutMillis) {
-    return DatastoreServiceFactory.getDatastoreService(DatastoreServiceConfig.Builder.withDeadline(
-        datastoreTimeoutMillis * 1000.0).implicitTransactionManagementPolicy(
-        ImplicitTransactionManagementPolicy.NONE).readPolicy(
-        new ReadPolicy(ReadPolicy.Consistency.STRONG)));
+    return DatastoreServiceFactory.getDatastoreService(datastoreConfig(datastoreTimeoutMillis));
   }
 
   @Provides
@@ -25,6 +25,15 @@ public enum FlagName implements FlagDeclaration {
   NUM_STORE_SERVERS(Integer.class),
   POST_COMMIT_ACTION_INTERVAL_MILLIS(Integer.class),
   SLOB_LOCAL_CACHE_EXPIRATION_MILLIS(Integer.class),
+  SLOB_LOCAL_CACHE_MAX_BYTES(Integer.class),
+  SLOB_MUTATION_BATCH_LINGER_MILLIS(Integer.class),
+  SLOB_MUTATION_BATCH_MAX_BYTES(Integer.class),
+  SLOB_MUTATION_BATCH_TARGET_COMMIT_MILLIS(Integer.class),
+  SLOB_MUTATION_EXECUTOR_THREADS(Integer.class),
+  SLOB_MUTATION_QUEUE_MAX_LENGTH(Integer.class),
+  SLOB_MUTATION_QUEUE_MAX_WAIT_MILLIS(Integer.class),
+  SLOB_RECENT_DELTA_CACHE_SIZE(Integer.class),
+  SNAPSHOT_TARGET_RECONSTRUCTION_MILLIS(Integer.class),
   ;
 
   // Stolen from com.google.inject.name.NamedImpl.
@@ -16,6 +16,7 @@ package com.goodow.wind.server;
 import com.goodow.wind.server.model.JsonModelAdapter;
 import com.goodow.wind.server.model.ObjectId;
 
+import com.google.appengine.api.ThreadManager;
 import com.google.appengine.api.datastore.Blob;
 import com.google.appengine.api.datastore.Entity;
 import com.google.appengine.api.datastore.KeyFactory;
@@ -31,6 +32,7 @@ import com.google.inject.assistedinject.FactoryModuleBuilder;
 import com.google.inject.multibindings.Multibinder;
 import com.google.inject.name.Named;
 import com.google.walkaround.slob.server.AccessChecker;
+import com.google.walkaround.slob.server.AdaptiveSnapshotPolicy;
 import com.google.walkaround.slob.server.AffinityMutationProcessor.StoreBackendInstanceCount;
 import com.google.walkaround.slob.server.AffinityMutationProcessor.StoreBackendName;
 import com.google.walkaround.slob.server.MutationLog;
@@ -40,12 +42,24 @@ import com.google.walkaround.slob.server.PostCommitAction;
 import com.google.walkaround.slob.server.PostCommitActionIntervalMillis;
 import com.google.walkaround.slob.server.PostCommitTaskUrl;
 import com.google.walkaround.slob.server.PreCommitAction;
+import com.google.walkaround.slob.server.SkipDeltaIndex;
 import com.google.walkaround.slob.server.SlobFacilities;
 import com.google.walkaround.slob.server.SlobFacilitiesImpl;
 import com.google.walkaround.slob.server.SlobLocalCacheExpirationMillis;
+import com.google.walkaround.slob.server.SlobLocalCacheMaxBytes;
 import com.google.walkaround.slob.server.SlobMessageRouter.SlobChannelExpirationSeconds;
+import com.google.walkaround.slob.server.SlobMutationBatchLingerMillis;
+import com.google.walkaround.slob.server.SlobMutationBatchMaxBytes;
+import com.google.walkaround.slob.server.SlobMutationBatchTargetCommitMillis;
+import com.google.walkaround.slob.server.SlobMutationExecutor;
+import com.google.walkaround.slob.server.SlobMutationExecutorThreads;
+import com.google.walkaround.slob.server.SlobMutationQueueMaxLength;
+import com.google.walkaround.slob.server.SlobMutationQueueMaxWaitMillis;
+import com.google.walkaround.slob.server.SlobRecentDeltaCacheSize;
 import com.google.walkaround.slob.server.SlobStore;
 import com.google.walkaround.slob.server.SlobStoreImpl;
+import com.google.walkaround.slob.server.SnapshotPolicy;
+import com.google.walkaround.slob.server.SnapshotTargetReconstructionMillis;
 import com.google.walkaround.slob.shared.SlobModel;
 import com.google.walkaround.util.server.MonitoringVars;
 import com.google.walkaround.util.server.RetryHelper;
@@ -69,6 +83,8 @@ import java.security.SecureRandom;
 import java.util.Arrays;
 import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
 import java.util.logging.Logger;
 
 public class WindServerModule extends AbstractModule {
@@ -118,17 +134,35 @@ public class WindServerModule extends AbstractModule {
         FlagName.POST_COMMIT_ACTION_INTERVAL_MILLIS);
     bindToFlag(Integer.class, SlobLocalCacheExpirationMillis.class,
         FlagName.SLOB_LOCAL_CACHE_EXPIRATION_MILLIS);
+    bindToFlag(Integer.class, SlobLocalCacheMaxBytes.class, FlagName.SLOB_LOCAL_CACHE_MAX_BYTES);
+    bindToFlag(Integer.class, SlobMutationBatchLingerMillis.class,
+        FlagName.SLOB_MUTATION_BATCH_LINGER_MILLIS);
+    bindToFlag(Integer.class, SlobMutationBatchMaxBytes.class,
+        FlagName.SLOB_MUTATION_BATCH_MAX_BYTES);
+    bindToFlag(Integer.class, SlobMutationBatchTargetCommitMillis.class,
+        FlagName.SLOB_MUTATION_BATCH_TARGET_COMMIT_MILLIS);
+    bindToFlag(Integer.class, SlobMutationExecutorThreads.class,
+        FlagName.SLOB_MUTATION_EXECUTOR_THREADS);
+    bindToFlag(Integer.class, SlobMutationQueueMaxLength.class,
+        FlagName.SLOB_MUTATION_QUEUE_MAX_LENGTH);
+    bindToFlag(Integer.class, SlobMutationQueueMaxWaitMillis.class,
+        FlagName.SLOB_MUTATION_QUEUE_MAX_WAIT_MILLIS);
+    bindToFlag(Integer.class, SlobRecentDeltaCacheSize.class,
+        FlagName.SLOB_RECENT_DELTA_CACHE_SIZE);
+    bindToFlag(Integer.class, SnapshotTargetReconstructionMillis.class,
+        FlagName.SNAPSHOT_TARGET_RECONSTRUCTION_MILLIS);
 
     bind(MonitoringVars.class).toInstance(MonitoringVars.NULL_IMPL);
 
     bind(SlobFacilities.class).to(SlobFacilitiesImpl.class);
     bind(SlobStore.class).to(SlobStoreImpl.class);
     install(factoryModule(MutationLogFactory.class, MutationLog.class));
+    bind(SnapshotPolicy.class).to(AdaptiveSnapshotPolicy.class);
 
     // Make sure a binding for the Set exists.
     Multibinder.newSetBinder(binder(), PreCommitAction.class);
-    // Make sure a binding for the Set exists.
-    Multibinder.newSetBinder(binder(), PostCommitAction.class);
+    Multibinder.newSetBinder(binder(), PostCommitAction.class).addBinding().to(
+        SkipDeltaIndex.PostCommitIndexer.class);
 
     bind(SlobModel.class).to(JsonModelAdapter.class);
     bind(AccessChecker.class).toInstance(new AccessChecker() {
@@ -154,6 +188,15 @@ public class WindServerModule extends AbstractModule {
     return JsonFlags.parse(Arrays.asList(FlagName.values()), rawFlagData);
   }
 
+  @Provides
+  @SlobMutationExecutor
+  @Singleton
+  Executor provideSlobMutationExecutor(@SlobMutationExecutorThreads int threads) {
+    // The threads outlive the requests that start them, which App Engine only
+    // allows on backends.
+    return Executors.newFixedThreadPool(threads, ThreadManager.backgroundThreadFactory());
+  }
+
   @Provides
   @Named("raw flag data")
   @Singleton
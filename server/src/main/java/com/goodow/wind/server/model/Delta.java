@@ -16,6 +16,8 @@ package com.goodow.wind.server.model;
 import com.google.common.base.Objects;
 import com.google.common.base.Preconditions;
 
+import javax.annotation.Nullable;
+
 /**
  * Represents a change in the mutation history of an object.
  * 
@@ -33,6 +35,12 @@ public final class Delta<T> {
 
   private final SessionId sessionId;
   private final T payload;
+  /**
+   * The payload as parsed by the {@code SlobModel}, memoized so that the stages of a mutation do
+   * not each parse it again. Not part of the value of this delta.
+   */
+  @Nullable
+  private volatile Object parsedPayload;
 
   public Delta(SessionId sessionId, T payload) {
     Preconditions.checkNotNull(sessionId, "Null sessionId");
@@ -57,6 +65,11 @@ public final class Delta<T> {
     return sessionId;
   }
 
+  @Nullable
+  public Object getParsedPayload() {
+    return parsedPayload;
+  }
+
   public T getPayload() {
     return payload;
   }
@@ -66,6 +79,10 @@ public final class Delta<T> {
     return Objects.hashCode(sessionId, payload);
   }
 
+  public void setParsedPayload(@Nullable Object parsedPayload) {
+    this.parsedPayload = parsedPayload;
+  }
+
   @Override
   public String toString() {
     return "Delta(" + sessionId + ", " + payload + ")";
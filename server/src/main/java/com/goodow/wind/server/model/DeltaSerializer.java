@@ -16,10 +16,9 @@ package com.goodow.wind.server.model;
 import com.goodow.wind.channel.rpc.Constants;
 
 import com.google.common.base.Preconditions;
-import com.google.gson.JsonObject;
-import com.google.gson.JsonParseException;
-import com.google.gson.JsonParser;
 
+import java.io.IOException;
+import java.util.List;
 import java.util.logging.Logger;
 
 public class DeltaSerializer {
@@ -30,36 +29,33 @@ public class DeltaSerializer {
   /** The largest integer that can be represented losslessly by a double */
   public static final long MAX_DOUBLE_INTEGER = 1L << 52 - 1;
 
-  public static JsonObject dataToClientJson(Delta<String> data, long resultingRevision) {
+  /**
+   * Writes the client representation of a delta. The payload is already valid JSON, so it is
+   * spliced in verbatim rather than parsed and re-serialized.
+   */
+  public static void writeClientJson(RawJsonWriter out, Delta<String> data,
+      long resultingRevision) throws IOException {
+    Preconditions.checkArgument(resultingRevision >= 0, "invalid rev %s", resultingRevision);
     Preconditions.checkArgument(resultingRevision <= MAX_DOUBLE_INTEGER,
         "Resulting revision %s is too large", resultingRevision);
+    out.beginObject();
+    out.name(Constants.Params.VERSION).value(resultingRevision);
+    out.name(Constants.Params.SESSION_ID).value(data.getClientId().getId());
+    out.name(Constants.Params.OPERATION).rawValue(data.getPayload());
+    out.endObject();
+  }
 
-    // Assume payload is JSON, and parse it to avoid nested json.
-    // TODO: Consider using Delta<JSONObject> instead.
-    // The reason I haven't done it yet is because it's not immutable,
-    // and also for reasons described in Delta.
-    JsonObject payloadJson;
-    try {
-      payloadJson = new JsonParser().parse(data.getPayload()).getAsJsonObject();
-    } catch (JsonParseException e) {
-      throw new IllegalArgumentException("Invalid payload for " + data, e);
-    }
-
-    JsonObject json = new JsonObject();
-    try {
-      Preconditions.checkArgument(resultingRevision >= 0, "invalid rev %s", resultingRevision);
-      json.addProperty(Constants.Params.VERSION, resultingRevision);
-      long sanityCheck = json.get(Constants.Params.VERSION).getAsLong();
-      if (sanityCheck != resultingRevision) {
-        throw new AssertionError("resultingRevision " + resultingRevision
-            + " not losslessly represented in JSON, got back " + sanityCheck);
-      }
-      json.addProperty(Constants.Params.SESSION_ID, data.getClientId().getId());
-      json.add(Constants.Params.OPERATION, payloadJson);
-      return json;
-    } catch (JsonParseException e) {
-      throw new Error(e);
+  /**
+   * Writes a JSON array of the client representations of consecutive deltas, the first of which
+   * applies to {@code startVersion}.
+   */
+  public static void writeClientJson(RawJsonWriter out, long startVersion,
+      List<Delta<String>> deltas) throws IOException {
+    out.beginArray();
+    for (int i = 0; i < deltas.size(); i++) {
+      writeClientJson(out, deltas.get(i), startVersion + i + 1);
     }
+    out.endArray();
   }
 
   private DeltaSerializer() {
@@ -19,6 +19,8 @@ import com.goodow.wind.model.json.JsonOp;
 import com.goodow.wind.model.op.TransformException;
 import com.goodow.wind.model.util.Pair;
 
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
 import com.google.inject.Inject;
 import com.google.walkaround.slob.shared.InvalidSnapshot;
 import com.google.walkaround.slob.shared.SlobModel;
@@ -29,7 +31,9 @@ import java.util.List;
 import javax.annotation.Nullable;
 
 import elemental.json.Json;
+import elemental.json.JsonArray;
 import elemental.json.JsonException;
+import elemental.json.JsonType;
 import elemental.json.JsonValue;
 import elemental.util.ArrayOf;
 import elemental.util.Collections;
@@ -37,34 +41,94 @@ import elemental.util.Collections;
 public class JsonModelAdapter implements SlobModel {
   class JsonSlob implements Slob {
     private JValue json;
+    /**
+     * A frozen version of {@link #json} shared with copies, or null if there is none or json has
+     * changed since. Guarded by this, as transactions copy a slob held in the state cache
+     * concurrently, and freezing also updates the tree's copy-on-write state.
+     */
+    private JsonValue frozen;
+    /**
+     * Estimated length of {@link #snapshot()}, adjusted by each applied op rather than recomputed,
+     * and reset to the exact length whenever a snapshot is parsed or serialized.
+     */
+    private long sizeEstimate;
 
-    JsonSlob(JsonValue json) {
-      this.json = json == null ? null : model.create(json);
+    JsonSlob(@Nullable JValue json, long sizeEstimate) {
+      this.json = json;
+      this.sizeEstimate = sizeEstimate;
     }
 
     @Override
-    public void apply(Delta<String> change) throws DeltaRejected {
-      JsonOp<?> op;
-      try {
-        op = model.createOp(Json.parse(change.getPayload()));
-      } catch (JsonException e) {
-        throw new DeltaRejected("Malformed op: " + change, e);
+    public synchronized void apply(Delta<String> change) throws DeltaRejected {
+      // The object takes ownership of the values in the ops and may modify
+      // them later on, so memoized ops can be applied only once; whoever
+      // needs them after this parses the payload again.
+      ArrayOf<JsonOp<?>> ops = getParsedOps(change);
+      if (ops != null) {
+        change.setParsedPayload(null);
+      } else {
+        ops = parseOps(change);
+      }
+      // If an op of a composite delta fails, we go back to the version
+      // before the first one, which freezing keeps intact.
+      JsonValue before = null;
+      if (ops.length() > 1 && json != null) {
+        if (frozen == null) {
+          frozen = model.freeze(json);
+        }
+        before = frozen;
       }
+      long sizeBefore = sizeEstimate;
       try {
-        if (json == null) {
-          json = model.create(JsonOp.buildJsonFromInitialOp(op));
-        } else {
-          json.consume(op);
+        for (int i = 0, len = ops.length(); i < len; i++) {
+          JsonOp<?> op = ops.get(i);
+          try {
+            if (json == null) {
+              json = model.create(JsonOp.buildJsonFromInitialOp(op));
+            } else {
+              json.consume(op);
+            }
+            sizeEstimate = Math.max(0, sizeEstimate + op.estimateSizeDelta());
+          } catch (RuntimeException e) {
+            if (i > 0) {
+              json = before == null ? null : model.fork(before);
+              sizeEstimate = sizeBefore;
+            }
+            throw new DeltaRejected("Invalid op: " + op, e);
+          }
         }
-      } catch (RuntimeException e) {
-        throw new DeltaRejected("Invalid op: " + op, e);
+      } finally {
+        frozen = null;
       }
     }
 
+    @Override
+    public synchronized Slob copy() {
+      if (json == null) {
+        return new JsonSlob(null, 0);
+      }
+      if (frozen == null) {
+        frozen = model.freeze(json);
+      }
+      return new JsonSlob(model.fork(frozen), sizeEstimate);
+    }
+
     @Nullable
     @Override
-    public String snapshot() {
-      return json == null ? null : json.toString();
+    public synchronized String snapshot() {
+      if (json == null) {
+        return null;
+      }
+      // The estimate drifts with escaping and number formatting, so take the
+      // exact length while we have it.
+      String toRtn = json.toString();
+      sizeEstimate = toRtn.length();
+      return toRtn;
+    }
+
+    @Override
+    public synchronized long snapshotSizeEstimate() {
+      return sizeEstimate;
     }
   }
 
@@ -75,13 +139,78 @@ public class JsonModelAdapter implements SlobModel {
     this.model = model;
   }
 
+  @Override
+  public List<Pair<Delta<String>, Integer>> compose(List<Delta<String>> deltas) {
+    // Parsed without memoizing: histories are read from caches that outlive
+    // this call, and should not hold on to parsed ops.
+    List<Pair<Delta<String>, Integer>> toRtn = new ArrayList<Pair<Delta<String>, Integer>>();
+    ArrayOf<JsonOp<?>> run = Collections.arrayOf();
+    int runStart = 0;
+    for (int i = 0; i <= deltas.size(); i++) {
+      JsonOp<?> op = null;
+      if (i < deltas.size()) {
+        try {
+          op = parseOp(deltas.get(i));
+        } catch (DeltaRejected e) {
+          throw new RuntimeException("Invalid delta in history: " + deltas.get(i), e);
+        }
+      }
+      boolean continuesRun =
+          op != null && !run.isEmpty() && op.getPath().equals(run.peek().getPath())
+              && deltas.get(i).getClientId().equals(deltas.get(runStart).getClientId());
+      if (!run.isEmpty() && !continuesRun) {
+        composeRun(deltas.subList(runStart, i), run, toRtn);
+        run = Collections.arrayOf();
+        runStart = i;
+      }
+      if (op != null) {
+        run.push(op);
+      }
+    }
+    return toRtn;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * <p>A single resulting op is serialized as usual; several are serialized as a JSON array of
+   * ops, which only {@link JsonSlob#apply} and {@link #transform} accept.
+   */
+  @Override
+  public Delta<String> composeAll(List<Delta<String>> deltas) {
+    Preconditions.checkArgument(!deltas.isEmpty(), "Nothing to compose");
+    // Parsed without memoizing, since composition may reuse the input ops.
+    ArrayOf<JsonOp<?>> ops = Collections.arrayOf();
+    for (Delta<String> delta : deltas) {
+      try {
+        ArrayOf<JsonOp<?>> parsed = parseOps(delta);
+        for (int i = 0, len = parsed.length(); i < len; i++) {
+          ops.push(parsed.get(i));
+        }
+      } catch (DeltaRejected e) {
+        throw new RuntimeException("Invalid delta in history: " + delta, e);
+      }
+    }
+    ArrayOf<JsonOp<?>> composed;
+    try {
+      composed = model.compose(ops);
+    } catch (RuntimeException e) {
+      // Not every op type can be composed; the ops in sequence are still
+      // equivalent, if not any smaller.
+      composed = ops;
+    }
+    SessionId clientId = deltas.get(deltas.size() - 1).getClientId();
+    return new Delta<String>(clientId, composed.length() == 1 ? composed.get(0).toString() : "["
+        + composed.join() + "]");
+  }
+
   @Override
   public Slob create(@Nullable String snapshot) throws InvalidSnapshot {
     if (snapshot == null) {
-      return new JsonSlob(null);
+      return new JsonSlob(null, 0);
     } else {
       try {
-        return new JsonSlob(Json.instance().parse(snapshot));
+        return new JsonSlob(model.create(Json.instance().parse(snapshot)), snapshot.length());
       } catch (JsonException e) {
         throw new InvalidSnapshot(e);
       }
@@ -89,15 +218,23 @@ public class JsonModelAdapter implements SlobModel {
   }
 
   @Override
-  public List<String> transform(List<Delta<String>> clientOps, List<Delta<String>> serverOps)
-      throws DeltaRejected {
+  public List<Delta<String>> transform(List<Delta<String>> clientOps,
+      List<Delta<String>> serverOps) throws DeltaRejected {
+    if (clientOps.isEmpty()) {
+      return ImmutableList.of();
+    }
+    SessionId clientId = clientOps.get(0).getClientId();
     try {
       Pair<ArrayOf<JsonOp<?>>, ArrayOf<JsonOp<?>>> pair =
           model.transform(deserializeOps(serverOps), deserializeOps(clientOps));
       ArrayOf<JsonOp<?>> cOps = pair.second;
-      ArrayList<String> toRtn = new ArrayList<String>(cOps.length());
+      ArrayList<Delta<String>> toRtn = new ArrayList<Delta<String>>(cOps.length());
       for (int i = 0, len = cOps.length(); i < len; i++) {
-        toRtn.add(cOps.get(i).toString());
+        Delta<String> delta = new Delta<String>(clientId, cOps.get(i).toString());
+        ArrayOf<JsonOp<?>> parsed = Collections.arrayOf();
+        parsed.push(cOps.get(i));
+        delta.setParsedPayload(parsed);
+        toRtn.add(delta);
       }
       return toRtn;
     } catch (TransformException e) {
@@ -105,16 +242,80 @@ public class JsonModelAdapter implements SlobModel {
     }
   }
 
+  /**
+   * Adds the composition of {@code ops}, the ops of a run of deltas from one client at one path,
+   * to {@code out}; or the deltas themselves, if they do not compose into a single op.
+   */
+  private void composeRun(List<Delta<String>> deltas, ArrayOf<JsonOp<?>> ops,
+      List<Pair<Delta<String>, Integer>> out) {
+    if (ops.length() > 1) {
+      ArrayOf<JsonOp<?>> composed;
+      try {
+        composed = model.compose(ops);
+      } catch (RuntimeException e) {
+        // Not every op type can be composed; fall through.
+        composed = null;
+      }
+      if (composed != null && composed.length() == 1) {
+        out.add(Pair.of(new Delta<String>(deltas.get(0).getClientId(), composed.get(0)
+            .toString()), deltas.size()));
+        return;
+      }
+    }
+    for (Delta<String> delta : deltas) {
+      out.add(Pair.of(delta, 1));
+    }
+  }
+
+  /**
+   * Returns the parsed ops of {@code changes}, memoizing them. Transformation does not modify its
+   * input ops, so they can be reused by later transforms against the same deltas.
+   */
   private ArrayOf<JsonOp<?>> deserializeOps(List<Delta<String>> changes) throws DeltaRejected {
     ArrayOf<JsonOp<?>> ops = Collections.arrayOf();
     for (int i = 0; i < changes.size(); i++) {
-      JsonOp<?> op;
-      try {
-        op = model.createOp(Json.instance().create(changes.get(i).getPayload()));
-      } catch (JsonException e) {
-        throw new DeltaRejected(e);
+      Delta<String> change = changes.get(i);
+      ArrayOf<JsonOp<?>> parsed = getParsedOps(change);
+      if (parsed == null) {
+        parsed = parseOps(change);
+        change.setParsedPayload(parsed);
+      }
+      for (int j = 0, len = parsed.length(); j < len; j++) {
+        ops.push(parsed.get(j));
+      }
+    }
+    return ops;
+  }
+
+  @SuppressWarnings("unchecked")
+  @Nullable
+  private ArrayOf<JsonOp<?>> getParsedOps(Delta<String> change) {
+    return (ArrayOf<JsonOp<?>>) change.getParsedPayload();
+  }
+
+  private JsonOp<?> parseOp(Delta<String> change) throws DeltaRejected {
+    try {
+      return model.createOp(Json.parse(change.getPayload()));
+    } catch (JsonException e) {
+      throw new DeltaRejected("Malformed op: " + change, e);
+    }
+  }
+
+  /** Parses a delta that may be composite, see {@link #composeAll}. */
+  private ArrayOf<JsonOp<?>> parseOps(Delta<String> change) throws DeltaRejected {
+    ArrayOf<JsonOp<?>> ops = Collections.arrayOf();
+    try {
+      JsonValue payload = Json.parse(change.getPayload());
+      if (payload.getType() == JsonType.ARRAY) {
+        JsonArray composite = (JsonArray) payload;
+        for (int i = 0, len = composite.length(); i < len; i++) {
+          ops.push(model.createOp(composite.get(i)));
+        }
+      } else {
+        ops.push(model.createOp(payload));
       }
-      ops.push(op);
+    } catch (JsonException e) {
+      throw new DeltaRejected("Malformed op: " + change, e);
     }
     return ops;
   }
@@ -0,0 +1,158 @@
+/*
+ * Copyright 2012 Goodow.com
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.wind.server.model;
+
+import com.google.common.base.Preconditions;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import javax.annotation.Nullable;
+
+/**
+ * Streams JSON to an {@link Appendable}, like Gson's {@code JsonWriter}, but can also splice in
+ * values that are already serialized JSON, such as delta payloads, without parsing them.
+ * 
+ * Strings are escaped like {@code JsonElement.toString()} escapes them, so the output is the same
+ * as what a Gson tree would have produced.
+ */
+public class RawJsonWriter {
+  private final Appendable out;
+  /** For each open object or array, whether anything has been written into it yet. */
+  private boolean[] nonEmpty = new boolean[8];
+  private int depth = 0;
+  private boolean afterName = false;
+
+  public RawJsonWriter(Appendable out) {
+    this.out = Preconditions.checkNotNull(out, "Null out");
+  }
+
+  public RawJsonWriter beginArray() throws IOException {
+    return open('[');
+  }
+
+  public RawJsonWriter beginObject() throws IOException {
+    return open('{');
+  }
+
+  public RawJsonWriter endArray() throws IOException {
+    return close(']');
+  }
+
+  public RawJsonWriter endObject() throws IOException {
+    return close('}');
+  }
+
+  public RawJsonWriter name(String name) throws IOException {
+    Preconditions.checkState(depth > 0 && !afterName, "Unexpected name %s", name);
+    separate();
+    writeString(name);
+    out.append(':');
+    afterName = true;
+    return this;
+  }
+
+  /** Writes {@code json}, which must be a single valid JSON value, verbatim. */
+  public RawJsonWriter rawValue(@Nullable String json) throws IOException {
+    beforeValue();
+    out.append(json == null ? "null" : json);
+    return this;
+  }
+
+  public RawJsonWriter value(boolean value) throws IOException {
+    beforeValue();
+    out.append(value ? "true" : "false");
+    return this;
+  }
+
+  public RawJsonWriter value(long value) throws IOException {
+    beforeValue();
+    out.append(Long.toString(value));
+    return this;
+  }
+
+  public RawJsonWriter value(@Nullable String value) throws IOException {
+    beforeValue();
+    if (value == null) {
+      out.append("null");
+    } else {
+      writeString(value);
+    }
+    return this;
+  }
+
+  private void beforeValue() throws IOException {
+    if (afterName) {
+      afterName = false;
+    } else {
+      separate();
+    }
+  }
+
+  private RawJsonWriter close(char c) throws IOException {
+    Preconditions.checkState(depth > 0 && !afterName, "Nothing to close");
+    depth--;
+    out.append(c);
+    return this;
+  }
+
+  private RawJsonWriter open(char c) throws IOException {
+    beforeValue();
+    out.append(c);
+    if (depth == nonEmpty.length) {
+      nonEmpty = Arrays.copyOf(nonEmpty, depth * 2);
+    }
+    nonEmpty[depth++] = false;
+    return this;
+  }
+
+  private void separate() throws IOException {
+    if (depth == 0) {
+      return;
+    }
+    if (nonEmpty[depth - 1]) {
+      out.append(',');
+    }
+    nonEmpty[depth - 1] = true;
+  }
+
+  private void writeString(String s) throws IOException {
+    out.append('"');
+    int last = 0;
+    for (int i = 0, len = s.length(); i < len; i++) {
+      char c = s.charAt(i);
+      String replacement;
+      if (c == '"' || c == '\\') {
+        replacement = "\\" + c;
+      } else if (c == '\n') {
+        replacement = "\\n";
+      } else if (c == '\r') {
+        replacement = "\\r";
+      } else if (c == '\t') {
+        replacement = "\\t";
+      } else if (c == '\b') {
+        replacement = "\\b";
+      } else if (c == '\f') {
+        replacement = "\\f";
+      } else if (c < 0x20 || c == 0x2028 || c == 0x2029) {
+        replacement = String.format("\\u%04x", (int) c);
+      } else {
+        continue;
+      }
+      out.append(s, last, i).append(replacement);
+      last = i + 1;
+    }
+    out.append(s, last, s.length()).append('"');
+  }
+}
@@ -14,27 +14,31 @@
 package com.goodow.wind.server.rpc;
 
 import com.goodow.wind.channel.rpc.Constants.Params;
+import com.goodow.wind.model.util.Pair;
 import com.goodow.wind.server.model.Delta;
 import com.goodow.wind.server.model.DeltaSerializer;
 import com.goodow.wind.server.model.ObjectId;
+import com.goodow.wind.server.model.RawJsonWriter;
 import com.goodow.wind.server.model.SessionId;
 
+import com.google.common.collect.Lists;
 import com.google.gson.JsonArray;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
 import com.google.inject.Inject;
 import com.google.walkaround.slob.server.AccessDeniedException;
-import com.google.walkaround.slob.server.LocalMutationProcessor;
 import com.google.walkaround.slob.server.SlobFacilities;
 import com.google.walkaround.slob.server.SlobNotFoundException;
 import com.google.walkaround.slob.server.SlobStore;
 import com.google.walkaround.slob.server.SlobStore.ConnectResult;
+import com.google.walkaround.slob.server.SlobStore.HistoryRequest;
 import com.google.walkaround.slob.server.SlobStore.HistoryResult;
 import com.google.walkaround.util.server.servlet.AbstractHandler;
 import com.google.walkaround.util.server.servlet.BadRequestException;
 
 import java.io.IOException;
+import java.io.PrintWriter;
 import java.util.List;
 import java.util.logging.Logger;
 
@@ -56,18 +60,19 @@ public class DeltaHandler extends AbstractHandler {
   @Override
   public void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
     String keyString = requireParameter(req, Params.ID);
-    JsonObject toRtn;
+    resp.setContentType("application/json");
     try {
       if (!keyString.startsWith("[")) {
         Long version = Long.parseLong(requireParameter(req, Params.VERSION));
         String endVersionString = optionalParameter(req, Params.END_VERSION, null);
         Long endVersion = endVersionString == null ? null : Long.parseLong(endVersionString);
-        toRtn = fetchHistory(new ObjectId(keyString), version, endVersion);
+        boolean compose = Boolean.parseBoolean(optionalParameter(req, Params.COMPOSE, "false"));
+        fetchHistory(resp.getWriter(), new ObjectId(keyString), version, endVersion, compose);
       } else {
         JsonElement keys = new JsonParser().parse(keyString);
         assert keys.isJsonArray();
         String sid = requireParameter(req, Params.SESSION_ID);
-        toRtn = fetchHistories(new SessionId(sid), keys.getAsJsonArray());
+        fetchHistories(resp.getWriter(), new SessionId(sid), keys.getAsJsonArray());
       }
     } catch (SlobNotFoundException e) {
       throw new BadRequestException("Object not found or access denied", e);
@@ -76,60 +81,76 @@ public class DeltaHandler extends AbstractHandler {
     } catch (NumberFormatException nfe) {
       throw new BadRequestException("Parse error", nfe);
     }
-
-    resp.setContentType("application/json");
-    Util.writeJsonResult(resp.getWriter(), toRtn.toString());
   }
 
-  private JsonObject fetchHistories(SessionId sid, JsonArray keys) throws IOException,
+  // The fetch methods load everything before they start writing, so that
+  // failures can still be reported as errors. The deltas are then streamed
+  // to the response with their payloads spliced in verbatim; for catch-up
+  // responses with many deltas, building and serializing a Gson tree would
+  // cost more than loading them.
+
+  private void fetchHistories(PrintWriter w, SessionId sid, JsonArray keys) throws IOException,
       SlobNotFoundException, AccessDeniedException {
     SlobStore store = slobFacilities.getSlobStore();
-    JsonObject toRtn = new JsonObject();
-    JsonArray msgs = new JsonArray();
-    String token = null;
+    List<HistoryRequest> requests = Lists.newArrayListWithCapacity(keys.size());
     for (JsonElement e : keys) {
       JsonObject obj = e.getAsJsonObject();
       ObjectId key = new ObjectId(obj.get(Params.ID).getAsString());
       long version = obj.get(Params.VERSION).getAsLong();
       Long endVersion =
           obj.has(Params.END_VERSION) ? obj.get(Params.END_VERSION).getAsLong() : null;
-      ConnectResult r = store.reconnect(key, sid);
-      JsonObject msg;
+      requests.add(new HistoryRequest(key, version, endVersion));
+    }
+    List<Pair<ConnectResult, HistoryResult>> results =
+        store.reconnectAndLoadHistories(sid, requests);
+    String token = null;
+    for (Pair<ConnectResult, HistoryResult> result : results) {
+      ConnectResult r = result.getFirst();
       if (r.getChannelToken() != null) {
         assert token == null || token.equals(r.getChannelToken());
         token = r.getChannelToken();
       }
-      HistoryResult history = store.loadHistory(key, version, endVersion);
-      msg =
-          LocalMutationProcessor.jsonBroadcastData(key.toString(), serializeHistory(version,
-              history.getData()));
-      msg.addProperty(Params.VERSION, r.getVersion());
-      msgs.add(msg);
     }
+    RawJsonWriter out = Util.beginJsonResult(w).beginObject();
     if (token != null) {
-      toRtn.addProperty(Params.TOKEN, token);
+      out.name(Params.TOKEN).value(token);
     }
-    toRtn.add(Params.DELTAS, msgs);
-    return toRtn;
+    out.name(Params.DELTAS).beginArray();
+    for (int i = 0; i < requests.size(); i++) {
+      HistoryRequest request = requests.get(i);
+      ConnectResult r = results.get(i).getFirst();
+      HistoryResult history = results.get(i).getSecond();
+      out.beginObject();
+      out.name(Params.ID).value(request.getSlobId().toString());
+      out.name(Params.DELTAS);
+      DeltaSerializer.writeClientJson(out, request.getStartVersion(), history.getData());
+      out.name(Params.VERSION).value(r.getVersion());
+      out.endObject();
+    }
+    out.endArray().endObject();
   }
 
-  private JsonObject fetchHistory(ObjectId key, long version, Long endVersion) throws IOException,
-      SlobNotFoundException, AccessDeniedException {
+  private void fetchHistory(PrintWriter w, ObjectId key, long version, Long endVersion,
+      boolean compose) throws IOException, SlobNotFoundException, AccessDeniedException {
     SlobStore store = slobFacilities.getSlobStore();
-    JsonObject result = new JsonObject();
-    HistoryResult history = store.loadHistory(key, version, endVersion);
-    result.add(Params.DELTAS, serializeHistory(version, history.getData()));
-    result.addProperty(Params.HAS_MORE, history.hasMore());
-    return result;
+    HistoryResult history = store.loadHistory(key, version, endVersion, compose);
+    RawJsonWriter out = Util.beginJsonResult(w).beginObject();
+    out.name(Params.DELTAS);
+    writeHistory(out, version, history);
+    out.name(Params.HAS_MORE).value(history.hasMore());
+    out.endObject();
   }
 
-  private JsonArray serializeHistory(long startVersion, List<Delta<String>> entries) {
-    JsonArray history = new JsonArray();
-    int index = 0;
-    for (Delta<String> data : entries) {
-      history.add(DeltaSerializer.dataToClientJson(data, startVersion + index + 1));
-      index++;
+  // Composed deltas may span several versions, so each one carries its own
+  // resulting version rather than relying on the start version and index.
+  private void writeHistory(RawJsonWriter out, long startVersion, HistoryResult history)
+      throws IOException {
+    List<Delta<String>> data = history.getData();
+    out.beginArray();
+    for (int i = 0; i < data.size(); i++) {
+      DeltaSerializer.writeClientJson(out, data.get(i),
+          history.getResultingVersion(startVersion, i));
     }
-    return history;
+    out.endArray();
   }
-}
\ No newline at end of file
+}
@@ -18,7 +18,6 @@ import com.goodow.wind.server.model.ObjectId;
 import com.goodow.wind.server.model.ObjectSession;
 import com.goodow.wind.server.model.SessionId;
 
-import com.google.gson.JsonObject;
 import com.google.inject.Inject;
 import com.google.walkaround.slob.server.AccessDeniedException;
 import com.google.walkaround.slob.server.MutateResult;
@@ -50,9 +49,15 @@ public class SubmitDeltaHandler extends AbstractHandler {
     String sid = requireParameter(req, Constants.Params.SESSION_ID);
     String key = requireParameter(req, Constants.Params.ID);
     String versionString = requireParameter(req, Constants.Params.VERSION);
+    // A submission number is only meaningful under the nonce it counts from.
+    String nonce = optionalParameter(req, Constants.Params.NONCE, null);
+    String submissionString =
+        nonce == null ? "0" : optionalParameter(req, Constants.Params.SUBMISSION, "0");
     long version;
+    long submission;
     try {
       version = Long.parseLong(versionString);
+      submission = Long.parseLong(submissionString);
     } catch (NumberFormatException e) {
       throw new RuntimeException(e);
     }
@@ -61,6 +66,8 @@ public class SubmitDeltaHandler extends AbstractHandler {
     ServerMutateRequest mutateRequest = new ServerMutateRequest();
     mutateRequest.setSession(new ObjectSession(new ObjectId(key), new SessionId(sid)));
     mutateRequest.setVersion(version);
+    mutateRequest.setNonce(nonce);
+    mutateRequest.setSubmission(submission);
     mutateRequest.setDeltas(deltas);
 
     MutateResult res;
@@ -72,9 +79,8 @@ public class SubmitDeltaHandler extends AbstractHandler {
       throw new BadRequestException("Object not found or access denied", e);
     }
 
-    JsonObject json = new JsonObject();
-    json.addProperty(Constants.Params.VERSION, res.getResultingVersion());
     resp.setContentType("application/json");
-    Util.writeJsonResult(resp.getWriter(), json.toString());
+    Util.beginJsonResult(resp.getWriter()).beginObject().name(Constants.Params.VERSION).value(
+        res.getResultingVersion()).endObject();
   }
 }
\ No newline at end of file
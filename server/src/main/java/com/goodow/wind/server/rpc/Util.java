@@ -14,6 +14,7 @@
 package com.goodow.wind.server.rpc;
 
 import com.goodow.wind.channel.rpc.Constants;
+import com.goodow.wind.server.model.RawJsonWriter;
 
 import com.google.gson.JsonParseException;
 import com.google.gson.JsonParser;
@@ -42,4 +43,13 @@ class Util {
 
     w.print(Constants.XSSI_PREFIX + str);
   }
+
+  /**
+   * Writes the prefix the client expects, and returns a writer for the JSON result, which the
+   * caller streams to {@code w}.
+   */
+  static RawJsonWriter beginJsonResult(PrintWriter w) {
+    w.print(Constants.XSSI_PREFIX);
+    return new RawJsonWriter(w);
+  }
 }
\ No newline at end of file
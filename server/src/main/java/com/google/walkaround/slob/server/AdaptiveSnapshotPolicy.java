@@ -0,0 +1,101 @@
+/*
+ * Copyright 2012 Google Inc. All Rights Reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.walkaround.slob.server;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.google.walkaround.util.server.MonitoringVars;
+
+import java.util.logging.Logger;
+
+/**
+ * Snapshot policy that keeps the time to reconstruct an object under a target.
+ * 
+ * Reconstruction time is estimated as the time to load the most recent snapshot plus the measured
+ * time to replay the deltas since. Load time per snapshot byte is learned from the snapshots this
+ * process loads; until there is a measurement, we fall back to {@link BytesSnapshotPolicy}.
+ * 
+ * Once the estimate exceeds the target, we only snapshot if loading the new snapshot is expected to
+ * take less than half the current estimate. Otherwise, an object whose snapshot alone takes longer
+ * than the target to load would be snapshotted after every delta.
+ */
+// Singleton so that the load cost learned is shared by all mutation logs.
+@Singleton
+public class AdaptiveSnapshotPolicy implements SnapshotPolicy {
+
+  private static final Logger log = Logger.getLogger(AdaptiveSnapshotPolicy.class.getName());
+
+  /**
+   * Replay time does not include reading deltas from the datastore, which we can't measure here, so
+   * we bound their number as well.
+   */
+  static final long MAX_DELTAS_SINCE_SNAPSHOT = 1000;
+  /** Snapshots smaller than this are too noisy to learn from. */
+  static final long MIN_SAMPLE_BYTES = 1024;
+  /** Weight of a new sample in the moving average of the load cost. */
+  static final double SAMPLE_WEIGHT = 0.1;
+
+  private final long targetNanos;
+  private final BytesSnapshotPolicy fallback = new BytesSnapshotPolicy();
+  private final MonitoringVars monitoring;
+  /** Moving average of snapshot load time per byte; 0 if unknown. */
+  private double loadNanosPerByte = 0;
+
+  @Inject
+  public AdaptiveSnapshotPolicy(@SnapshotTargetReconstructionMillis int targetMillis,
+      MonitoringVars monitoring) {
+    this.targetNanos = targetMillis * 1000000L;
+    this.monitoring = monitoring;
+  }
+
+  @Override
+  public boolean shouldSnapshot(long snapshotBytes, ReconstructionCost cost) {
+    if (cost.getDeltaCount() >= MAX_DELTAS_SINCE_SNAPSHOT) {
+      return true;
+    }
+    double perByte = getLoadNanosPerByte();
+    if (perByte == 0) {
+      return fallback.shouldSnapshot(snapshotBytes, cost);
+    }
+    double current = perByte * cost.getSnapshotBytes() + cost.getReplayNanos();
+    if (current <= targetNanos) {
+      return false;
+    }
+    double after = perByte * snapshotBytes;
+    if (2 * after >= current) {
+      log.info("Estimated reconstruction time " + (long) current + "ns exceeds target, but a "
+          + "snapshot would not help much: " + (long) after + "ns");
+      monitoring.incrementCounter("snapshot-policy-target-unreachable");
+      return false;
+    }
+    return true;
+  }
+
+  @Override
+  public synchronized void snapshotLoaded(long snapshotBytes, long nanos) {
+    if (snapshotBytes < MIN_SAMPLE_BYTES) {
+      return;
+    }
+    double sample = (double) nanos / snapshotBytes;
+    loadNanosPerByte =
+        loadNanosPerByte == 0 ? sample : (1 - SAMPLE_WEIGHT) * loadNanosPerByte + SAMPLE_WEIGHT
+            * sample;
+    monitoring.setGauge("snapshot-policy-load-picos-per-byte", (long) (loadNanosPerByte * 1000));
+  }
+
+  synchronized double getLoadNanosPerByte() {
+    return loadNanosPerByte;
+  }
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright 2012 Google Inc. All Rights Reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.walkaround.slob.server;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * The number of bytes that one mutation batch of an object may stage before
+ * it is committed, adapted to the commit latency observed for that object.
+ *
+ * A batch that commits within the target latency after filling the budget
+ * grows the budget by a quarter, up to the maximum; a batch that takes longer
+ * than the target halves it, down to the minimum.  The first batches may use
+ * the maximum.  At least one update goes into every batch regardless.
+ */
+class BatchBudget {
+  static final long MIN_BYTES = 4 * 1024;
+
+  private final long targetCommitMillis;
+  private final long maxBytes;
+  private long bytes;
+
+  BatchBudget(long targetCommitMillis, long maxBytes) {
+    Preconditions.checkArgument(targetCommitMillis > 0, "Bad targetCommitMillis %s",
+        targetCommitMillis);
+    Preconditions.checkArgument(maxBytes >= MIN_BYTES, "Bad maxBytes %s", maxBytes);
+    this.targetCommitMillis = targetCommitMillis;
+    this.maxBytes = maxBytes;
+    this.bytes = maxBytes;
+  }
+
+  synchronized long getBytes() {
+    return bytes;
+  }
+
+  /**
+   * @param full whether the batch was cut off because it reached the budget
+   */
+  synchronized void recordCommit(long commitMillis, boolean full) {
+    if (commitMillis > targetCommitMillis) {
+      bytes = Math.max(MIN_BYTES, bytes / 2);
+    } else if (full) {
+      bytes = Math.min(maxBytes, bytes + bytes / 4);
+    }
+  }
+
+  @Override public synchronized String toString() {
+    return "BatchBudget(" + bytes + " of " + maxBytes + " bytes, " + targetCommitMillis + "ms)";
+  }
+}
@@ -0,0 +1,40 @@
+/*
+ * Copyright 2012 Google Inc. All Rights Reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.walkaround.slob.server;
+
+/**
+ * Snapshot policy that only looks at byte counts.
+ * 
+ * To reconstruct the object's snapshot S at the current version, we will need to read the most
+ * recent snapshot P followed by a sequence of deltas D. To keep the amount of data required for
+ * this reconstruction within a constant factor of |S| (the size of S), we write S to disk if k * |S|
+ * < |P| + |D|, for some constant k.
+ * 
+ * This assumes that reading & reconstructing a snapshot has the same cost per byte as reading &
+ * applying a delta, which depends on the model; see {@link AdaptiveSnapshotPolicy}. On the other
+ * hand, it bounds disk space consumption to a constant factor of the log.
+ */
+public class BytesSnapshotPolicy implements SnapshotPolicy {
+  private static final long K = 2;
+
+  @Override
+  public boolean shouldSnapshot(long snapshotBytes, ReconstructionCost cost) {
+    return K * snapshotBytes < cost.getSnapshotBytes() + cost.getDeltaBytes();
+  }
+
+  @Override
+  public void snapshotLoaded(long snapshotBytes, long nanos) {
+  }
+}
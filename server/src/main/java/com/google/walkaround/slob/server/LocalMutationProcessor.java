@@ -15,25 +15,29 @@
 package com.google.walkaround.slob.server;
 
 import com.goodow.wind.channel.rpc.Constants;
+import com.goodow.wind.model.util.Pair;
 import com.goodow.wind.server.model.Delta;
 import com.goodow.wind.server.model.DeltaRejected;
 import com.goodow.wind.server.model.DeltaSerializer;
 import com.goodow.wind.server.model.ObjectId;
+import com.goodow.wind.server.model.RawJsonWriter;
 import com.goodow.wind.server.model.SessionId;
 
 import com.google.common.base.Function;
 import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
 import com.google.common.collect.MapMaker;
 import com.google.common.primitives.Ints;
-import com.google.gson.JsonArray;
-import com.google.gson.JsonObject;
+import com.google.common.util.concurrent.ListenableFuture;
 import com.google.inject.Inject;
+import com.google.inject.Provider;
 import com.google.inject.Singleton;
 import com.google.walkaround.slob.server.MutationLog.DeltaIteratorProvider;
 import com.google.walkaround.slob.server.MutationLog.MutationLogFactory;
 import com.google.walkaround.slob.shared.SlobModel;
+import com.google.walkaround.util.server.Distributions;
 import com.google.walkaround.util.server.MonitoringVars;
 import com.google.walkaround.util.server.RetryHelper;
 import com.google.walkaround.util.server.RetryHelper.PermanentFailure;
@@ -41,6 +45,8 @@ import com.google.walkaround.util.server.RetryHelper.RetryableFailure;
 import com.google.walkaround.util.server.appengine.CheckedDatastore;
 import com.google.walkaround.util.server.appengine.CheckedDatastore.CheckedTransaction;
 import com.google.walkaround.util.server.servlet.BadRequestException;
+import com.google.walkaround.util.server.servlet.TryAgainLaterException;
+import com.google.walkaround.util.server.writebatch.AsyncBatchingUpdateProcessor;
 import com.google.walkaround.util.server.writebatch.BatchingUpdateProcessor;
 import com.google.walkaround.util.server.writebatch.TransactionFactory;
 import com.google.walkaround.util.server.writebatch.UpdateResult;
@@ -48,13 +54,20 @@ import com.google.walkaround.util.server.writebatch.UpdateTransaction;
 import com.google.walkaround.util.shared.ConcatenatingList;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import javax.annotation.Nullable;
+
 /**
  * Accepts mutations on objects.
  * 
@@ -68,8 +81,21 @@ import java.util.logging.Logger;
 public class LocalMutationProcessor implements MutationProcessor {
 
   private static class Processor extends BatchingUpdateProcessor<Update, UpResult, Tx> {
-    public Processor(TransactionFactory<UpResult, Tx> txFactory, RetryHelper retryHelper) {
-      super(txFactory, retryHelper);
+    public Processor(TransactionFactory<UpResult, Tx> txFactory, RetryHelper retryHelper,
+        int maxQueueLength, long maxWaitMillis, long lingerMillis, MonitoringVars monitoring,
+        ObjectId id) {
+      super(txFactory, retryHelper, maxQueueLength, maxWaitMillis, lingerMillis, monitoring,
+          id.toString());
+    }
+  }
+
+  private static class AsyncProcessor
+      extends AsyncBatchingUpdateProcessor<Update, UpResult, Tx> {
+    public AsyncProcessor(TransactionFactory<UpResult, Tx> txFactory, RetryHelper retryHelper,
+        Executor executor, int maxQueueLength, long lingerMillis, MonitoringVars monitoring,
+        ObjectId id) {
+      super(txFactory, retryHelper, executor, maxQueueLength, lingerMillis, monitoring,
+          id.toString());
     }
   }
 
@@ -128,15 +154,21 @@ public class LocalMutationProcessor implements MutationProcessor {
     private final MutationLog.Appender appender;
     private final TransformDeltaCache deltaCache;
     private final long onDiskVersion;
+    private final BatchBudget budget;
+    /** Whether an update was turned away because the batch reached the budget. */
+    private boolean full = false;
+    private int updates = 0;
     /**
      * The most recent result. We choose it to be the "distinguished" request that carries extra
      * info. See MutateResult.
      */
     private UpResult lastResult = null;
 
-    Tx(ObjectId objectId, CheckedTransaction tx) throws PermanentFailure, RetryableFailure {
+    Tx(ObjectId objectId, CheckedTransaction tx, BatchBudget budget)
+        throws PermanentFailure, RetryableFailure {
       this.objectId = objectId;
       this.tx = tx;
+      this.budget = budget;
       MutationLog mutationLog = mutationLogFactory.create(tx, objectId);
       MutationLog.AppenderAndCachedDeltas prepared = mutationLog.prepareAppender();
       appender = prepared.getAppender();
@@ -156,6 +188,9 @@ public class LocalMutationProcessor implements MutationProcessor {
         tx.rollback();
         return;
       }
+      long startMillis = System.currentTimeMillis();
+      // finish() clears the staged bytes.
+      long batchBytes = appender.estimatedBytesStaged();
       runPreCommit(tx, objectId, appender);
       appender.finish();
       schedulePostCommit(tx, objectId, appender);
@@ -171,14 +206,21 @@ public class LocalMutationProcessor implements MutationProcessor {
         monitoring.incrementCounter("object-update-transaction-permanent-failure");
         throw e;
       }
+      long commitMillis = System.currentTimeMillis() - startMillis;
+      budget.recordCommit(commitMillis, full);
+      Distributions.record(monitoring, "object-update-commit-millis", commitMillis);
+      Distributions.record(monitoring, "object-update-batch-updates", updates);
+      Distributions.record(monitoring, "object-update-batch-bytes", batchBytes);
+      recentDeltas.append(objectId, onDiskVersion, deltaCache.getNewDeltas());
       if (lastResult != null) {
-        List<Delta<String>> deltasToBroadcast = deltaCache.getNewDeltas();
-        JsonArray messages = new JsonArray();
-        for (int i = 0; i < deltasToBroadcast.size(); i++) {
-          messages.add(DeltaSerializer.dataToClientJson(deltasToBroadcast.get(i), onDiskVersion + i
-              + 1));
+        StringBuilder messages = new StringBuilder();
+        try {
+          DeltaSerializer.writeClientJson(new RawJsonWriter(messages), onDiskVersion, deltaCache
+              .getNewDeltas());
+        } catch (IOException e) {
+          throw new AssertionError(e);
         }
-        lastResult.broadcastData = messages;
+        lastResult.broadcastData = messages.toString();
       }
     }
 
@@ -196,8 +238,9 @@ public class LocalMutationProcessor implements MutationProcessor {
       // TODO(ohler): Randomly commit earlier to avoid deterministically running
       // into transaction size or time limit; we estimate the size, but not
       // accurately enough to rely on.
-      if (appender.getStagedVersion() - onDiskVersion >= MAX_BATCH_SIZE) {
-        throw new BatchTooLargeException("Batch max of " + MAX_BATCH_SIZE + " ops exceeded");
+      if (appender.hasNewDeltas() && appender.estimatedBytesStaged() >= budget.getBytes()) {
+        full = true;
+        throw new BatchTooLargeException(budget + " exceeded");
       }
 
       if (update.version > onDiskVersion) {
@@ -214,13 +257,45 @@ public class LocalMutationProcessor implements MutationProcessor {
         monitoring.incrementCounter("submitdelta-update-too-far-in-the-past");
       }
 
+      // A client that lost the response to a submission resends it with the
+      // same nonce and sequence number; answer with the version it resulted
+      // in. Under another nonce, the session has connected again and counts
+      // from 1 anew.
+      if (update.submission != 0) {
+        MutationLog.SubmissionEntry last = appender.getLastSubmission(update.clientId);
+        if (last != null && last.getNonce().equals(update.nonce)
+            && last.getSubmission() >= update.submission) {
+          monitoring.incrementCounter("object-update-duplicate-submission");
+          if (last.getSubmission() != update.submission) {
+            return logRejection(new UpResult(-1, new IllegalArgumentException("Submission "
+                + update.submission + " older than " + last.getSubmission())));
+          }
+          log.info("Duplicate submission " + update.submission + ", resulted in version "
+              + last.getResultingVersion());
+          return new UpResult(last.getResultingVersion(), (String) null);
+        }
+      }
+
+      // The client changes and the version they apply to; if the update was
+      // transformed speculatively, only what was committed since is left.
+      // The deltas are created afresh on each attempt, as staging them hands
+      // their ops over to the object.
+      long baseVersion = update.version;
+      List<String> payloads = update.payloads;
+      if (update.speculativePayloads != null
+          && update.speculativeVersion <= appender.getStagedVersion()) {
+        baseVersion = update.speculativeVersion;
+        payloads = update.speculativePayloads;
+      } else if (update.speculativePayloads != null) {
+        log.warning("Speculative version " + update.speculativeVersion
+            + " ahead of staged version " + appender.getStagedVersion());
+        monitoring.incrementCounter("object-update-speculation-discarded");
+      }
+      ImmutableList<Delta<String>> changes = update.changes(payloads);
+
       log.info("Getting suffix..."); // Log on either side to time possible RPC.
-      List<Delta<String>> concurrent = deltaCache.suffix(update.version);
+      List<Delta<String>> concurrent = deltaCache.suffix(baseVersion);
       log.info("Got suffix of size " + concurrent.size());
-      // TODO(ohler): Check if update.clientId occurs anywhere in "concurrent"
-      // to detect duplicate submits, and extend client-server protocol with a
-      // way for the server to tell the client to transform and resubmit. See
-      // http://code.google.com/p/walkaround/issues/detail?id=27 .
 
       // TODO(danilatos): Add op-serializing/deserializing methods to the model
       // code, to avoid unnecessary deserialization when we have nothing to
@@ -228,17 +303,21 @@ public class LocalMutationProcessor implements MutationProcessor {
       // branch unconditionally).
       ImmutableList<Delta<String>> transformedChanges;
       if (!concurrent.isEmpty()) {
-        log.info("processUpdate: transforming " + update.payloads.size() + " client changes"
+        log.info("processUpdate: transforming " + changes.size() + " client changes"
             + " against " + concurrent.size() + " concurrent changes");
         try {
+          // The model memoizes the parsed ops on the deltas, so the
+          // concurrent deltas are parsed once per transaction rather than once
+          // per update, and the transformed deltas are not parsed again on
+          // apply.
           transformedChanges =
-              update.changes(model.transform(update.changes(update.payloads), Collections
+              ImmutableList.copyOf(model.transform(changes, Collections
                   .unmodifiableList(concurrent)));
         } catch (DeltaRejected e) {
           return logRejection(new UpResult(-1, e));
         }
       } else {
-        transformedChanges = update.changes(update.payloads);
+        transformedChanges = changes;
         log.info("processUpdate: not transforming");
       }
 
@@ -249,9 +328,13 @@ public class LocalMutationProcessor implements MutationProcessor {
         return logRejection(new UpResult(-1, e));
       }
       deltaCache.appendAll(transformedChanges);
+      if (update.submission != 0) {
+        appender.recordSubmission(update.clientId, update.nonce, update.submission);
+      }
 
       log.info("Ops successfully appended (staged for writing)");
-      return lastResult = new UpResult(appender.getStagedVersion(), (JsonArray) null);
+      updates++;
+      return lastResult = new UpResult(appender.getStagedVersion(), (String) null);
     }
 
     @Override
@@ -272,16 +355,34 @@ public class LocalMutationProcessor implements MutationProcessor {
     private final ObjectId objectId;
     private final SessionId clientId;
     private final long version;
+    /** Nonce the submission is numbered under; null if the submission is unknown. */
+    @Nullable
+    private final String nonce;
+    /** Sequence number of the submission under the nonce; 0 if unknown. */
+    private final long submission;
     // Payloads kept in addition to changes for the common non-transform case,
     // and to avoid redundant info in toString().
     private final ImmutableList<String> payloads;
+    /**
+     * The payloads transformed, before the transaction, against the deltas
+     * committed up to speculativeVersion; null if that was not done.
+     */
+    @Nullable
+    private ImmutableList<String> speculativePayloads = null;
+    private long speculativeVersion = -1;
 
-    public Update(ObjectId id, SessionId clientId, long version, List<String> payloads) {
+    public Update(ObjectId id, SessionId clientId, long version, @Nullable String nonce,
+        long submission, List<String> payloads) {
       Preconditions.checkArgument(version >= 0, "Bad version %s", version);
+      Preconditions.checkArgument(submission >= 0, "Bad submission %s", submission);
+      Preconditions.checkArgument(submission == 0 || nonce != null,
+          "Submission %s without a nonce", submission);
       this.objectId = Preconditions.checkNotNull(id, "Null id");
       this.clientId = Preconditions.checkNotNull(clientId, "Null clientId");
       this.payloads = ImmutableList.copyOf(Preconditions.checkNotNull(payloads, "Null payloads"));
       this.version = version;
+      this.nonce = nonce;
+      this.submission = submission;
     }
 
     @Override
@@ -304,6 +405,7 @@ public class LocalMutationProcessor implements MutationProcessor {
           + clientId
           + "@"
           + version
+          + (submission == 0 ? "" : "#" + nonce + ":" + submission)
           + "; "
           + (full ? payloads.toString() : (payloads.size() + " ops, " + System
               .identityHashCode(this))) + ")";
@@ -318,20 +420,21 @@ public class LocalMutationProcessor implements MutationProcessor {
     final long resultingRevision;
     final Exception exception;
 
-    JsonArray broadcastData = null;
+    /** A JSON array of the deltas to broadcast, in their client representation. */
+    String broadcastData = null;
 
     public UpResult(long resultingRevision, Exception exception) {
       this.resultingRevision = resultingRevision;
       this.exception = exception;
     }
 
-    public UpResult(long resultingRevision, JsonArray broadcastData) {
+    public UpResult(long resultingRevision, String broadcastData) {
       this.resultingRevision = resultingRevision;
       this.exception = null;
       this.broadcastData = broadcastData;
     }
 
-    public JsonArray getBroadcastData() {
+    public String getBroadcastData() {
       return broadcastData;
     }
 
@@ -346,17 +449,19 @@ public class LocalMutationProcessor implements MutationProcessor {
   }
 
   private static final Logger log = Logger.getLogger(LocalMutationProcessor.class.getName());
-  // TODO(danilatos): Make these flags.
+  // TODO(danilatos): Make this a flag.
   /** The maximum number of ops the server is willing to transform updates against */
   private static final long MAX_TAIL_SIZE = 500;
-  /** A soft limit on the number of ops the server is willing save in a single batch */
-  private static final long MAX_BATCH_SIZE = 99;
-
-  public static JsonObject jsonBroadcastData(String key, JsonArray deltas) {
-    JsonObject obj = new JsonObject();
-    obj.addProperty(Constants.Params.ID, key);
-    obj.add(Constants.Params.DELTAS, deltas);
-    return obj;
+
+  /**
+   * Writes the fields of a broadcast message about {@code key} into the currently open object.
+   * 
+   * @param deltas a JSON array of deltas in their client representation, spliced in verbatim.
+   */
+  private static void writeBroadcastData(RawJsonWriter out, String key, @Nullable String deltas)
+      throws IOException {
+    out.name(Constants.Params.ID).value(key);
+    out.name(Constants.Params.DELTAS).rawValue(deltas);
   }
 
   private final SlobModel model;
@@ -366,6 +471,15 @@ public class LocalMutationProcessor implements MutationProcessor {
   private final MonitoringVars monitoring;
   private final Set<PreCommitAction> preCommitActions;
   private final PostCommitActionScheduler postCommitActionScheduler;
+  private final RecentDeltaCache recentDeltas;
+  private final SkipDeltaIndex skipDeltas;
+  private final int maxQueueLength;
+  private final int maxQueueWaitMillis;
+  private final int executorThreads;
+  private final int batchTargetCommitMillis;
+  private final int batchMaxBytes;
+  private final int batchLingerMillis;
+  private final Provider<Executor> executor;
 
   // See commit ebb4736368b6d371a1bf5005541d96b88dcac504 for my failed attempt
   // at using CacheBuilder. TODO(ohler): Figure out the right solution to this.
@@ -375,25 +489,207 @@ public class LocalMutationProcessor implements MutationProcessor {
         @Override
         public Processor apply(final ObjectId id) {
           log.info("Creating new Processor for " + id);
-          return new Processor(new TransactionFactory<UpResult, Tx>() {
-            @Override
-            public Tx beginTransaction() throws RetryableFailure, PermanentFailure {
-              return new Tx(id, datastore.beginTransaction());
-            }
-          }, new RetryHelper());
+          return new Processor(txFactory(id), new RetryHelper(), maxQueueLength,
+              maxQueueWaitMillis, batchLingerMillis, monitoring, id);
         }
       });
 
+  // Used instead of processors when mutations are committed by a dedicated
+  // executor; see SlobMutationExecutorThreads.
+  @SuppressWarnings("deprecation")
+  private final Map<ObjectId, AsyncProcessor> asyncProcessors =
+      new MapMaker().weakValues().makeComputingMap(
+          new Function<ObjectId, AsyncProcessor>() {
+            @Override
+            public AsyncProcessor apply(ObjectId id) {
+              log.info("Creating new AsyncProcessor for " + id);
+              return new AsyncProcessor(txFactory(id), new RetryHelper(), executor.get(),
+                  maxQueueLength, batchLingerMillis, monitoring, id);
+            }
+          });
+
   @Inject
   public LocalMutationProcessor(SlobModel model, MutationLogFactory mutationLogFactory,
       CheckedDatastore datastore, MonitoringVars monitoring, Set<PreCommitAction> preCommitActions,
-      PostCommitActionScheduler postCommitActionScheduler) {
+      PostCommitActionScheduler postCommitActionScheduler, RecentDeltaCache recentDeltas,
+      SkipDeltaIndex skipDeltas, @SlobMutationQueueMaxLength int maxQueueLength,
+      @SlobMutationQueueMaxWaitMillis int maxQueueWaitMillis,
+      @SlobMutationExecutorThreads int executorThreads,
+      @SlobMutationExecutor Provider<Executor> executor,
+      @SlobMutationBatchTargetCommitMillis int batchTargetCommitMillis,
+      @SlobMutationBatchMaxBytes int batchMaxBytes,
+      @SlobMutationBatchLingerMillis int batchLingerMillis) {
     this.model = model;
     this.mutationLogFactory = mutationLogFactory;
     this.datastore = datastore;
     this.monitoring = monitoring;
     this.preCommitActions = preCommitActions;
     this.postCommitActionScheduler = postCommitActionScheduler;
+    this.recentDeltas = recentDeltas;
+    this.skipDeltas = skipDeltas;
+    this.maxQueueLength = maxQueueLength;
+    this.maxQueueWaitMillis = maxQueueWaitMillis;
+    this.executorThreads = executorThreads;
+    this.executor = executor;
+    this.batchTargetCommitMillis = batchTargetCommitMillis;
+    this.batchMaxBytes = batchMaxBytes;
+    this.batchLingerMillis = batchLingerMillis;
+  }
+
+  private TransactionFactory<UpResult, Tx> txFactory(final ObjectId id) {
+    // One budget per processor, so that it adapts to the commits of its object.
+    final BatchBudget budget = new BatchBudget(batchTargetCommitMillis, batchMaxBytes);
+    return new TransactionFactory<UpResult, Tx>() {
+      @Override
+      public Tx beginTransaction() throws RetryableFailure, PermanentFailure {
+        return new Tx(id, datastore.beginTransaction(), budget);
+      }
+    };
+  }
+
+  /**
+   * Waits for the result of an update queued with {@code processor}, but gives up on it if it has
+   * not been taken on within the maximum queue wait time, as the synchronous processor does.
+   */
+  private UpResult getResult(AsyncProcessor processor, ListenableFuture<UpResult> future)
+      throws PermanentFailure, IOException {
+    try {
+      try {
+        return future.get(maxQueueWaitMillis, TimeUnit.MILLISECONDS);
+      } catch (TimeoutException e) {
+        if (processor.abandon(future)) {
+          throw new TryAgainLaterException("Update waited more than " + maxQueueWaitMillis
+              + "ms to be processed");
+        }
+        // Taken on in the meantime, so it may be committed; wait for the
+        // outcome.
+        return future.get();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException(e);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      Throwables.propagateIfInstanceOf(cause, PermanentFailure.class);
+      throw Throwables.propagate(cause);
+    }
+  }
+
+  /**
+   * Reads deltas that take the object from {@code fromVersion} as far as the skip delta index is
+   * built, each paired with the number of versions it spans, or none if that is not far enough
+   * ahead to be worth it. Committed history never changes, so this is done in transactions of its
+   * own before the write transaction rather than in it.
+   */
+  private List<Pair<Delta<String>, Integer>> readSkipDeltas(final ObjectId objectId,
+      long fromVersion) {
+    try {
+      long indexedVersion = skipDeltas.getIndexedVersion(objectId);
+      if (indexedVersion - fromVersion < SkipDeltaIndex.MIN_SPAN) {
+        return ImmutableList.of();
+      }
+      return skipDeltas.read(objectId, fromVersion, indexedVersion,
+          new SkipDeltaIndex.DeltaSource() {
+            @Override
+            public List<Delta<String>> get(long minVersion, long maxVersion)
+                throws PermanentFailure, RetryableFailure {
+              CheckedTransaction tx = datastore.beginTransaction();
+              try {
+                ImmutableList.Builder<Delta<String>> out = ImmutableList.builder();
+                MutationLog.DeltaIterator it =
+                    mutationLogFactory.create(tx, objectId).forwardHistory(minVersion, maxVersion);
+                while (it.hasNext()) {
+                  out.add(it.next());
+                }
+                return out.build();
+              } finally {
+                tx.rollback();
+              }
+            }
+          });
+    } catch (RetryableFailure e) {
+      log.log(Level.INFO, "Failed to read skip deltas", e);
+    } catch (PermanentFailure e) {
+      log.log(Level.INFO, "Failed to read skip deltas", e);
+    }
+    monitoring.incrementCounter("object-update-speculation-skip-read-failed");
+    return ImmutableList.of();
+  }
+
+  /**
+   * Transforms the update against the deltas committed since its version, as far as they are
+   * known without the transaction: those in the recent delta cache, or if it does not reach back
+   * that far, the skip deltas, which compose many deltas each, and whatever the cache has after
+   * them. Inside the transaction, the update then only
+   * needs to be transformed against the plain deltas committed after those. On a miss or a failed
+   * transform, the transaction does the rest of the work.
+   */
+  private void speculate(Update update) {
+    long version = update.version;
+    ImmutableList<String> payloads = update.payloads;
+
+    List<Delta<String>> recent = recentDeltas.get(update.objectId, version, null);
+    if (recent == null) {
+      // Too far behind for the cache, or the cache is cold; the skip delta
+      // index may cover most of the way.
+      List<Pair<Delta<String>, Integer>> skips = readSkipDeltas(update.objectId, version);
+      if (!skips.isEmpty()) {
+        List<Delta<String>> concurrent = Lists.newArrayListWithCapacity(skips.size());
+        long skipVersion = version;
+        for (Pair<Delta<String>, Integer> skip : skips) {
+          concurrent.add(skip.getFirst());
+          skipVersion += skip.getSecond();
+        }
+        ImmutableList<String> transformed = transformAhead(update, payloads, concurrent);
+        if (transformed != null) {
+          version = skipVersion;
+          payloads = transformed;
+          monitoring.incrementCounter("object-update-speculation-skip-deltas", skips.size());
+          recent = recentDeltas.get(update.objectId, version, null);
+        }
+      }
+    }
+    if (recent != null && !recent.isEmpty()) {
+      // Transform against copies, so that the model does not memoize its ops
+      // on the cached deltas.
+      List<Delta<String>> concurrent = new ArrayList<Delta<String>>(recent.size());
+      for (Delta<String> delta : recent) {
+        concurrent.add(new Delta<String>(delta.getClientId(), delta.getPayload()));
+      }
+      ImmutableList<String> transformed = transformAhead(update, payloads, concurrent);
+      if (transformed != null) {
+        version += recent.size();
+        payloads = transformed;
+        monitoring.incrementCounter("object-update-speculation-deltas", recent.size());
+      }
+    }
+
+    if (version != update.version) {
+      update.speculativePayloads = payloads;
+      update.speculativeVersion = version;
+    }
+  }
+
+  /**
+   * Returns the payloads of the update transformed against {@code concurrent}, or null if the
+   * transform fails.
+   */
+  @Nullable
+  private ImmutableList<String> transformAhead(Update update, List<String> payloads,
+      List<Delta<String>> concurrent) {
+    ImmutableList.Builder<String> out = ImmutableList.builder();
+    try {
+      for (Delta<String> delta : model.transform(update.changes(payloads), concurrent)) {
+        out.add(delta.getPayload());
+      }
+    } catch (DeltaRejected e) {
+      // Leave it to the transaction to reject the update, against the
+      // authoritative history.
+      log.log(Level.INFO, "Speculative transform failed", e);
+      monitoring.incrementCounter("object-update-speculation-failed");
+      return null;
+    }
+    return out.build();
   }
 
   @Override
@@ -403,12 +699,19 @@ public class LocalMutationProcessor implements MutationProcessor {
     Preconditions.checkArgument(!req.getPayload().isEmpty(), "Empty payload list");
 
     Update update =
-        new Update(objectId, req.getSession().getSessionId(), req.getVersion(), req.getPayload());
+        new Update(objectId, req.getSession().getSessionId(), req.getVersion(), req.getNonce(),
+            req.getSubmission(), req.getPayload());
     log.info("mutateObject, update=" + update);
+    speculate(update);
 
     UpResult result;
     try {
-      result = processors.get(objectId).processUpdate(update);
+      if (executorThreads > 0) {
+        AsyncProcessor processor = asyncProcessors.get(objectId);
+        result = getResult(processor, processor.processUpdate(update));
+      } else {
+        result = processors.get(objectId).processUpdate(update);
+      }
     } catch (PermanentFailure e) {
       throw new IOException(e);
     }
@@ -417,9 +720,12 @@ public class LocalMutationProcessor implements MutationProcessor {
       throw new BadRequestException(result.exception);
     }
 
+    StringBuilder broadcastData = new StringBuilder();
+    RawJsonWriter out = new RawJsonWriter(broadcastData).beginObject();
+    writeBroadcastData(out, objectId.toString(), result.getBroadcastData());
+    out.endObject();
     ServerMutateResponse response =
-        new ServerMutateResponse(result.getResultingRevision(), jsonBroadcastData(
-            objectId.toString(), result.getBroadcastData()).toString());
+        new ServerMutateResponse(result.getResultingRevision(), broadcastData.toString());
     return response;
   }
 
@@ -16,6 +16,7 @@ package com.google.walkaround.slob.server;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 
+import com.goodow.wind.model.util.Pair;
 import com.goodow.wind.server.model.Delta;
 import com.goodow.wind.server.model.DeltaRejected;
 import com.goodow.wind.server.model.ObjectId;
@@ -31,9 +32,11 @@ import com.google.appengine.api.datastore.Query.SortDirection;
 import com.google.appengine.api.datastore.Text;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Preconditions;
+import com.google.common.base.Stopwatch;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
-import com.google.common.collect.MapMaker;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 import com.google.common.primitives.Ints;
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
@@ -42,10 +45,13 @@ import com.google.inject.assistedinject.AssistedInject;
 import com.google.walkaround.slob.shared.InvalidSnapshot;
 import com.google.walkaround.slob.shared.SlobModel;
 import com.google.walkaround.slob.shared.SlobModel.ReadableSlob;
+import com.google.walkaround.slob.shared.SlobModel.Slob;
 import com.google.walkaround.slob.shared.StateAndVersion;
+import com.google.walkaround.util.server.MonitoringVars;
 import com.google.walkaround.util.server.RetryHelper.PermanentFailure;
 import com.google.walkaround.util.server.RetryHelper.RetryableFailure;
 import com.google.walkaround.util.server.appengine.CheckedDatastore;
+import com.google.walkaround.util.server.appengine.CheckedDatastore.CheckedFuture;
 import com.google.walkaround.util.server.appengine.CheckedDatastore.CheckedIterator;
 import com.google.walkaround.util.server.appengine.CheckedDatastore.CheckedTransaction;
 import com.google.walkaround.util.server.appengine.DatastoreUtil;
@@ -54,8 +60,11 @@ import com.google.walkaround.util.server.appengine.OversizedPropertyMover.Movabl
 import com.google.walkaround.util.shared.Assert;
 import com.google.walkaround.util.shared.ConcatenatingList;
 
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 
@@ -82,16 +91,25 @@ public class MutationLog {
     private final StateAndVersion state;
     private final List<DeltaEntry> stagedDeltaEntries = Lists.newArrayList();
     private final List<SnapshotEntry> stagedSnapshotEntries = Lists.newArrayList();
+    /** Latest submission per session; staged or read. */
+    private final Map<SessionId, SubmissionEntry> submissions = Maps.newHashMap();
+    private final Set<SessionId> stagedSubmissions = Sets.newHashSet();
     private long estimatedBytesStaged = 0;
-    private long mostRecentSnapshotBytes;
-    private long totalDeltaBytesSinceSnapshot;
+    private ReconstructionCost cost;
+    private long snapshotVersion;
     private boolean finished = false;
+    private final long initialVersion;
+    /** Read of the delta at initialVersion, which must not exist; null if already checked. */
+    @Nullable
+    private final CheckedFuture<Entity> initialDeltaRead;
 
-    private Appender(StateAndVersion state, long mostRecentSnapshotBytes,
-        long totalDeltaBytesSinceSnapshot) {
+    private Appender(StateAndVersion state, long snapshotVersion, ReconstructionCost cost,
+        @Nullable CheckedFuture<Entity> initialDeltaRead) {
       this.state = state;
-      this.mostRecentSnapshotBytes = mostRecentSnapshotBytes;
-      this.totalDeltaBytesSinceSnapshot = totalDeltaBytesSinceSnapshot;
+      this.snapshotVersion = snapshotVersion;
+      this.cost = cost;
+      this.initialVersion = state.getVersion();
+      this.initialDeltaRead = initialDeltaRead;
     }
 
     /**
@@ -116,54 +134,35 @@ public class MutationLog {
       deltas = ImmutableList.copyOf(deltas);
       for (Delta<String> delta : deltas) {
         long oldVersion = state.getVersion();
+        Stopwatch stopwatch = new Stopwatch().start();
         state.apply(delta);
+        long replayNanos = stopwatch.elapsedTime(TimeUnit.NANOSECONDS);
         DeltaEntry deltaEntry =
             new DeltaEntry(objectId, oldVersion, new Delta<String>(delta.getClientId(), delta
                 .getPayload()));
         stagedDeltaEntries.add(deltaEntry);
         long thisDeltaBytes = estimateSizeBytes(deltaEntry);
         estimatedBytesStaged += thisDeltaBytes;
-        totalDeltaBytesSinceSnapshot += thisDeltaBytes;
+        cost = cost.plusDelta(thisDeltaBytes, replayNanos);
       }
 
-      // TODO(ohler): Avoid computing the snapshot every time since this is
-      // costly. Add a size estimation to slob instead. We need this anyway to
-      // implement size limits.
-      SnapshotEntry snapshotEntry =
-          new SnapshotEntry(objectId, state.getVersion(), state.getState().snapshot());
-      long snapshotBytes = estimateSizeBytes(snapshotEntry);
+      // The model maintains its size estimate incrementally, so this is
+      // O(delta); the snapshot itself is only serialized if we decide to
+      // write it.
+      long snapshotBytes = estimateSnapshotSizeBytes(state.getVersion(), state.getState());
       log.info("Object now at version " + state.getVersion() + "; snapshotBytes=" + snapshotBytes
-          + ", mostRecentSnapshotBytes=" + mostRecentSnapshotBytes
-          + ", totalDeltaBytesSinceSnapshot=" + totalDeltaBytesSinceSnapshot);
-      // To reconstruct the object's snapshot S at the current version, we will
-      // need to read the most recent snapshot P followed by a sequence of
-      // deltas D. To keep the amount of data required for this reconstruction
-      // within a constant factor of |S| (the size of S), we write S to disk if
-      // k * |S| < |P| + |D|, for some constant k.
-      //
-      // Computing the snapshot size |S| currently takes linear time, so when
-      // appending a sequence of deltas, we only do it once at the end, to avoid
-      // taking quadratic time. This is not a problem with small batches of
-      // operations from clients, but can make imports time out.
-      //
-      // TODO(ohler): Provide bound on disk space consumption.
-      //
-      // TODO(ohler): This formula assumes that reading & reconstructing a
-      // snapshot has the same cost per byte as reading & applying a delta.
-      // That's probably not true. The cost of applying a delta may not even be
-      // linear in the size of that delta (and the same is true for
-      // reconstructing from a snapshot); this depends on the model. We should
-      // allow for models to influence when to take snapshots, perhaps by
-      // letting the model provide a size metric for deltas and snapshots
-      // instead of using bytes, or by measuring actual computation time if we
-      // can do that reliably. It would be best to make it impossible for
-      // models to cause quadratic disk space consumption, though.
-      final long k = 2;
-      if (k * snapshotBytes < mostRecentSnapshotBytes + totalDeltaBytesSinceSnapshot) {
+          + ", cost=" + cost);
+      if (snapshotPolicy.shouldSnapshot(snapshotBytes, cost)) {
         log.info("Adding snapshot");
+        monitoring.incrementCounter("mutationlog-snapshots-written");
+        // Serializing also resets the model's estimate to the exact length, so
+        // it does not drift across snapshots.
+        SnapshotEntry snapshotEntry =
+            new SnapshotEntry(objectId, state.getVersion(), state.getState().snapshot());
+        snapshotBytes = estimateSizeBytes(snapshotEntry);
         stagedSnapshotEntries.add(snapshotEntry);
-        mostRecentSnapshotBytes = snapshotBytes;
-        totalDeltaBytesSinceSnapshot = 0;
+        snapshotVersion = state.getVersion();
+        cost = ReconstructionCost.ofSnapshot(snapshotBytes);
         estimatedBytesStaged += snapshotBytes;
       }
     }
@@ -179,26 +178,69 @@ public class MutationLog {
     }
 
     /**
-     * Calls {@code put()} on all staged deltas and snapshots, etc.
+     * Calls {@code put()} on all staged deltas and snapshots, etc., and updates the object's head
+     * entity.  Objects written before head entities existed get one here.
      */
     public void finish() throws PermanentFailure, RetryableFailure {
       checkNotFinished();
       finished = true;
+      if (initialDeltaRead != null) {
+        checkDeltaDoesNotExist(initialVersion, initialDeltaRead.get());
+      }
       log.info("Flushing " + stagedDeltaEntries.size() + " deltas and "
           + stagedSnapshotEntries.size() + " snapshots");
       put(tx, stagedDeltaEntries, stagedSnapshotEntries);
+      // commit() waits for this.
+      tx.putAsync(makeHeadEntity(new HeadEntry(state.getVersion(), snapshotVersion, cost)));
+      for (SessionId sessionId : stagedSubmissions) {
+        tx.putAsync(makeSubmissionEntity(sessionId, submissions.get(sessionId)));
+      }
       tx.runAfterCommit(new Runnable() {
         @Override
         public void run() {
-          stateCache.currentStates.put(objectId, new CacheEntry(state.getVersion(), state
-              .getState().snapshot(), mostRecentSnapshotBytes, totalDeltaBytesSinceSnapshot));
+          // The appender is finished, so nothing modifies this slob any more;
+          // transactions only ever get copies of it (see prepareAppender()).
+          stateCache.put(objectId, new CacheEntry(state.getVersion(), snapshotVersion, state
+              .getState(), cost));
         }
       });
       stagedDeltaEntries.clear();
       stagedSnapshotEntries.clear();
+      stagedSubmissions.clear();
       estimatedBytesStaged = 0;
     }
 
+    /**
+     * Returns the latest submission that the given session has appended to this object, or null
+     * if none is recorded. Staged submissions are included; otherwise this is a single get by key.
+     */
+    @Nullable
+    public SubmissionEntry getLastSubmission(SessionId sessionId) throws PermanentFailure,
+        RetryableFailure {
+      if (submissions.containsKey(sessionId)) {
+        return submissions.get(sessionId);
+      }
+      Entity e = tx.get(makeSubmissionKey(sessionId));
+      SubmissionEntry result = e == null ? null : parseSubmission(e);
+      submissions.put(sessionId, result);
+      return result;
+    }
+
+    /**
+     * Records that the deltas appended last were the given submission of the given session, so
+     * that a resend of it can be recognized by {@link #getLastSubmission}. Written by
+     * {@link #finish()}.
+     *
+     * @param nonce the client's nonce that the submission is numbered under
+     */
+    public void recordSubmission(SessionId sessionId, String nonce, long submission) {
+      checkNotFinished();
+      Preconditions.checkNotNull(nonce, "Null nonce");
+      Preconditions.checkArgument(submission > 0, "Bad submission %s", submission);
+      submissions.put(sessionId, new SubmissionEntry(nonce, submission, state.getVersion()));
+      stagedSubmissions.add(sessionId);
+    }
+
     public List<Delta<String>> getStagedDeltas() {
       ImmutableList.Builder<Delta<String>> out = ImmutableList.builder();
       for (DeltaEntry delta : stagedDeltaEntries) {
@@ -356,46 +398,138 @@ public class MutationLog {
   // Singleton so that we have a per-process cache.
   @Singleton
   static class StateCache {
-    // Key is a pair of root entity kind (= store type) and slob id.
-    private final Map<ObjectId, CacheEntry> currentStates;
+    private final long expirationMillis;
+    private final long maxBytes;
+    private final MonitoringVars monitoring;
+    // Key is a pair of root entity kind (= store type) and slob id. In access
+    // order, so that iteration starts at the least recently used entry.
+    private final LinkedHashMap<ObjectId, CacheEntry> currentStates =
+        new LinkedHashMap<ObjectId, CacheEntry>(16, 0.75f, true);
+    private long totalBytes = 0;
 
     @Inject
-    StateCache(@SlobLocalCacheExpirationMillis int expirationMillis) {
+    StateCache(@SlobLocalCacheExpirationMillis int expirationMillis,
+        @SlobLocalCacheMaxBytes int maxBytes, MonitoringVars monitoring) {
       // See commit ebb4736368b6d371a1bf5005541d96b88dcac504 for my failed attempt
-      // at using CacheBuilder. TODO(ohler): Figure out the right solution to this.
-      @SuppressWarnings("deprecation")
-      Map<ObjectId, CacheEntry> currentStates =
-          new MapMaker().softValues().expireAfterAccess(expirationMillis, TimeUnit.MILLISECONDS)
-              .makeMap();
-      this.currentStates = currentStates;
+      // at using CacheBuilder. Guava's MapMaker can't weigh entries, so this
+      // is a plain LRU map bounded by the estimated size of its entries.
+      this.expirationMillis = expirationMillis;
+      this.maxBytes = maxBytes;
+      this.monitoring = monitoring;
+    }
+
+    @Nullable
+    synchronized CacheEntry get(ObjectId objectId) {
+      CacheEntry entry = currentStates.get(objectId);
+      if (entry == null) {
+        return null;
+      }
+      long now = System.currentTimeMillis();
+      if (now - entry.lastAccessMillis > expirationMillis) {
+        removeEntry(objectId, entry);
+        monitoring.incrementCounter("mutationlog-state-cache-expirations");
+        exportGauges();
+        return null;
+      }
+      entry.lastAccessMillis = now;
+      return entry;
+    }
+
+    synchronized void put(ObjectId objectId, CacheEntry entry) {
+      CacheEntry old = currentStates.remove(objectId);
+      if (old != null) {
+        totalBytes -= old.getEstimatedBytes();
+      }
+      if (entry.getEstimatedBytes() > maxBytes) {
+        log.info("Not caching " + objectId + ", estimated size " + entry.getEstimatedBytes()
+            + " exceeds budget " + maxBytes);
+        monitoring.incrementCounter("mutationlog-state-cache-too-large");
+        exportGauges();
+        return;
+      }
+      entry.lastAccessMillis = System.currentTimeMillis();
+      currentStates.put(objectId, entry);
+      totalBytes += entry.getEstimatedBytes();
+      evict(entry.lastAccessMillis);
+      exportGauges();
+    }
+
+    synchronized void remove(ObjectId objectId) {
+      CacheEntry entry = currentStates.get(objectId);
+      if (entry != null) {
+        removeEntry(objectId, entry);
+        exportGauges();
+      }
+    }
+
+    /**
+     * Drops least recently used entries until the cache is within its byte budget, and expired
+     * entries, which are found at the least recently used end as well.
+     */
+    private void evict(long now) {
+      Iterator<Map.Entry<ObjectId, CacheEntry>> it = currentStates.entrySet().iterator();
+      while (it.hasNext()) {
+        CacheEntry eldest = it.next().getValue();
+        boolean expired = now - eldest.lastAccessMillis > expirationMillis;
+        if (!expired && totalBytes <= maxBytes) {
+          break;
+        }
+        it.remove();
+        totalBytes -= eldest.getEstimatedBytes();
+        if (expired) {
+          monitoring.incrementCounter("mutationlog-state-cache-expirations");
+        } else {
+          monitoring.incrementCounter("mutationlog-state-cache-evictions");
+          monitoring.incrementCounter("mutationlog-state-cache-evicted-bytes", eldest
+              .getEstimatedBytes());
+        }
+      }
+    }
+
+    private void exportGauges() {
+      monitoring.setGauge("mutationlog-state-cache-bytes", totalBytes);
+      monitoring.setGauge("mutationlog-state-cache-entries", currentStates.size());
+    }
+
+    private void removeEntry(ObjectId objectId, CacheEntry entry) {
+      currentStates.remove(objectId);
+      totalBytes -= entry.getEstimatedBytes();
     }
   }
   private static class CacheEntry {
     private final long version;
-    @Nullable
-    private final String snapshot;
-    private final long mostRecentSnapshotBytes;
-    private final long totalDeltaBytesSinceSnapshot;
-
-    public CacheEntry(long version, @Nullable String snapshot, long mostRecentSnapshotBytes,
-        long totalDeltaBytesSinceSnapshot) {
+    private final long snapshotVersion;
+    /** The live object at {@link #version}; never modified, only copied. */
+    private final Slob state;
+    private final ReconstructionCost cost;
+    /** Guarded by the {@link StateCache}. */
+    private long lastAccessMillis;
+
+    public CacheEntry(long version, long snapshotVersion, Slob state, ReconstructionCost cost) {
       this.version = version;
-      this.snapshot = snapshot;
-      this.mostRecentSnapshotBytes = mostRecentSnapshotBytes;
-      this.totalDeltaBytesSinceSnapshot = totalDeltaBytesSinceSnapshot;
+      this.snapshotVersion = snapshotVersion;
+      this.state = Preconditions.checkNotNull(state, "Null state");
+      this.cost = Preconditions.checkNotNull(cost, "Null cost");
     }
 
-    public long getMostRecentSnapshotBytes() {
-      return mostRecentSnapshotBytes;
+    /**
+     * A rough estimate of the memory held by this entry, based on the serialized size of the
+     * object.
+     */
+    public long getEstimatedBytes() {
+      return state.snapshotSizeEstimate();
     }
 
-    @Nullable
-    public String getSnapshot() {
-      return snapshot;
+    public ReconstructionCost getReconstructionCost() {
+      return cost;
+    }
+
+    public long getSnapshotVersion() {
+      return snapshotVersion;
     }
 
-    public long getTotalDeltaBytesSinceSnapshot() {
-      return totalDeltaBytesSinceSnapshot;
+    public Slob getState() {
+      return state;
     }
 
     public long getVersion() {
@@ -404,8 +538,8 @@ public class MutationLog {
 
     @Override
     public String toString() {
-      return getClass().getSimpleName() + "(" + version + ", " + snapshot + ", "
-          + mostRecentSnapshotBytes + ", " + totalDeltaBytesSinceSnapshot + ")";
+      return getClass().getSimpleName() + "(" + version + ", " + snapshotVersion + ", " + state
+          + ", " + cost + ")";
     }
   }
 
@@ -430,6 +564,29 @@ public class MutationLog {
     }
   }
 
+  /**
+   * Summary of the end of an object's log, kept in a single entity so that finding the current
+   * version does not need a query.  Written by {@link Appender#finish()} in the same transaction
+   * as the deltas.
+   */
+  private static class HeadEntry {
+    private final long version;
+    /** Version of the most recent snapshot, or 0 if there is none. */
+    private final long snapshotVersion;
+    private final ReconstructionCost cost;
+
+    HeadEntry(long version, long snapshotVersion, ReconstructionCost cost) {
+      this.version = version;
+      this.snapshotVersion = snapshotVersion;
+      this.cost = cost;
+    }
+
+    @Override
+    public String toString() {
+      return "HeadEntry(" + version + ", " + snapshotVersion + ", " + cost + ")";
+    }
+  }
+
   // Datastore does not allow ids to be 0.
 
   private static class SnapshotEntry {
@@ -449,9 +606,45 @@ public class MutationLog {
     }
   }
 
+  /**
+   * The latest submission of a session. Clients number their submissions from 1 under a nonce
+   * they pick whenever they connect, so numbers can only be compared under the same nonce.
+   */
+  public static class SubmissionEntry {
+    private final String nonce;
+    private final long submission;
+    private final long resultingVersion;
+
+    SubmissionEntry(String nonce, long submission, long resultingVersion) {
+      this.nonce = nonce;
+      this.submission = submission;
+      this.resultingVersion = resultingVersion;
+    }
+
+    public String getNonce() {
+      return nonce;
+    }
+
+    public long getResultingVersion() {
+      return resultingVersion;
+    }
+
+    public long getSubmission() {
+      return submission;
+    }
+
+    @Override
+    public String toString() {
+      return "SubmissionEntry(" + nonce + ", " + submission + ", " + resultingVersion + ")";
+    }
+  }
+
   private static final Logger log = Logger.getLogger(MutationLog.class.getName());
   private static final String DELTA_ENTITY_KIND = "Delta";
   private static final String SNAPSHOT_ENTITY_KIND = "Snapshot";
+  private static final String HEAD_ENTITY_KIND = "Head";
+  private static final String SUBMISSION_ENTITY_KIND = "Submission";
+  private static final long HEAD_ENTITY_ID = 1;
   @VisibleForTesting
   static final String DELTA_OP_PROPERTY = "op";
 
@@ -469,6 +662,16 @@ public class MutationLog {
 
   private static final String METADATA_PROPERTY = "Metadata";
 
+  private static final String HEAD_VERSION_PROPERTY = "Version";
+  private static final String HEAD_SNAPSHOT_VERSION_PROPERTY = "SnapshotVersion";
+  private static final String HEAD_SNAPSHOT_BYTES_PROPERTY = "SnapshotBytes";
+  private static final String HEAD_DELTA_COUNT_PROPERTY = "DeltaCount";
+  private static final String HEAD_DELTA_BYTES_PROPERTY = "DeltaBytes";
+
+  private static final String SUBMISSION_NONCE_PROPERTY = "Nonce";
+  private static final String SUBMISSION_PROPERTY = "Submission";
+  private static final String SUBMISSION_VERSION_PROPERTY = "ResultingVersion";
+
   static Key makeRootEntityKey(ObjectId objectId) {
     Key key = KeyFactory.createKey(objectId.getKind(), objectId.getId());
     return key;
@@ -500,6 +703,16 @@ public class MutationLog {
     };
   }
 
+  private static HeadEntry parseHead(Entity e) {
+    // Replay time is not persisted; it is only meaningful to the process that measured it.
+    return new HeadEntry(DatastoreUtil.getExistingProperty(e, HEAD_VERSION_PROPERTY, Long.class),
+        DatastoreUtil.getExistingProperty(e, HEAD_SNAPSHOT_VERSION_PROPERTY, Long.class),
+        new ReconstructionCost(DatastoreUtil.getExistingProperty(e, HEAD_SNAPSHOT_BYTES_PROPERTY,
+            Long.class), DatastoreUtil.getExistingProperty(e, HEAD_DELTA_COUNT_PROPERTY,
+            Long.class), DatastoreUtil.getExistingProperty(e, HEAD_DELTA_BYTES_PROPERTY,
+            Long.class), 0));
+  }
+
   private static SnapshotEntry parseSnapshot(Entity e) {
     Key parentKey = e.getKey().getParent();
     ObjectId id = new ObjectId(parentKey.getKind(), parentKey.getName());
@@ -515,6 +728,18 @@ public class MutationLog {
         new Text(in.data.getPayload()));
   }
 
+  private static void populateHeadEntity(HeadEntry in, Entity out) {
+    DatastoreUtil.setNonNullUnindexedProperty(out, HEAD_VERSION_PROPERTY, in.version);
+    DatastoreUtil.setNonNullUnindexedProperty(out, HEAD_SNAPSHOT_VERSION_PROPERTY,
+        in.snapshotVersion);
+    DatastoreUtil.setNonNullUnindexedProperty(out, HEAD_SNAPSHOT_BYTES_PROPERTY, in.cost
+        .getSnapshotBytes());
+    DatastoreUtil.setNonNullUnindexedProperty(out, HEAD_DELTA_COUNT_PROPERTY, in.cost
+        .getDeltaCount());
+    DatastoreUtil.setNonNullUnindexedProperty(out, HEAD_DELTA_BYTES_PROPERTY, in.cost
+        .getDeltaBytes());
+  }
+
   private static void populateSnapshotEntity(SnapshotEntry in, Entity out) {
     DatastoreUtil.setNonNullUnindexedProperty(out, SNAPSHOT_DATA_PROPERTY, new Text(in.snapshot));
   }
@@ -530,17 +755,24 @@ public class MutationLog {
   private final StateCache stateCache;
   private final OversizedPropertyMover deltaPropertyMover;
   private final OversizedPropertyMover snapshotPropertyMover;
+  private final SnapshotPolicy snapshotPolicy;
+  private final SkipDeltaIndex skipDeltas;
+  private final MonitoringVars monitoring;
 
   @AssistedInject
   public MutationLog(CheckedDatastore datastore, DeltaEntityConverter deltaEntityConverter,
       @Assisted CheckedTransaction tx, @Assisted ObjectId objectId, SlobModel model,
       StateCache stateCache,
-      OversizedPropertyMover.BlobWriteListener oversizedPropertyBlobWriteListener) {
+      OversizedPropertyMover.BlobWriteListener oversizedPropertyBlobWriteListener,
+      SnapshotPolicy snapshotPolicy, SkipDeltaIndex skipDeltas, MonitoringVars monitoring) {
     this.deltaEntityConverter = deltaEntityConverter;
     this.tx = Preconditions.checkNotNull(tx, "Null tx");
     this.objectId = Preconditions.checkNotNull(objectId, "Null objectId");
     this.model = Preconditions.checkNotNull(model, "Null model");
     this.stateCache = stateCache;
+    this.snapshotPolicy = snapshotPolicy;
+    this.skipDeltas = skipDeltas;
+    this.monitoring = monitoring;
     snapshotPropertyMover =
         new OversizedPropertyMover(datastore, ImmutableList.of(new MovableProperty(
             SNAPSHOT_DATA_PROPERTY, SNAPSHOT_OVERSIZED_DATA_PROPERTY,
@@ -596,13 +828,11 @@ public class MutationLog {
    * Returns the current version of the object.
    */
   public long getVersion() throws PermanentFailure, RetryableFailure {
-    CheckedIterator deltaKeys =
-        getDeltaEntityIterator(0, null, FetchOptions.Builder.withChunkSize(1).limit(1)
-            .prefetchSize(1), false, true);
-    if (!deltaKeys.hasNext()) {
-      return 0;
+    HeadEntry head = getCurrentHeadEntry();
+    if (head != null) {
+      return head.version;
     }
-    return versionFromDeltaId(deltaKeys.next().getKey().getId());
+    return getVersionFromDeltas();
   }
 
   /**
@@ -612,63 +842,27 @@ public class MutationLog {
    * reads.
    */
   public AppenderAndCachedDeltas prepareAppender() throws PermanentFailure, RetryableFailure {
-    CacheEntry cached = stateCache.currentStates.get(objectId);
+    CacheEntry cached = stateCache.get(objectId);
     if (cached != null) {
       long cachedVersion = cached.getVersion();
-      // We need to check if a delta with version cachedVersion is present; that
-      // would indicate that our cache is out of date. Since we're paranoid, we
-      // additionally check that cachedVersion-1 is present (it always has to
-      // be).
-      //
-      // After writing the code to use a key-only query here, I found
-      // http://code.google.com/appengine/docs/billing.html#Billable_Resource_Unit_Cost
-      // which implies that the cost of this is
-      //
-      // 1 "Read" + 1 "Small" + (no transform needed ? 0 : 1 "Read" + # reverse
-      // deltas needed * 1 "Read")
-      //
-      // while the cost of using a reverse delta iterator (not key-only, so that
-      // we can reuse it and pass it into AppenderAndCachedDeltas below) and
-      // always reading the first delta entity would be
-      //
-      // 2 "Read" + (no transform needed ? 0 : (# reverse deltas needed - 1) * 1 "Read")
-      //
-      // where a "Read" has a cost of 7 units, a "Small" has a cost of 1 unit.
-      //
-      // Essentially, the variant implemented here saves 6 units when no deltas
-      // are needed for transform, but pays an extra 8 otherwise.
-      //
-      // When cached != null but another writer interfered, we also pay an extra
-      // 8 units compared to sharing the same iterator.
-      //
-      // It's not clear which of these situation is going to be common and which
-      // is not, and whether the cost is worth worrying aboung. I happened to
-      // implement it this way first and only found that billing page later, so
-      // I'll leave it for now, even though the code is very slighly more
-      // complicated. If we ever introduce a delta cache, that would make the
-      // case of having no deltas to read for transform more common, and would
-      // (presumably) make sharing the iterator harder, so this code would be a
-      // better starting point for that.
       boolean cacheValid;
-      if (cachedVersion == 0) {
-        cacheValid = getDeltaEntity(0L) == null;
+      HeadEntry head = getCurrentHeadEntry();
+      if (head != null) {
+        // getCurrentHeadEntry() has already checked that the delta at
+        // head.version does not exist, so the appender needn't re-read it.
+        cacheValid = head.version == cachedVersion;
       } else {
-        CheckedIterator deltaKeys =
-            getDeltaEntityIterator(cachedVersion - 1, cachedVersion + 1, FetchOptions.Builder
-                .withChunkSize(2).limit(2).prefetchSize(2), true, true);
-        if (!deltaKeys.hasNext()) {
-          throw new RuntimeException("Missing data: Delta " + cachedVersion + " not found: "
-              + deltaKeys);
-        }
-        deltaKeys.next();
-        cacheValid = !deltaKeys.hasNext();
+        cacheValid = isCachedVersionCurrent(cachedVersion);
       }
       if (cacheValid) {
         log.info("MutationLog cache: Constructing appender based on cached slob version "
             + cachedVersion);
-        return new AppenderAndCachedDeltas(new Appender(createObject(cached.getVersion(), cached
-            .getSnapshot()), cached.getMostRecentSnapshotBytes(), cached
-            .getTotalDeltaBytesSinceSnapshot()), ImmutableList.<Delta<String>> of(),
+        monitoring.incrementCounter("mutationlog-state-cache-hit");
+        // Work on a copy so that the cached slob stays untouched if this
+        // transaction is rolled back.
+        return new AppenderAndCachedDeltas(new Appender(new StateAndVersion(cached.getState()
+            .copy(), cachedVersion), cached.getSnapshotVersion(), cached.getReconstructionCost(),
+            null), ImmutableList.<Delta<String>> of(),
             new DeltaIteratorProvider() {
               DeltaIterator i = null;
 
@@ -683,10 +877,12 @@ public class MutationLog {
       } else {
         log.info("MutationLog cache: Another writer interfered (cached slob version was "
             + cachedVersion + ")");
-        stateCache.currentStates.remove(objectId);
+        stateCache.remove(objectId);
+        monitoring.incrementCounter("mutationlog-state-cache-stale");
       }
     } else {
       log.info("MutationLog cache: No slob version cached");
+      monitoring.incrementCounter("mutationlog-state-cache-miss");
     }
     return prepareAppenderSlowCase();
   }
@@ -710,29 +906,41 @@ public class MutationLog {
     long startVersion = state.getVersion();
     Assert.check(atVersion == null || startVersion <= atVersion);
 
-    DeltaIterator it =
-        forwardHistory(startVersion, atVersion, FetchOptions.Builder
-            .withPrefetchSize(atVersion == null ?
-            // We have to fetch everything; hopefully it will fit in
-            // a single RPC / in memory.
-                9999
-                // Fetch what we need, all at once. Again, hope it fits.
-                : Ints.checkedCast(atVersion - startVersion)));
-    while (it.hasNext()) {
-      Delta<String> delta = it.next();
+    // Replay through the skip delta index, which composes long runs of
+    // deltas; it reads the rest of the range with plain delta queries.
+    long endVersion = atVersion == null ? getVersion() : atVersion;
+    List<Pair<Delta<String>, Integer>> deltas =
+        skipDeltas.read(objectId, startVersion, endVersion, new SkipDeltaIndex.DeltaSource() {
+          @Override
+          public List<Delta<String>> get(long minVersion, long maxVersion)
+              throws PermanentFailure, RetryableFailure {
+            // Fetch what we need, all at once; hopefully it fits in a single
+            // RPC / in memory.
+            DeltaIterator it =
+                forwardHistory(minVersion, maxVersion, FetchOptions.Builder
+                    .withPrefetchSize(Ints.checkedCast(maxVersion - minVersion)));
+            ImmutableList.Builder<Delta<String>> out = ImmutableList.builder();
+            while (it.hasNext()) {
+              out.add(it.next());
+            }
+            return out.build();
+          }
+        });
+    for (Pair<Delta<String>, Integer> delta : deltas) {
       try {
-        state.apply(delta);
+        state.apply(delta.getFirst(), delta.getSecond());
       } catch (DeltaRejected e) {
         throw new PermanentFailure("Corrupt snapshot or delta history " + objectId + " @"
             + state.getVersion(), e);
       }
     }
-    if (atVersion != null && state.getVersion() < atVersion) {
+    if (state.getVersion() < endVersion) {
       throw new RuntimeException("Object max version is " + state.getVersion() + ", requested "
-          + atVersion);
+          + endVersion);
     }
     log.info("Reconstructed requested version " + atVersion + " from snapshot at " + startVersion
-        + " followed by " + (state.getVersion() - startVersion) + " deltas");
+        + " followed by " + (state.getVersion() - startVersion) + " versions in "
+        + deltas.size() + " deltas");
     return state;
   }
 
@@ -753,11 +961,11 @@ public class MutationLog {
     return getDeltaIterator(minVersion, maxVersion, fetchOptions, false);
   }
 
-  private void checkDeltaDoesNotExist(long version) throws RetryableFailure, PermanentFailure {
-    // This check is not necessary but let's be paranoid.
-    // TODO(danilatos): Make this async and check the result on flush() to
-    // improve latency. Or, make an informed decision to remove it.
-    Entity existing = getDeltaEntity(version);
+  private void checkDeltaDoesNotExist(long version, @Nullable Entity existing) {
+    // This check is not necessary but let's be paranoid. The read is started
+    // by readDeltaAsync() when the appender is prepared, and checked in
+    // Appender.finish(), so that it does not add to latency.
+    // TODO(danilatos): Make an informed decision to remove it.
     Assert.check(existing == null, "Datastore fail?  Found unexpected delta: %s, %s, %s", objectId,
         version, existing);
   }
@@ -778,12 +986,21 @@ public class MutationLog {
   }
 
   private StateAndVersion createObject(long version, @Nullable String snapshot) {
+    Stopwatch stopwatch = new Stopwatch().start();
+    StateAndVersion toRtn;
     try {
-      return new StateAndVersion(model.create(snapshot), version);
+      toRtn = new StateAndVersion(model.create(snapshot), version);
     } catch (InvalidSnapshot e) {
       throw new RuntimeException("Could not create model from snapshot at version " + version
           + ": " + snapshot, e);
+    } finally {
+      monitoring.incrementCounter("mutationlog-snapshot-parse");
+      monitoring.incrementCounter("mutationlog-snapshot-parse-millis", stopwatch.elapsedMillis());
     }
+    if (snapshot != null) {
+      snapshotPolicy.snapshotLoaded(snapshot.length(), stopwatch.elapsedTime(TimeUnit.NANOSECONDS));
+    }
+    return toRtn;
   }
 
   private StateAndVersion createObject(@Nullable SnapshotEntry entry) {
@@ -805,11 +1022,47 @@ public class MutationLog {
         + snapshotEntry.snapshot.length();
   }
 
+  private long estimateSnapshotSizeBytes(long version, ReadableSlob state) {
+    return estimateSizeBytes(makeSnapshotKey(objectId, version)) + SNAPSHOT_DATA_PROPERTY.length()
+        + state.snapshotSizeEstimate();
+  }
+
   @Nullable
   private Entity getDeltaEntity(long version) throws RetryableFailure, PermanentFailure {
     return tx.get(makeDeltaKey(objectId, version));
   }
 
+  private CheckedFuture<Entity> readDeltaAsync(long version) {
+    return tx.getAsync(makeDeltaKey(objectId, version));
+  }
+
+  @Nullable
+  private HeadEntry getHeadEntry() throws RetryableFailure, PermanentFailure {
+    Entity e = tx.get(makeHeadKey());
+    return e == null ? null : parseHead(e);
+  }
+
+  /**
+   * Returns the head entity if it is current, or null. Instances running code from before the
+   * head was introduced append deltas without updating it, so the head is only trusted if the
+   * delta at its version does not exist yet.
+   */
+  @Nullable
+  private HeadEntry getCurrentHeadEntry() throws RetryableFailure, PermanentFailure {
+    HeadEntry head = getHeadEntry();
+    if (head == null) {
+      monitoring.incrementCounter("mutationlog-head-missing");
+      return null;
+    }
+    if (getDeltaEntityIterator(head.version, head.version + 1,
+        FetchOptions.Builder.withLimit(1), true, true).hasNext()) {
+      log.warning("Stale head " + head + " for " + objectId);
+      monitoring.incrementCounter("mutationlog-head-stale");
+      return null;
+    }
+    return head;
+  }
+
   private CheckedIterator getDeltaEntityIterator(long startVersion, @Nullable Long endVersion,
       FetchOptions fetchOptions, boolean forward, boolean keysOnly) throws PermanentFailure,
       RetryableFailure {
@@ -841,6 +1094,20 @@ public class MutationLog {
         forward, false), forward);
   }
 
+  /**
+   * Finds the current version with a query over the delta keys, for objects that do not have a
+   * current head entity.
+   */
+  private long getVersionFromDeltas() throws PermanentFailure, RetryableFailure {
+    CheckedIterator deltaKeys =
+        getDeltaEntityIterator(0, null, FetchOptions.Builder.withChunkSize(1).limit(1)
+            .prefetchSize(1), false, true);
+    if (!deltaKeys.hasNext()) {
+      return 0;
+    }
+    return versionFromDeltaId(deltaKeys.next().getKey().getId());
+  }
+
   @Nullable
   private SnapshotEntry getSnapshotEntryAtOrBefore(@Nullable Long atOrBeforeVersion)
       throws RetryableFailure, PermanentFailure {
@@ -862,6 +1129,92 @@ public class MutationLog {
     }
   }
 
+  /**
+   * Checks whether {@code cachedVersion} is the current version by looking at the delta keys,
+   * for objects that do not have a current head entity.
+   */
+  private boolean isCachedVersionCurrent(long cachedVersion) throws PermanentFailure,
+      RetryableFailure {
+    // We need to check if a delta with version cachedVersion is present; that
+    // would indicate that our cache is out of date. Since we're paranoid, we
+    // additionally check that cachedVersion-1 is present (it always has to
+    // be).
+    //
+    // After writing the code to use a key-only query here, I found
+    // http://code.google.com/appengine/docs/billing.html#Billable_Resource_Unit_Cost
+    // which implies that the cost of this is
+    //
+    // 1 "Read" + 1 "Small" + (no transform needed ? 0 : 1 "Read" + # reverse
+    // deltas needed * 1 "Read")
+    //
+    // while the cost of using a reverse delta iterator (not key-only, so that
+    // we can reuse it and pass it into AppenderAndCachedDeltas in prepareAppender()) and
+    // always reading the first delta entity would be
+    //
+    // 2 "Read" + (no transform needed ? 0 : (# reverse deltas needed - 1) * 1 "Read")
+    //
+    // where a "Read" has a cost of 7 units, a "Small" has a cost of 1 unit.
+    //
+    // Essentially, the variant implemented here saves 6 units when no deltas
+    // are needed for transform, but pays an extra 8 otherwise.
+    //
+    // When cached != null but another writer interfered, we also pay an extra
+    // 8 units compared to sharing the same iterator.
+    //
+    // It's not clear which of these situation is going to be common and which
+    // is not, and whether the cost is worth worrying aboung. I happened to
+    // implement it this way first and only found that billing page later, so
+    // I'll leave it for now, even though the code is very slighly more
+    // complicated. If we ever introduce a delta cache, that would make the
+    // case of having no deltas to read for transform more common, and would
+    // (presumably) make sharing the iterator harder, so this code would be a
+    // better starting point for that.
+    if (cachedVersion == 0) {
+      return getDeltaEntity(0L) == null;
+    }
+    CheckedIterator deltaKeys =
+        getDeltaEntityIterator(cachedVersion - 1, cachedVersion + 1, FetchOptions.Builder
+            .withChunkSize(2).limit(2).prefetchSize(2), true, true);
+    if (!deltaKeys.hasNext()) {
+      throw new RuntimeException("Missing data: Delta " + cachedVersion + " not found: "
+          + deltaKeys);
+    }
+    deltaKeys.next();
+    return !deltaKeys.hasNext();
+  }
+
+  private Entity makeHeadEntity(HeadEntry head) {
+    Entity e = new Entity(makeHeadKey());
+    populateHeadEntity(head, e);
+    return e;
+  }
+
+  private Key makeHeadKey() {
+    return KeyFactory.createKey(makeRootEntityKey(objectId), objectId.getKind()
+        + HEAD_ENTITY_KIND, HEAD_ENTITY_ID);
+  }
+
+  private static SubmissionEntry parseSubmission(Entity e) {
+    return new SubmissionEntry(DatastoreUtil.getExistingProperty(e, SUBMISSION_NONCE_PROPERTY,
+        String.class), DatastoreUtil.getExistingProperty(e, SUBMISSION_PROPERTY, Long.class),
+        DatastoreUtil.getExistingProperty(e, SUBMISSION_VERSION_PROPERTY, Long.class));
+  }
+
+  private Entity makeSubmissionEntity(SessionId sessionId, SubmissionEntry submission) {
+    Entity e = new Entity(makeSubmissionKey(sessionId));
+    DatastoreUtil.setNonNullUnindexedProperty(e, SUBMISSION_NONCE_PROPERTY, submission.nonce);
+    DatastoreUtil.setNonNullUnindexedProperty(e, SUBMISSION_PROPERTY, submission.submission);
+    DatastoreUtil.setNonNullUnindexedProperty(e, SUBMISSION_VERSION_PROPERTY,
+        submission.resultingVersion);
+    return e;
+  }
+
+  /** One entity per session in the object's entity group, so lookups are transactional. */
+  private Key makeSubmissionKey(SessionId sessionId) {
+    return KeyFactory.createKey(makeRootEntityKey(objectId), objectId.getKind()
+        + SUBMISSION_ENTITY_KIND, sessionId.getId());
+  }
+
   private Key makeDeltaKey(DeltaEntry e) {
     return makeDeltaKey(e.objectId, e.version);
   }
@@ -893,9 +1246,10 @@ public class MutationLog {
         getDeltaIterator(0, null, FetchOptions.Builder.withDefaults(), false);
     if (!deltaIterator.hasNext()) {
       log.info("Prepared appender at version 0");
-      checkDeltaDoesNotExist(0);
-      return new AppenderAndCachedDeltas(new Appender(createObject(null), 0, 0), ImmutableList
-          .<Delta<String>> of(), makeProvider(deltaIterator));
+      CheckedFuture<Entity> initialDeltaRead = readDeltaAsync(0);
+      return new AppenderAndCachedDeltas(new Appender(createObject(null), 0,
+          ReconstructionCost.ofSnapshot(0), initialDeltaRead), ImmutableList.<Delta<String>> of(),
+          makeProvider(deltaIterator));
     } else {
       SnapshotEntry snapshotEntry = getSnapshotEntryAtOrBefore(null);
       StateAndVersion state = createObject(snapshotEntry);
@@ -913,8 +1267,9 @@ public class MutationLog {
         // into deltasRead in our AppenderAndCachedDeltas to ensure that there
         // is no gap between deltasRead and reverseIterator.
         log.info("Prepared appender; snapshotVersion=currentVersion=" + currentVersion);
-        checkDeltaDoesNotExist(snapshotVersion);
-        return new AppenderAndCachedDeltas(new Appender(state, snapshotBytes, 0), ImmutableList
+        CheckedFuture<Entity> initialDeltaRead = readDeltaAsync(snapshotVersion);
+        return new AppenderAndCachedDeltas(new Appender(state, snapshotVersion,
+            ReconstructionCost.ofSnapshot(snapshotBytes), initialDeltaRead), ImmutableList
             .of(finalDelta.data), makeProvider(deltaIterator));
       } else {
         // We need to apply the delta and perhaps others. Collect them.
@@ -931,6 +1286,7 @@ public class MutationLog {
         }
         ImmutableList<Delta<String>> reverseDeltas = deltaAccu.build();
         // Now iterate forward and apply the deltas.
+        Stopwatch stopwatch = new Stopwatch().start();
         for (Delta<String> delta : Lists.reverse(reverseDeltas)) {
           try {
             state.apply(delta);
@@ -941,9 +1297,12 @@ public class MutationLog {
         }
         log.info("Prepared appender; snapshotVersion=" + snapshotVersion + ", "
             + reverseDeltas.size() + " deltas");
-        checkDeltaDoesNotExist(state.getVersion());
-        return new AppenderAndCachedDeltas(new Appender(state, snapshotBytes,
-            totalDeltaBytesSinceSnapshot), reverseDeltas, makeProvider(deltaIterator));
+        CheckedFuture<Entity> initialDeltaRead = readDeltaAsync(state.getVersion());
+        ReconstructionCost cost =
+            new ReconstructionCost(snapshotBytes, reverseDeltas.size(),
+                totalDeltaBytesSinceSnapshot, stopwatch.elapsedTime(TimeUnit.NANOSECONDS));
+        return new AppenderAndCachedDeltas(new Appender(state, snapshotVersion, cost,
+            initialDeltaRead), reverseDeltas, makeProvider(deltaIterator));
       }
     }
   }
@@ -0,0 +1,157 @@
+/*
+ * Copyright 2012 Google Inc. All Rights Reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.walkaround.slob.server;
+
+import com.goodow.wind.server.model.Delta;
+import com.goodow.wind.server.model.ObjectId;
+
+import com.google.common.collect.ImmutableList;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.google.walkaround.util.server.MonitoringVars;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.Nullable;
+
+/**
+ * Keeps the most recently committed deltas of each object in memory, so that clients polling for
+ * the last few versions don't need a datastore query.
+ * 
+ * Deltas are immutable once committed, so whatever is in here is correct; it may just not go up to
+ * the current version if another process has committed since.
+ */
+// Singleton so that we have a per-process cache.
+@Singleton
+public class RecentDeltaCache {
+
+  /**
+   * Ring buffer of the deltas of one object leading up to {@link #endVersion}.
+   */
+  private static class Buffer {
+    private final Delta<?>[] deltas;
+    /** Index in {@link #deltas} of the oldest delta. */
+    private int first = 0;
+    private int size = 0;
+    private long endVersion;
+
+    Buffer(int capacity, long endVersion) {
+      this.deltas = new Delta<?>[capacity];
+      this.endVersion = endVersion;
+    }
+
+    void append(long startVersion, List<Delta<String>> newDeltas) {
+      if (startVersion != endVersion) {
+        // Someone else committed in between (or we missed a commit); start over.
+        first = 0;
+        size = 0;
+        endVersion = startVersion;
+      }
+      for (Delta<String> newDelta : newDeltas) {
+        // Without the ops the model may have memoized on it: they would be
+        // held for as long as the delta is cached, and shared between
+        // threads.
+        Delta<String> delta = new Delta<String>(newDelta.getClientId(), newDelta.getPayload());
+        if (size == deltas.length) {
+          deltas[first] = delta;
+          first = (first + 1) % deltas.length;
+        } else {
+          deltas[(first + size) % deltas.length] = delta;
+          size++;
+        }
+        endVersion++;
+      }
+    }
+
+    @SuppressWarnings("unchecked")
+    ImmutableList<Delta<String>> get(long fromVersion, long toVersion) {
+      ImmutableList.Builder<Delta<String>> out = ImmutableList.builder();
+      for (long version = fromVersion; version < toVersion; version++) {
+        int offset = (int) (version - startVersion());
+        out.add((Delta<String>) deltas[(first + offset) % deltas.length]);
+      }
+      return out.build();
+    }
+
+    long startVersion() {
+      return endVersion - size;
+    }
+  }
+
+  /** Bound on the number of objects we keep deltas for, least recently used first out. */
+  private static final int MAX_OBJECTS = 1000;
+
+  private final int deltasPerObject;
+  private final MonitoringVars monitoring;
+  private final LinkedHashMap<ObjectId, Buffer> buffers = new LinkedHashMap<ObjectId, Buffer>(16,
+      0.75f, true) {
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<ObjectId, Buffer> eldest) {
+      return size() > MAX_OBJECTS;
+    }
+  };
+
+  @Inject
+  RecentDeltaCache(@SlobRecentDeltaCacheSize int deltasPerObject, MonitoringVars monitoring) {
+    this.deltasPerObject = deltasPerObject;
+    this.monitoring = monitoring;
+  }
+
+  /**
+   * Records deltas that have just been committed. Their parsed payloads are not kept.
+   * 
+   * @param startVersion the version of the object before the first delta
+   */
+  public synchronized void append(ObjectId objectId, long startVersion,
+      List<Delta<String>> deltas) {
+    if (deltasPerObject <= 0 || deltas.isEmpty()) {
+      return;
+    }
+    Buffer buffer = buffers.get(objectId);
+    if (buffer == null) {
+      buffer = new Buffer(deltasPerObject, startVersion);
+      buffers.put(objectId, buffer);
+    }
+    buffer.append(startVersion, deltas);
+  }
+
+  /**
+   * Returns the cached deltas starting at {@code startVersion}, up to {@code endVersion} or as far
+   * as they are cached, whichever comes first; or null if the delta at startVersion has not been
+   * cached (or has been evicted). The result may be empty if startVersion is the most recent version
+   * we know of.
+   */
+  @Nullable
+  public synchronized ImmutableList<Delta<String>> get(ObjectId objectId, long startVersion,
+      @Nullable Long endVersion) {
+    Buffer buffer = buffers.get(objectId);
+    if (buffer == null || startVersion < buffer.startVersion()
+        || startVersion > buffer.endVersion) {
+      monitoring.incrementCounter("recentdeltas-fallthrough");
+      return null;
+    }
+    long toVersion = endVersion == null ? buffer.endVersion : Math.min(endVersion,
+        buffer.endVersion);
+    ImmutableList<Delta<String>> result = buffer.get(startVersion, Math.max(startVersion,
+        toVersion));
+    monitoring.incrementCounter("recentdeltas-hit");
+    monitoring.incrementCounter("recentdeltas-hit-deltas", result.size());
+    return result;
+  }
+}
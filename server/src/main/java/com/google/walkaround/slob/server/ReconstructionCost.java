@@ -0,0 +1,71 @@
+/*
+ * Copyright 2012 Google Inc. All Rights Reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.walkaround.slob.server;
+
+/**
+ * What it takes to reconstruct an object from its most recent snapshot: the size of that snapshot,
+ * and the number, size and measured replay time of the deltas since. Immutable.
+ */
+public final class ReconstructionCost {
+  public static ReconstructionCost ofSnapshot(long snapshotBytes) {
+    return new ReconstructionCost(snapshotBytes, 0, 0, 0);
+  }
+
+  private final long snapshotBytes;
+  private final long deltaCount;
+  private final long deltaBytes;
+  private final long replayNanos;
+
+  public ReconstructionCost(long snapshotBytes, long deltaCount, long deltaBytes, long replayNanos) {
+    this.snapshotBytes = snapshotBytes;
+    this.deltaCount = deltaCount;
+    this.deltaBytes = deltaBytes;
+    this.replayNanos = replayNanos;
+  }
+
+  public long getDeltaBytes() {
+    return deltaBytes;
+  }
+
+  public long getDeltaCount() {
+    return deltaCount;
+  }
+
+  /**
+   * Time spent applying the deltas since the snapshot, as measured when they were appended or
+   * replayed in this process.
+   */
+  public long getReplayNanos() {
+    return replayNanos;
+  }
+
+  public long getSnapshotBytes() {
+    return snapshotBytes;
+  }
+
+  /**
+   * Returns the cost after one more delta.
+   */
+  public ReconstructionCost plusDelta(long bytes, long nanos) {
+    return new ReconstructionCost(snapshotBytes, deltaCount + 1, deltaBytes + bytes, replayNanos
+        + nanos);
+  }
+
+  @Override
+  public String toString() {
+    return getClass().getSimpleName() + "(" + snapshotBytes + ", " + deltaCount + ", " + deltaBytes
+        + ", " + replayNanos + ")";
+  }
+}
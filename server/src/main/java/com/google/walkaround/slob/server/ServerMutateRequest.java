@@ -31,6 +31,14 @@ public class ServerMutateRequest {
   private long version;
   private List<String> payload;
   private ObjectSession session;
+  /** Chosen by the client when it connected; scopes {@link #submission}. */
+  private String nonce;
+  /** Sequence number of this submission under the nonce; 0 if unknown. */
+  private long submission;
+
+  public String getNonce() {
+    return nonce;
+  }
 
   public List<String> getPayload() {
     return payload;
@@ -40,6 +48,10 @@ public class ServerMutateRequest {
     return session;
   }
 
+  public long getSubmission() {
+    return submission;
+  }
+
   public long getVersion() {
     return version;
   }
@@ -52,10 +64,18 @@ public class ServerMutateRequest {
     }
   }
 
+  public void setNonce(String nonce) {
+    this.nonce = nonce;
+  }
+
   public void setSession(ObjectSession session) {
     this.session = session;
   }
 
+  public void setSubmission(long submission) {
+    this.submission = submission;
+  }
+
   public void setVersion(long version) {
     this.version = version;
   }
@@ -0,0 +1,408 @@
+/*
+ * Copyright 2012 Google Inc. All Rights Reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.walkaround.slob.server;
+
+import com.goodow.wind.model.util.Pair;
+import com.goodow.wind.server.model.Delta;
+import com.goodow.wind.server.model.ObjectId;
+import com.goodow.wind.server.model.SessionId;
+
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Text;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.primitives.Ints;
+import com.google.inject.Inject;
+import com.google.walkaround.slob.server.MutationLog.DeltaIterator;
+import com.google.walkaround.slob.server.MutationLog.MutationLogFactory;
+import com.google.walkaround.slob.shared.SlobModel;
+import com.google.walkaround.slob.shared.SlobModel.ReadableSlob;
+import com.google.walkaround.util.server.MonitoringVars;
+import com.google.walkaround.util.server.RetryHelper;
+import com.google.walkaround.util.server.RetryHelper.PermanentFailure;
+import com.google.walkaround.util.server.RetryHelper.RetryableFailure;
+import com.google.walkaround.util.server.appengine.CheckedDatastore;
+import com.google.walkaround.util.server.appengine.CheckedDatastore.CheckedTransaction;
+import com.google.walkaround.util.server.appengine.DatastoreUtil;
+
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * An index of composed "skip" deltas over the mutation log, so that transforming a stale update
+ * and replaying the deltas after a snapshot touch a logarithmic number of composed deltas rather
+ * than every delta in between.
+ *
+ * The skip delta of level k that ends at version v, a multiple of 2^k, is the composition (see
+ * {@link SlobModel#composeAll}) of the 2^k deltas leading up to v. Like the history it is derived
+ * from, it never changes, so skip deltas are built after the fact by {@link PostCommitIndexer}
+ * and kept in an entity group of their own, where building them does not contend with writers.
+ * Readers use plain deltas for whatever the index does not cover.
+ */
+public class SkipDeltaIndex {
+
+  /**
+   * Source of plain deltas for the parts of a range that the index does not cover.
+   */
+  public interface DeltaSource {
+    /** Returns the deltas that take the object from minVersion to maxVersion. */
+    List<Delta<String>> get(long minVersion, long maxVersion) throws PermanentFailure,
+        RetryableFailure;
+  }
+
+  /**
+   * Indexes the deltas committed since the last run.
+   */
+  public static class PostCommitIndexer implements PostCommitAction {
+    @Inject
+    SkipDeltaIndex index;
+
+    @Override
+    public void reliableDelayedPostCommit(ObjectId slobId) {
+      try {
+        index.index(slobId);
+      } catch (PermanentFailure e) {
+        // Readers fall back to plain deltas, and the next commit schedules
+        // another run; not worth failing the other post-commit actions for.
+        log.log(Level.WARNING, "Failed to index skip deltas of " + slobId, e);
+      }
+    }
+
+    @Override
+    public void unreliableImmediatePostCommit(ObjectId slobId, long resultingVersion,
+        ReadableSlob resultingState) {
+    }
+  }
+
+  /** A run of 2^level deltas starting at a multiple of 2^level. */
+  static class Block {
+    private final long start;
+    private final int level;
+
+    Block(long start, int level) {
+      this.start = start;
+      this.level = level;
+    }
+
+    long end() {
+      return start + length();
+    }
+
+    int length() {
+      return 1 << level;
+    }
+
+    @Override
+    public String toString() {
+      return "Block(" + start + ", " + level + ")";
+    }
+  }
+
+  static final int MIN_LEVEL = 4;
+  /** 2^MAX_LEVEL is just above LocalMutationProcessor.MAX_TAIL_SIZE. */
+  static final int MAX_LEVEL = 9;
+  /** Ranges shorter than this are not worth an index lookup. */
+  public static final int MIN_SPAN = 2 << MIN_LEVEL;
+
+  private static final Logger log = Logger.getLogger(SkipDeltaIndex.class.getName());
+
+  private static final String INDEX_ENTITY_KIND = "SkipIndex";
+  private static final String SKIP_ENTITY_KIND = "Skip";
+  private static final String INDEXED_VERSION_PROPERTY = "IndexedVersion";
+  private static final String SKIP_OP_PROPERTY = "op";
+  private static final String SKIP_CLIENT_ID_PROPERTY = "sid";
+  /** Skip entity ids are the end version followed by this many bits of level. */
+  private static final int LEVEL_BITS = 4;
+
+  /**
+   * Bound on the deltas that one run indexes, so that catching up on a long history does not run
+   * into the request deadline; the next run continues where this one stopped.
+   */
+  private static final int MAX_DELTAS_PER_RUN = 4 << MAX_LEVEL;
+  /**
+   * Skip deltas larger than this are not stored, and neither are those above them; readers use
+   * plain deltas for their range instead.
+   */
+  private static final int MAX_SKIP_DELTA_CHARS = 200 * 1000;
+  /** Bound on what one indexing transaction writes; transactions are limited to 10MB. */
+  private static final int MAX_CHARS_PER_TRANSACTION = 2 * 1000 * 1000;
+
+  /**
+   * Returns the largest blocks that cover as much as possible of the range from minVersion to
+   * maxVersion, in order.
+   */
+  static List<Block> cover(long minVersion, long maxVersion) {
+    List<Block> blocks = Lists.newArrayList();
+    long version = minVersion;
+    while (version < maxVersion) {
+      int level = MAX_LEVEL;
+      while (level >= MIN_LEVEL
+          && (version % (1L << level) != 0 || version + (1L << level) > maxVersion)) {
+        level--;
+      }
+      if (level < MIN_LEVEL) {
+        // Plain deltas up to the next block boundary.
+        version = alignDown(version) + (1 << MIN_LEVEL);
+      } else {
+        Block block = new Block(version, level);
+        blocks.add(block);
+        version = block.end();
+      }
+    }
+    return blocks;
+  }
+
+  private static long alignDown(long version) {
+    return (version >> MIN_LEVEL) << MIN_LEVEL;
+  }
+
+  private static Key makeIndexKey(ObjectId objectId) {
+    return KeyFactory.createKey(objectId.getKind() + INDEX_ENTITY_KIND, objectId.getId());
+  }
+
+  private static Key makeSkipKey(ObjectId objectId, long end, int level) {
+    return KeyFactory.createKey(makeIndexKey(objectId), objectId.getKind() + SKIP_ENTITY_KIND,
+        (end << LEVEL_BITS) | level);
+  }
+
+  private static Delta<String> parseSkip(Entity e) {
+    return new Delta<String>(new SessionId(DatastoreUtil.getExistingProperty(e,
+        SKIP_CLIENT_ID_PROPERTY, String.class)), DatastoreUtil.getExistingProperty(e,
+        SKIP_OP_PROPERTY, Text.class).getValue());
+  }
+
+  private final CheckedDatastore datastore;
+  private final MutationLogFactory mutationLogFactory;
+  private final SlobModel model;
+  private final MonitoringVars monitoring;
+
+  @Inject
+  public SkipDeltaIndex(CheckedDatastore datastore, MutationLogFactory mutationLogFactory,
+      SlobModel model, MonitoringVars monitoring) {
+    this.datastore = datastore;
+    this.mutationLogFactory = mutationLogFactory;
+    this.model = model;
+    this.monitoring = monitoring;
+  }
+
+  /**
+   * Builds the skip deltas for the deltas committed since the last run, or as many of them as one
+   * run is allowed to. Idempotent; concurrent runs only duplicate work.
+   */
+  public void index(final ObjectId objectId) throws PermanentFailure {
+    final long indexedVersion = new RetryHelper().run(new RetryHelper.Body<Long>() {
+      @Override
+      public Long run() throws RetryableFailure, PermanentFailure {
+        return getIndexedVersion(objectId);
+      }
+    });
+    List<Delta<String>> deltas =
+        new RetryHelper().run(new RetryHelper.Body<List<Delta<String>>>() {
+      @Override
+      public List<Delta<String>> run() throws RetryableFailure, PermanentFailure {
+        CheckedTransaction tx = datastore.beginTransaction();
+        try {
+          MutationLog mutationLog = mutationLogFactory.create(tx, objectId);
+          long endVersion =
+              alignDown(Math.min(mutationLog.getVersion(), indexedVersion + MAX_DELTAS_PER_RUN));
+          if (endVersion <= indexedVersion) {
+            return ImmutableList.of();
+          }
+          return readAll(mutationLog.forwardHistory(indexedVersion, endVersion, FetchOptions
+              .Builder.withPrefetchSize(Ints.checkedCast(endVersion - indexedVersion))));
+        } finally {
+          tx.rollback();
+        }
+      }
+    });
+    if (deltas.isEmpty()) {
+      log.info("Skip deltas of " + objectId + " are up to date at " + indexedVersion);
+      return;
+    }
+
+    Map<Key, Delta<String>> built = Maps.newHashMap();
+    List<Entity> staged = Lists.newArrayList();
+    long stagedChars = 0;
+    int blockLength = 1 << MIN_LEVEL;
+    for (int offset = 0; offset < deltas.size(); offset += blockLength) {
+      long end = indexedVersion + offset + blockLength;
+      Delta<String> skip = model.composeAll(deltas.subList(offset, offset + blockLength));
+      for (int level = MIN_LEVEL; skip != null; level++) {
+        if (skip.getPayload().length() > MAX_SKIP_DELTA_CHARS) {
+          monitoring.incrementCounter("skipdelta-oversized");
+          break;
+        }
+        Key key = makeSkipKey(objectId, end, level);
+        built.put(key, skip);
+        staged.add(makeSkipEntity(key, skip));
+        stagedChars += skip.getPayload().length();
+        if (level == MAX_LEVEL || end % (2L << level) != 0) {
+          break;
+        }
+        // The block one level up ends here too; its first half is our left
+        // sibling, which may have been built by an earlier run.
+        Delta<String> left = getSkip(objectId, built, end - (1L << level), level);
+        skip = left == null ? null : model.composeAll(ImmutableList.of(left, skip));
+      }
+      if (stagedChars > MAX_CHARS_PER_TRANSACTION || offset + blockLength == deltas.size()) {
+        putSkips(objectId, staged, end);
+        monitoring.incrementCounter("skipdelta-written", staged.size());
+        staged.clear();
+        stagedChars = 0;
+      }
+    }
+    log.info("Indexed skip deltas of " + objectId + " from " + indexedVersion + " to "
+        + (indexedVersion + deltas.size()));
+  }
+
+  /**
+   * Returns the version up to which the index is built, read in a transaction of its own.
+   */
+  public long getIndexedVersion(ObjectId objectId) throws PermanentFailure, RetryableFailure {
+    CheckedTransaction tx = datastore.beginTransaction();
+    try {
+      return getIndexedVersion(tx, objectId);
+    } finally {
+      tx.rollback();
+    }
+  }
+
+  /**
+   * Returns deltas that take the object from minVersion to maxVersion, each paired with the
+   * number of versions it spans: skip deltas where the index has them, and plain deltas from
+   * {@code source} elsewhere.
+   */
+  public List<Pair<Delta<String>, Integer>> read(ObjectId objectId, long minVersion,
+      long maxVersion, DeltaSource source) throws PermanentFailure, RetryableFailure {
+    List<Pair<Delta<String>, Integer>> out = Lists.newArrayList();
+    Map<Key, Entity> skips;
+    List<Block> blocks;
+    if (maxVersion - minVersion < MIN_SPAN) {
+      blocks = ImmutableList.of();
+      skips = ImmutableMap.of();
+    } else {
+      CheckedTransaction tx = datastore.beginTransaction();
+      try {
+        blocks = cover(minVersion, Math.min(maxVersion, getIndexedVersion(tx, objectId)));
+        List<Key> keys = Lists.newArrayListWithCapacity(blocks.size());
+        for (Block block : blocks) {
+          keys.add(makeSkipKey(objectId, block.end(), block.level));
+        }
+        skips = keys.isEmpty() ? ImmutableMap.<Key, Entity> of() : tx.get(keys);
+      } finally {
+        tx.rollback();
+      }
+    }
+    long version = minVersion;
+    for (Block block : blocks) {
+      Entity skip = skips.get(makeSkipKey(objectId, block.end(), block.level));
+      if (skip == null) {
+        // Too large to store; covered by plain deltas instead.
+        continue;
+      }
+      addPlain(out, source, version, block.start);
+      out.add(Pair.of(parseSkip(skip), block.length()));
+      version = block.end();
+    }
+    addPlain(out, source, version, maxVersion);
+    monitoring.incrementCounter("skipdelta-read-versions", maxVersion - minVersion);
+    monitoring.incrementCounter("skipdelta-read-deltas", out.size());
+    return out;
+  }
+
+  private void addPlain(List<Pair<Delta<String>, Integer>> out, DeltaSource source,
+      long minVersion, long maxVersion) throws PermanentFailure, RetryableFailure {
+    if (minVersion < maxVersion) {
+      for (Delta<String> delta : source.get(minVersion, maxVersion)) {
+        out.add(Pair.of(delta, 1));
+      }
+    }
+  }
+
+  private long getIndexedVersion(CheckedTransaction tx, ObjectId objectId)
+      throws PermanentFailure, RetryableFailure {
+    Entity e = tx.get(makeIndexKey(objectId));
+    return e == null ? 0 : DatastoreUtil.getExistingProperty(e, INDEXED_VERSION_PROPERTY,
+        Long.class);
+  }
+
+  private Delta<String> getSkip(final ObjectId objectId, Map<Key, Delta<String>> built,
+      long end, int level) throws PermanentFailure {
+    final Key key = makeSkipKey(objectId, end, level);
+    Delta<String> skip = built.get(key);
+    if (skip != null) {
+      return skip;
+    }
+    Entity e = new RetryHelper().run(new RetryHelper.Body<Entity>() {
+      @Override
+      public Entity run() throws RetryableFailure, PermanentFailure {
+        CheckedTransaction tx = datastore.beginTransaction();
+        try {
+          return tx.get(key);
+        } finally {
+          tx.rollback();
+        }
+      }
+    });
+    return e == null ? null : parseSkip(e);
+  }
+
+  private Entity makeSkipEntity(Key key, Delta<String> skip) {
+    Entity e = new Entity(key);
+    DatastoreUtil.setNonNullUnindexedProperty(e, SKIP_CLIENT_ID_PROPERTY, skip.getClientId()
+        .getId());
+    DatastoreUtil.setNonNullUnindexedProperty(e, SKIP_OP_PROPERTY, new Text(skip.getPayload()));
+    return e;
+  }
+
+  /** Writes skip deltas that cover the history up to indexedVersion. */
+  private void putSkips(final ObjectId objectId, final List<Entity> skips,
+      final long indexedVersion) throws PermanentFailure {
+    new RetryHelper().run(new RetryHelper.VoidBody() {
+      @Override
+      public void run() throws RetryableFailure, PermanentFailure {
+        CheckedTransaction tx = datastore.beginTransaction();
+        try {
+          tx.put(skips);
+          if (getIndexedVersion(tx, objectId) < indexedVersion) {
+            Entity index = new Entity(makeIndexKey(objectId));
+            DatastoreUtil.setNonNullUnindexedProperty(index, INDEXED_VERSION_PROPERTY,
+                indexedVersion);
+            tx.put(index);
+          }
+          tx.commit();
+        } finally {
+          tx.close();
+        }
+      }
+    });
+  }
+
+  private List<Delta<String>> readAll(DeltaIterator it) throws PermanentFailure,
+      RetryableFailure {
+    ImmutableList.Builder<Delta<String>> out = ImmutableList.builder();
+    while (it.hasNext()) {
+      out.add(it.next());
+    }
+    return out.build();
+  }
+}
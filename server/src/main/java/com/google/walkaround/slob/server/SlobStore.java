@@ -66,14 +66,59 @@ public interface SlobStore {
     }
   }
 
+  /** One object's part of a {@link SlobStore#reconnectAndLoadHistories} call. */
+  final class HistoryRequest {
+    private final ObjectId slobId;
+    private final long startVersion;
+    @Nullable
+    private final Long endVersion;
+
+    public HistoryRequest(ObjectId slobId, long startVersion, @Nullable Long endVersion) {
+      Preconditions.checkNotNull(slobId, "Null slobId");
+      this.slobId = slobId;
+      this.startVersion = startVersion;
+      this.endVersion = endVersion;
+    }
+
+    @Nullable
+    public Long getEndVersion() {
+      return endVersion;
+    }
+
+    public ObjectId getSlobId() {
+      return slobId;
+    }
+
+    public long getStartVersion() {
+      return startVersion;
+    }
+
+    @Override
+    public String toString() {
+      return "HistoryRequest(" + slobId + ", " + startVersion + ", " + endVersion + ")";
+    }
+  }
+
   /** Result of a history fetch. */
   final class HistoryResult {
     private final ImmutableList<Delta<String>> data;
+    /** The version after each delta in data; null if each delta is a single version. */
+    @Nullable
+    private final ImmutableList<Long> resultingVersions;
     private final boolean hasMore;
 
     public HistoryResult(ImmutableList<Delta<String>> data, boolean hasMore) {
+      this(data, null, hasMore);
+    }
+
+    public HistoryResult(ImmutableList<Delta<String>> data,
+        @Nullable ImmutableList<Long> resultingVersions, boolean hasMore) {
       Preconditions.checkNotNull(data, "Null data");
+      Preconditions.checkArgument(resultingVersions == null
+          || resultingVersions.size() == data.size(), "Mismatched resultingVersions %s",
+          resultingVersions);
       this.data = data;
+      this.resultingVersions = resultingVersions;
       this.hasMore = hasMore;
     }
 
@@ -81,13 +126,21 @@ public interface SlobStore {
       return data;
     }
 
+    /**
+     * Returns the version of the object after the delta at {@code index} in {@link #getData()},
+     * given the version before the first one.
+     */
+    public long getResultingVersion(long startVersion, int index) {
+      return resultingVersions == null ? startVersion + index + 1 : resultingVersions.get(index);
+    }
+
     public boolean hasMore() {
       return hasMore;
     }
 
     @Override
     public String toString() {
-      return "HistoryResult(" + data + ", " + hasMore + ")";
+      return "HistoryResult(" + data + ", " + resultingVersions + ", " + hasMore + ")";
     }
   }
 
@@ -115,6 +168,15 @@ public interface SlobStore {
   HistoryResult loadHistory(ObjectId slobId, long startVersion, @Nullable Long endVersion)
       throws SlobNotFoundException, IOException, AccessDeniedException;
 
+  /**
+   * Like {@link #loadHistory(ObjectId, long, Long)}, but if {@code compose} is true, runs of
+   * deltas are composed where the model allows, so that a client that is far behind receives the
+   * net change rather than every edit. Use {@link HistoryResult#getResultingVersion} for the
+   * version after each returned delta.
+   */
+  HistoryResult loadHistory(ObjectId slobId, long startVersion, @Nullable Long endVersion,
+      boolean compose) throws SlobNotFoundException, IOException, AccessDeniedException;
+
   /**
    * Processes the given mutate request.
    */
@@ -134,4 +196,14 @@ public interface SlobStore {
   ConnectResult reconnect(ObjectId slobId, SessionId clientId) throws SlobNotFoundException,
       IOException, AccessDeniedException;
 
+  /**
+   * Like {@link #reconnect} followed by {@link #loadHistory} for each of the requested objects, but
+   * the objects are processed concurrently.
+   * 
+   * @return one result per request, in the same order
+   */
+  List<Pair<ConnectResult, HistoryResult>> reconnectAndLoadHistories(SessionId clientId,
+      List<HistoryRequest> requests) throws SlobNotFoundException, IOException,
+      AccessDeniedException;
+
 }
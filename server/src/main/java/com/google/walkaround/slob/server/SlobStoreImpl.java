@@ -20,16 +20,21 @@ import com.goodow.wind.server.model.DeltaRejected;
 import com.goodow.wind.server.model.ObjectId;
 import com.goodow.wind.server.model.SessionId;
 
+import com.google.appengine.api.ThreadManager;
 import com.google.appengine.api.memcache.Expiration;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Stopwatch;
+import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
 import com.google.inject.Inject;
 import com.google.walkaround.slob.server.MutationLog.DeltaIterator;
 import com.google.walkaround.slob.server.MutationLog.MutationLogFactory;
 import com.google.walkaround.slob.server.SlobMessageRouter.TooManyListenersException;
+import com.google.walkaround.slob.shared.SlobModel;
 import com.google.walkaround.slob.shared.SlobModel.ReadableSlob;
 import com.google.walkaround.slob.shared.StateAndVersion;
+import com.google.walkaround.util.server.MonitoringVars;
 import com.google.walkaround.util.server.RetryHelper.PermanentFailure;
 import com.google.walkaround.util.server.RetryHelper.RetryableFailure;
 import com.google.walkaround.util.server.appengine.CheckedDatastore;
@@ -39,6 +44,11 @@ import com.google.walkaround.util.server.appengine.MemcacheTable.IdentifiableVal
 
 import java.io.IOException;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.logging.Logger;
 
 import javax.annotation.Nullable;
@@ -85,6 +95,8 @@ public class SlobStoreImpl implements SlobStore {
 
   private static final String MEMCACHE_TAG_PREFIX = "slobversion";
   private static final int VERSION_NUMBER_CACHE_EXPIRATION_MILLIS = 24 * 60 * 60 * 1000;
+  /** Bound on the threads used by one {@link #reconnectAndLoadHistories} call. */
+  private static final int MAX_PARALLEL_FETCHES = 10;
 
   private final CheckedDatastore datastore;
   private final MutationLogFactory mutationLogFactory;
@@ -93,11 +105,15 @@ public class SlobStoreImpl implements SlobStore {
   private final AccessChecker accessChecker;
   private final Cache cache;
   private final LocalMutationProcessor localProcessor;
+  private final RecentDeltaCache recentDeltas;
+  private final SlobModel model;
+  private final MonitoringVars monitoring;
 
   @Inject
   public SlobStoreImpl(CheckedDatastore datastore, MutationLogFactory mutationLogFactory,
       SlobMessageRouter messageRouter, AffinityMutationProcessor defaultProcessor,
-      LocalMutationProcessor localProcessor, AccessChecker accessChecker, Cache cache) {
+      LocalMutationProcessor localProcessor, AccessChecker accessChecker, Cache cache,
+      RecentDeltaCache recentDeltas, SlobModel model, MonitoringVars monitoring) {
     this.datastore = datastore;
     this.mutationLogFactory = mutationLogFactory;
     this.messageRouter = messageRouter;
@@ -105,11 +121,15 @@ public class SlobStoreImpl implements SlobStore {
     this.localProcessor = localProcessor;
     this.accessChecker = accessChecker;
     this.cache = cache;
+    this.recentDeltas = recentDeltas;
+    this.model = model;
+    this.monitoring = monitoring;
   }
 
   @Override
   public Pair<ConnectResult, String> connect(ObjectId slobId, SessionId clientId)
       throws SlobNotFoundException, IOException, AccessDeniedException {
+    accessChecker.checkCanRead(slobId);
     return connectOrReconnect(slobId, clientId, true);
   }
 
@@ -136,38 +156,14 @@ public class SlobStoreImpl implements SlobStore {
   public HistoryResult loadHistory(ObjectId slobId, long startVersion, @Nullable Long endVersion)
       throws SlobNotFoundException, IOException, AccessDeniedException {
     accessChecker.checkCanRead(slobId);
-    IdentifiableValue<Long> cachedVersion = cache.currentVersions.getIdentifiable(slobId);
-    log.info("loadHistory(" + slobId + ", " + startVersion + " - " + endVersion + "); cached: "
-        + cachedVersion);
-    if (cachedVersion != null && cachedVersion.getValue() != null
-        && startVersion >= cachedVersion.getValue() && endVersion == null) {
-      return new HistoryResult(ImmutableList.<Delta<String>> of(), false);
-    }
-    final int MAX_MILLIS = 3 * 1000;
-    try {
-      CheckedTransaction tx = datastore.beginTransaction();
-      try {
-        // TODO(ohler): put current version into cache
-        DeltaIterator result =
-            mutationLogFactory.create(tx, slobId).forwardHistory(startVersion, endVersion);
-        if (!result.hasNext()) {
-          return new HistoryResult(ImmutableList.<Delta<String>> of(), false);
-        }
-        ImmutableList.Builder<Delta<String>> list = ImmutableList.builder();
-        Stopwatch stopwatch = new Stopwatch().start();
-        do {
-          list.add(result.next());
-        } while (result.hasNext() && stopwatch.elapsedMillis() < MAX_MILLIS);
-        return new HistoryResult(list.build(), result.hasNext());
-      } finally {
-        tx.rollback();
-      }
-    } catch (PermanentFailure e) {
-      throw new IOException(e);
-    } catch (RetryableFailure e) {
-      // TODO(danilatos): Retry?
-      throw new IOException(e);
-    }
+    return doLoadHistory(slobId, startVersion, endVersion);
+  }
+
+  @Override
+  public HistoryResult loadHistory(ObjectId slobId, long startVersion, @Nullable Long endVersion,
+      boolean compose) throws SlobNotFoundException, IOException, AccessDeniedException {
+    HistoryResult history = loadHistory(slobId, startVersion, endVersion);
+    return compose ? compose(startVersion, history) : history;
   }
 
   @Override
@@ -231,12 +227,52 @@ public class SlobStoreImpl implements SlobStore {
   @Override
   public ConnectResult reconnect(ObjectId slobId, SessionId clientId) throws SlobNotFoundException,
       IOException, AccessDeniedException {
+    accessChecker.checkCanRead(slobId);
     return connectOrReconnect(slobId, clientId, false).getFirst();
   }
 
+  @Override
+  public List<Pair<ConnectResult, HistoryResult>> reconnectAndLoadHistories(
+      final SessionId clientId, List<HistoryRequest> requests) throws SlobNotFoundException,
+      IOException, AccessDeniedException {
+    // Check access in this thread; the access checker may depend on the
+    // request, which the fetch threads don't have.
+    for (HistoryRequest request : requests) {
+      accessChecker.checkCanRead(request.getSlobId());
+    }
+    List<Pair<ConnectResult, HistoryResult>> results =
+        Lists.newArrayListWithCapacity(requests.size());
+    if (requests.size() <= 1) {
+      for (HistoryRequest request : requests) {
+        results.add(reconnectAndLoadHistory(clientId, request));
+      }
+      return results;
+    }
+    ExecutorService executor =
+        Executors.newFixedThreadPool(Math.min(requests.size(), MAX_PARALLEL_FETCHES),
+            ThreadManager.currentRequestThreadFactory());
+    try {
+      List<Future<Pair<ConnectResult, HistoryResult>>> futures =
+          Lists.newArrayListWithCapacity(requests.size());
+      for (final HistoryRequest request : requests) {
+        futures.add(executor.submit(new Callable<Pair<ConnectResult, HistoryResult>>() {
+          @Override
+          public Pair<ConnectResult, HistoryResult> call() throws Exception {
+            return reconnectAndLoadHistory(clientId, request);
+          }
+        }));
+      }
+      for (Future<Pair<ConnectResult, HistoryResult>> future : futures) {
+        results.add(getResult(future));
+      }
+      return results;
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
   private Pair<ConnectResult, String> connectOrReconnect(ObjectId slobId, SessionId clientId,
       boolean withSnapshot) throws SlobNotFoundException, IOException, AccessDeniedException {
-    accessChecker.checkCanRead(slobId);
     String snapshot;
     long version;
     IdentifiableValue<Long> cachedVersion = cache.currentVersions.getIdentifiable(slobId);
@@ -286,4 +322,99 @@ public class SlobStoreImpl implements SlobStore {
     }
     return Pair.of(new ConnectResult(channelToken, version), snapshot);
   }
-}
\ No newline at end of file
+
+  private HistoryResult compose(long startVersion, HistoryResult history) {
+    List<Pair<Delta<String>, Integer>> composed = model.compose(history.getData());
+    ImmutableList.Builder<Delta<String>> data = ImmutableList.builder();
+    ImmutableList.Builder<Long> resultingVersions = ImmutableList.builder();
+    long version = startVersion;
+    for (Pair<Delta<String>, Integer> delta : composed) {
+      version += delta.getSecond();
+      data.add(delta.getFirst());
+      resultingVersions.add(version);
+    }
+    log.info("Composed " + history.getData().size() + " deltas into " + composed.size());
+    monitoring.incrementCounter("history-composed-away", history.getData().size()
+        - composed.size());
+    return new HistoryResult(data.build(), resultingVersions.build(), history.hasMore());
+  }
+
+  private HistoryResult doLoadHistory(ObjectId slobId, long startVersion,
+      @Nullable Long endVersion) throws IOException {
+    IdentifiableValue<Long> cachedVersion = cache.currentVersions.getIdentifiable(slobId);
+    log.info("loadHistory(" + slobId + ", " + startVersion + " - " + endVersion + "); cached: "
+        + cachedVersion);
+    if (cachedVersion != null && cachedVersion.getValue() != null
+        && startVersion >= cachedVersion.getValue() && endVersion == null) {
+      return new HistoryResult(ImmutableList.<Delta<String>> of(), false);
+    }
+    ImmutableList<Delta<String>> recent = recentDeltas.get(slobId, startVersion, endVersion);
+    if (recent != null) {
+      long recentEndVersion = startVersion + recent.size();
+      // Unless we know the current version, deltas committed by other
+      // processes may be missing at the end.
+      boolean complete =
+          endVersion != null ? recentEndVersion == endVersion : cachedVersion != null
+              && cachedVersion.getValue() != null && recentEndVersion >= cachedVersion.getValue();
+      if (complete) {
+        log.info("Serving " + recent.size() + " deltas from memory");
+        return new HistoryResult(recent, false);
+      }
+      log.info("Have " + recent.size() + " deltas in memory, reading the rest");
+      monitoring.incrementCounter("recentdeltas-partial");
+      startVersion = recentEndVersion;
+    } else {
+      recent = ImmutableList.of();
+    }
+    final int MAX_MILLIS = 3 * 1000;
+    try {
+      CheckedTransaction tx = datastore.beginTransaction();
+      try {
+        // TODO(ohler): put current version into cache
+        DeltaIterator result =
+            mutationLogFactory.create(tx, slobId).forwardHistory(startVersion, endVersion);
+        if (!result.hasNext()) {
+          return new HistoryResult(recent, false);
+        }
+        ImmutableList.Builder<Delta<String>> list = ImmutableList.builder();
+        list.addAll(recent);
+        Stopwatch stopwatch = new Stopwatch().start();
+        do {
+          list.add(result.next());
+        } while (result.hasNext() && stopwatch.elapsedMillis() < MAX_MILLIS);
+        return new HistoryResult(list.build(), result.hasNext());
+      } finally {
+        tx.rollback();
+      }
+    } catch (PermanentFailure e) {
+      throw new IOException(e);
+    } catch (RetryableFailure e) {
+      // TODO(danilatos): Retry?
+      throw new IOException(e);
+    }
+  }
+
+  private <T> T getResult(Future<T> future) throws SlobNotFoundException, IOException,
+      AccessDeniedException {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException(e);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      Throwables.propagateIfInstanceOf(cause, SlobNotFoundException.class);
+      Throwables.propagateIfInstanceOf(cause, IOException.class);
+      Throwables.propagateIfInstanceOf(cause, AccessDeniedException.class);
+      throw Throwables.propagate(cause);
+    }
+  }
+
+  private Pair<ConnectResult, HistoryResult> reconnectAndLoadHistory(SessionId clientId,
+      HistoryRequest request) throws SlobNotFoundException, IOException, AccessDeniedException {
+    ConnectResult connectResult =
+        connectOrReconnect(request.getSlobId(), clientId, false).getFirst();
+    return Pair.of(connectResult, doLoadHistory(request.getSlobId(), request.getStartVersion(),
+        request.getEndVersion()));
+  }
+}
@@ -0,0 +1,39 @@
+/*
+ * Copyright 2012 Google Inc. All Rights Reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.walkaround.slob.server;
+
+/**
+ * Decides when {@link MutationLog} writes a snapshot of an object.
+ * 
+ * To reconstruct an object, we read its most recent snapshot and replay the deltas since. Writing
+ * snapshots more often makes that cheaper but costs storage, so policies trade the two off.
+ */
+public interface SnapshotPolicy {
+
+  /**
+   * Called after deltas have been appended to an object.
+   * 
+   * @param snapshotBytes estimated size of a snapshot at the current version
+   * @param cost what it takes to reconstruct the current version without a new snapshot
+   * @return whether to write a snapshot at the current version
+   */
+  boolean shouldSnapshot(long snapshotBytes, ReconstructionCost cost);
+
+  /**
+   * Reports that a snapshot of {@code snapshotBytes} was loaded into a live object in
+   * {@code nanos}. Policies can use this to learn how expensive loading is relative to replay.
+   */
+  void snapshotLoaded(long snapshotBytes, long nanos);
+}
@@ -16,6 +16,7 @@
 
 package com.google.walkaround.slob.shared;
 
+import com.goodow.wind.model.util.Pair;
 import com.goodow.wind.server.model.Delta;
 import com.goodow.wind.server.model.DeltaRejected;
 
@@ -30,6 +31,7 @@ import java.util.List;
  */
 // TODO(danilatos): Have deserialize/serialize operation methods,
 // and pass reified ops into the other methods like apply() & transform.
+// For now, implementations memoize parsed ops with Delta.setParsedPayload().
 public interface SlobModel {
 
   /**
@@ -41,6 +43,15 @@ public interface SlobModel {
      * history.
      */
     @Nullable String snapshot();
+
+    /**
+     * Returns an estimate of the length of {@link #snapshot()}, or 0 if the
+     * object has no history.  This is consulted after every batch of deltas to
+     * decide whether to write a snapshot, so it must not serialize the object;
+     * implementations should maintain it incrementally as deltas are applied,
+     * and correct it whenever {@link #snapshot()} is called.
+     */
+    long snapshotSizeEstimate();
   }
 
   /**
@@ -55,8 +66,38 @@ public interface SlobModel {
      *         previous state, ready for application of a valid operation.
      */
     void apply(Delta<String> payload) throws DeltaRejected;
+
+    /**
+     * Returns an independent copy of the object: applying deltas to either one
+     * does not affect the other.  This is how cached state is handed to a
+     * transaction without a rollback being able to corrupt the cache, so it
+     * should be cheap, e.g. copy-on-write.
+     */
+    Slob copy();
   }
 
+  /**
+   * Composes runs of consecutive deltas into fewer deltas where possible, for readers that only
+   * need the net change of a history. Deltas from different clients are not composed with each
+   * other.
+   *
+   * @param deltas consecutive deltas that have been applied successfully.
+   * @return the resulting deltas, each paired with the number of consecutive input deltas it
+   *         replaces.
+   */
+  List<Pair<Delta<String>, Integer>> compose(List<Delta<String>> deltas);
+
+  /**
+   * Composes consecutive deltas into a single delta with the same effect, as a shortcut over the
+   * history.  The result can be applied with {@link Slob#apply} and passed as a server delta to
+   * {@link #transform}, including when it is itself the result of composeAll().  It is
+   * attributed to the session of the last delta, but is not a delta that session sent, so it
+   * must not be sent to clients.
+   *
+   * @param deltas consecutive deltas that have been applied successfully.
+   */
+  Delta<String> composeAll(List<Delta<String>> deltas);
+
   /**
    * Creates an object belonging to this domain.
    *
@@ -68,13 +109,14 @@ public interface SlobModel {
   /**
    * Transforms operations on objects in this domain.
    *
-   * @return the transformed client payloads (they will need to be re-wrapped).
+   * @param clientOps deltas submitted together by a single client session.
+   * @return the transformed client deltas, attributed to the same session.
    *
    * @throws DeltaRejected if the client ops were invalid or not compatible
    *           with eachother. The server ops are guaranteed to have passed
    *           through the apply() method successfully and therefore are known
    *           to be valid.
    */
-  List<String> transform(List<Delta<String>> clientOps, List<Delta<String>> serverOps)
+  List<Delta<String>> transform(List<Delta<String>> clientOps, List<Delta<String>> serverOps)
       throws DeltaRejected;
 }
@@ -51,6 +51,16 @@ public class StateAndVersion {
     version++;
   }
 
+  /**
+   * Applies a delta that composes {@code versions} consecutive deltas, see
+   * {@link SlobModel#composeAll}.
+   */
+  public void apply(Delta<String> delta, int versions) throws DeltaRejected {
+    Preconditions.checkArgument(versions > 0, "Bad versions %s", versions);
+    state.apply(delta);
+    version += versions;
+  }
+
   @Override public String toString() {
     return "StateAndVersion(" + state + ", " + version + ")";
   }
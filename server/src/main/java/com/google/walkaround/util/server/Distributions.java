@@ -0,0 +1,50 @@
+/*
+ * Copyright 2012 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.walkaround.util.server;
+
+/**
+ * Records the distribution of a quantity, such as a latency, with the counters
+ * of {@link MonitoringVars}: one counter per power-of-two bucket, named
+ * {@code <name>-le-<bound>} for values up to and including the bound, plus
+ * {@code <name>-count} and {@code <name>-sum} so that the mean can be derived.
+ */
+public final class Distributions {
+
+  private Distributions() {}
+
+  /** The upper bound of the bucket that {@code value} is counted in. */
+  private static long bucketBound(long value) {
+    if (value <= 0) {
+      return 0;
+    }
+    long bound = 1;
+    while (bound < value) {
+      if (bound > Long.MAX_VALUE / 2) {
+        return Long.MAX_VALUE;
+      }
+      bound <<= 1;
+    }
+    return bound;
+  }
+
+  public static void record(MonitoringVars monitoring, String name, long value) {
+    monitoring.incrementCounter(name + "-le-" + bucketBound(value));
+    monitoring.incrementCounter(name + "-count");
+    monitoring.incrementCounter(name + "-sum", value);
+  }
+
+}
@@ -35,9 +35,16 @@ public interface MonitoringVars {
   final MonitoringVars NULL_IMPL = new MonitoringVars() {
     @Override public void incrementCounter(String name) {}
     @Override public void incrementCounter(String name, long increment) {}
+    @Override public void setGauge(String name, long value) {}
   };
 
   void incrementCounter(String name);
   void incrementCounter(String name, long increment);
 
+  /**
+   * Records the current value of a quantity that can go up and down, such as
+   * the size of a cache.
+   */
+  void setGauge(String name, long value);
+
 }
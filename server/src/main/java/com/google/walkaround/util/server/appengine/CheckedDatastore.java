@@ -14,6 +14,7 @@
 
 package com.google.walkaround.util.server.appengine;
 
+import com.google.appengine.api.datastore.AsyncDatastoreService;
 import com.google.appengine.api.datastore.CommittedButStillApplyingException;
 import com.google.appengine.api.datastore.Cursor;
 import com.google.appengine.api.datastore.DatastoreFailureException;
@@ -34,7 +35,11 @@ import com.google.appengine.api.taskqueue.Queue;
 import com.google.appengine.api.taskqueue.TaskHandle;
 import com.google.appengine.api.taskqueue.TaskOptions;
 import com.google.appengine.api.taskqueue.TransientFailureException;
+import com.google.common.base.Function;
+import com.google.common.base.Functions;
 import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
 import com.google.inject.Inject;
 import com.google.walkaround.util.server.RetryHelper.PermanentFailure;
@@ -44,6 +49,8 @@ import java.util.ConcurrentModificationException;
 import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -60,6 +67,16 @@ import java.util.logging.Logger;
 // abort the body with a permanent failure.)
 public class CheckedDatastore {
 
+  /**
+   * The pending result of an asynchronous call. {@link #get} waits for it and reports failures the
+   * same way as the corresponding blocking call does.
+   */
+  public interface CheckedFuture<T> {
+    T get() throws PermanentFailure, RetryableFailure;
+
+    boolean isDone();
+  }
+
   public interface CheckedIterator {
     public static final CheckedIterator EMPTY = new CheckedIterator() {
       @Override
@@ -143,6 +160,12 @@ public class CheckedDatastore {
     // Read access.
     Entity get(Key key) throws PermanentFailure, RetryableFailure;
 
+    // Asynchronous read access, to overlap independent reads.
+    CheckedFuture<Map<Key, Entity>> getAsync(Iterable<Key> keys);
+
+    /** The future's result is null if there is no such entity. */
+    CheckedFuture<Entity> getAsync(Key key);
+
     boolean isActive();
 
     CheckedPreparedQuery prepare(Query q);
@@ -152,12 +175,65 @@ public class CheckedDatastore {
 
     List<Key> put(Iterable<Entity> e) throws PermanentFailure, RetryableFailure;
 
+    // Asynchronous write access. commit() waits for these and fails if any of them did.
+    CheckedFuture<Key> putAsync(Entity e);
+
+    CheckedFuture<List<Key>> putAsync(Iterable<Entity> e);
+
     // Transaction lifecycle management.
     void rollback();
 
     void runAfterCommit(Runnable r);
   }
 
+  /**
+   * A wrapper around a {@link Future} from {@link AsyncDatastoreService} that throws checked
+   * exceptions for failures, and converts the result with {@code function}.
+   */
+  private static class CheckedFutureImpl<F, T> implements CheckedFuture<T> {
+    private final Future<F> future;
+    private final Function<? super F, ? extends T> function;
+
+    CheckedFutureImpl(Future<F> future, Function<? super F, ? extends T> function) {
+      Preconditions.checkNotNull(future, "Null future");
+      Preconditions.checkNotNull(function, "Null function");
+      this.future = future;
+      this.function = function;
+    }
+
+    @Override
+    public T get() throws PermanentFailure, RetryableFailure {
+      return safeRun(new Evaluater<T>() {
+        @Override
+        public T run() throws PermanentFailure {
+          F result;
+          try {
+            result = future.get();
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new PermanentFailure("Interrupted while waiting for " + future, e);
+          } catch (ExecutionException e) {
+            // Rethrow the datastore's exception so that safeRun() classifies
+            // it just like for a blocking call.
+            Throwables.propagateIfPossible(e.getCause());
+            throw new PermanentFailure(e.getCause());
+          }
+          return function.apply(result);
+        }
+      });
+    }
+
+    @Override
+    public boolean isDone() {
+      return future.isDone();
+    }
+
+    @Override
+    public String toString() {
+      return "CheckedFutureImpl(" + future + ")";
+    }
+  }
+
   /**
    * A wrapper around {@link QueryResultIterator}<{@link Entity}> that throws checked exceptions for
    * failures.
@@ -258,6 +334,7 @@ public class CheckedDatastore {
   private class CheckedTransactionImpl implements CheckedTransaction {
     private final Transaction transaction;
     private final List<Runnable> postCommitRunnables = Lists.newArrayList();
+    private final List<CheckedFuture<?>> pendingWrites = Lists.newArrayList();
 
     CheckedTransactionImpl(Transaction transaction) {
       this.transaction = transaction;
@@ -272,6 +349,10 @@ public class CheckedDatastore {
 
     @Override
     public void commit() throws PermanentFailure, RetryableFailure {
+      for (CheckedFuture<?> write : pendingWrites) {
+        write.get();
+      }
+      pendingWrites.clear();
       safeRun(new Evaluater<Void>() {
         @Override
         public Void run() {
@@ -346,6 +427,25 @@ public class CheckedDatastore {
       });
     }
 
+    @Override
+    public CheckedFuture<Map<Key, Entity>> getAsync(Iterable<Key> keys) {
+      return new CheckedFutureImpl<Map<Key, Entity>, Map<Key, Entity>>(asyncDatastore.get(
+          transaction, keys), Functions.<Map<Key, Entity>> identity());
+    }
+
+    @Override
+    public CheckedFuture<Entity> getAsync(final Key key) {
+      // Going through the multi-get returns null rather than failing with
+      // EntityNotFoundException if the entity does not exist.
+      return new CheckedFutureImpl<Map<Key, Entity>, Entity>(asyncDatastore.get(transaction,
+          ImmutableList.of(key)), new Function<Map<Key, Entity>, Entity>() {
+        @Override
+        public Entity apply(Map<Key, Entity> result) {
+          return result.get(key);
+        }
+      });
+    }
+
     @Override
     public boolean isActive() {
       return transaction.isActive();
@@ -377,6 +477,24 @@ public class CheckedDatastore {
       });
     }
 
+    @Override
+    public CheckedFuture<Key> putAsync(Entity e) {
+      CheckedFuture<Key> future =
+          new CheckedFutureImpl<Key, Key>(asyncDatastore.put(transaction, e), Functions
+              .<Key> identity());
+      pendingWrites.add(future);
+      return future;
+    }
+
+    @Override
+    public CheckedFuture<List<Key>> putAsync(Iterable<Entity> e) {
+      CheckedFuture<List<Key>> future =
+          new CheckedFutureImpl<List<Key>, List<Key>>(asyncDatastore.put(transaction, e),
+              Functions.<List<Key>> identity());
+      pendingWrites.add(future);
+      return future;
+    }
+
     @Override
     public void rollback() {
       try {
@@ -433,10 +551,12 @@ public class CheckedDatastore {
   }
 
   private final DatastoreService datastore;
+  private final AsyncDatastoreService asyncDatastore;
 
   @Inject
-  public CheckedDatastore(DatastoreService datastore) {
+  public CheckedDatastore(DatastoreService datastore, AsyncDatastoreService asyncDatastore) {
     this.datastore = datastore;
+    this.asyncDatastore = asyncDatastore;
   }
 
   public CheckedTransaction beginTransaction() throws PermanentFailure, RetryableFailure {
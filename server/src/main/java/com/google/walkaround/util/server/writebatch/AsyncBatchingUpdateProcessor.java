@@ -0,0 +1,362 @@
+/*
+ * Copyright 2012 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.walkaround.util.server.writebatch;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.walkaround.util.server.MonitoringVars;
+import com.google.walkaround.util.server.RetryHelper;
+import com.google.walkaround.util.server.RetryHelper.PermanentFailure;
+import com.google.walkaround.util.server.RetryHelper.RetryableFailure;
+import com.google.walkaround.util.server.servlet.TryAgainLaterException;
+import com.google.walkaround.util.server.writebatch.UpdateTransaction.BatchTooLargeException;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A variant of {@link BatchingUpdateProcessor} that does not park a request
+ * thread per queued update.  processUpdate() queues the update and returns a
+ * future; a task on the given executor drains the queue in batches, one
+ * transaction per batch, and completes the futures once the batch is
+ * committed.  At most one such task is active per processor at any time, so
+ * updates are still applied in the order they were queued.
+ *
+ * As with BatchingUpdateProcessor, a linger time lets a batch that already
+ * has several updates wait briefly for more to join it.
+ *
+ * A caller that does not want to wait for its update indefinitely can give up
+ * on it with abandon(), as long as the drain task has not taken it on yet.
+ * An update that has been taken on is always answered, since it may be
+ * committed.
+ *
+ * The contracts for TransactionFactory, UpdateTransaction and retries are the
+ * same as for BatchingUpdateProcessor.  A future fails with a PermanentFailure
+ * as its cause if the update could not be committed.
+ *
+ * If the transaction throws a RuntimeException or Error, all outstanding
+ * futures fail and the processor is unusable afterwards, as with
+ * BatchingUpdateProcessor.
+ *
+ * @param <U> type of update
+ * @param <R> type of result of an update
+ * @param <T> type of transaction
+ */
+public class AsyncBatchingUpdateProcessor<U, R extends UpdateResult,
+    T extends UpdateTransaction<U, R>> {
+
+  private static final Logger log =
+      Logger.getLogger(AsyncBatchingUpdateProcessor.class.getName());
+
+  private class QueueItem {
+    private final U update;
+    private final SettableFuture<R> future = SettableFuture.create();
+
+    QueueItem(U update) {
+      this.update = Preconditions.checkNotNull(update, "Null update");
+    }
+
+    @Override public String toString() {
+      return "QueueItem(" + update + ")";
+    }
+  }
+
+  private class WorkerBody implements RetryHelper.VoidBody {
+    // Items of the current batch; rejected items are removed as they are
+    // answered.
+    private final List<QueueItem> batch;
+    // Parallel with a prefix of batch.
+    private final List<R> results = Lists.newArrayList();
+
+    WorkerBody(List<QueueItem> batch) {
+      this.batch = batch;
+    }
+
+    @Override public String toString() {
+      return "WorkerBody(" + AsyncBatchingUpdateProcessor.this + ")";
+    }
+
+    private void processItems(T tx) throws RetryableFailure, PermanentFailure {
+      int rejected = 0;
+      for (Iterator<QueueItem> iterator = batch.iterator(); iterator.hasNext(); ) {
+        QueueItem next = iterator.next();
+        R result;
+        try {
+          result = tx.processUpdate(next.update);
+        } catch (BatchTooLargeException e) {
+          if (results.isEmpty() && rejected == 0) {
+            throw new RuntimeException(tx + " rejected the first update: " + next);
+          }
+          log.log(Level.INFO, "processItems(): batch too large", e);
+          break;
+        }
+        if (result.isRejected()) {
+          iterator.remove();
+          complete(next, result);
+          rejected++;
+        } else {
+          results.add(result);
+        }
+      }
+      log.info("processItems(): " + rejected + " rejected, " + results.size() + " accepted");
+    }
+
+    @Override public void run() throws RetryableFailure, PermanentFailure {
+      results.clear();
+      if (batch.isEmpty()) {
+        return;
+      }
+      boolean commitCalled = false;
+      T tx = txFactory.beginTransaction();
+      try {
+        processItems(tx);
+        commitCalled = true;
+        tx.commit();
+      } finally {
+        if (!commitCalled) {
+          tx.rollback();
+        }
+      }
+    }
+  }
+
+  private final TransactionFactory<R, T> txFactory;
+  private final RetryHelper retryHelper;
+  private final Executor executor;
+  private final int maxQueueLength;
+  private final long lingerMillis;
+  private final MonitoringVars monitoring;
+  private final String name;
+  private final Object lock = new Object();
+  // Updates not yet picked up by the drain task.  Guarded by lock.
+  private final List<QueueItem> waitingItems = Lists.newArrayList();
+  // Updates queued but not yet answered, including the current batch.
+  // Guarded by lock.
+  private int outstanding = 0;
+  // Whether a drain task is scheduled or running.  Guarded by lock.
+  private boolean draining = false;
+  // If this is non-null, the processor is unusable because its state may be corrupted.
+  private volatile Throwable corrupted = null;
+
+  private final Runnable drainTask = new Runnable() {
+    @Override public void run() {
+      drain();
+    }
+
+    @Override public String toString() {
+      return "DrainTask(" + AsyncBatchingUpdateProcessor.this + ")";
+    }
+  };
+
+  /**
+   * @param executor runs the tasks that drain the queue; with a direct
+   *     executor, the thread that finds the queue idle drains it
+   * @param maxQueueLength the number of updates that may be outstanding,
+   *     including those in the batch being processed, before further updates
+   *     are rejected
+   * @param lingerMillis how long a batch of several updates waits for more to
+   *     join it; 0 to not wait
+   * @param name identifies this processor's gauges and counters in
+   *     {@code monitoring}, e.g. the id of the object it is responsible for
+   */
+  public AsyncBatchingUpdateProcessor(TransactionFactory<R, T> txFactory,
+      RetryHelper retryHelper, Executor executor, int maxQueueLength, long lingerMillis,
+      MonitoringVars monitoring, String name) {
+    Preconditions.checkArgument(maxQueueLength > 0, "Bad maxQueueLength %s", maxQueueLength);
+    Preconditions.checkArgument(lingerMillis >= 0, "Bad lingerMillis %s", lingerMillis);
+    this.txFactory = Preconditions.checkNotNull(txFactory, "Null txFactory");
+    this.retryHelper = Preconditions.checkNotNull(retryHelper, "Null retryHelper");
+    this.executor = Preconditions.checkNotNull(executor, "Null executor");
+    this.maxQueueLength = maxQueueLength;
+    this.lingerMillis = lingerMillis;
+    this.monitoring = Preconditions.checkNotNull(monitoring, "Null monitoring");
+    this.name = Preconditions.checkNotNull(name, "Null name");
+  }
+
+  @Override public String toString() {
+    synchronized (lock) {
+      return "AsyncBatchingUpdateProcessor(" + (corrupted == null ? "" : corrupted + ", ")
+          + name + ", " + outstanding + " outstanding, " + draining + ")";
+    }
+  }
+
+  /**
+   * Queues an update.  Throws TryAgainLaterException without queueing it if
+   * too many updates are outstanding.
+   */
+  public ListenableFuture<R> processUpdate(U update) {
+    QueueItem item = new QueueItem(update);
+    boolean startDrain;
+    synchronized (lock) {
+      if (corrupted != null) {
+        throw new Error("Processor is corrupted: " + this, corrupted);
+      }
+      if (outstanding >= maxQueueLength) {
+        monitoring.incrementCounter("batching-rejected-queue-full-" + name);
+        throw new TryAgainLaterException(
+            "Too many concurrent updates (" + outstanding + " queued)");
+      }
+      waitingItems.add(item);
+      outstanding++;
+      monitoring.setGauge("batching-queue-length-" + name, outstanding);
+      startDrain = !draining;
+      draining = true;
+    }
+    if (startDrain) {
+      try {
+        executor.execute(drainTask);
+      } catch (RuntimeException e) {
+        // No drain task will run, so nobody would answer the queued items.
+        failAll(new PermanentFailure("Executor refused drain task", e));
+        synchronized (lock) {
+          draining = false;
+        }
+        throw e;
+      }
+    }
+    return item.future;
+  }
+
+  /**
+   * Gives up on an update queued with processUpdate() if the drain task has
+   * not taken it on yet; the update is then dropped and its future cancelled.
+   * Returns false if the update has been taken on, in which case its future
+   * completes as usual.
+   */
+  public boolean abandon(ListenableFuture<R> future) {
+    QueueItem abandoned = null;
+    synchronized (lock) {
+      // The drain task takes items on by removing them from waitingItems
+      // under the lock, so an item that is still there has not been.
+      for (Iterator<QueueItem> iterator = waitingItems.iterator(); iterator.hasNext(); ) {
+        QueueItem item = iterator.next();
+        if (item.future == future) {
+          iterator.remove();
+          outstanding--;
+          monitoring.setGauge("batching-queue-length-" + name, outstanding);
+          abandoned = item;
+          break;
+        }
+      }
+    }
+    if (abandoned == null) {
+      return false;
+    }
+    monitoring.incrementCounter("batching-rejected-wait-" + name);
+    abandoned.future.cancel(false);
+    return true;
+  }
+
+  private void complete(QueueItem item, R result) {
+    synchronized (lock) {
+      outstanding--;
+    }
+    item.future.set(result);
+  }
+
+  private void fail(QueueItem item, PermanentFailure failure) {
+    synchronized (lock) {
+      outstanding--;
+    }
+    item.future.setException(failure);
+  }
+
+  private void failAll(PermanentFailure failure) {
+    List<QueueItem> items;
+    synchronized (lock) {
+      items = Lists.newArrayList(waitingItems);
+      waitingItems.clear();
+    }
+    for (QueueItem item : items) {
+      fail(item, failure);
+    }
+  }
+
+  private void linger() {
+    log.info(this + ": linger(): waiting " + lingerMillis + "ms for more updates");
+    try {
+      Thread.sleep(lingerMillis);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void drain() {
+    log.info(this + ": drain(): begin");
+    // Items left over from the previous batch when it was too large.
+    List<QueueItem> batch = Lists.newArrayList();
+    while (true) {
+      synchronized (lock) {
+        batch.addAll(waitingItems);
+        waitingItems.clear();
+        if (batch.isEmpty()) {
+          draining = false;
+          log.info(this + ": drain(): queue empty");
+          return;
+        }
+      }
+      if (lingerMillis > 0 && batch.size() > 1) {
+        linger();
+        synchronized (lock) {
+          batch.addAll(waitingItems);
+          waitingItems.clear();
+        }
+      }
+      WorkerBody body = new WorkerBody(batch);
+      int answered;
+      try {
+        retryHelper.run(body);
+        answered = body.results.size();
+        for (int i = 0; i < answered; i++) {
+          complete(batch.get(i), body.results.get(i));
+        }
+      } catch (PermanentFailure failure) {
+        log.log(Level.WARNING, this + ": Permanent failure", failure);
+        // As in BatchingUpdateProcessor, fail at least one update to avoid
+        // retrying the same batch forever.
+        answered = Math.min(batch.size(), Math.max(1, body.results.size()));
+        for (int i = 0; i < answered; i++) {
+          fail(batch.get(i), failure);
+        }
+      } catch (RuntimeException e) {
+        setCorrupted(e, batch);
+        return;
+      } catch (Error e) {
+        setCorrupted(e, batch);
+        throw e;
+      }
+      batch.subList(0, answered).clear();
+    }
+  }
+
+  private void setCorrupted(Throwable t, List<QueueItem> batch) {
+    log.log(Level.SEVERE, this + ": Corrupted", t);
+    corrupted = t;
+    PermanentFailure failure = new PermanentFailure("Processor is corrupted", t);
+    for (QueueItem item : batch) {
+      fail(item, failure);
+    }
+    failAll(failure);
+    // Leave draining set so that no further drain task is started.
+  }
+
+}
@@ -19,9 +19,11 @@ package com.google.walkaround.util.server.writebatch;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
+import com.google.walkaround.util.server.MonitoringVars;
 import com.google.walkaround.util.server.RetryHelper;
 import com.google.walkaround.util.server.RetryHelper.PermanentFailure;
 import com.google.walkaround.util.server.RetryHelper.RetryableFailure;
+import com.google.walkaround.util.server.servlet.TryAgainLaterException;
 import com.google.walkaround.util.server.writebatch.Messages.Message;
 import com.google.walkaround.util.server.writebatch.Messages.PermanentFailureMessage;
 import com.google.walkaround.util.server.writebatch.Messages.ResultMessage;
@@ -31,6 +33,7 @@ import com.google.walkaround.util.server.writebatch.UpdateTransaction.BatchTooLa
 import java.util.Iterator;
 import java.util.List;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -66,6 +69,16 @@ import java.util.logging.Logger;
  * TransactionFactory.beginTransaction() and repeating the above procedure.
  * Rejected updates may not be retried.
  *
+ * To keep a hot object from tying up an unbounded number of request threads,
+ * a processor can be given a maximum queue length and a maximum wait time.
+ * processUpdate() throws TryAgainLaterException without queueing the update if
+ * the queue is full, and gives up on an update that the worker has not taken
+ * on within the maximum wait time.  An update that has been taken on is always
+ * waited for, since it may be committed.
+ *
+ * A processor can also be given a linger time: a worker that finds other
+ * updates already waiting behind its own sleeps that long before starting the
+ * transaction, so that updates arriving in the meantime join the same batch.
  *
  * If any method on an object of this type throws a RuntimeException, the object
  * must be discarded as its internal state may be corrupted.  If any method
@@ -84,10 +97,17 @@ public class BatchingUpdateProcessor<U, R extends UpdateResult, T extends Update
   @SuppressWarnings("unused")
   private static final Logger log = Logger.getLogger(BatchingUpdateProcessor.class.getName());
 
+  private enum ItemState {
+    WAITING, TAKEN, ABANDONED;
+  }
+
   private class QueueItem {
     private final Thread thread;
     private final RestrictedChannel<R> channel = new RestrictedChannel<R>();
     private final U update;
+    private final long enqueuedMillis = System.currentTimeMillis();
+    private final AtomicReference<ItemState> state =
+        new AtomicReference<ItemState>(ItemState.WAITING);
 
     public QueueItem(Thread thread, U update) {
       Preconditions.checkNotNull(thread, "Null thread");
@@ -96,6 +116,28 @@ public class BatchingUpdateProcessor<U, R extends UpdateResult, T extends Update
       this.update = update;
     }
 
+    /**
+     * Called by the worker before it processes the update or makes the item's
+     * thread the next worker.  Returns false if the thread has given up
+     * waiting; the item must then be removed from the queue.
+     */
+    public boolean take() {
+      if (state.compareAndSet(ItemState.WAITING, ItemState.TAKEN)) {
+        monitoring.setGauge("batching-wait-millis-" + name,
+            System.currentTimeMillis() - enqueuedMillis);
+        return true;
+      }
+      return state.get() == ItemState.TAKEN;
+    }
+
+    /**
+     * Called by the item's thread when it gives up waiting.  Returns false if
+     * the worker has already taken the item.
+     */
+    public boolean abandon() {
+      return state.compareAndSet(ItemState.WAITING, ItemState.ABANDONED);
+    }
+
     public Thread getThread() {
       return thread;
     }
@@ -109,7 +151,7 @@ public class BatchingUpdateProcessor<U, R extends UpdateResult, T extends Update
     }
 
     @Override public String toString() {
-      return "QueueItem(" + thread + ", " + channel + ", " + update + ")";
+      return "QueueItem(" + thread + ", " + state + ", " + channel + ", " + update + ")";
     }
   }
 
@@ -123,6 +165,11 @@ public class BatchingUpdateProcessor<U, R extends UpdateResult, T extends Update
 
   private final TransactionFactory<R, T> txFactory;
   private final RetryHelper retryHelper;
+  private final int maxQueueLength;
+  private final long maxWaitMillis;
+  private final long lingerMillis;
+  private final MonitoringVars monitoring;
+  private final String name;
   private final Object lock = new Object();
   // Concurrent so that we can remove rejected requests with no synchronization.
   // Additions have to happen under the lock.  (The invariant also implies that
@@ -135,10 +182,38 @@ public class BatchingUpdateProcessor<U, R extends UpdateResult, T extends Update
 
   public BatchingUpdateProcessor(TransactionFactory<R, T> txFactory,
       RetryHelper retryHelper) {
+    this(txFactory, retryHelper, Integer.MAX_VALUE, Long.MAX_VALUE, 0,
+        MonitoringVars.NULL_IMPL, "");
+  }
+
+  /**
+   * @param maxQueueLength the number of updates that may be queued, including
+   *     those in the batch being processed, before further updates are
+   *     rejected
+   * @param maxWaitMillis how long an update may wait for the worker to take it
+   *     on before it is rejected
+   * @param lingerMillis how long a worker waits for more updates to join its
+   *     batch when others are already waiting; 0 to not wait
+   * @param name identifies this processor's gauges and counters in
+   *     {@code monitoring}, e.g. the id of the object it is responsible for
+   */
+  public BatchingUpdateProcessor(TransactionFactory<R, T> txFactory,
+      RetryHelper retryHelper, int maxQueueLength, long maxWaitMillis, long lingerMillis,
+      MonitoringVars monitoring, String name) {
     Preconditions.checkNotNull(txFactory, "Null txFactory");
     Preconditions.checkNotNull(retryHelper, "Null retryHelper");
+    Preconditions.checkArgument(maxQueueLength > 0, "Bad maxQueueLength %s", maxQueueLength);
+    Preconditions.checkArgument(maxWaitMillis >= 0, "Bad maxWaitMillis %s", maxWaitMillis);
+    Preconditions.checkArgument(lingerMillis >= 0, "Bad lingerMillis %s", lingerMillis);
+    Preconditions.checkNotNull(monitoring, "Null monitoring");
+    Preconditions.checkNotNull(name, "Null name");
     this.txFactory = txFactory;
     this.retryHelper = retryHelper;
+    this.maxQueueLength = maxQueueLength;
+    this.maxWaitMillis = maxWaitMillis;
+    this.lingerMillis = lingerMillis;
+    this.monitoring = monitoring;
+    this.name = name;
   }
 
   @Override public String toString() {
@@ -159,6 +234,10 @@ public class BatchingUpdateProcessor<U, R extends UpdateResult, T extends Update
   public R processUpdate(U update) throws PermanentFailure {
     try {
       return doProcessUpdate(update);
+    } catch (TryAgainLaterException e) {
+      // Thrown before the update was queued or after it was removed again, so
+      // the processor's state is intact.
+      throw e;
     } catch (RuntimeException e) {
       // It's possible that this RuntimeException left the processor in a state
       // where no thread feels responsible for doing any work any more, thus
@@ -179,7 +258,6 @@ public class BatchingUpdateProcessor<U, R extends UpdateResult, T extends Update
   }
 
   private R doProcessUpdate(U update) throws PermanentFailure {
-    // TODO(ohler): reject if queue is too long
     log.info(this + ": processUpdate(" + update + ")");
     QueueItem item = new QueueItem(Thread.currentThread(), update);
     synchronized (lock) {
@@ -189,17 +267,24 @@ public class BatchingUpdateProcessor<U, R extends UpdateResult, T extends Update
         throw new Error("Updater is corrupted: " + this, corrupted);
       }
       log.info(this + ": doProcessUpdate(): waitingItems=" + waitingItems);
+      int queueLength = waitingItems.size();
       if (worker == null) {
         log.info(this + ": doProcessUpdate(): no worker active, will become worker");
         worker = Thread.currentThread();
+        item.take();
         item.getChannel().send(YourTurnMessage.<R>of());
+      } else if (queueLength >= maxQueueLength) {
+        monitoring.incrementCounter("batching-rejected-queue-full-" + name);
+        throw new TryAgainLaterException(
+            "Too many concurrent updates (" + queueLength + " queued)");
       } else {
         log.info(this + ": doProcessUpdate(): will wait for current worker: " + worker);
       }
       waitingItems.add(item);
+      monitoring.setGauge("batching-queue-length-" + name, queueLength + 1);
     }
     log.info(this + ": doProcessUpdate(): waiting for message");
-    Message<R> message = item.getChannel().receive();
+    Message<R> message = receive(item);
     log.info(this + ": doProcessUpdate(): message=" + message);
     if (message.isYourTurnMessage()) {
       log.info(this + ": doProcessUpdate(): became worker");
@@ -211,6 +296,28 @@ public class BatchingUpdateProcessor<U, R extends UpdateResult, T extends Update
     }
   }
 
+  private Message<R> receive(QueueItem item) {
+    if (maxWaitMillis == Long.MAX_VALUE) {
+      return item.getChannel().receive();
+    }
+    long remainingMillis = item.enqueuedMillis + maxWaitMillis - System.currentTimeMillis();
+    Message<R> message = item.getChannel().receive(Math.max(0, remainingMillis));
+    if (message != null) {
+      return message;
+    }
+    if (item.abandon()) {
+      // The worker skips abandoned items, but may not get to this one for a
+      // while, so remove it to keep the queue length accurate.
+      waitingItems.remove(item);
+      monitoring.incrementCounter("batching-rejected-wait-" + name);
+      throw new TryAgainLaterException(
+          "Update waited more than " + maxWaitMillis + "ms to be processed");
+    }
+    // The worker took the item just now; our turn or our result is on its way.
+    log.info(this + ": receive(): taken after timeout, waiting for message");
+    return item.getChannel().receive();
+  }
+
   private R handleResultMessage(Message<R> message) throws PermanentFailure {
     log.info(this + ": handleResultMessage(" + message + ")");
     if (message.isYourTurnMessage()) {
@@ -272,6 +379,11 @@ public class BatchingUpdateProcessor<U, R extends UpdateResult, T extends Update
       while (iterator.hasNext()) {
         QueueItem next = iterator.next();
         log.info("doWork(): next=" + next);
+        if (!next.take()) {
+          log.info("doWork(): skipping abandoned item");
+          iterator.remove();
+          continue;
+        }
         R result;
         try {
           result = tx.processUpdate(next.getUpdate());
@@ -362,6 +474,18 @@ public class BatchingUpdateProcessor<U, R extends UpdateResult, T extends Update
     }
   }
 
+  private void linger() {
+    if (lingerMillis == 0 || waitingItems.size() <= 1) {
+      return;
+    }
+    log.info(this + ": linger(): waiting " + lingerMillis + "ms for more updates");
+    try {
+      Thread.sleep(lingerMillis);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
   private void doWork() throws PermanentFailure {
     log.info(this + ": doWork(): begin");
     Preconditions.checkState(!waitingItems.isEmpty(), "%s: waitingItems is empty", this);
@@ -370,6 +494,7 @@ public class BatchingUpdateProcessor<U, R extends UpdateResult, T extends Update
     // will be notified, but all with a failure message.
     List<Message<R>> messagesToSend = Lists.newArrayList();
     try {
+      linger();
       retryHelper.run(new WorkerBody(messagesToSend));
     } catch (PermanentFailure failure) {
       log.log(Level.WARNING, "Permanent failure", failure);
@@ -395,12 +520,17 @@ public class BatchingUpdateProcessor<U, R extends UpdateResult, T extends Update
         assertWorker();
         // NOTE(ohler): It is essential that this executes even if we throw PermanentFailure;
         // otherwise, no thread will feel responsible for doing any work any more.
-        if (!waitingItems.isEmpty()) {
-          QueueItem item = waitingItems.element();
-          worker = item.getThread();
-          item.getChannel().send(YourTurnMessage.<R>of());
-        } else {
-          worker = null;
+        worker = null;
+        QueueItem item;
+        while ((item = waitingItems.peek()) != null) {
+          if (item.take()) {
+            worker = item.getThread();
+            item.getChannel().send(YourTurnMessage.<R>of());
+            break;
+          }
+          // Its thread gave up waiting and is about to remove it, if it
+          // hasn't already.
+          waitingItems.remove(item);
         }
       }
       Preconditions.checkState(removed.size() == messagesToSend.size(), "%s %s",
@@ -17,6 +17,7 @@
 package com.google.walkaround.util.server.writebatch;
 
 import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -67,6 +68,23 @@ public class Channel<T> {
     return result;
   }
 
+  /**
+   * Like {@link #receive()}, but gives up after {@code timeout}.
+   *
+   * @return null if no message arrived in time
+   */
+  public T receive(long timeout, TimeUnit unit) {
+    log.info(Thread.currentThread() + ": " + this + ": receive(" + timeout + " " + unit + ")");
+    T result;
+    try {
+      result = queue.poll(timeout, unit);
+    } catch (InterruptedException e) {
+      throw interrupted(e);
+    }
+    log.info(Thread.currentThread() + ": " + this + ": receive(): returning " + result);
+    return result;
+  }
+
   public boolean isEmpty() {
     return queue.isEmpty();
   }
@@ -21,6 +21,8 @@ import com.google.common.collect.ImmutableMap;
 import com.google.walkaround.util.server.writebatch.Messages.Message;
 import com.google.walkaround.util.server.writebatch.Messages.MessageType;
 
+import java.util.concurrent.TimeUnit;
+
 /**
  * A Channel<Message<R>> of capacity 1 that only permits a specific sequence of message types and
  * disallows send() until the previous message has been received.
@@ -62,6 +64,13 @@ class RestrictedChannel<R> {
     return channel.receive();
   }
 
+  /**
+   * @return null if no message arrived within {@code timeoutMillis}
+   */
+  public Message<R> receive(long timeoutMillis) {
+    return channel.receive(timeoutMillis, TimeUnit.MILLISECONDS);
+  }
+
   public void send(Message<R> m) {
     synchronized (lock) {
       Preconditions.checkState(channel.isEmpty(), "Unexpected second message %s in channel %s", m,
@@ -0,0 +1,716 @@
+/*
+ * Copyright 2012 Goodow.com
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.wind.server;
+
+import com.goodow.wind.channel.op.GenericOperationChannel;
+import com.goodow.wind.channel.op.GenericOperationChannel.ReceiveOpChannel;
+import com.goodow.wind.channel.op.GenericOperationChannel.SendOpService;
+import com.goodow.wind.channel.op.TransformQueue;
+import com.goodow.wind.model.json.JArray;
+import com.goodow.wind.model.json.JNumber;
+import com.goodow.wind.model.json.JObject;
+import com.goodow.wind.model.json.JString;
+import com.goodow.wind.model.json.JsonModel;
+import com.goodow.wind.model.json.JsonOp;
+import com.goodow.wind.model.json.Path;
+import com.goodow.wind.model.op.OpSink;
+import com.goodow.wind.model.op.basic.ReplaceOp;
+import com.goodow.wind.model.util.JsonValues;
+import com.goodow.wind.model.util.Pair;
+import com.goodow.wind.model.util.Serializer;
+import com.goodow.wind.server.model.Delta;
+import com.goodow.wind.server.model.ObjectId;
+import com.goodow.wind.server.model.ObjectSession;
+import com.goodow.wind.server.model.SessionId;
+
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.appengine.tools.development.testing.LocalTaskQueueTestConfig;
+import com.google.common.collect.ImmutableList;
+import com.google.gwt.core.client.Scheduler;
+import com.google.inject.AbstractModule;
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+import com.google.walkaround.slob.server.MutationProcessor;
+import com.google.walkaround.slob.server.ServerMutateRequest;
+import com.google.walkaround.slob.server.SlobFacilities;
+import com.google.walkaround.slob.server.SlobStore;
+import com.google.walkaround.slob.server.SlobStore.HistoryResult;
+import com.google.walkaround.util.server.appengine.CheckedDatastore;
+import com.google.walkaround.util.server.appengine.CheckedDatastore.CheckedTransaction;
+import com.google.walkaround.wave.server.DatastoreTimeoutMillis;
+import com.google.walkaround.wave.server.GuiceSetup;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import elemental.json.Json;
+import elemental.json.JsonValue;
+import elemental.util.ArrayOf;
+
+/**
+ * Runs simulated clients against an in-process server and checks that they converge. Each client
+ * edits its own copy of one document through {@link GenericOperationChannel} and
+ * {@link TransformQueue}, as in the browser; the server is the local mutation processor and
+ * {@link SlobStore} on top of the local datastore stub. Submits, acks and history polls travel
+ * with random latency, so submits from different clients reach the server out of order, and acks
+ * race with the history that carries them.
+ *
+ * <p>
+ * Everything runs on one thread against a virtual clock and all randomness comes from one seed, so
+ * a run is reproducible. Latencies are virtual; throughput is measured in wall-clock time. Run
+ * with {@code main}, or see {@link OtSimulationTest}.
+ */
+public class OtSimulation {
+  /**
+   * The outcome of a run in which all clients converged.
+   */
+  public static class Result {
+    private final int clients;
+    private final int edits;
+    private final long deltas;
+    private final long wallNanos;
+    private final long virtualMillis;
+    private final CountingJsonModel clientModel;
+    private final CountingJsonModel serverModel;
+    private final List<Long> ackLatencies;
+    private final int lostResponses;
+    private final int reopens;
+    private final String snapshot;
+
+    Result(int clients, int edits, long deltas, long wallNanos, long virtualMillis,
+        CountingJsonModel clientModel, CountingJsonModel serverModel, List<Long> ackLatencies,
+        int lostResponses, int reopens, String snapshot) {
+      this.clients = clients;
+      this.edits = edits;
+      this.deltas = deltas;
+      this.wallNanos = wallNanos;
+      this.virtualMillis = virtualMillis;
+      this.clientModel = clientModel;
+      this.serverModel = serverModel;
+      this.ackLatencies = ackLatencies;
+      this.lostResponses = lostResponses;
+      this.reopens = reopens;
+      this.snapshot = snapshot;
+    }
+
+    /**
+     * @return the ack latency in virtual milliseconds below which the given fraction of edits were
+     *         acknowledged
+     */
+    public long getAckLatencyPercentile(double fraction) {
+      if (ackLatencies.isEmpty()) {
+        return 0;
+      }
+      int idx = (int) Math.ceil(fraction * ackLatencies.size()) - 1;
+      return ackLatencies.get(Math.max(0, Math.min(idx, ackLatencies.size() - 1)));
+    }
+
+    public long getClientTransforms() {
+      return clientModel.transforms;
+    }
+
+    /**
+     * @return the number of deltas committed on the server, excluding the initial one
+     */
+    public long getDeltas() {
+      return deltas;
+    }
+
+    /**
+     * @return the number of submits whose response was lost, each of which was resent
+     */
+    public int getLostResponses() {
+      return lostResponses;
+    }
+
+    /**
+     * @return the number of times a client closed the document and opened it again
+     */
+    public int getReopens() {
+      return reopens;
+    }
+
+    public long getServerTransforms() {
+      return serverModel.transforms;
+    }
+
+    /**
+     * @return the converged document
+     */
+    public String getSnapshot() {
+      return snapshot;
+    }
+
+    public double getOpsPerSecond() {
+      return edits / (wallNanos / 1e9);
+    }
+
+    @Override
+    public String toString() {
+      return "clients\t" + clients + "\n" + "edits\t" + edits + "\n" + "deltas\t" + deltas + "\n"
+          + "wallMs\t" + String.format("%.1f", wallNanos / 1e6) + "\n" + "virtualMs\t"
+          + virtualMillis + "\n" + "opsPerSec\t" + String.format("%.0f", getOpsPerSecond())
+          + "\n" + "clientTransforms\t" + clientModel.transforms + "\t" + clientModel.pairs + "\n"
+          + "serverTransforms\t" + serverModel.transforms + "\t" + serverModel.pairs + "\n"
+          + "ackP50Ms\t" + getAckLatencyPercentile(0.5) + "\n" + "ackP99Ms\t"
+          + getAckLatencyPercentile(0.99) + "\n" + "lostResponses\t" + lostResponses + "\n"
+          + "reopens\t" + reopens;
+    }
+  }
+
+  /**
+   * Counts calls to {@link #transform} and the number of op pairs they were given.
+   */
+  static class CountingJsonModel extends JsonModel {
+    long transforms;
+    long pairs;
+
+    @Override
+    public Pair<ArrayOf<JsonOp<?>>, ArrayOf<JsonOp<?>>> transform(ArrayOf<JsonOp<?>> serverOps,
+        ArrayOf<JsonOp<?>> clientOps) {
+      transforms++;
+      pairs += (long) serverOps.length() * clientOps.length();
+      return super.transform(serverOps, clientOps);
+    }
+  }
+
+  private interface Action {
+    void run() throws Exception;
+  }
+
+  private static class Event implements Comparable<Event> {
+    final long time;
+    final long seq;
+    final Action action;
+
+    Event(long time, long seq, Action action) {
+      this.time = time;
+      this.seq = seq;
+      this.action = action;
+    }
+
+    @Override
+    public int compareTo(Event o) {
+      if (time != o.time) {
+        return time < o.time ? -1 : 1;
+      }
+      return seq < o.seq ? -1 : seq == o.seq ? 0 : 1;
+    }
+  }
+
+  /**
+   * Runs commands as events on the virtual clock instead of the browser's event loop.
+   */
+  private class VirtualScheduler extends Scheduler {
+    @Override
+    public void scheduleDeferred(final ScheduledCommand cmd) {
+      schedule(0, new Action() {
+        @Override
+        public void run() {
+          cmd.execute();
+        }
+      });
+    }
+
+    @Override
+    public void scheduleEntry(RepeatingCommand cmd) {
+      scheduleIncremental(cmd);
+    }
+
+    @Override
+    public void scheduleEntry(ScheduledCommand cmd) {
+      scheduleDeferred(cmd);
+    }
+
+    @Override
+    public void scheduleFinally(RepeatingCommand cmd) {
+      scheduleIncremental(cmd);
+    }
+
+    @Override
+    public void scheduleFinally(ScheduledCommand cmd) {
+      scheduleDeferred(cmd);
+    }
+
+    @Override
+    public void scheduleFixedDelay(final RepeatingCommand cmd, final int delayMs) {
+      schedule(delayMs, new Action() {
+        @Override
+        public void run() {
+          if (cmd.execute()) {
+            scheduleFixedDelay(cmd, delayMs);
+          }
+        }
+      });
+    }
+
+    @Override
+    public void scheduleFixedPeriod(RepeatingCommand cmd, int delayMs) {
+      scheduleFixedDelay(cmd, delayMs);
+    }
+
+    @Override
+    public void scheduleIncremental(final RepeatingCommand cmd) {
+      schedule(0, new Action() {
+        @Override
+        public void run() {
+          if (cmd.execute()) {
+            scheduleIncremental(cmd);
+          }
+        }
+      });
+    }
+  }
+
+  /**
+   * A simulated browser: edits its copy of the document, submits through the local mutation
+   * processor and polls the server history for other clients' deltas.
+   */
+  private class Client implements GenericOperationChannel.Listener<JsonOp<?>>,
+      ReceiveOpChannel<JsonOp<?>>, SendOpService<JsonOp<?>> {
+    private final SessionId sessionId;
+    private final JObject doc;
+    private GenericOperationChannel<JsonOp<?>> channel;
+    private final List<Long> unackedEditTimes = new ArrayList<Long>();
+    private ReceiveOpChannel.Listener<JsonOp<?>> receiver;
+    private int receivedVersion;
+    private boolean fetching;
+    private boolean polling;
+    private int editsLeft = editsPerClient;
+
+    Client(int index, String snapshot, int version) {
+      sessionId = new SessionId("client" + index);
+      JsonValue value = Json.parse(snapshot);
+      doc = (JObject) clientModel.create(value);
+      channel = newChannel();
+      clientModel.init(doc, OBJECT_ID.toString(), new OpSink<JsonOp<?>>() {
+        @Override
+        public void consume(JsonOp<?> op) {
+          if (!op.isNoOp()) {
+            unackedEditTimes.add(now);
+          }
+          channel.send(op);
+        }
+      }, null);
+      channel.connect(version, sessionId.getId());
+      schedule(1 + random.nextInt(editIntervalMillis), new Action() {
+        @Override
+        public void run() {
+          edit();
+        }
+      });
+    }
+
+    @Override
+    public void callbackNotNeeded(Callback callback) {
+    }
+
+    @Override
+    public void connect(int revision, ReceiveOpChannel.Listener<JsonOp<?>> listener) {
+      receiver = listener;
+      receivedVersion = revision;
+      if (!polling) {
+        polling = true;
+        schedule(pollIntervalMillis, new Action() {
+          @Override
+          public void run() throws Exception {
+            poll();
+          }
+        });
+      }
+    }
+
+    @Override
+    public void disconnect() {
+      receiver = null;
+    }
+
+    @Override
+    public void onAck(JsonOp<?> serverHistoryOp, boolean clean) {
+      if (clean) {
+        for (long time : unackedEditTimes) {
+          ackLatencies.add(now - time);
+        }
+        unackedEditTimes.clear();
+      }
+    }
+
+    @Override
+    public void onError(Throwable e) {
+      throw new AssertionError(e);
+    }
+
+    @Override
+    public void onKnownHeadVersion(int headVersion) {
+      if (headVersion > receivedVersion) {
+        fetch();
+      }
+    }
+
+    @Override
+    public void onRemoteOp(JsonOp<?> serverHistoryOp) {
+      while (channel.peek() != null) {
+        doc.consume(channel.receive());
+      }
+    }
+
+    @Override
+    public void submitOperations(final int revision, final String nonce, final int submission,
+        ArrayOf<JsonOp<?>> operations, final Callback callback) {
+      StringBuilder sb = new StringBuilder("[");
+      for (int i = 0, len = operations.length(); i < len; i++) {
+        if (i > 0) {
+          sb.append(",");
+        }
+        sb.append(operations.get(i).toString());
+      }
+      final String deltas = sb.append("]").toString();
+      schedule(latency(), new Action() {
+        @Override
+        public void run() throws Exception {
+          ServerMutateRequest request = new ServerMutateRequest();
+          request.setSession(new ObjectSession(OBJECT_ID, sessionId));
+          request.setVersion(revision);
+          request.setNonce(nonce);
+          request.setSubmission(submission);
+          request.setDeltas(deltas);
+          final long resultingVersion = processor.mutateObject(request).getResultingVersion();
+          headVersion = Math.max(headVersion, resultingVersion);
+          if (lostResponseRate > 0 && random.nextDouble() < lostResponseRate) {
+            lostResponses++;
+            schedule(latency(), new Action() {
+              @Override
+              public void run() {
+                callback.onConnectionError(new IOException("Response lost"));
+              }
+            });
+            return;
+          }
+          schedule(latency(), new Action() {
+            @Override
+            public void run() {
+              callback.onSuccess((int) resultingVersion);
+            }
+          });
+        }
+      });
+    }
+
+    boolean isSettled() {
+      return editsLeft == 0 && channel.isClean() && channel.version() == headVersion;
+    }
+
+    private void deliver(int startVersion, HistoryResult history) {
+      fetching = false;
+      if (receiver == null) {
+        return;
+      }
+      List<Delta<String>> data = history.getData();
+      for (int i = 0; i < data.size(); i++) {
+        int version = (int) history.getResultingVersion(startVersion, i);
+        if (version <= receivedVersion) {
+          continue;
+        }
+        receivedVersion = version;
+        Delta<String> delta = data.get(i);
+        JsonValue payload = Json.parse(delta.getPayload());
+        receiver.onMessage(version, delta.getClientId().getId(), clientModel.createOp(payload));
+      }
+      if (history.hasMore()) {
+        fetch();
+      }
+    }
+
+    private void edit() {
+      if (reopenRate > 0 && channel.isClean() && random.nextDouble() < reopenRate) {
+        reopen();
+      }
+      switch (random.nextInt(4)) {
+        case 0:
+          JString str = doc.get("s");
+          if (str.length() > MAX_LENGTH || (str.length() > 0 && random.nextBoolean())) {
+            int idx = random.nextInt(str.length());
+            str.delete(idx, Math.min(str.length() - idx, 1 + random.nextInt(3)));
+          } else {
+            str.insert(random.nextInt(str.length() + 1), "" + (char) ('a' + random.nextInt(26)));
+          }
+          break;
+        case 1:
+          JArray array = doc.get("a");
+          if (array.length() > MAX_LENGTH || (array.length() > 0 && random.nextBoolean())) {
+            array.remove(random.nextInt(array.length()));
+          } else {
+            array.insert(random.nextInt(array.length() + 1), random.nextInt(100));
+          }
+          break;
+        case 2:
+          JObject obj = doc.get("o");
+          String key = "k" + random.nextInt(KEYS);
+          if (obj.hasKey(key) && random.nextBoolean()) {
+            obj.remove(key);
+          } else {
+            obj.put(key, random.nextInt(100));
+          }
+          break;
+        default:
+          JNumber num = doc.get("n");
+          num.add(1 + random.nextInt(9));
+          break;
+      }
+      edits++;
+      if (--editsLeft > 0) {
+        schedule(1 + random.nextInt(editIntervalMillis), new Action() {
+          @Override
+          public void run() {
+            edit();
+          }
+        });
+      }
+    }
+
+    /**
+     * Closes the document and opens it again under the same session id, as a page does when it
+     * navigates between documents. The new channel numbers its submissions from 1 again.
+     */
+    private void reopen() {
+      int version = channel.version();
+      channel.disconnect();
+      channel = newChannel();
+      channel.connect(version, sessionId.getId());
+      reopens++;
+    }
+
+    /**
+     * Keeps at most one history request in flight, so that history arrives in order.
+     */
+    private void fetch() {
+      if (fetching) {
+        return;
+      }
+      fetching = true;
+      final int startVersion = receivedVersion;
+      schedule(latency(), new Action() {
+        @Override
+        public void run() throws Exception {
+          final HistoryResult history = store.loadHistory(OBJECT_ID, startVersion, null);
+          schedule(latency(), new Action() {
+            @Override
+            public void run() {
+              deliver(startVersion, history);
+            }
+          });
+        }
+      });
+    }
+
+    private GenericOperationChannel<JsonOp<?>> newChannel() {
+      return new GenericOperationChannel<JsonOp<?>>(scheduler, new TransformQueue<JsonOp<?>>(
+          clientModel), this, this, this);
+    }
+
+    private void poll() {
+      if (receiver == null) {
+        polling = false;
+        return;
+      }
+      fetch();
+      schedule(pollIntervalMillis, new Action() {
+        @Override
+        public void run() {
+          poll();
+        }
+      });
+    }
+  }
+
+  private static final ObjectId OBJECT_ID = new ObjectId("sim", "doc");
+  private static final String INITIAL_DOC = "{\"s\":\"\",\"a\":[],\"o\":{},\"n\":0}";
+  private static final String WEBINF_ROOT = "src/main/webapp/WEB-INF";
+  private static final int MAX_LENGTH = 200;
+  private static final int KEYS = 8;
+  /** Virtual time after which a run that has not settled is considered stuck. */
+  private static final long MAX_VIRTUAL_MILLIS = 24 * 60 * 60 * 1000L;
+
+  public static void main(String[] args) throws Exception {
+    int clients = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+    int editsPerClient = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+    int maxLatencyMillis = args.length > 2 ? Integer.parseInt(args[2]) : 200;
+    long seed = args.length > 3 ? Long.parseLong(args[3]) : 42;
+    double lostResponseRate = args.length > 4 ? Double.parseDouble(args[4]) : 0;
+    double reopenRate = args.length > 5 ? Double.parseDouble(args[5]) : 0;
+    System.out.println(new OtSimulation(clients, editsPerClient, maxLatencyMillis, seed,
+        lostResponseRate, reopenRate).run());
+  }
+
+  private final int clientCount;
+  private final int editsPerClient;
+  private final int maxLatencyMillis;
+  private final int editIntervalMillis;
+  private final int pollIntervalMillis;
+  private final double lostResponseRate;
+  private final double reopenRate;
+  private final Random random;
+  private final VirtualScheduler scheduler = new VirtualScheduler();
+  private final PriorityQueue<Event> events = new PriorityQueue<Event>();
+  private final CountingJsonModel clientModel = new CountingJsonModel();
+  private final CountingJsonModel serverModel = new CountingJsonModel();
+  private final List<Long> ackLatencies = new ArrayList<Long>();
+  private long now;
+  private long eventCount;
+  private int edits;
+  private long headVersion;
+  private int lostResponses;
+  private int reopens;
+  private SlobStore store;
+  private MutationProcessor processor;
+
+  /**
+   * @param maxLatencyMillis upper bound of the one-way latency of every message; each client
+   *          edits and polls at intervals of about the same magnitude
+   */
+  public OtSimulation(int clients, int editsPerClient, int maxLatencyMillis, long seed) {
+    this(clients, editsPerClient, maxLatencyMillis, seed, 0);
+  }
+
+  /**
+   * @param lostResponseRate fraction of submits whose response is lost after the server applied
+   *          them, so that the client resends
+   */
+  public OtSimulation(int clients, int editsPerClient, int maxLatencyMillis, long seed,
+      double lostResponseRate) {
+    this(clients, editsPerClient, maxLatencyMillis, seed, lostResponseRate, 0);
+  }
+
+  /**
+   * @param reopenRate fraction of edits before which a client with all its ops acked closes the
+   *          document and opens it again under the same session id
+   */
+  public OtSimulation(int clients, int editsPerClient, int maxLatencyMillis, long seed,
+      double lostResponseRate, double reopenRate) {
+    this.clientCount = clients;
+    this.editsPerClient = editsPerClient;
+    this.maxLatencyMillis = maxLatencyMillis;
+    this.editIntervalMillis = Math.max(1, maxLatencyMillis);
+    this.pollIntervalMillis = Math.max(1, 2 * maxLatencyMillis);
+    this.lostResponseRate = lostResponseRate;
+    this.reopenRate = reopenRate;
+    this.random = new Random(seed);
+  }
+
+  /**
+   * Runs the simulation until every client has made all its edits and caught up with the server.
+   *
+   * @throws AssertionError if a client does not end up with the server's document
+   */
+  public Result run() throws Exception {
+    LocalServiceTestHelper helper =
+        new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig(),
+            new LocalMemcacheServiceTestConfig(), new LocalTaskQueueTestConfig().setQueueXmlPath(
+                WEBINF_ROOT + "/queue.xml").setDisableAutoTaskExecution(true));
+    Logger root = Logger.getLogger("");
+    Level level = root.getLevel();
+    root.setLevel(Level.WARNING);
+    helper.setUp();
+    try {
+      Injector injector =
+          Guice.createInjector(new WindServerModule(), new AppEngineModule(), GuiceSetup
+              .getRootModule(WEBINF_ROOT), new AbstractModule() {
+            @Override
+            protected void configure() {
+              bind(Long.class).annotatedWith(DatastoreTimeoutMillis.class).toInstance(10000L);
+              bind(JsonModel.class).toInstance(serverModel);
+            }
+          });
+      store = injector.getInstance(SlobStore.class);
+      processor = injector.getInstance(SlobFacilities.class).getLocalMutationProcessor();
+      createObject(injector.getInstance(CheckedDatastore.class));
+
+      String snapshot = store.loadAtVersion(OBJECT_ID, null);
+      List<Client> clients = new ArrayList<Client>();
+      for (int i = 0; i < clientCount; i++) {
+        clients.add(new Client(i, snapshot, (int) headVersion));
+      }
+      long initialVersion = headVersion;
+
+      long start = System.nanoTime();
+      while (!isSettled(clients)) {
+        Event event = events.poll();
+        if (event == null || event.time > MAX_VIRTUAL_MILLIS) {
+          throw new AssertionError("Clients did not settle by " + now + "ms");
+        }
+        now = event.time;
+        event.action.run();
+      }
+      long wallNanos = System.nanoTime() - start;
+
+      snapshot = store.loadAtVersion(OBJECT_ID, null);
+      JsonValue expected = Json.parse(snapshot);
+      for (Client client : clients) {
+        JsonValue actual = Json.parse(client.doc.toString());
+        if (!JsonValues.areEqual(expected, actual)) {
+          throw new AssertionError(client.sessionId + " diverged: expected " + snapshot
+              + " but was " + client.doc);
+        }
+      }
+      Collections.sort(ackLatencies);
+      return new Result(clientCount, edits, headVersion - initialVersion, wallNanos, now,
+          clientModel, serverModel, ackLatencies, lostResponses, reopens, snapshot);
+    } finally {
+      helper.tearDown();
+      root.setLevel(level);
+    }
+  }
+
+  @SuppressWarnings({"rawtypes", "unchecked"})
+  private void createObject(CheckedDatastore datastore) throws Exception {
+    JsonValue doc = Json.parse(INITIAL_DOC);
+    String payload =
+        new JsonOp(Path.of(), new ReplaceOp<JsonValue>(Serializer.JSON).replace(null, doc))
+            .toString();
+    CheckedTransaction tx = datastore.beginTransaction();
+    try {
+      store.newObject(tx, OBJECT_ID, "", ImmutableList.of(new Delta<String>(new SessionId(
+          "setup"), payload)), false);
+      tx.commit();
+    } finally {
+      tx.close();
+    }
+    headVersion = 1;
+  }
+
+  private boolean isSettled(List<Client> clients) {
+    for (Client client : clients) {
+      if (!client.isSettled()) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private int latency() {
+    return 1 + random.nextInt(maxLatencyMillis);
+  }
+
+  private void schedule(long delayMillis, Action action) {
+    events.add(new Event(now + delayMillis, eventCount++, action));
+  }
+}
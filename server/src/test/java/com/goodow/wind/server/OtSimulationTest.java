@@ -0,0 +1,51 @@
+/*
+ * Copyright 2012 Goodow.com
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.wind.server;
+
+import junit.framework.TestCase;
+
+public class OtSimulationTest extends TestCase {
+
+  public void testClientsConverge() throws Exception {
+    for (long seed = 1; seed <= 3; seed++) {
+      OtSimulation.Result result = new OtSimulation(4, 30, 100, seed).run();
+      assertTrue(result.getDeltas() > 0);
+      // Concurrent submits must have been transformed on both sides.
+      assertTrue(result.getClientTransforms() > 0);
+      assertTrue(result.getServerTransforms() > 0);
+    }
+  }
+
+  public void testReopenedDocumentsNumberSubmissionsAnew() throws Exception {
+    // A reopened document gets a new channel that numbers its submissions from 1 under the same
+    // session id; the server must not take them for resends of the earlier channel's.
+    OtSimulation.Result result = new OtSimulation(4, 30, 100, 5, 0.2, 0.2).run();
+    assertTrue(result.getReopens() > 0);
+  }
+
+  public void testResentSubmissionsAreAppliedOnce() throws Exception {
+    // A lost response makes the client resend its ops under the same submission number; the
+    // server must answer with the original version rather than apply them again.
+    OtSimulation.Result result = new OtSimulation(4, 30, 100, 5, 0.2).run();
+    assertTrue(result.getLostResponses() > 0);
+  }
+
+  public void testRunIsReproducible() throws Exception {
+    OtSimulation.Result first = new OtSimulation(3, 20, 50, 7).run();
+    OtSimulation.Result second = new OtSimulation(3, 20, 50, 7).run();
+    assertEquals(first.getDeltas(), second.getDeltas());
+    assertEquals(first.getSnapshot(), second.getSnapshot());
+    assertEquals(first.getAckLatencyPercentile(0.99), second.getAckLatencyPercentile(0.99));
+  }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright 2012 Goodow.com
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.wind.server.model;
+
+import com.goodow.wind.model.json.JsonModel;
+import com.goodow.wind.model.json.JsonOp;
+import com.goodow.wind.model.json.Path;
+import com.goodow.wind.model.op.basic.ReplaceOp;
+import com.goodow.wind.model.op.list.StringOp;
+import com.goodow.wind.model.util.Pair;
+import com.goodow.wind.model.util.Serializer;
+
+import com.google.walkaround.slob.shared.SlobModel.Slob;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import elemental.json.Json;
+import elemental.json.JsonValue;
+
+/**
+ * Builds a long text-editing history and compares what a client catching up from version 0 would
+ * receive and replay with and without composition: the serialized response size, and the time to
+ * apply it. Run with {@code main}.
+ */
+public class ComposedHistoryBenchmark {
+  private static final int DELTAS = 10000;
+  private static final int ITERATIONS = 5;
+  private static final SessionId SESSION = new SessionId("benchmark");
+
+  public static void main(String[] args) throws Exception {
+    JsonModelAdapter adapter = new JsonModelAdapter(new JsonModel());
+    List<Delta<String>> history = textHistory(new Random(42));
+
+    long start = System.nanoTime();
+    List<Pair<Delta<String>, Integer>> composed = adapter.compose(history);
+    long composeNanos = System.nanoTime() - start;
+    List<Delta<String>> composedDeltas = new ArrayList<Delta<String>>();
+    for (Pair<Delta<String>, Integer> delta : composed) {
+      composedDeltas.add(delta.getFirst());
+    }
+
+    String expected = replay(adapter, history);
+    if (!expected.equals(replay(adapter, composedDeltas))) {
+      throw new AssertionError("Composed history does not reproduce the object");
+    }
+    System.out.println("deltas\t" + history.size() + "\t" + composedDeltas.size());
+    System.out.println("bytes\t" + serializedLength(history) + "\t"
+        + serializedLength(composedDeltas));
+    System.out.println("applyMs\t" + String.format("%.3f", applyMillis(adapter, history)) + "\t"
+        + String.format("%.3f", applyMillis(adapter, composedDeltas)));
+    System.out.println("composeMs\t" + String.format("%.3f", composeNanos / 1e6));
+  }
+
+  private static double applyMillis(JsonModelAdapter adapter, List<Delta<String>> deltas)
+      throws Exception {
+    long best = Long.MAX_VALUE;
+    for (int i = 0; i < ITERATIONS; i++) {
+      long start = System.nanoTime();
+      replay(adapter, deltas);
+      best = Math.min(best, System.nanoTime() - start);
+    }
+    return best / 1e6;
+  }
+
+  private static String replay(JsonModelAdapter adapter, List<Delta<String>> deltas)
+      throws Exception {
+    Slob slob = adapter.create(null);
+    for (Delta<String> delta : deltas) {
+      // Deltas are parsed afresh, as they would be after being read from the log.
+      slob.apply(new Delta<String>(delta.getClientId(), delta.getPayload()));
+    }
+    return slob.snapshot();
+  }
+
+  private static int serializedLength(List<Delta<String>> deltas) throws Exception {
+    StringBuilder sb = new StringBuilder();
+    DeltaSerializer.writeClientJson(new RawJsonWriter(sb), 0, deltas);
+    return sb.length();
+  }
+
+  @SuppressWarnings({"rawtypes", "unchecked"})
+  private static List<Delta<String>> textHistory(Random random) {
+    List<Delta<String>> history = new ArrayList<Delta<String>>(DELTAS);
+    JsonValue doc = Json.parse("{\"text\":\"\"}");
+    history.add(new Delta<String>(SESSION, new JsonOp(Path.of(), new ReplaceOp<JsonValue>(
+        Serializer.JSON).replace(null, doc)).toString()));
+    int length = 0;
+    while (history.size() < DELTAS) {
+      int idx = random.nextInt(length + 1);
+      StringOp op = new StringOp();
+      if (idx > 0) {
+        op.retain(idx);
+      }
+      String word = word(random) + " ";
+      op.insert(word);
+      if (length > idx) {
+        op.retain(length - idx);
+      }
+      length += word.length();
+      history.add(new Delta<String>(SESSION, new JsonOp(Path.of("text"), op).toString()));
+    }
+    return history;
+  }
+
+  private static String word(Random random) {
+    int length = 3 + random.nextInt(8);
+    StringBuilder sb = new StringBuilder(length);
+    for (int i = 0; i < length; i++) {
+      sb.append((char) ('a' + random.nextInt(26)));
+    }
+    return sb.toString();
+  }
+}
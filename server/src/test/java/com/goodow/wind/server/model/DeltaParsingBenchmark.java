@@ -0,0 +1,124 @@
+/*
+ * Copyright 2012 Goodow.com
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.wind.server.model;
+
+import com.goodow.wind.model.json.JsonModel;
+import com.goodow.wind.model.json.JsonOp;
+import com.goodow.wind.model.json.Path;
+import com.goodow.wind.model.op.basic.ReplaceOp;
+import com.goodow.wind.model.op.list.StringOp;
+import com.goodow.wind.model.util.Serializer;
+
+import com.google.common.collect.ImmutableList;
+import com.google.walkaround.slob.shared.SlobModel.Slob;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import elemental.json.Json;
+
+/**
+ * Runs the model side of {@code LocalMutationProcessor.Tx.processUpdate()} (transform each update
+ * against the concurrent deltas, then apply it) for stale text edits, once with the parsed ops
+ * memoized on the deltas and once forgetting them between stages as the code used to, and reports
+ * time and bytes allocated per update. Run with {@code main} on a HotSpot JVM.
+ */
+public class DeltaParsingBenchmark {
+  private static final int WARMUP_UPDATES = 5000;
+  private static final int UPDATES = 20000;
+  /** How many deltas each update is behind by. */
+  private static final int CONCURRENT = 20;
+  private static final SessionId SESSION = new SessionId("benchmark");
+
+  public static void main(String[] args) throws Exception {
+    run(false, WARMUP_UPDATES);
+    run(true, WARMUP_UPDATES);
+    System.out.println("mode\tupdates\tmicrosPerUpdate\tbytesPerUpdate");
+    run(false, UPDATES);
+    run(true, UPDATES);
+  }
+
+  private static long allocatedBytes() {
+    return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean())
+        .getThreadAllocatedBytes(Thread.currentThread().getId());
+  }
+
+  private static void forgetParsedPayloads(List<Delta<String>> deltas) {
+    for (Delta<String> delta : deltas) {
+      delta.setParsedPayload(null);
+    }
+  }
+
+  @SuppressWarnings({"rawtypes", "unchecked"})
+  private static String insert(int length, int idx, String str) {
+    StringOp op = new StringOp();
+    if (idx > 0) {
+      op.retain(idx);
+    }
+    op.insert(str);
+    if (length > idx) {
+      op.retain(length - idx);
+    }
+    return new JsonOp(Path.of("text"), op).toString();
+  }
+
+  @SuppressWarnings({"rawtypes", "unchecked"})
+  private static void run(boolean memoize, int updates) throws Exception {
+    JsonModelAdapter adapter = new JsonModelAdapter(new JsonModel());
+    Random random = new Random(42);
+    Slob state = adapter.create(null);
+    List<Delta<String>> history = new ArrayList<Delta<String>>();
+    // Length of the text at each version; every op inserts, so this does not
+    // depend on how the op was transformed.
+    List<Integer> lengths = new ArrayList<Integer>();
+    Delta<String> initial =
+        new Delta<String>(SESSION, new JsonOp(Path.of(), new ReplaceOp(Serializer.JSON).replace(
+            null, Json.parse("{\"text\":\"\"}"))).toString());
+    state.apply(initial);
+    history.add(initial);
+    lengths.add(0);
+    lengths.add(0);
+
+    long startBytes = allocatedBytes();
+    long startNanos = System.nanoTime();
+    for (int i = 0; i < updates; i++) {
+      int version = Math.max(1, history.size() - CONCURRENT);
+      String word = "w" + i + " ";
+      int length = lengths.get(version);
+      Delta<String> client =
+          new Delta<String>(SESSION, insert(length, random.nextInt(length + 1), word));
+      List<Delta<String>> concurrent = history.subList(version, history.size());
+      if (!memoize) {
+        forgetParsedPayloads(concurrent);
+      }
+      List<Delta<String>> transformed = adapter.transform(ImmutableList.of(client), concurrent);
+      if (!memoize) {
+        forgetParsedPayloads(transformed);
+      }
+      for (Delta<String> delta : transformed) {
+        state.apply(delta);
+        history.add(delta);
+        lengths.add(lengths.get(lengths.size() - 1) + word.length());
+      }
+    }
+    long nanos = System.nanoTime() - startNanos;
+    long bytes = allocatedBytes() - startBytes;
+    if (updates == UPDATES) {
+      System.out.println((memoize ? "memoized" : "reparsed") + "\t" + updates + "\t"
+          + String.format("%.1f", nanos / 1e3 / updates) + "\t" + bytes / updates);
+    }
+  }
+}
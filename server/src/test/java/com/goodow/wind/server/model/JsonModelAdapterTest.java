@@ -0,0 +1,182 @@
+/*
+ * Copyright 2012 Goodow.com
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.wind.server.model;
+
+import com.goodow.wind.model.json.JsonModel;
+import com.goodow.wind.model.json.JsonOp;
+import com.goodow.wind.model.json.Path;
+import com.goodow.wind.model.op.basic.ReplaceOp;
+import com.goodow.wind.model.op.list.StringOp;
+import com.goodow.wind.model.op.number.NumberOp;
+import com.goodow.wind.model.util.Serializer;
+
+import com.google.common.collect.ImmutableList;
+import com.google.walkaround.slob.shared.SlobModel.Slob;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import elemental.json.Json;
+import elemental.json.JsonObject;
+import elemental.json.JsonValue;
+
+import junit.framework.TestCase;
+
+public class JsonModelAdapterTest extends TestCase {
+  private static final SessionId SESSION = new SessionId("s");
+
+  private final JsonModelAdapter adapter = new JsonModelAdapter(new JsonModel());
+
+  public void testComposeAllAppliesLikeItsDeltas() throws Exception {
+    List<Delta<String>> history = textHistory(new Random(1), 40);
+    String expected = replay(history).snapshot();
+
+    assertEquals(expected, replay(ImmutableList.of(adapter.composeAll(history))).snapshot());
+    // Composite deltas compose, too.
+    Delta<String> nested =
+        adapter.composeAll(ImmutableList.of(adapter.composeAll(history.subList(0, 16)), adapter
+            .composeAll(history.subList(16, 40))));
+    assertEquals(expected, replay(ImmutableList.of(nested)).snapshot());
+  }
+
+  @SuppressWarnings({"rawtypes", "unchecked"})
+  public void testSnapshotResetsSizeEstimate() throws Exception {
+    String snapshot = "{\"n\":1}";
+    Slob slob = adapter.create(snapshot);
+    assertEquals(snapshot.length(), slob.snapshotSizeEstimate());
+
+    // Number formatting is not accounted for by the ops.
+    slob.apply(new Delta<String>(SESSION, new JsonOp(Path.of("n"), new NumberOp().add(0.5))
+        .toString()));
+    assertTrue(slob.snapshotSizeEstimate() < slob.copy().snapshot().length());
+    assertEquals(slob.snapshot().length(), slob.snapshotSizeEstimate());
+  }
+
+  @SuppressWarnings({"rawtypes", "unchecked"})
+  public void testTransformAgainstComposedDeltas() throws Exception {
+    List<Delta<String>> history = textHistory(new Random(2), 40);
+    List<Delta<String>> base = history.subList(0, 8);
+    List<Delta<String>> concurrent = history.subList(8, 40);
+    int length = ((JsonObject) Json.parse(replay(base).snapshot())).getString("text").length();
+    List<Delta<String>> client =
+        ImmutableList.of(new Delta<String>(new SessionId("client"), new JsonOp(Path.of("text"),
+            new StringOp().retain(length / 2).insert("XYZ").retain(length - length / 2))
+            .toString()));
+
+    Slob viaDeltas = replay(history);
+    for (Delta<String> delta : adapter.transform(client, concurrent)) {
+      viaDeltas.apply(delta);
+    }
+    Slob viaComposed = replay(history);
+    for (Delta<String> delta : adapter.transform(client, ImmutableList.of(adapter
+        .composeAll(concurrent)))) {
+      viaComposed.apply(delta);
+    }
+    assertEquals(viaDeltas.snapshot(), viaComposed.snapshot());
+  }
+
+  @SuppressWarnings({"rawtypes", "unchecked"})
+  public void testTransformAgainstComposedMixedDeltas() throws Exception {
+    for (int seed = 0; seed < 20; seed++) {
+      Random random = new Random(seed);
+      List<Delta<String>> history = mixedHistory(random, 48);
+      List<Delta<String>> base = history.subList(0, 16);
+      List<Delta<String>> concurrent = history.subList(16, 48);
+      Delta<String> composed = adapter.composeAll(concurrent);
+      // Edits to different properties do not merge into one op.
+      assertTrue(composed.getPayload().startsWith("["));
+
+      int length = ((JsonObject) Json.parse(replay(base).snapshot())).getString("text").length();
+      int idx = random.nextInt(length + 1);
+      SessionId clientId = new SessionId("client");
+      List<Delta<String>> client =
+          ImmutableList.of(new Delta<String>(clientId, new JsonOp(Path.of("text"), insert(idx,
+              "XYZ", length)).toString()), new Delta<String>(clientId, new JsonOp(Path.of("n"),
+              new NumberOp().add(100)).toString()));
+
+      Slob viaDeltas = replay(history);
+      for (Delta<String> delta : adapter.transform(client, concurrent)) {
+        viaDeltas.apply(delta);
+      }
+      Slob viaComposed = replay(history);
+      for (Delta<String> delta : adapter.transform(client, ImmutableList.of(composed))) {
+        viaComposed.apply(delta);
+      }
+      assertEquals("seed " + seed, viaDeltas.snapshot(), viaComposed.snapshot());
+    }
+  }
+
+  private StringOp insert(int idx, String str, int length) {
+    StringOp op = new StringOp();
+    if (idx > 0) {
+      op.retain(idx);
+    }
+    op.insert(str);
+    if (length > idx) {
+      op.retain(length - idx);
+    }
+    return op;
+  }
+
+  /**
+   * Returns a history of inserts into "text" and additions to "n" by several sessions, in random
+   * order, so that it does not compose into a single op.
+   */
+  @SuppressWarnings({"rawtypes", "unchecked"})
+  private List<Delta<String>> mixedHistory(Random random, int size) {
+    List<Delta<String>> history = new ArrayList<Delta<String>>(size);
+    JsonValue doc = Json.parse("{\"text\":\"\",\"n\":0}");
+    history.add(new Delta<String>(SESSION, new JsonOp(Path.of(), new ReplaceOp<JsonValue>(
+        Serializer.JSON).replace(null, doc)).toString()));
+    int length = 0;
+    while (history.size() < size) {
+      SessionId sessionId = new SessionId("s" + random.nextInt(3));
+      JsonOp op;
+      if (random.nextInt(3) == 0) {
+        op = new JsonOp(Path.of("n"), new NumberOp().add(1 + random.nextInt(9)));
+      } else {
+        String word = "w" + history.size() + " ";
+        op = new JsonOp(Path.of("text"), insert(random.nextInt(length + 1), word, length));
+        length += word.length();
+      }
+      history.add(new Delta<String>(sessionId, op.toString()));
+    }
+    return history;
+  }
+
+  private Slob replay(List<Delta<String>> deltas) throws Exception {
+    Slob slob = adapter.create(null);
+    for (Delta<String> delta : deltas) {
+      slob.apply(new Delta<String>(delta.getClientId(), delta.getPayload()));
+    }
+    return slob;
+  }
+
+  @SuppressWarnings({"rawtypes", "unchecked"})
+  private List<Delta<String>> textHistory(Random random, int size) {
+    List<Delta<String>> history = new ArrayList<Delta<String>>(size);
+    JsonValue doc = Json.parse("{\"text\":\"\"}");
+    history.add(new Delta<String>(SESSION, new JsonOp(Path.of(), new ReplaceOp<JsonValue>(
+        Serializer.JSON).replace(null, doc)).toString()));
+    int length = 0;
+    while (history.size() < size) {
+      String word = "w" + history.size() + " ";
+      StringOp op = insert(random.nextInt(length + 1), word, length);
+      length += word.length();
+      history.add(new Delta<String>(SESSION, new JsonOp(Path.of("text"), op).toString()));
+    }
+    return history;
+  }
+}
@@ -0,0 +1,53 @@
+/*
+ * Copyright 2012 Goodow.com
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.wind.server.model;
+
+import com.goodow.wind.channel.rpc.Constants;
+
+import com.google.common.collect.ImmutableList;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import junit.framework.TestCase;
+
+public class RawJsonWriterTest extends TestCase {
+
+  public void testDeltasMatchGsonTree() throws Exception {
+    String payload = "{\"p\":[\"a\"],\"l\":[3,{\"i\":\"x<y & \\\"z\\\"\"}]}";
+    SessionId sid = new SessionId("s'1=\n ");
+    StringBuilder sb = new StringBuilder();
+    DeltaSerializer.writeClientJson(new RawJsonWriter(sb), 4, ImmutableList.of(
+        new Delta<String>(sid, payload), new Delta<String>(sid, payload)));
+
+    JsonArray expected = new JsonArray();
+    for (int i = 0; i < 2; i++) {
+      JsonObject json = new JsonObject();
+      json.addProperty(Constants.Params.VERSION, 5L + i);
+      json.addProperty(Constants.Params.SESSION_ID, sid.getId());
+      json.add(Constants.Params.OPERATION, new JsonParser().parse(payload));
+      expected.add(json);
+    }
+    assertEquals(expected.toString(), sb.toString());
+  }
+
+  public void testNesting() throws Exception {
+    StringBuilder sb = new StringBuilder();
+    RawJsonWriter out = new RawJsonWriter(sb);
+    out.beginObject().name("a").beginArray().endArray().name("b").beginArray().value(1).value(
+        true).value((String) null).rawValue("{}").beginObject().endObject().endArray().name("c")
+        .value("d").endObject();
+    assertEquals("{\"a\":[],\"b\":[1,true,null,{},{}],\"c\":\"d\"}", sb.toString());
+  }
+}
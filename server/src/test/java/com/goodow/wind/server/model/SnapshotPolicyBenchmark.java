@@ -0,0 +1,189 @@
+/*
+ * Copyright 2012 Goodow.com
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.wind.server.model;
+
+import com.goodow.wind.model.json.JsonModel;
+import com.goodow.wind.model.json.JsonOp;
+import com.goodow.wind.model.json.Path;
+import com.goodow.wind.model.op.basic.ReplaceOp;
+import com.goodow.wind.model.op.list.StringOp;
+import com.goodow.wind.model.op.map.MapOp;
+import com.goodow.wind.model.util.Serializer;
+
+import com.google.walkaround.slob.server.AdaptiveSnapshotPolicy;
+import com.google.walkaround.slob.server.BytesSnapshotPolicy;
+import com.google.walkaround.slob.server.ReconstructionCost;
+import com.google.walkaround.slob.server.SnapshotPolicy;
+import com.google.walkaround.slob.shared.SlobModel.Slob;
+import com.google.walkaround.util.server.MonitoringVars;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import elemental.json.Json;
+import elemental.json.JsonValue;
+
+/**
+ * Replays a text-heavy and a map-heavy document through an in-memory mutation log under each
+ * {@link SnapshotPolicy}, and reports how many snapshots were written, the bytes stored, and how
+ * long reconstructing the object from its most recent snapshot took. Run with {@code main}.
+ */
+public class SnapshotPolicyBenchmark {
+  private interface Workload {
+    String initialOp();
+
+    String nextOp(Random random);
+  }
+
+  /** Many small map updates; the document stays small but churns. */
+  private static class MapWorkload implements Workload {
+    private final Map<String, JsonValue> values = new HashMap<String, JsonValue>();
+    private int counter = 0;
+
+    @SuppressWarnings({"rawtypes", "unchecked"})
+    @Override
+    public String initialOp() {
+      JsonValue doc = Json.parse("{}");
+      return new JsonOp(Path.of(), new ReplaceOp<JsonValue>(Serializer.JSON).replace(null, doc))
+          .toString();
+    }
+
+    @SuppressWarnings({"rawtypes", "unchecked"})
+    @Override
+    public String nextOp(Random random) {
+      String key = "k" + random.nextInt(MAP_KEYS);
+      JsonValue value = Json.parse("{\"n\":" + counter++ + ",\"s\":\"" + word(random) + "\"}");
+      JsonValue oldValue = values.put(key, value);
+      return new JsonOp(Path.of(), new MapOp<JsonValue>(Serializer.JSON).update(key, oldValue,
+          value)).toString();
+    }
+  }
+
+  /** Small insertions into one ever-growing string. */
+  private static class TextWorkload implements Workload {
+    private int length = 0;
+
+    @SuppressWarnings({"rawtypes", "unchecked"})
+    @Override
+    public String initialOp() {
+      JsonValue doc = Json.parse("{\"text\":\"\"}");
+      return new JsonOp(Path.of(), new ReplaceOp<JsonValue>(Serializer.JSON).replace(null, doc))
+          .toString();
+    }
+
+    @SuppressWarnings({"rawtypes", "unchecked"})
+    @Override
+    public String nextOp(Random random) {
+      int idx = random.nextInt(length + 1);
+      String word = word(random) + " ";
+      StringOp op = new StringOp();
+      if (idx > 0) {
+        op.retain(idx);
+      }
+      op.insert(word);
+      if (length > idx) {
+        op.retain(length - idx);
+      }
+      length += word.length();
+      return new JsonOp(Path.of("text"), op).toString();
+    }
+  }
+
+  private static final int DELTAS = 20000;
+  private static final int MAP_KEYS = 2000;
+  /** How often (in deltas) to measure reconstruction, as a cache miss would. */
+  private static final int RECONSTRUCT_INTERVAL = 100;
+  private static final int TARGET_MILLIS = 5;
+  private static final SessionId SESSION = new SessionId("benchmark");
+
+  public static void main(String[] args) throws Exception {
+    System.out.println("workload\tpolicy\tsnapshots\tstoredBytes\tdocBytes\tmeanMs\tmaxMs");
+    for (String workload : new String[] {"text", "map"}) {
+      for (String policy : new String[] {"bytes", "adaptive"}) {
+        run(workload, policy);
+      }
+    }
+  }
+
+  private static long reconstruct(JsonModelAdapter adapter, String snapshot,
+      List<Delta<String>> deltas, SnapshotPolicy policy) throws Exception {
+    long start = System.nanoTime();
+    Slob slob = adapter.create(snapshot);
+    if (snapshot != null) {
+      policy.snapshotLoaded(snapshot.length(), System.nanoTime() - start);
+    }
+    for (Delta<String> delta : deltas) {
+      slob.apply(delta);
+    }
+    return System.nanoTime() - start;
+  }
+
+  private static void run(String workloadName, String policyName) throws Exception {
+    Workload workload = "text".equals(workloadName) ? new TextWorkload() : new MapWorkload();
+    SnapshotPolicy policy =
+        "bytes".equals(policyName) ? new BytesSnapshotPolicy() : new AdaptiveSnapshotPolicy(
+            TARGET_MILLIS, MonitoringVars.NULL_IMPL);
+    JsonModelAdapter adapter = new JsonModelAdapter(new JsonModel());
+    Random random = new Random(42);
+
+    Slob live = adapter.create(null);
+    String snapshot = null;
+    List<Delta<String>> deltasSinceSnapshot = new ArrayList<Delta<String>>();
+    ReconstructionCost cost = ReconstructionCost.ofSnapshot(0);
+    int snapshots = 0;
+    long storedBytes = 0;
+    long totalReconstructNanos = 0;
+    long maxReconstructNanos = 0;
+    int reconstructions = 0;
+    for (int i = 0; i < DELTAS; i++) {
+      String payload = i == 0 ? workload.initialOp() : workload.nextOp(random);
+      Delta<String> delta = new Delta<String>(SESSION, payload);
+      long start = System.nanoTime();
+      live.apply(delta);
+      cost = cost.plusDelta(payload.length(), System.nanoTime() - start);
+      deltasSinceSnapshot.add(delta);
+      storedBytes += payload.length();
+
+      if (policy.shouldSnapshot(live.snapshotSizeEstimate(), cost)) {
+        snapshot = live.snapshot();
+        snapshots++;
+        storedBytes += snapshot.length();
+        deltasSinceSnapshot.clear();
+        cost = ReconstructionCost.ofSnapshot(snapshot.length());
+      }
+      if (i % RECONSTRUCT_INTERVAL == RECONSTRUCT_INTERVAL - 1) {
+        long nanos = reconstruct(adapter, snapshot, deltasSinceSnapshot, policy);
+        totalReconstructNanos += nanos;
+        maxReconstructNanos = Math.max(maxReconstructNanos, nanos);
+        reconstructions++;
+      }
+    }
+    System.out.println(workloadName + "\t" + policyName + "\t" + snapshots + "\t" + storedBytes
+        + "\t" + live.snapshot().length() + "\t"
+        + String.format("%.3f", totalReconstructNanos / 1e6 / reconstructions) + "\t"
+        + String.format("%.3f", maxReconstructNanos / 1e6));
+  }
+
+  private static String word(Random random) {
+    int length = 3 + random.nextInt(8);
+    StringBuilder sb = new StringBuilder(length);
+    for (int i = 0; i < length; i++) {
+      sb.append((char) ('a' + random.nextInt(26)));
+    }
+    return sb.toString();
+  }
+}
@@ -0,0 +1,56 @@
+/*
+ * Copyright 2012 Google Inc. All Rights Reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.walkaround.slob.server;
+
+import junit.framework.TestCase;
+
+public class BatchBudgetTest extends TestCase {
+
+  public void testStartsAtMaximum() {
+    assertEquals(64 * 1024, new BatchBudget(100, 64 * 1024).getBytes());
+  }
+
+  public void testSlowCommitHalvesBudget() {
+    BatchBudget budget = new BatchBudget(100, 64 * 1024);
+    budget.recordCommit(101, false);
+    assertEquals(32 * 1024, budget.getBytes());
+    budget.recordCommit(500, true);
+    assertEquals(16 * 1024, budget.getBytes());
+    for (int i = 0; i < 10; i++) {
+      budget.recordCommit(500, true);
+    }
+    assertEquals(BatchBudget.MIN_BYTES, budget.getBytes());
+  }
+
+  public void testFastFullCommitGrowsBudget() {
+    BatchBudget budget = new BatchBudget(100, 64 * 1024);
+    budget.recordCommit(200, false);
+    budget.recordCommit(200, false);
+    assertEquals(16 * 1024, budget.getBytes());
+    budget.recordCommit(100, true);
+    assertEquals(20 * 1024, budget.getBytes());
+    for (int i = 0; i < 10; i++) {
+      budget.recordCommit(50, true);
+    }
+    assertEquals(64 * 1024, budget.getBytes());
+  }
+
+  public void testFastCommitThatWasNotFullKeepsBudget() {
+    BatchBudget budget = new BatchBudget(100, 64 * 1024);
+    budget.recordCommit(200, false);
+    budget.recordCommit(10, false);
+    assertEquals(32 * 1024, budget.getBytes());
+  }
+}
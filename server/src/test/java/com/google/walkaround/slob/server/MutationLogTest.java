@@ -0,0 +1,137 @@
+/*
+ * Copyright 2012 Goodow.com
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.walkaround.slob.server;
+
+import com.goodow.wind.model.json.JsonOp;
+import com.goodow.wind.model.json.Path;
+import com.goodow.wind.model.op.basic.ReplaceOp;
+import com.goodow.wind.model.util.JsonValues;
+import com.goodow.wind.model.util.Serializer;
+import com.goodow.wind.server.AppEngineModule;
+import com.goodow.wind.server.WindServerModule;
+import com.goodow.wind.server.model.Delta;
+import com.goodow.wind.server.model.ObjectId;
+import com.goodow.wind.server.model.SessionId;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.appengine.tools.development.testing.LocalTaskQueueTestConfig;
+import com.google.common.collect.ImmutableList;
+import com.google.inject.AbstractModule;
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+import com.google.walkaround.slob.server.MutationLog.Appender;
+import com.google.walkaround.slob.server.MutationLog.MutationLogFactory;
+import com.google.walkaround.util.server.appengine.CheckedDatastore;
+import com.google.walkaround.util.server.appengine.CheckedDatastore.CheckedTransaction;
+import com.google.walkaround.wave.server.DatastoreTimeoutMillis;
+import com.google.walkaround.wave.server.GuiceSetup;
+
+import junit.framework.TestCase;
+
+import elemental.json.Json;
+import elemental.json.JsonValue;
+
+public class MutationLogTest extends TestCase {
+
+  private static final String WEBINF_ROOT = "src/main/webapp/WEB-INF";
+  private static final ObjectId OBJECT_ID = new ObjectId("test", "doc");
+
+  private final LocalServiceTestHelper helper = new LocalServiceTestHelper(
+      new LocalDatastoreServiceTestConfig(), new LocalMemcacheServiceTestConfig(),
+      new LocalTaskQueueTestConfig().setQueueXmlPath(WEBINF_ROOT + "/queue.xml")
+          .setDisableAutoTaskExecution(true));
+
+  private CheckedDatastore datastore;
+  private MutationLogFactory mutationLogFactory;
+  private SlobStore store;
+
+  public void testStaleHeadIsNotTrusted() throws Exception {
+    CheckedTransaction tx = datastore.beginTransaction();
+    try {
+      store.newObject(tx, OBJECT_ID, "", ImmutableList.of(replace(null, "{\"v\":1}"), replace(
+          "{\"v\":1}", "{\"v\":2}")), false);
+      tx.commit();
+    } finally {
+      tx.close();
+    }
+
+    // Roll the head back, as an instance that appends without maintaining it
+    // would leave it.
+    DatastoreService raw = DatastoreServiceFactory.getDatastoreService();
+    Entity head =
+        raw.get(KeyFactory.createKey(MutationLog.makeRootEntityKey(OBJECT_ID), OBJECT_ID.getKind()
+            + "Head", 1));
+    assertEquals(2L, head.getProperty("Version"));
+    head.setUnindexedProperty("Version", 1L);
+    raw.put(head);
+
+    tx = datastore.beginTransaction();
+    try {
+      MutationLog l = mutationLogFactory.create(tx, OBJECT_ID);
+      assertEquals(2, l.getVersion());
+      Appender appender = l.prepareAppender().getAppender();
+      assertEquals(2, appender.getStagedVersion());
+      appender.append(replace("{\"v\":2}", "{\"v\":3}"));
+      appender.finish();
+      tx.commit();
+    } finally {
+      tx.close();
+    }
+
+    tx = datastore.beginTransaction();
+    try {
+      assertEquals(3, mutationLogFactory.create(tx, OBJECT_ID).getVersion());
+    } finally {
+      tx.close();
+    }
+    assertTrue(JsonValues.areEqual(Json.parse("{\"v\":3}"), Json.parse(store.loadAtVersion(
+        OBJECT_ID, null))));
+  }
+
+  @Override
+  protected void setUp() throws Exception {
+    helper.setUp();
+    Injector injector =
+        Guice.createInjector(new WindServerModule(), new AppEngineModule(), GuiceSetup
+            .getRootModule(WEBINF_ROOT), new AbstractModule() {
+          @Override
+          protected void configure() {
+            bind(Long.class).annotatedWith(DatastoreTimeoutMillis.class).toInstance(10000L);
+          }
+        });
+    datastore = injector.getInstance(CheckedDatastore.class);
+    mutationLogFactory = injector.getInstance(MutationLogFactory.class);
+    store = injector.getInstance(SlobStore.class);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    helper.tearDown();
+  }
+
+  @SuppressWarnings({"rawtypes", "unchecked"})
+  private Delta<String> replace(String oldDoc, String newDoc) {
+    JsonValue oldValue = oldDoc == null ? null : Json.parse(oldDoc);
+    String payload =
+        new JsonOp(Path.of(), new ReplaceOp<JsonValue>(Serializer.JSON).replace(oldValue, Json
+            .parse(newDoc))).toString();
+    return new Delta<String>(new SessionId("test"), payload);
+  }
+}
@@ -0,0 +1,37 @@
+/*
+ * Copyright 2012 Google Inc. All Rights Reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.walkaround.slob.server;
+
+import junit.framework.TestCase;
+
+public class SkipDeltaIndexTest extends TestCase {
+
+  public void testCoverAlignedRange() {
+    assertEquals("[Block(0, 9)]", SkipDeltaIndex.cover(0, 520).toString());
+    assertEquals("[Block(512, 9), Block(1024, 9)]", SkipDeltaIndex.cover(512, 1536).toString());
+  }
+
+  public void testCoverShortRange() {
+    assertEquals("[]", SkipDeltaIndex.cover(17, 40).toString());
+    assertEquals("[]", SkipDeltaIndex.cover(40, 40).toString());
+  }
+
+  public void testCoverUnalignedRange() {
+    assertEquals("[Block(16, 4), Block(32, 5), Block(64, 5)]", SkipDeltaIndex.cover(3, 100)
+        .toString());
+    assertEquals("[Block(16, 4), Block(32, 5), Block(64, 6), Block(128, 7), Block(256, 8), "
+        + "Block(512, 8), Block(768, 4)]", SkipDeltaIndex.cover(1, 799).toString());
+  }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright 2012 Google Inc. All Rights Reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.walkaround.util.server.appengine;
+
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.common.collect.ImmutableList;
+import com.google.walkaround.util.server.appengine.CheckedDatastore.CheckedFuture;
+import com.google.walkaround.util.server.appengine.CheckedDatastore.CheckedTransaction;
+
+import junit.framework.TestCase;
+
+import java.util.Map;
+
+public class CheckedDatastoreTest extends TestCase {
+
+  private final LocalServiceTestHelper helper = new LocalServiceTestHelper(
+      new LocalDatastoreServiceTestConfig());
+
+  private CheckedDatastore datastore;
+
+  public void testGetAsync() throws Exception {
+    Key present = KeyFactory.createKey("Test", "present");
+    Key missing = KeyFactory.createKey("Test", "missing");
+    Entity entity = new Entity(present);
+    entity.setProperty("p", "value");
+    DatastoreServiceFactory.getDatastoreService().put(entity);
+
+    CheckedTransaction tx = datastore.beginTransactionXG();
+    try {
+      CheckedFuture<Entity> presentRead = tx.getAsync(present);
+      CheckedFuture<Entity> missingRead = tx.getAsync(missing);
+      CheckedFuture<Map<Key, Entity>> multiRead = tx.getAsync(ImmutableList.of(present, missing));
+      assertEquals("value", presentRead.get().getProperty("p"));
+      assertNull(missingRead.get());
+      assertEquals(ImmutableList.of(present), ImmutableList.copyOf(multiRead.get().keySet()));
+      assertTrue(presentRead.isDone());
+    } finally {
+      tx.close();
+    }
+  }
+
+  public void testPutAsyncIsWaitedForOnCommit() throws Exception {
+    Key key = KeyFactory.createKey("Test", "written");
+    Entity entity = new Entity(key);
+    entity.setProperty("p", "value");
+
+    CheckedTransaction tx = datastore.beginTransaction();
+    try {
+      tx.putAsync(entity);
+      tx.commit();
+    } finally {
+      tx.close();
+    }
+    assertEquals("value", DatastoreServiceFactory.getDatastoreService().get(key).getProperty("p"));
+  }
+
+  @Override
+  protected void setUp() throws Exception {
+    helper.setUp();
+    datastore = new CheckedDatastore(DatastoreServiceFactory.getDatastoreService(),
+        DatastoreServiceFactory.getAsyncDatastoreService());
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    helper.tearDown();
+  }
+}
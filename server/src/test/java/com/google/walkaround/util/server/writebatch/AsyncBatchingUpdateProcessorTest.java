@@ -0,0 +1,193 @@
+/*
+ * Copyright 2012 Google Inc. All Rights Reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.walkaround.util.server.writebatch;
+
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.walkaround.util.server.MonitoringVars;
+import com.google.walkaround.util.server.RetryHelper;
+import com.google.walkaround.util.server.RetryHelper.PermanentFailure;
+import com.google.walkaround.util.server.servlet.TryAgainLaterException;
+
+import junit.framework.TestCase;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class AsyncBatchingUpdateProcessorTest extends TestCase {
+
+  private static class Result implements UpdateResult {
+    private final boolean rejected;
+
+    Result(boolean rejected) {
+      this.rejected = rejected;
+    }
+
+    @Override public boolean isRejected() {
+      return rejected;
+    }
+  }
+
+  /** Rejects negative updates and commits the others. */
+  private class Tx implements UpdateTransaction<Integer, Result> {
+    private final List<Integer> pending = Lists.newArrayList();
+
+    @Override public Result processUpdate(Integer update) {
+      if (update < 0) {
+        return new Result(true);
+      }
+      pending.add(update);
+      return new Result(false);
+    }
+
+    @Override public void commit() throws PermanentFailure {
+      if (failNextCommit) {
+        failNextCommit = false;
+        throw new PermanentFailure("Commit failed");
+      }
+      committed.addAll(pending);
+    }
+
+    @Override public void rollback() {
+    }
+  }
+
+  private final List<Integer> committed =
+      Collections.synchronizedList(Lists.<Integer>newArrayList());
+  private final AtomicInteger transactions = new AtomicInteger();
+  private volatile CountDownLatch beginLatch = new CountDownLatch(0);
+  private final CountDownLatch beginning = new CountDownLatch(1);
+  private volatile boolean failNextCommit;
+  private ExecutorService executor;
+
+  private AsyncBatchingUpdateProcessor<Integer, Result, Tx> newProcessor(int maxQueueLength) {
+    return new AsyncBatchingUpdateProcessor<Integer, Result, Tx>(
+        new TransactionFactory<Result, Tx>() {
+          @Override public Tx beginTransaction() {
+            beginning.countDown();
+            try {
+              beginLatch.await();
+            } catch (InterruptedException e) {
+              throw new RuntimeException(e);
+            }
+            transactions.incrementAndGet();
+            return new Tx();
+          }
+        }, RetryHelper.NO_RETRY, executor, maxQueueLength, 0, MonitoringVars.NULL_IMPL, "test");
+  }
+
+  private static <T> T get(ListenableFuture<T> future) throws Exception {
+    return future.get(10, TimeUnit.SECONDS);
+  }
+
+  public void testUpdatesQueuedDuringCommitShareTransaction() throws Exception {
+    AsyncBatchingUpdateProcessor<Integer, Result, Tx> processor = newProcessor(1000);
+    beginLatch = new CountDownLatch(1);
+    List<ListenableFuture<Result>> futures = Lists.newArrayList();
+    for (int i = 0; i < 100; i++) {
+      futures.add(processor.processUpdate(i));
+    }
+    beginLatch.countDown();
+    for (ListenableFuture<Result> future : futures) {
+      assertFalse(get(future).isRejected());
+    }
+    List<Integer> expected = Lists.newArrayList();
+    for (int i = 0; i < 100; i++) {
+      expected.add(i);
+    }
+    assertEquals(expected, committed);
+    assertEquals(1, transactions.get());
+  }
+
+  public void testRejectedUpdateIsNotCommitted() throws Exception {
+    AsyncBatchingUpdateProcessor<Integer, Result, Tx> processor = newProcessor(1000);
+    beginLatch = new CountDownLatch(1);
+    ListenableFuture<Result> first = processor.processUpdate(1);
+    ListenableFuture<Result> rejected = processor.processUpdate(-1);
+    ListenableFuture<Result> last = processor.processUpdate(2);
+    beginLatch.countDown();
+    assertFalse(get(first).isRejected());
+    assertTrue(get(rejected).isRejected());
+    assertFalse(get(last).isRejected());
+    assertEquals(Lists.newArrayList(1, 2), committed);
+  }
+
+  public void testRejectsWhenQueueFull() throws Exception {
+    AsyncBatchingUpdateProcessor<Integer, Result, Tx> processor = newProcessor(3);
+    beginLatch = new CountDownLatch(1);
+    List<ListenableFuture<Result>> futures = Lists.newArrayList();
+    for (int i = 0; i < 3; i++) {
+      futures.add(processor.processUpdate(i));
+    }
+    try {
+      processor.processUpdate(3);
+      fail();
+    } catch (TryAgainLaterException e) {
+      // ok
+    }
+    beginLatch.countDown();
+    for (ListenableFuture<Result> future : futures) {
+      get(future);
+    }
+    get(processor.processUpdate(4));
+    assertEquals(Lists.newArrayList(0, 1, 2, 4), committed);
+  }
+
+  public void testAbandonDropsOnlyUpdatesNotTakenOn() throws Exception {
+    AsyncBatchingUpdateProcessor<Integer, Result, Tx> processor = newProcessor(2);
+    beginLatch = new CountDownLatch(1);
+    ListenableFuture<Result> taken = processor.processUpdate(0);
+    assertTrue(beginning.await(10, TimeUnit.SECONDS));
+    ListenableFuture<Result> waiting = processor.processUpdate(1);
+    assertTrue(processor.abandon(waiting));
+    assertTrue(waiting.isCancelled());
+    assertFalse(processor.abandon(taken));
+    // The abandoned update no longer counts towards the queue length.
+    ListenableFuture<Result> next = processor.processUpdate(2);
+    beginLatch.countDown();
+    assertFalse(get(taken).isRejected());
+    assertFalse(get(next).isRejected());
+    assertEquals(Lists.newArrayList(0, 2), committed);
+  }
+
+  public void testPermanentFailureFailsFuture() throws Exception {
+    AsyncBatchingUpdateProcessor<Integer, Result, Tx> processor = newProcessor(1000);
+    failNextCommit = true;
+    try {
+      get(processor.processUpdate(0));
+      fail();
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause() instanceof PermanentFailure);
+    }
+    get(processor.processUpdate(1));
+    assertEquals(Lists.newArrayList(1), committed);
+  }
+
+  @Override
+  protected void setUp() throws Exception {
+    executor = Executors.newFixedThreadPool(2);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    executor.shutdownNow();
+  }
+}
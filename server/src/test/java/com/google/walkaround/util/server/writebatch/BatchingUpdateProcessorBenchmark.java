@@ -0,0 +1,133 @@
+/*
+ * Copyright 2012 Google Inc. All Rights Reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.walkaround.util.server.writebatch;
+
+import com.google.walkaround.util.server.MonitoringVars;
+import com.google.walkaround.util.server.RetryHelper;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Compares the throughput of {@link BatchingUpdateProcessor} and
+ * {@link AsyncBatchingUpdateProcessor} on one hot object: a number of client
+ * threads submit updates back to back against a transaction whose commit takes
+ * as long as a datastore commit might.  Run with {@code main}.  Prints the
+ * updates committed per second and the mean number of updates per transaction.
+ */
+public class BatchingUpdateProcessorBenchmark {
+
+  /** Submits one update and waits for its result. */
+  private interface Client {
+    void submit(int update) throws Exception;
+  }
+
+  private static class Result implements UpdateResult {
+    @Override public boolean isRejected() {
+      return false;
+    }
+  }
+
+  private static class Tx implements UpdateTransaction<Integer, Result> {
+    @Override public Result processUpdate(Integer update) {
+      return new Result();
+    }
+
+    @Override public void commit() {
+      try {
+        Thread.sleep(COMMIT_MILLIS);
+      } catch (InterruptedException e) {
+        throw new RuntimeException(e);
+      }
+    }
+
+    @Override public void rollback() {
+    }
+  }
+
+  private static final int[] CLIENTS = {1, 8, 64, 256};
+  private static final long COMMIT_MILLIS = 10;
+  private static final long RUN_MILLIS = 3000;
+  private static final int EXECUTOR_THREADS = 2;
+
+  private static final AtomicInteger transactions = new AtomicInteger();
+  private static final TransactionFactory<Result, Tx> txFactory =
+      new TransactionFactory<Result, Tx>() {
+        @Override public Tx beginTransaction() {
+          transactions.incrementAndGet();
+          return new Tx();
+        }
+      };
+
+  public static void main(String[] args) throws Exception {
+    System.out.println("mode\tclients\tupdates/s\tbatch");
+    for (int clients : CLIENTS) {
+      final BatchingUpdateProcessor<Integer, Result, Tx> blocking =
+          new BatchingUpdateProcessor<Integer, Result, Tx>(txFactory, RetryHelper.NO_RETRY);
+      run("blocking", clients, new Client() {
+        @Override public void submit(int update) throws Exception {
+          blocking.processUpdate(update);
+        }
+      });
+
+      ExecutorService executor = Executors.newFixedThreadPool(EXECUTOR_THREADS);
+      final AsyncBatchingUpdateProcessor<Integer, Result, Tx> async =
+          new AsyncBatchingUpdateProcessor<Integer, Result, Tx>(txFactory,
+              RetryHelper.NO_RETRY, executor, Integer.MAX_VALUE, 0, MonitoringVars.NULL_IMPL,
+              "benchmark");
+      run("async", clients, new Client() {
+        @Override public void submit(int update) throws Exception {
+          async.processUpdate(update).get();
+        }
+      });
+      executor.shutdown();
+    }
+  }
+
+  private static void run(String mode, int clients, final Client client) throws Exception {
+    transactions.set(0);
+    final AtomicInteger committed = new AtomicInteger();
+    final CountDownLatch start = new CountDownLatch(1);
+    final long deadline = System.currentTimeMillis() + RUN_MILLIS;
+    Thread[] threads = new Thread[clients];
+    for (int i = 0; i < clients; i++) {
+      threads[i] = new Thread() {
+        @Override public void run() {
+          try {
+            start.await();
+            for (int update = 0; System.currentTimeMillis() < deadline; update++) {
+              client.submit(update);
+              committed.incrementAndGet();
+            }
+          } catch (Exception e) {
+            throw new RuntimeException(e);
+          }
+        }
+      };
+      threads[i].start();
+    }
+    long startMillis = System.currentTimeMillis();
+    start.countDown();
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    long elapsedMillis = System.currentTimeMillis() - startMillis;
+    System.out.println(mode + "\t" + clients + "\t"
+        + String.format("%.0f", committed.get() * 1000.0 / elapsedMillis) + "\t"
+        + String.format("%.1f", committed.get() / (double) transactions.get()));
+  }
+}
@@ -0,0 +1,246 @@
+/*
+ * Copyright 2012 Google Inc. All Rights Reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.walkaround.util.server.writebatch;
+
+import com.google.common.collect.Lists;
+import com.google.walkaround.util.server.MonitoringVars;
+import com.google.walkaround.util.server.RetryHelper;
+import com.google.walkaround.util.server.servlet.TryAgainLaterException;
+
+import junit.framework.TestCase;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class BatchingUpdateProcessorTest extends TestCase {
+
+  private static class Result implements UpdateResult {
+    @Override public boolean isRejected() {
+      return false;
+    }
+  }
+
+  /**
+   * Records updates as committed when the transaction commits, after an
+   * optional delay.
+   */
+  private class Tx implements UpdateTransaction<Integer, Result> {
+    private final List<Integer> pending = Lists.newArrayList();
+
+    @Override public Result processUpdate(Integer update) {
+      pending.add(update);
+      return new Result();
+    }
+
+    @Override public void commit() {
+      try {
+        Thread.sleep(commitMillis);
+      } catch (InterruptedException e) {
+        throw new RuntimeException(e);
+      }
+      committed.addAll(pending);
+    }
+
+    @Override public void rollback() {
+    }
+  }
+
+  /** Keeps the maximum of each gauge and the total of each counter. */
+  private static class RecordingMonitoringVars implements MonitoringVars {
+    final ConcurrentMap<String, AtomicLong> values = new ConcurrentHashMap<String, AtomicLong>();
+
+    @Override public void incrementCounter(String name) {
+      incrementCounter(name, 1);
+    }
+
+    @Override public void incrementCounter(String name, long increment) {
+      get(name).addAndGet(increment);
+    }
+
+    @Override public void setGauge(String name, long value) {
+      AtomicLong max = get(name);
+      long current;
+      while ((current = max.get()) < value && !max.compareAndSet(current, value)) {
+      }
+    }
+
+    long get(String name, long defaultValue) {
+      AtomicLong value = values.get(name);
+      return value == null ? defaultValue : value.get();
+    }
+
+    private AtomicLong get(String name) {
+      values.putIfAbsent(name, new AtomicLong());
+      return values.get(name);
+    }
+  }
+
+  private static void awaitQuietly(CountDownLatch latch) {
+    try {
+      latch.await();
+    } catch (InterruptedException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  private final List<Integer> committed =
+      Collections.synchronizedList(Lists.<Integer>newArrayList());
+  private final RecordingMonitoringVars monitoring = new RecordingMonitoringVars();
+  private volatile CountDownLatch beginLatch = new CountDownLatch(0);
+  private volatile long commitMillis;
+  private ExecutorService executor;
+
+  private BatchingUpdateProcessor<Integer, Result, Tx> newProcessor(int maxQueueLength,
+      long maxWaitMillis) {
+    return new BatchingUpdateProcessor<Integer, Result, Tx>(new TransactionFactory<Result, Tx>() {
+      @Override public Tx beginTransaction() {
+        awaitQuietly(beginLatch);
+        return new Tx();
+      }
+    }, RetryHelper.NO_RETRY, maxQueueLength, maxWaitMillis, 0, monitoring, "test");
+  }
+
+  private Future<Boolean> submit(final BatchingUpdateProcessor<Integer, Result, Tx> processor,
+      final int update) {
+    return executor.submit(new Callable<Boolean>() {
+      @Override public Boolean call() throws Exception {
+        try {
+          processor.processUpdate(update);
+          return true;
+        } catch (TryAgainLaterException e) {
+          return false;
+        }
+      }
+    });
+  }
+
+  private void awaitQueueLength(long length) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + 10000;
+    while (monitoring.get("batching-queue-length-test", 0) < length) {
+      assertTrue("Queue did not reach " + length, System.currentTimeMillis() < deadline);
+      Thread.sleep(1);
+    }
+  }
+
+  public void testManyThreadsOnOneObject() throws Exception {
+    int threads = 64;
+    final int updatesPerThread = 20;
+    int maxQueueLength = 8;
+    commitMillis = 2;
+    final BatchingUpdateProcessor<Integer, Result, Tx> processor =
+        newProcessor(maxQueueLength, Long.MAX_VALUE);
+    final AtomicInteger accepted = new AtomicInteger();
+    final AtomicInteger rejected = new AtomicInteger();
+    final List<Integer> acceptedUpdates = Collections.synchronizedList(
+        Lists.<Integer>newArrayList());
+    final CountDownLatch start = new CountDownLatch(1);
+    List<Future<?>> futures = Lists.newArrayList();
+    for (int t = 0; t < threads; t++) {
+      final int thread = t;
+      futures.add(executor.submit(new Callable<Void>() {
+        @Override public Void call() throws Exception {
+          awaitQuietly(start);
+          for (int i = 0; i < updatesPerThread; i++) {
+            int update = thread * updatesPerThread + i;
+            try {
+              processor.processUpdate(update);
+              accepted.incrementAndGet();
+              acceptedUpdates.add(update);
+            } catch (TryAgainLaterException e) {
+              rejected.incrementAndGet();
+            }
+          }
+          return null;
+        }
+      }));
+    }
+    start.countDown();
+    for (Future<?> future : futures) {
+      future.get(60, TimeUnit.SECONDS);
+    }
+
+    assertEquals(threads * updatesPerThread, accepted.get() + rejected.get());
+    assertTrue("Expected some updates to be turned away", rejected.get() > 0);
+    assertEquals(rejected.get(), monitoring.get("batching-rejected-queue-full-test", 0));
+    assertTrue(monitoring.get("batching-queue-length-test", 0) <= maxQueueLength);
+    // Every accepted update was committed exactly once, and nothing else was.
+    List<Integer> expected = Lists.newArrayList(acceptedUpdates);
+    List<Integer> actual = Lists.newArrayList(committed);
+    Collections.sort(expected);
+    Collections.sort(actual);
+    assertEquals(expected, actual);
+    // The processor is still usable.
+    processor.processUpdate(-1);
+    assertTrue(committed.contains(-1));
+  }
+
+  public void testRejectsUpdatesThatWaitTooLong() throws Exception {
+    BatchingUpdateProcessor<Integer, Result, Tx> processor = newProcessor(100, 50);
+    beginLatch = new CountDownLatch(1);
+    Future<Boolean> first = submit(processor, 0);
+    awaitQueueLength(1);
+    List<Future<Boolean>> waiting = Lists.newArrayList();
+    for (int i = 1; i <= 4; i++) {
+      waiting.add(submit(processor, i));
+    }
+    for (Future<Boolean> future : waiting) {
+      assertFalse(future.get(10, TimeUnit.SECONDS));
+    }
+    assertEquals(4, monitoring.get("batching-rejected-wait-test", 0));
+
+    beginLatch.countDown();
+    assertTrue(first.get(10, TimeUnit.SECONDS));
+    // Abandoned updates were skipped, not committed or left in the queue.
+    assertTrue(submit(processor, 5).get(10, TimeUnit.SECONDS));
+    assertEquals(Lists.newArrayList(0, 5), committed);
+  }
+
+  public void testTakenUpdateIsWaitedFor() throws Exception {
+    BatchingUpdateProcessor<Integer, Result, Tx> processor = newProcessor(100, 100);
+    beginLatch = new CountDownLatch(1);
+    Future<Boolean> first = submit(processor, 0);
+    awaitQueueLength(1);
+    Future<Boolean> second = submit(processor, 1);
+    awaitQueueLength(2);
+    // Both updates go into the same transaction, which takes longer than the
+    // maximum wait to commit.
+    commitMillis = 300;
+    beginLatch.countDown();
+    assertTrue(first.get(10, TimeUnit.SECONDS));
+    assertTrue(second.get(10, TimeUnit.SECONDS));
+    assertEquals(0, monitoring.get("batching-rejected-wait-test", 0));
+    assertEquals(Lists.newArrayList(0, 1), committed);
+  }
+
+  @Override
+  protected void setUp() throws Exception {
+    executor = Executors.newCachedThreadPool();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    executor.shutdownNow();
+  }
+}